@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger;
+
+import com.google.common.annotations.Beta;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.List;
+
+/**
+ * Extracts the keys of the messages stored in the entries added to a managed ledger, to maintain the key bloom filter
+ * of each ledger.
+ */
+@Beta
+public interface EntryKeyExtractor {
+
+    /**
+     * Get the keys of the messages stored in an entry.
+     *
+     * <p/>The reader index of the buffer must be left unchanged.
+     *
+     * @param data
+     *            the data of the entry
+     * @return the keys of the messages, an empty list if they don't have a key, or null if the keys cannot be
+     *         determined, in which case the ledger is considered as possibly containing any key
+     */
+    List<String> getKeys(ByteBuf data);
+}
@@ -434,6 +434,30 @@ public interface ManagedCursor {
     void asyncFindNewestMatching(FindPositionConstraint constraint, Predicate<Entry> condition,
             FindEntryCallback callback, Object ctx);
 
+    /**
+     * Find the newest entry that matches the given predicate, where the predicate matches the entries published at or
+     * before a given time.
+     *
+     * <p/>When the publish time index of the managed ledger is enabled, the search is bounded by the indexed entries
+     * published just before and just after the given time, instead of the whole range of entries. No entry is read
+     * when they are consecutive. By default, the timestamp is ignored and the whole range of entries is searched.
+     *
+     * @param constraint
+     *            search only active entries or all entries
+     * @param condition
+     *            predicate that reads an entry an applies a condition
+     * @param timestamp
+     *            the publish time up to which, included, the predicate matches the entries
+     * @param callback
+     *            callback object returning the resultant position
+     * @param ctx
+     *            opaque context
+     */
+    default void asyncFindNewestMatching(FindPositionConstraint constraint, Predicate<Entry> condition, long timestamp,
+            FindEntryCallback callback, Object ctx) {
+        asyncFindNewestMatching(constraint, condition, callback, ctx);
+    }
+
     /**
      * reset the cursor to specified position to enable replay of messages.
      *
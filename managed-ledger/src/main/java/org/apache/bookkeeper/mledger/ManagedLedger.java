@@ -444,4 +444,21 @@ public interface ManagedLedger {
      * @return the last confirmed entry id
      */
     Position getLastConfirmedEntry();
+
+    /**
+     * Check whether a ledger of the managed ledger might contain messages with the given key, according to its key
+     * bloom filter.
+     *
+     * <p/>Callers looking for the messages of a key can skip the ledgers for which this returns false. It returns true
+     * when the key bloom filters are disabled, and for the ledgers written without a filter.
+     *
+     * @param ledgerId
+     *            the id of the ledger
+     * @param key
+     *            the message key
+     * @return false if the ledger cannot contain messages with the key
+     */
+    default boolean ledgerMightContainKey(long ledgerId, String key) {
+        return true;
+    }
 }
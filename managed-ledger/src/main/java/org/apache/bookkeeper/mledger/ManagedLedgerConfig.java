@@ -40,6 +40,16 @@ public class ManagedLedgerConfig {
     private boolean createIfMissing = true;
     private int maxUnackedRangesToPersist = 10000;
     private int maxUnackedRangesToPersistInZk = 1000;
+    private boolean persistentUnackedRangesWithMultipleEntriesEnabled = false;
+    private int persistentUnackedRangesMaxEntrySize = 1024 * 1024;
+    private boolean markDeleteGroupCommitEnabled = false;
+    private boolean tailReadFanOutEnabled = false;
+    private int publishTimeIndexMaxPointsPerLedger = 0;
+    private EntryTimestampExtractor entryTimestampExtractor = null;
+    private int keyBloomFilterExpectedKeysPerLedger = 0;
+    private double keyBloomFilterFalsePositiveProbability = 0.01;
+    private EntryKeyExtractor entryKeyExtractor = null;
+    private double standbyLedgerCreationThreshold = 0;
     private int maxEntriesPerLedger = 50000;
     private int maxSizePerLedgerMb = 100;
     private int minimumRolloverTimeMs = 0;
@@ -61,9 +71,12 @@ public class ManagedLedgerConfig {
     private long metadataOperationsTimeoutSeconds = 60;
     private long readEntryTimeoutSeconds = 120;
     private long addEntryTimeoutSeconds = 120;
+    private int readAheadMaxEntries = 0;
+    private long readAheadMaxSizeBytes = 4 * 1024 * 1024;
     private DigestType digestType = DigestType.CRC32C;
     private byte[] password = "".getBytes(Charsets.UTF_8);
     private boolean unackedRangesOpenCacheSetEnabled = true;
+    private boolean unackedRangesCompressedSetEnabled = false;
     private Class<? extends EnsemblePlacementPolicy>  bookKeeperEnsemblePlacementPolicyClassName;
     private Map<String, Object> bookKeeperEnsemblePlacementPolicyProperties;
     private LedgerOffloader ledgerOffloader = NullLedgerOffloader.INSTANCE;
@@ -253,6 +266,20 @@ public class ManagedLedgerConfig {
         return this;
     }
 
+    /**
+     * should use {@link CompressedLongPairRangeSet} to store unacked ranges. It takes precedence over
+     * {@link #isUnackedRangesOpenCacheSetEnabled()}.
+     * @return
+     */
+    public boolean isUnackedRangesCompressedSetEnabled() {
+        return unackedRangesCompressedSetEnabled;
+    }
+
+    public ManagedLedgerConfig setUnackedRangesCompressedSetEnabled(boolean unackedRangesCompressedSetEnabled) {
+        this.unackedRangesCompressedSetEnabled = unackedRangesCompressedSetEnabled;
+        return this;
+    }
+
     /**
      * @return the metadataEnsemblesize
      */
@@ -492,6 +519,203 @@ public class ManagedLedgerConfig {
         this.maxUnackedRangesToPersistInZk = maxUnackedRangesToPersistInZk;
     }
 
+    /**
+     * @return whether all the unacked message ranges are persisted in the cursor ledger when there are more than
+     *         {@link #getMaxUnackedRangesToPersist()} of them, split across multiple entries. Only the entries whose
+     *         ranges changed are written again on each update.
+     */
+    public boolean isPersistentUnackedRangesWithMultipleEntriesEnabled() {
+        return persistentUnackedRangesWithMultipleEntriesEnabled;
+    }
+
+    public ManagedLedgerConfig setPersistentUnackedRangesWithMultipleEntriesEnabled(
+            boolean persistentUnackedRangesWithMultipleEntriesEnabled) {
+        this.persistentUnackedRangesWithMultipleEntriesEnabled = persistentUnackedRangesWithMultipleEntriesEnabled;
+        return this;
+    }
+
+    /**
+     * @return the max size of each cursor ledger entry holding unacked message ranges
+     */
+    public int getPersistentUnackedRangesMaxEntrySize() {
+        return persistentUnackedRangesMaxEntrySize;
+    }
+
+    public ManagedLedgerConfig setPersistentUnackedRangesMaxEntrySize(int persistentUnackedRangesMaxEntrySize) {
+        this.persistentUnackedRangesMaxEntrySize = persistentUnackedRangesMaxEntrySize;
+        return this;
+    }
+
+    /**
+     * @return whether the cursor position updates received while a cursor ledger write is outstanding are merged
+     *         into a single write
+     */
+    public boolean isMarkDeleteGroupCommitEnabled() {
+        return markDeleteGroupCommitEnabled;
+    }
+
+    /**
+     * Enable the group commit of the cursor position updates. When enabled, the mark-delete and individual-delete
+     * operations received while a write on the cursor ledger is outstanding are queued, and persisted together in one
+     * entry when the write completes. Their callbacks are triggered once the entry is written. Default is false.
+     *
+     * @param markDeleteGroupCommitEnabled
+     *            whether to merge the cursor position updates into a single write
+     */
+    public ManagedLedgerConfig setMarkDeleteGroupCommitEnabled(boolean markDeleteGroupCommitEnabled) {
+        this.markDeleteGroupCommitEnabled = markDeleteGroupCommitEnabled;
+        return this;
+    }
+
+    /**
+     * @return whether the entries added to the ledger are passed directly to the cursors waiting for them
+     */
+    public boolean isTailReadFanOutEnabled() {
+        return tailReadFanOutEnabled;
+    }
+
+    /**
+     * Enable the fan-out of the added entries to the cursors reading at the tail of the ledger. When enabled, a cursor
+     * waiting for new entries at the position of an added entry gets this entry directly from the add path, instead
+     * of reading it back from the cache. The waiting cursors share the buffer of the copy of the entry inserted in
+     * the entry cache, or the buffer of the added entry when it was not cached. A cursor that has fallen behind reads
+     * as usual. Default is false.
+     *
+     * @param tailReadFanOutEnabled
+     *            whether to pass the added entries directly to the waiting cursors
+     */
+    public ManagedLedgerConfig setTailReadFanOutEnabled(boolean tailReadFanOutEnabled) {
+        this.tailReadFanOutEnabled = tailReadFanOutEnabled;
+        return this;
+    }
+
+    /**
+     * @return the max number of points of the publish time index kept for each ledger
+     */
+    public int getPublishTimeIndexMaxPointsPerLedger() {
+        return publishTimeIndexMaxPointsPerLedger;
+    }
+
+    /**
+     * Set the max number of points of the publish time index kept for each ledger, up to 64. The index records the
+     * publish time of some of the entries, as returned by the {@link EntryTimestampExtractor}, and is stored in the
+     * ledger metadata when the ledger is closed, taking about 5 bytes per point. It bounds the range of entries to
+     * read when searching for a position by publish time. If the value is set to 0, or if there is no entry timestamp
+     * extractor, the index is disabled. Default is 0.
+     *
+     * @param publishTimeIndexMaxPointsPerLedger
+     *            the max number of points of the index of each ledger
+     */
+    public ManagedLedgerConfig setPublishTimeIndexMaxPointsPerLedger(int publishTimeIndexMaxPointsPerLedger) {
+        checkArgument(publishTimeIndexMaxPointsPerLedger >= 0);
+        this.publishTimeIndexMaxPointsPerLedger = publishTimeIndexMaxPointsPerLedger;
+        return this;
+    }
+
+    /**
+     * @return the extractor of the publish time of the entries, used to build the publish time index
+     */
+    public EntryTimestampExtractor getEntryTimestampExtractor() {
+        return entryTimestampExtractor;
+    }
+
+    /**
+     * Set the extractor of the publish time of the messages stored in the entries, used to build the publish time
+     * index.
+     *
+     * @param entryTimestampExtractor
+     *            the entry timestamp extractor
+     */
+    public ManagedLedgerConfig setEntryTimestampExtractor(EntryTimestampExtractor entryTimestampExtractor) {
+        this.entryTimestampExtractor = entryTimestampExtractor;
+        return this;
+    }
+
+    /**
+     * @return the number of distinct keys per ledger the key bloom filters are sized for
+     */
+    public int getKeyBloomFilterExpectedKeysPerLedger() {
+        return keyBloomFilterExpectedKeysPerLedger;
+    }
+
+    /**
+     * Set the number of distinct keys per ledger the key bloom filters are sized for. The bloom filter of a ledger is
+     * built from the keys returned by the {@link EntryKeyExtractor}, and is stored in its own metadata node when the
+     * ledger is closed, taking about 1.2 bytes per expected key with the default false positive probability. The
+     * filters are sized for fewer keys if they would be larger than 256KB. It lets
+     * {@link ManagedLedger#ledgerMightContainKey(long, String)} exclude the ledgers which cannot contain a key. If the
+     * value is set to 0, or if there is no entry key extractor, the filters are disabled. Default is 0.
+     *
+     * @param keyBloomFilterExpectedKeysPerLedger
+     *            the expected number of distinct keys per ledger
+     */
+    public ManagedLedgerConfig setKeyBloomFilterExpectedKeysPerLedger(int keyBloomFilterExpectedKeysPerLedger) {
+        checkArgument(keyBloomFilterExpectedKeysPerLedger >= 0);
+        this.keyBloomFilterExpectedKeysPerLedger = keyBloomFilterExpectedKeysPerLedger;
+        return this;
+    }
+
+    /**
+     * @return the false positive probability of the key bloom filters, when they hold the expected number of keys
+     */
+    public double getKeyBloomFilterFalsePositiveProbability() {
+        return keyBloomFilterFalsePositiveProbability;
+    }
+
+    /**
+     * Set the false positive probability of the key bloom filters, when they hold the expected number of keys.
+     * Default is 0.01.
+     *
+     * @param keyBloomFilterFalsePositiveProbability
+     *            the false positive probability, between 0 and 1 exclusive
+     */
+    public ManagedLedgerConfig setKeyBloomFilterFalsePositiveProbability(
+            double keyBloomFilterFalsePositiveProbability) {
+        checkArgument(keyBloomFilterFalsePositiveProbability > 0 && keyBloomFilterFalsePositiveProbability < 1);
+        this.keyBloomFilterFalsePositiveProbability = keyBloomFilterFalsePositiveProbability;
+        return this;
+    }
+
+    /**
+     * @return the extractor of the keys of the entries, used to build the key bloom filters
+     */
+    public EntryKeyExtractor getEntryKeyExtractor() {
+        return entryKeyExtractor;
+    }
+
+    /**
+     * Set the extractor of the keys of the messages stored in the entries, used to build the key bloom filters.
+     *
+     * @param entryKeyExtractor
+     *            the entry key extractor
+     */
+    public ManagedLedgerConfig setEntryKeyExtractor(EntryKeyExtractor entryKeyExtractor) {
+        this.entryKeyExtractor = entryKeyExtractor;
+        return this;
+    }
+
+    /**
+     * @return the fill ratio of the current ledger above which the next ledger is created in advance
+     */
+    public double getStandbyLedgerCreationThreshold() {
+        return standbyLedgerCreationThreshold;
+    }
+
+    /**
+     * Set the fill ratio of the current ledger, in number of entries or in size, above which the next ledger is
+     * created in advance. When the current ledger is full, the writes switch to the standby ledger after only updating
+     * the list of ledgers in the metadata store, instead of waiting for a new ledger to be created on the bookies. If
+     * the value is set to 0, the ledgers are only created on rollover. Default is 0.
+     *
+     * @param standbyLedgerCreationThreshold
+     *            the fill ratio, between 0 and 1
+     */
+    public ManagedLedgerConfig setStandbyLedgerCreationThreshold(double standbyLedgerCreationThreshold) {
+        checkArgument(standbyLedgerCreationThreshold >= 0 && standbyLedgerCreationThreshold <= 1);
+        this.standbyLedgerCreationThreshold = standbyLedgerCreationThreshold;
+        return this;
+    }
+
     /**
      * Get ledger offloader which will be used to offload ledgers to longterm storage.
      *
@@ -587,6 +811,42 @@ public class ManagedLedgerConfig {
         return this;
     }
 
+    /**
+     * @return the max number of entries that a catching-up cursor can prefetch ahead of its reads
+     */
+    public int getReadAheadMaxEntries() {
+        return readAheadMaxEntries;
+    }
+
+    /**
+     * Max number of entries that a cursor reading sequentially behind the cache can prefetch ahead of its reads. The
+     * prefetched entries are kept in a buffer private to the cursor. (disable read-ahead by setting it to 0)
+     *
+     * @param readAheadMaxEntries
+     */
+    public ManagedLedgerConfig setReadAheadMaxEntries(int readAheadMaxEntries) {
+        this.readAheadMaxEntries = readAheadMaxEntries;
+        return this;
+    }
+
+    /**
+     * @return the max size of the entries that each cursor can hold in its read-ahead buffer
+     */
+    public long getReadAheadMaxSizeBytes() {
+        return readAheadMaxSizeBytes;
+    }
+
+    /**
+     * Max size in bytes of the prefetched entries held by the read-ahead buffer of a cursor. No new prefetch is
+     * started once the buffer goes over this size.
+     *
+     * @param readAheadMaxSizeBytes
+     */
+    public ManagedLedgerConfig setReadAheadMaxSizeBytes(long readAheadMaxSizeBytes) {
+        this.readAheadMaxSizeBytes = readAheadMaxSizeBytes;
+        return this;
+    }
+
     /**
      * Managed-ledger can setup different custom EnsemblePlacementPolicy (eg: affinity to write ledgers to only setup of
      * group of bookies).
@@ -56,4 +56,69 @@ public class ManagedLedgerFactoryConfig {
      * Whether we should make a copy of the entry payloads when inserting in cache
      */
     private boolean copyEntriesInCache = false;
+
+    /**
+     * Whether the entry cache should keep the entries in per-ledger segments indexed by entry id, instead of a single
+     * sorted map over all the positions
+     */
+    private boolean segmentedEntryCache = false;
+
+    /**
+     * Size in bytes of the direct memory slabs used to store the cached entries. When greater than 0, entries are
+     * copied into pre-allocated slabs and the number of slabs is bounded by the max cache size. Default is 0 (disabled)
+     */
+    private int cacheSlabSize = 0;
+
+    /**
+     * Class name of the {@code EntryCacheEvictionPolicy} used to pick the entries to evict from the cache
+     */
+    private String cacheEvictionPolicyClassName = "org.apache.bookkeeper.mledger.impl.EntryCacheDefaultEvictionPolicy";
+
+    /**
+     * Local directory where a copy of the last position persisted in the ledger of each cursor is kept, so that the
+     * cursors can be recovered without reading their ledger. Default is null (disabled)
+     */
+    private String cursorSnapshotDirectory = null;
+
+    /**
+     * Max number of managed ledger and cursor metadata updates grouped in a single ZooKeeper multi transaction. Default
+     * is 0 (disabled)
+     */
+    private int metadataBatchMaxOperations = 0;
+
+    /**
+     * Max size in bytes of the metadata updates grouped in a single ZooKeeper multi transaction
+     */
+    private int metadataBatchMaxSizeBytes = 512 * 1024;
+
+    /**
+     * Max time a metadata update waits for other updates to be grouped with
+     */
+    private long metadataBatchMaxDelayMillis = 5;
+
+    /**
+     * Local directory of a RocksDB database storing the metadata of the managed ledgers and cursors, instead of
+     * ZooKeeper. The metadata is only visible to this factory, so this is meant for standalone and test deployments.
+     * Default is null (ZooKeeper)
+     */
+    private String metadataStoreRocksDbDirectory = null;
+
+    /**
+     * Whether each metadata update is synced to disk by the RocksDB metadata store. Otherwise the updates survive a
+     * crash of the process, but the last ones can be lost if the machine crashes
+     */
+    private boolean metadataStoreRocksDbSyncWrites = false;
+
+    /**
+     * Max number of ledgers per second deleted after being trimmed, across all the managed ledgers. The deletions are
+     * issued from a dedicated thread, and the trimmed ledgers stay in the managed ledger metadata until they are
+     * deleted. Default is 0 (deletions are issued right after trimming)
+     */
+    private double ledgerDeletionMaxRate = 0;
+
+    /**
+     * Whether the read-only cursors opened on the same managed ledger share a single read-only snapshot, with its
+     * ledger handles and its entry cache, while at least one of them is open. Default is false
+     */
+    private boolean readOnlyManagedLedgerSharingEnabled = false;
 }
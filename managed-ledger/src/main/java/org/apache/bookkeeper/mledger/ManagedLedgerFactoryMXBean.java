@@ -61,4 +61,39 @@ public interface ManagedLedgerFactoryMXBean {
      * Get the number of cache evictions during the last minute.
      */
     long getNumberOfCacheEvictions();
+
+    /**
+     * Get the number of entries per second that were not admitted in the cache by the eviction policy.
+     */
+    double getCacheAdmissionRejectionsRate();
+
+    /**
+     * Get the number of entries per second that were not cached because no slab had space left for them.
+     */
+    double getCacheSlabAllocationFailuresRate();
+
+    /**
+     * Get the average number of metadata updates grouped in a ZooKeeper transaction.
+     */
+    double getMetadataBatchSizeAverage();
+
+    /**
+     * Get the distribution of the number of metadata updates grouped in a ZooKeeper transaction.
+     */
+    long[] getMetadataBatchSizeBuckets();
+
+    /**
+     * Get the average time in microseconds the metadata updates waited to be sent to ZooKeeper.
+     */
+    double getMetadataBatchQueueLatencyAverageUsec();
+
+    /**
+     * Get the distribution of the time the metadata updates waited to be sent to ZooKeeper.
+     */
+    long[] getMetadataBatchQueueLatencyBuckets();
+
+    /**
+     * Get the number of trimmed ledgers waiting for the rate limit to be deleted.
+     */
+    long getPendingLedgerDeletions();
 }
@@ -66,6 +66,36 @@ public interface ManagedLedgerMXBean {
      */
     double getMarkDeleteRate();
 
+    /**
+     * @return the msg/s rate of entries prefetched by the cursors read-ahead
+     */
+    double getReadAheadEntriesRate();
+
+    /**
+     * @return the msg/s rate of cursor reads served from the read-ahead buffers
+     */
+    double getReadAheadHitsRate();
+
+    /**
+     * @return the msg/s rate of prefetched entries discarded without being read
+     */
+    double getReadAheadDiscardedRate();
+
+    /**
+     * @return the rate of reads/s that were served by joining a read already outstanding on the bookies
+     */
+    double getCoalescedReadsRate();
+
+    /**
+     * @return the rate of mark-delete/s that were persisted together with a later mark-delete on the same cursor
+     */
+    double getCoalescedMarkDeleteRate();
+
+    /**
+     * @return the rate of entries/s passed directly from the add path to the cursors waiting for them
+     */
+    double getTailReadFanOutRate();
+
     /**
      * @return the number of addEntry requests that succeeded
      */
@@ -102,6 +132,13 @@ public interface ManagedLedgerMXBean {
 
     double getLedgerSwitchLatencyAverageUsec();
 
+    /**
+     * @return the buckets of the time during which the writes were queued because of a ledger rollover
+     */
+    long[] getLedgerRolloverStallLatencyBuckets();
+
+    double getLedgerRolloverStallLatencyAverageUsec();
+
     StatsBuckets getInternalAddEntryLatencyBuckets();
 
     StatsBuckets getInternalEntrySizeBuckets();
@@ -0,0 +1,294 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.apache.bookkeeper.mledger.util.SafeRun.safeRun;
+
+import com.google.common.collect.Lists;
+import java.util.ArrayDeque;
+import java.util.List;
+import org.apache.bookkeeper.client.api.LedgerEntries;
+import org.apache.bookkeeper.client.api.LedgerEntry;
+import org.apache.bookkeeper.client.api.ReadHandle;
+import org.apache.bookkeeper.mledger.Entry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-ahead stage for a cursor that is catching up on a backlog.
+ *
+ * <p/>When the cursor is detected to be reading sequentially, the entries following the last read are fetched from
+ * BookKeeper in background and kept in a private buffer, so that the next read of the cursor can be served without
+ * waiting for a bookie round trip. The prefetched entries never go through the shared entry cache, to avoid
+ * evicting the entries that the cursors at the tail of the ledger are reading.
+ *
+ * <p/>The prefetch window starts at the size of the reads done by the cursor and doubles each time a read is served
+ * from the buffer, up to the configured max number of entries. A read at any other position resets the window and
+ * discards the buffer. At most one prefetch read is outstanding at any time and no new prefetch is started when the
+ * buffer already holds more than the configured max size.
+ */
+class CursorReadAhead {
+
+    // Number of consecutive sequential reads before starting to prefetch
+    private static final int MIN_SEQUENTIAL_READS = 2;
+
+    private final ManagedLedgerImpl ledger;
+    private final String cursorName;
+    private final int maxEntries;
+    private final long maxSizeBytes;
+
+    private final ArrayDeque<EntryImpl> buffer = new ArrayDeque<>();
+    private long bufferSize = 0;
+
+    // Position where the next read of the cursor is expected, if it is reading sequentially
+    private long nextLedgerId = -1;
+    private long nextEntryId = -1;
+    private int sequentialReads = 0;
+    private int window = 0;
+
+    private boolean prefetchInProgress = false;
+    private long prefetchLedgerId = -1;
+    private long prefetchFirstEntry = -1;
+
+    // Cursor read waiting for the outstanding prefetch to complete
+    private PendingRead waitingRead = null;
+
+    private static class PendingRead {
+        final ReadHandle lh;
+        final long firstEntry;
+        final long lastEntry;
+        final long lastEntryInLedger;
+        final OpReadEntry op;
+
+        PendingRead(ReadHandle lh, long firstEntry, long lastEntry, long lastEntryInLedger, OpReadEntry op) {
+            this.lh = lh;
+            this.firstEntry = firstEntry;
+            this.lastEntry = lastEntry;
+            this.lastEntryInLedger = lastEntryInLedger;
+            this.op = op;
+        }
+    }
+
+    CursorReadAhead(ManagedLedgerImpl ledger, String cursorName, int maxEntries, long maxSizeBytes) {
+        this.ledger = ledger;
+        this.cursorName = cursorName;
+        this.maxEntries = maxEntries;
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Try to serve a cursor read from the read-ahead buffer.
+     *
+     * @return true if the read was taken over by the read-ahead stage, false if the caller has to read the entries
+     */
+    boolean read(ReadHandle lh, long firstEntry, long lastEntry, long lastEntryInLedger, OpReadEntry op) {
+        List<Entry> entries = null;
+
+        synchronized (this) {
+            if (lh.getId() == nextLedgerId && firstEntry == nextEntryId) {
+                ++sequentialReads;
+            } else {
+                sequentialReads = 0;
+                window = 0;
+            }
+
+            if (!buffer.isEmpty() && buffer.peekFirst().getLedgerId() == lh.getId()
+                    && buffer.peekFirst().getEntryId() == firstEntry) {
+                entries = pollEntries(lastEntry);
+                window = Math.min(maxEntries, Math.max(window * 2, entries.size()));
+            } else {
+                discardBuffer();
+
+                if (prefetchInProgress && prefetchLedgerId == lh.getId() && prefetchFirstEntry == firstEntry) {
+                    // The entries are already being fetched
+                    waitingRead = new PendingRead(lh, firstEntry, lastEntry, lastEntryInLedger, op);
+                    nextLedgerId = lh.getId();
+                    nextEntryId = firstEntry;
+                    return true;
+                }
+
+                nextLedgerId = lh.getId();
+                nextEntryId = lastEntry + 1;
+            }
+
+            if (sequentialReads >= MIN_SEQUENTIAL_READS) {
+                window = Math.max(window, Math.min(maxEntries, (int) (lastEntry - firstEntry + 1)));
+                prefetch(lh, lastEntryInLedger);
+            }
+        }
+
+        if (entries == null) {
+            return false;
+        }
+
+        ledger.mbean.recordReadAheadHits(entries.size());
+        op.readEntriesComplete(entries, op.ctx);
+        return true;
+    }
+
+    /**
+     * Release all the prefetched entries.
+     */
+    synchronized void clear() {
+        discardBuffer();
+        sequentialReads = 0;
+        window = 0;
+        nextLedgerId = -1;
+        nextEntryId = -1;
+    }
+
+    synchronized long getBufferSize() {
+        return bufferSize;
+    }
+
+    synchronized int getBufferedEntries() {
+        return buffer.size();
+    }
+
+    private List<Entry> pollEntries(long lastEntry) {
+        // Must be called while holding the lock
+        List<Entry> entries = Lists.newArrayList();
+        while (!buffer.isEmpty() && buffer.peekFirst().getEntryId() <= lastEntry) {
+            EntryImpl entry = buffer.pollFirst();
+            bufferSize -= entry.getLength();
+            entries.add(entry);
+        }
+
+        EntryImpl last = (EntryImpl) entries.get(entries.size() - 1);
+        nextLedgerId = last.getLedgerId();
+        nextEntryId = last.getEntryId() + 1;
+        return entries;
+    }
+
+    private void discardBuffer() {
+        // Must be called while holding the lock
+        if (buffer.isEmpty()) {
+            return;
+        }
+
+        ledger.mbean.recordReadAheadDiscarded(buffer.size());
+        buffer.forEach(EntryImpl::release);
+        buffer.clear();
+        bufferSize = 0;
+    }
+
+    private void prefetch(ReadHandle lh, long lastEntryInLedger) {
+        // Must be called while holding the lock
+        if (prefetchInProgress || bufferSize >= maxSizeBytes || buffer.size() >= window) {
+            return;
+        }
+
+        if (!buffer.isEmpty() && buffer.peekLast().getLedgerId() != lh.getId()) {
+            return;
+        }
+
+        final long firstEntry = buffer.isEmpty() ? nextEntryId : buffer.peekLast().getEntryId() + 1;
+        final long lastEntry = Math.min(firstEntry + (window - buffer.size()) - 1, lastEntryInLedger);
+        if (lastEntry < firstEntry) {
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("[{}][{}] Prefetching entries from ledger {} - first={} last={}", ledger.getName(),
+                    cursorName, lh.getId(), firstEntry, lastEntry);
+        }
+
+        prefetchInProgress = true;
+        prefetchLedgerId = lh.getId();
+        prefetchFirstEntry = firstEntry;
+
+        lh.readAsync(firstEntry, lastEntry).whenCompleteAsync((ledgerEntries, exception) -> {
+            prefetchComplete(lh, firstEntry, lastEntryInLedger, ledgerEntries, exception);
+        }, ledger.getExecutor().chooseThread(ledger.getName()));
+    }
+
+    private void prefetchComplete(ReadHandle lh, long firstEntry, long lastEntryInLedger,
+            LedgerEntries ledgerEntries, Throwable exception) {
+        PendingRead pendingRead;
+        List<Entry> entries = null;
+
+        synchronized (this) {
+            prefetchInProgress = false;
+            pendingRead = waitingRead;
+            waitingRead = null;
+
+            if (exception != null) {
+                log.warn("[{}][{}] Failed to prefetch entries from ledger {} at {}: {}", ledger.getName(),
+                        cursorName, lh.getId(), firstEntry, exception.getMessage());
+            } else {
+                try {
+                    boolean contiguous = buffer.isEmpty()
+                            ? lh.getId() == nextLedgerId && firstEntry == nextEntryId
+                            : buffer.peekLast().getLedgerId() == lh.getId()
+                                    && buffer.peekLast().getEntryId() + 1 == firstEntry;
+                    long totalSize = 0;
+                    int count = 0;
+                    for (LedgerEntry e : ledgerEntries) {
+                        EntryImpl entry = EntryImpl.create(e);
+                        totalSize += entry.getLength();
+                        ++count;
+                        if (contiguous) {
+                            buffer.addLast(entry);
+                            bufferSize += entry.getLength();
+                        } else {
+                            // The cursor has moved in the meantime
+                            entry.release();
+                        }
+                    }
+
+                    ledger.mbean.addReadEntriesSample(count, totalSize);
+                    ledger.mbean.recordReadAheadEntries(count);
+                    if (!contiguous) {
+                        ledger.mbean.recordReadAheadDiscarded(count);
+                    }
+                } finally {
+                    ledgerEntries.close();
+                }
+            }
+
+            if (pendingRead != null && !buffer.isEmpty() && buffer.peekFirst().getEntryId() == pendingRead.firstEntry
+                    && buffer.peekFirst().getLedgerId() == pendingRead.lh.getId()) {
+                entries = pollEntries(pendingRead.lastEntry);
+                window = Math.min(maxEntries, window * 2);
+            }
+
+            if (exception == null && (pendingRead == null || entries != null)) {
+                // Keep the window full
+                prefetch(lh, lastEntryInLedger);
+            }
+        }
+
+        if (pendingRead == null) {
+            return;
+        }
+
+        if (entries != null) {
+            ledger.mbean.recordReadAheadHits(entries.size());
+            pendingRead.op.readEntriesComplete(entries, pendingRead.op.ctx);
+        } else {
+            // Fallback to a regular read
+            ledger.getExecutor().execute(safeRun(() -> {
+                ledger.asyncReadEntry(pendingRead.lh, pendingRead.firstEntry, pendingRead.lastEntry, false,
+                        pendingRead.op, pendingRead.op.ctx);
+            }));
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(CursorReadAhead.class);
+}
@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import com.google.common.collect.Lists;
+import com.scurrilous.circe.checksum.Crc32cIntChecksum;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.PositionInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local copy of the last position info written in the ledger of each cursor, used to recover the cursors without
+ * reading back their ledger.
+ *
+ * <p/>The snapshot of a cursor is stored in {@code <directory>/<managed ledger name>/<cursor name>}, and holds the id
+ * of the cursor ledger, the id of its last entry, the position info stored in this entry and the chunks of unacked
+ * ranges it references, followed by a CRC32C checksum. Snapshots are written in background, in a temporary file moved
+ * over the previous one, and only the last snapshot of a cursor updated again before being written is kept. A snapshot
+ * is only used if the cursor ledger still ends with the entry it was taken from.
+ */
+class CursorSnapshotStore {
+
+    private static final int MAGIC = 0x4d4c4353;
+    private static final int VERSION = 1;
+
+    static class Snapshot {
+        final long cursorLedgerId;
+        final long lastEntryId;
+        final PositionInfo positionInfo;
+        final List<PositionInfo> chunks;
+
+        Snapshot(long cursorLedgerId, long lastEntryId, PositionInfo positionInfo, List<PositionInfo> chunks) {
+            this.cursorLedgerId = cursorLedgerId;
+            this.lastEntryId = lastEntryId;
+            this.positionInfo = positionInfo;
+            this.chunks = chunks;
+        }
+    }
+
+    private final Path directory;
+    private final ExecutorService executor;
+
+    // Snapshots waiting to be written, by file
+    private final ConcurrentHashMap<Path, Snapshot> pendingSnapshots = new ConcurrentHashMap<>();
+
+    CursorSnapshotStore(String directory) {
+        this.directory = Paths.get(directory);
+        this.executor = Executors.newSingleThreadExecutor(new DefaultThreadFactory("bookkeeper-ml-cursor-snapshots"));
+        log.info("Storing cursor snapshots in {}", this.directory.toAbsolutePath());
+    }
+
+    void write(String ledgerName, String cursorName, Snapshot snapshot) {
+        Path path = getPath(ledgerName, cursorName);
+        if (path != null && pendingSnapshots.put(path, snapshot) == null) {
+            executor.execute(() -> writePendingSnapshot(path));
+        }
+    }
+
+    /**
+     * @return the last snapshot of the cursor, or null if there is none or if it cannot be read
+     */
+    Snapshot read(String ledgerName, String cursorName) {
+        Path path = getPath(ledgerName, cursorName);
+        if (path == null) {
+            return null;
+        }
+
+        Snapshot snapshot = pendingSnapshots.get(path);
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        try {
+            return deserialize(Files.readAllBytes(path));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.warn("[{}] [{}] Failed to read cursor snapshot {}: {}", ledgerName, cursorName, path, e.getMessage());
+            return null;
+        }
+    }
+
+    void delete(String ledgerName, String cursorName) {
+        Path path = getPath(ledgerName, cursorName);
+        if (path == null) {
+            return;
+        }
+
+        executor.execute(() -> {
+            pendingSnapshots.remove(path);
+            try {
+                Files.deleteIfExists(path);
+                // Remove the directory of the managed ledger with its last cursor
+                Files.deleteIfExists(path.getParent());
+            } catch (DirectoryNotEmptyException e) {
+                // Other cursors still have snapshots
+            } catch (IOException e) {
+                log.warn("[{}] [{}] Failed to delete cursor snapshot {}: {}", ledgerName, cursorName, path,
+                        e.getMessage());
+            }
+        });
+    }
+
+    void close() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private void writePendingSnapshot(Path path) {
+        Snapshot snapshot = pendingSnapshots.remove(path);
+        if (snapshot == null) {
+            return;
+        }
+
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            Files.write(tmpPath, serialize(snapshot));
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The cursor will be recovered from its ledger
+            log.warn("Failed to write cursor snapshot {}: {}", path, e.getMessage());
+        }
+    }
+
+    private Path getPath(String ledgerName, String cursorName) {
+        try {
+            return directory.resolve(URLEncoder.encode(ledgerName, "UTF-8"))
+                    .resolve(URLEncoder.encode(cursorName, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    static byte[] serialize(Snapshot snapshot) {
+        List<PositionInfo> infos = Lists.newArrayList(snapshot.positionInfo);
+        infos.addAll(snapshot.chunks);
+
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeInt(MAGIC);
+        buf.writeInt(VERSION);
+        buf.writeLong(snapshot.cursorLedgerId);
+        buf.writeLong(snapshot.lastEntryId);
+        buf.writeInt(infos.size());
+        for (PositionInfo info : infos) {
+            byte[] data = info.toByteArray();
+            buf.writeInt(data.length);
+            buf.writeBytes(data);
+        }
+        buf.writeInt(Crc32cIntChecksum.computeChecksum(buf));
+
+        byte[] data = new byte[buf.readableBytes()];
+        buf.readBytes(data);
+        return data;
+    }
+
+    static Snapshot deserialize(byte[] data) throws IOException {
+        ByteBuf buf = Unpooled.wrappedBuffer(data);
+        if (buf.readableBytes() < 4) {
+            throw new IOException("Truncated snapshot");
+        }
+        int checksum = buf.getInt(buf.writerIndex() - 4);
+        buf.writerIndex(buf.writerIndex() - 4);
+        if (Crc32cIntChecksum.computeChecksum(buf) != checksum) {
+            throw new IOException("Checksum mismatch");
+        }
+
+        try {
+            if (buf.readInt() != MAGIC || buf.readInt() != VERSION) {
+                throw new IOException("Unknown snapshot format");
+            }
+            long cursorLedgerId = buf.readLong();
+            long lastEntryId = buf.readLong();
+            int count = buf.readInt();
+            List<PositionInfo> infos = Lists.newArrayListWithCapacity(count);
+            for (int i = 0; i < count; i++) {
+                byte[] info = new byte[buf.readInt()];
+                buf.readBytes(info);
+                infos.add(PositionInfo.parseFrom(info));
+            }
+            if (infos.isEmpty()) {
+                throw new IOException("Snapshot without position");
+            }
+
+            return new Snapshot(cursorLedgerId, lastEntryId, infos.get(0),
+                    infos.size() > 1 ? infos.subList(1, infos.size()) : Collections.emptyList());
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated snapshot", e);
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(CursorSnapshotStore.class);
+}
@@ -46,6 +46,18 @@ public interface EntryCache extends Comparable<EntryCache> {
      */
     boolean insert(EntryImpl entry);
 
+    /**
+     * Insert an entry in the cache, and get an entry sharing the data of the cached copy.
+     *
+     * @param entry
+     *            the entry to be cached
+     * @return a new entry sharing the data buffer of the cached entry, to be released by the caller, or null if the
+     *         entry was not inserted in cache
+     */
+    default EntryImpl insertAndGet(EntryImpl entry) {
+        return null;
+    }
+
     /**
      * Remove from cache all the entries related to a ledger up to lastPosition included.
      *
@@ -78,6 +90,17 @@ public interface EntryCache extends Comparable<EntryCache> {
      */
     Pair<Integer, Long> evictEntries(long sizeToFree);
 
+    /**
+     * Force the cache to drop a single entry.
+     *
+     * @param position
+     *            the position of the entry
+     * @return the size of the entry, or 0 if it was not in the cache
+     */
+    default long evictEntry(PositionImpl position) {
+        return 0;
+    }
+
     /**
      * Read entries from the cache or from bookkeeper.
      *
@@ -34,4 +34,53 @@ public interface EntryCacheEvictionPolicy {
      *            the minimum size in bytes to be freed
      */
     void doEviction(List<EntryCache> caches, long sizeToFree);
+
+    /**
+     * Whether the policy tracks the individual entries of the caches. Only then the caches notify the policy of the
+     * entries inserted, read and removed.
+     */
+    default boolean isTrackingEntries() {
+        return false;
+    }
+
+    /**
+     * Record a read access to a range of entries, whether they are found in the cache or not.
+     *
+     * @param cache
+     *            the cache that was read
+     * @param ledgerId
+     *            the ledger of the entries
+     * @param firstEntry
+     *            the first entry read
+     * @param lastEntry
+     *            the last entry read, included
+     */
+    default void recordAccess(EntryCache cache, long ledgerId, long firstEntry, long lastEntry) {
+    }
+
+    /**
+     * Decide whether an entry read from storage should be inserted in a cache, while the overall cache is close to its
+     * limit. The entries added by the writers are always inserted.
+     *
+     * @param cache
+     *            the cache where the entry would be inserted
+     * @param position
+     *            the position of the entry
+     * @return true if the entry should be inserted
+     */
+    default boolean shouldAdmit(EntryCache cache, PositionImpl position) {
+        return true;
+    }
+
+    /**
+     * Notify that an entry was inserted in a cache.
+     */
+    default void entryInserted(EntryCache cache, PositionImpl position, long size) {
+    }
+
+    /**
+     * Notify that an entry was removed from a cache, because it was invalidated, evicted or the cache was cleared.
+     */
+    default void entryRemoved(EntryCache cache, PositionImpl position) {
+    }
 }
@@ -19,7 +19,6 @@
 package org.apache.bookkeeper.mledger.impl;
 
 import static com.google.common.base.Preconditions.checkArgument;
-import static com.google.common.base.Preconditions.checkNotNull;
 import static org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl.createManagedLedgerException;
 
 import com.google.common.collect.Lists;
@@ -32,13 +31,13 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
-import org.apache.bookkeeper.client.api.BKException;
 import org.apache.bookkeeper.client.api.LedgerEntry;
 import org.apache.bookkeeper.client.api.ReadHandle;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntryCallback;
 import org.apache.bookkeeper.mledger.ManagedLedgerException;
 import org.apache.bookkeeper.mledger.util.RangeCache;
+import org.apache.bookkeeper.mledger.util.SegmentedRangeCache;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,14 +51,44 @@ public class EntryCacheImpl implements EntryCache {
     private final ManagedLedgerImpl ml;
     private final RangeCache<PositionImpl, EntryImpl> entries;
     private final boolean copyEntries;
+    private final PendingReadsManager pendingReadsManager;
 
     private static final double MB = 1024 * 1024;
 
+    private static final SegmentedRangeCache.KeyMapper<PositionImpl> POSITION_MAPPER =
+            new SegmentedRangeCache.KeyMapper<PositionImpl>() {
+                @Override
+                public long getSegmentId(PositionImpl position) {
+                    return position.getLedgerId();
+                }
+
+                @Override
+                public long getOffset(PositionImpl position) {
+                    return position.getEntryId();
+                }
+            };
+
     public EntryCacheImpl(EntryCacheManager manager, ManagedLedgerImpl ml, boolean copyEntries) {
+        this(manager, ml, copyEntries, false);
+    }
+
+    public EntryCacheImpl(EntryCacheManager manager, ManagedLedgerImpl ml, boolean copyEntries,
+            boolean segmented) {
         this.manager = manager;
         this.ml = ml;
-        this.entries = new RangeCache<>(EntryImpl::getLength, EntryImpl::getTimestamp);
+        if (segmented) {
+            // A ledger can go slightly past its max entries while it rolls over, leave room for the in-flight adds
+            int maxSegmentCapacity = (int) Math.min(2L * ml.getConfig().getMaxEntriesPerLedger(), Integer.MAX_VALUE);
+            this.entries = new SegmentedRangeCache<>(POSITION_MAPPER, EntryImpl::getLength, EntryImpl::getTimestamp,
+                    maxSegmentCapacity);
+        } else {
+            this.entries = new RangeCache<>(EntryImpl::getLength, EntryImpl::getTimestamp);
+        }
+        if (manager.isTrackingEntries()) {
+            this.entries.setRemovalListener(entry -> manager.entryRemoved(this, entry.getPosition()));
+        }
         this.copyEntries = copyEntries;
+        this.pendingReadsManager = new PendingReadsManager(this, ml);
 
         if (log.isDebugEnabled()) {
             log.debug("[{}] Initialized managed-ledger entry cache", ml.getName());
@@ -84,12 +113,38 @@ public class EntryCacheImpl implements EntryCache {
 
     @Override
     public boolean insert(EntryImpl entry) {
+        return insert(entry, false, false) != null;
+    }
+
+    @Override
+    public EntryImpl insertAndGet(EntryImpl entry) {
+        return insert(entry, true, false);
+    }
+
+    /**
+     * Insert an entry in the cache.
+     *
+     * @param readFromStorage
+     *            whether the entry was read back from storage, instead of being added by the writer. Only these entries
+     *            go through the admission policy: the entries just added are about to be read by the tailing readers
+     * @return the entry sharing the cached data when requested, else the cached entry itself, or null if the entry was
+     *         not inserted
+     */
+    private EntryImpl insert(EntryImpl entry, boolean shareCachedEntry, boolean readFromStorage) {
         if (!manager.hasSpaceInCache()) {
             if (log.isDebugEnabled()) {
                 log.debug("[{}] Skipping cache while doing eviction: {} - size: {}", ml.getName(), entry.getPosition(),
                         entry.getLength());
             }
-            return false;
+            return null;
+        }
+
+        if (readFromStorage && !manager.shouldAdmit(this, entry.getPosition())) {
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] Entry not admitted in cache: {} - size: {}", ml.getName(), entry.getPosition(),
+                        entry.getLength());
+            }
+            return null;
         }
 
         if (log.isDebugEnabled()) {
@@ -101,7 +156,7 @@ public class EntryCacheImpl implements EntryCache {
         if (copyEntries) {
             cachedData = copyEntry(entry);
             if (cachedData == null) {
-                return false;
+                return null;
             }
         } else {
             // Use retain here to have the same counter increase as in the copy entry scenario
@@ -111,13 +166,19 @@ public class EntryCacheImpl implements EntryCache {
         PositionImpl position = entry.getPosition();
         EntryImpl cacheEntry = EntryImpl.create(position, cachedData);
         cachedData.release();
+        // Shared before the insertion, since the cached entry can be evicted right after it
+        EntryImpl sharedEntry = shareCachedEntry ? EntryImpl.create(cacheEntry) : cacheEntry;
         if (entries.put(position, cacheEntry)) {
             manager.entryAdded(entry.getLength());
-            return true;
+            manager.entryInserted(this, position, entry.getLength());
+            return sharedEntry;
         } else {
             // entry was not inserted into cache, we need to discard it
             cacheEntry.release();
-            return false;
+            if (shareCachedEntry) {
+                sharedEntry.release();
+            }
+            return null;
         }
     }
 
@@ -125,23 +186,12 @@ public class EntryCacheImpl implements EntryCache {
         // Copy the entry into a buffer owned by the cache. The reason is that the incoming entry is retaining a buffer
         // from netty, usually allocated in 64Kb chunks. So if we just retain the entry without copying it, we might
         // retain actually the full 64Kb even for a small entry
-        int size = entry.getLength();
-        ByteBuf cachedData = null;
         try {
-            cachedData = ALLOCATOR.directBuffer(size, size);
+            return manager.copyEntryData(this, entry.getPosition(), entry.getDataBuffer());
         } catch (Throwable t) {
             log.warn("[{}] Failed to allocate buffer for entry cache: {}", ml.getName(), t.getMessage());
             return null;
         }
-
-        if (size > 0) {
-            ByteBuf entryBuf = entry.getDataBuffer();
-            int readerIdx = entryBuf.readerIndex();
-            cachedData.writeBytes(entryBuf);
-            entryBuf.readerIndex(readerIdx);
-        }
-
-        return cachedData;
     }
 
     @Override
@@ -159,6 +209,14 @@ public class EntryCacheImpl implements EntryCache {
         manager.entriesRemoved(sizeRemoved);
     }
 
+    /**
+     * Remove a single entry from the cache, if present.
+     */
+    void invalidateEntry(PositionImpl position) {
+        Pair<Integer, Long> removed = entries.removeRange(position, position, true);
+        manager.entriesRemoved(removed.getRight());
+    }
+
     @Override
     public void invalidateAllEntries(long ledgerId) {
         final PositionImpl firstPosition = PositionImpl.get(ledgerId, 0);
@@ -195,6 +253,7 @@ public class EntryCacheImpl implements EntryCache {
         if (log.isDebugEnabled()) {
             log.debug("[{}] Reading entry ledger {}: {}", ml.getName(), lh.getId(), position.getEntryId());
         }
+        manager.recordAccess(this, position.getLedgerId(), position.getEntryId(), position.getEntryId());
         EntryImpl entry = entries.get(position);
         if (entry != null) {
             EntryImpl cachedEntry = EntryImpl.create(entry);
@@ -257,6 +316,7 @@ public class EntryCacheImpl implements EntryCache {
         if (log.isDebugEnabled()) {
             log.debug("[{}] Reading entries range ledger {}: {} to {}", ml.getName(), ledgerId, firstEntry, lastEntry);
         }
+        manager.recordAccess(this, ledgerId, firstEntry, lastEntry);
 
         Collection<EntryImpl> cachedEntries = entries.getRange(firstPosition, lastPosition);
 
@@ -284,45 +344,28 @@ public class EntryCacheImpl implements EntryCache {
                 cachedEntries.forEach(entry -> entry.release());
             }
 
-            // Read all the entries from bookkeeper
-            lh.readAsync(firstEntry, lastEntry).whenCompleteAsync(
-                    (ledgerEntries, exception) -> {
-                        if (exception != null) {
-                            if (exception instanceof BKException
-                                && ((BKException)exception).getCode() == BKException.Code.TooManyRequestsException) {
-                                callback.readEntriesFailed(createManagedLedgerException(exception), ctx);
-                            } else {
-                                ml.invalidateLedgerHandle(lh, exception);
-                                ManagedLedgerException mlException = createManagedLedgerException(exception);
-                                callback.readEntriesFailed(mlException, ctx);
-                            }
-                            return;
-                        }
-
-                        checkNotNull(ml.getName());
-                        checkNotNull(ml.getExecutor());
-
-                        try {
-                            // We got the entries, we need to transform them to a List<> type
-                            long totalSize = 0;
-                            final List<EntryImpl> entriesToReturn
-                                = Lists.newArrayListWithExpectedSize(entriesToRead);
-                            for (LedgerEntry e : ledgerEntries) {
-                                EntryImpl entry = EntryImpl.create(e);
-
-                                entriesToReturn.add(entry);
-                                totalSize += entry.getLength();
-                            }
-
-                            manager.mlFactoryMBean.recordCacheMiss(entriesToReturn.size(), totalSize);
-                            ml.getMBean().addReadEntriesSample(entriesToReturn.size(), totalSize);
+            // Read all the entries from bookkeeper, sharing the read with other cursors if possible
+            pendingReadsManager.readEntries(lh, firstEntry, lastEntry, callback, ctx);
+        }
+    }
 
-                            callback.readEntriesComplete((List) entriesToReturn, ctx);
-                        } finally {
-                            ledgerEntries.close();
-                        }
-                    }, ml.getExecutor().chooseThread(ml.getName()));
+    /**
+     * Complete a read of entries that were not found in the cache.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    void readFromStorageComplete(List<EntryImpl> entriesToReturn, long totalSize, ReadEntriesCallback callback,
+            Object ctx) {
+        manager.mlFactoryMBean.recordCacheMiss(entriesToReturn.size(), totalSize);
+        if (ml.isReadOnly()) {
+            // Keep the entries read by the read-only cursors, so that the other cursors of the same read-only managed
+            // ledger get them from the cache, within the cache size limit
+            entriesToReturn.forEach(entry -> insert(entry, false, true));
         }
+        callback.readEntriesComplete((List) entriesToReturn, ctx);
+    }
+
+    PendingReadsManager getPendingReadsManager() {
+        return pendingReadsManager;
     }
 
     @Override
@@ -357,6 +400,13 @@ public class EntryCacheImpl implements EntryCache {
         return evicted;
     }
 
+    @Override
+    public long evictEntry(PositionImpl position) {
+        long evictedSize = entries.removeRange(position, position, true).getRight();
+        manager.entriesRemoved(evictedSize);
+        return evictedSize;
+    }
+
     @Override
     public void invalidateEntriesBeforeTimestamp(long timestamp) {
         long evictedSize = entries.evictLEntriesBeforeTimestamp(timestamp);
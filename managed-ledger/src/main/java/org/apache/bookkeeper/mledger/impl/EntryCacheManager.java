@@ -18,6 +18,7 @@
  */
 package org.apache.bookkeeper.mledger.impl;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl.createManagedLedgerException;
 import static org.apache.bookkeeper.mledger.util.SafeRun.safeRun;
 
@@ -51,6 +52,7 @@ public class EntryCacheManager {
     private final AtomicLong currentSize = new AtomicLong(0);
     private final ConcurrentMap<String, EntryCache> caches = Maps.newConcurrentMap();
     private final EntryCacheEvictionPolicy evictionPolicy;
+    private final EntryCacheSlabAllocator slabAllocator;
 
     private final AtomicBoolean evictionInProgress = new AtomicBoolean(false);
 
@@ -68,10 +70,14 @@ public class EntryCacheManager {
         this.maxSize = factory.getConfig().getMaxCacheSize();
         this.evictionTriggerThreshold = (long) (maxSize * evictionTriggerThresholdPercent);
         this.cacheEvictionWatermak = factory.getConfig().getCacheEvictionWatermark();
-        this.evictionPolicy = new EntryCacheDefaultEvictionPolicy();
+        this.evictionPolicy = createEvictionPolicy(factory.getConfig().getCacheEvictionPolicyClassName());
         this.mlFactory = factory;
         this.mlFactoryMBean = factory.mbean;
 
+        int slabSize = factory.getConfig().getCacheSlabSize();
+        this.slabAllocator = (maxSize > 0 && slabSize > 0)
+                ? new EntryCacheSlabAllocator(slabSize, maxSize, mlFactoryMBean) : null;
+
         log.info("Initialized managed-ledger entry cache of {} Mb", maxSize / MB);
     }
 
@@ -81,7 +87,10 @@ public class EntryCacheManager {
             return new EntryCacheDisabled(ml);
         }
 
-        EntryCache newEntryCache = new EntryCacheImpl(this, ml, mlFactory.getConfig().isCopyEntriesInCache());
+        // When using slabs, entries are always copied into them
+        boolean copyEntries = mlFactory.getConfig().isCopyEntriesInCache() || slabAllocator != null;
+        EntryCache newEntryCache = new EntryCacheImpl(this, ml, copyEntries,
+                mlFactory.getConfig().isSegmentedEntryCache());
         EntryCache currentEntryCache = caches.putIfAbsent(ml.getName(), newEntryCache);
         if (currentEntryCache != null) {
             return currentEntryCache;
@@ -135,6 +144,37 @@ public class EntryCacheManager {
         return currentSize < maxSize;
     }
 
+    /**
+     * Check whether an entry read from storage should be inserted in the given cache. Admission is decided by the
+     * eviction policy only when the cache is above the eviction watermark.
+     */
+    boolean shouldAdmit(EntryCache cache, PositionImpl position) {
+        if (currentSize.get() < maxSize * cacheEvictionWatermak || evictionPolicy.shouldAdmit(cache, position)) {
+            return true;
+        }
+
+        mlFactoryMBean.recordCacheAdmissionRejection();
+        return false;
+    }
+
+    boolean isTrackingEntries() {
+        return evictionPolicy.isTrackingEntries();
+    }
+
+    void recordAccess(EntryCache cache, long ledgerId, long firstEntry, long lastEntry) {
+        if (evictionPolicy.isTrackingEntries()) {
+            evictionPolicy.recordAccess(cache, ledgerId, firstEntry, lastEntry);
+        }
+    }
+
+    void entryInserted(EntryCache cache, PositionImpl position, long size) {
+        evictionPolicy.entryInserted(cache, position, size);
+    }
+
+    void entryRemoved(EntryCache cache, PositionImpl position) {
+        evictionPolicy.entryRemoved(cache, position);
+    }
+
     void entryAdded(long size) {
         currentSize.addAndGet(size);
     }
@@ -147,12 +187,41 @@ public class EntryCacheManager {
         return currentSize.get();
     }
 
+    /**
+     * Copy an entry payload into memory owned by the cache.
+     *
+     * @return the copy or null if the cache is using slabs and there is no space left in them
+     */
+    ByteBuf copyEntryData(EntryCacheImpl cache, PositionImpl position, ByteBuf data) {
+        if (slabAllocator != null) {
+            return slabAllocator.copy(cache, position, data);
+        }
+
+        int size = data.readableBytes();
+        ByteBuf cachedData = EntryCacheImpl.ALLOCATOR.directBuffer(size, size);
+        if (size > 0) {
+            cachedData.writeBytes(data, data.readerIndex(), size);
+        }
+        return cachedData;
+    }
+
+    EntryCacheEvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    EntryCacheSlabAllocator getSlabAllocator() {
+        return slabAllocator;
+    }
+
     public long getMaxSize() {
         return maxSize;
     }
 
     public void clear() {
         caches.values().forEach(cache -> cache.clear());
+        if (slabAllocator != null) {
+            slabAllocator.clear();
+        }
     }
 
     protected class EntryCacheDisabled implements EntryCache {
@@ -238,6 +307,21 @@ public class EntryCacheManager {
 
     }
 
+    private static EntryCacheEvictionPolicy createEvictionPolicy(String className) {
+        if (className == null || className.isEmpty()) {
+            return new EntryCacheDefaultEvictionPolicy();
+        }
+
+        try {
+            Class<?> clazz = Class.forName(className);
+            checkArgument(EntryCacheEvictionPolicy.class.isAssignableFrom(clazz),
+                    "Class %s does not implement EntryCacheEvictionPolicy", className);
+            return (EntryCacheEvictionPolicy) clazz.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Failed to create entry cache eviction policy " + className, e);
+        }
+    }
+
     public static Entry create(long ledgerId, long entryId, ByteBuf data) {
         return EntryImpl.create(ledgerId, entryId, data);
     }
@@ -0,0 +1,210 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Allocates the memory for cached entries out of large direct memory slabs.
+ *
+ * <p/>Entries are appended into the current slab and handed out as retained slices of it, so that reading them from
+ * the cache is zero-copy. Each slice holds a reference on its slab: a slab is returned to the system only once all the
+ * entries stored in it have been evicted. The total number of slabs is bounded, which caps the direct memory used by
+ * the cache regardless of the fragmentation of the entries.
+ *
+ * <p/>The cache size and its eviction are still based on the size of the live entries: a slab partly used by entries
+ * that are not evicted yet doesn't count as full. With entries of mixed lifetimes, every slab can end up held by a few
+ * entries while the cache size stays below the eviction threshold. So when the slabs are all in use, the entries stored
+ * in the oldest slab are evicted from their caches and the allocation is tried again. The slab is only released once
+ * the readers holding its entries are done with them: until then, new entries are not cached, and these failed
+ * allocations are counted in the factory stats.
+ */
+class EntryCacheSlabAllocator {
+
+    private final int slabSize;
+    private final int maxSlabs;
+    private final AtomicInteger allocatedSlabs = new AtomicInteger(0);
+    private final ManagedLedgerFactoryMBeanImpl mbean;
+
+    // Slabs not released yet, in allocation order
+    private final ConcurrentLinkedDeque<Slab> liveSlabs = new ConcurrentLinkedDeque<>();
+    private final AtomicBoolean evictionInProgress = new AtomicBoolean(false);
+
+    // Whether the last allocation failed because all the slabs were in use, to log only once until a slab is released
+    private boolean exhausted = false;
+
+    // Slab currently being filled. The allocator holds one reference on it until it's full.
+    private Slab currentSlab = null;
+
+    EntryCacheSlabAllocator(int slabSize, long maxMemory, ManagedLedgerFactoryMBeanImpl mbean) {
+        checkArgument(slabSize > 0);
+        this.slabSize = slabSize;
+        this.maxSlabs = (int) Math.max(1, maxMemory / slabSize);
+        this.mbean = mbean;
+
+        log.info("Initialized entry cache slab allocator with {} slabs of {} Kb", maxSlabs, slabSize / 1024);
+    }
+
+    /**
+     * Copy the readable bytes of the given buffer in a slab.
+     *
+     * @param cache
+     *            the cache where the entry is inserted
+     * @param position
+     *            the position of the entry
+     * @param data
+     *            the buffer to copy, its reader index is not modified
+     * @return a buffer backed by a slab or null if the data doesn't fit in a slab or if the memory budget is exhausted
+     */
+    ByteBuf copy(EntryCacheImpl cache, PositionImpl position, ByteBuf data) {
+        if (data.readableBytes() > slabSize) {
+            return null;
+        }
+
+        ByteBuf copy = tryCopy(cache, position, data);
+        if (copy == null && evictionInProgress.compareAndSet(false, true)) {
+            // Only one thread evicts at a time, the others do not cache their entry meanwhile
+            try {
+                evictOldestSlab();
+            } finally {
+                evictionInProgress.set(false);
+            }
+            copy = tryCopy(cache, position, data);
+        }
+
+        if (copy == null) {
+            mbean.recordCacheSlabAllocationFailure();
+            synchronized (this) {
+                if (!exhausted) {
+                    exhausted = true;
+                    log.warn("All the {} slabs of the entry cache are in use, entries are not cached until a slab is"
+                            + " released", maxSlabs);
+                }
+            }
+        }
+        return copy;
+    }
+
+    private synchronized ByteBuf tryCopy(EntryCacheImpl cache, PositionImpl position, ByteBuf data) {
+        int size = data.readableBytes();
+        if (currentSlab == null || currentSlab.writableBytes() < size) {
+            if (currentSlab != null) {
+                // Leave the slab to be released by the entries stored in it
+                currentSlab.release();
+                currentSlab = null;
+            }
+
+            if (allocatedSlabs.incrementAndGet() > maxSlabs) {
+                allocatedSlabs.decrementAndGet();
+                return null;
+            }
+
+            try {
+                currentSlab = new Slab(slabSize);
+            } catch (Throwable t) {
+                allocatedSlabs.decrementAndGet();
+                log.warn("Failed to allocate slab for entry cache: {}", t.getMessage());
+                return null;
+            }
+            liveSlabs.add(currentSlab);
+            exhausted = false;
+        }
+
+        int offset = currentSlab.writerIndex();
+        currentSlab.writeBytes(data, data.readerIndex(), size);
+        currentSlab.entries.add(new SlabEntry(cache, position));
+        return currentSlab.retainedSlice(offset, size);
+    }
+
+    /**
+     * Evict from their caches the entries stored in the oldest slab that still has some. A position that was evicted
+     * and cached again in a newer slab may be evicted as well, which only costs a cache miss.
+     */
+    private void evictOldestSlab() {
+        List<SlabEntry> entries = null;
+        synchronized (this) {
+            for (Slab slab : liveSlabs) {
+                if (slab != currentSlab && !slab.entries.isEmpty()) {
+                    entries = slab.entries;
+                    slab.entries = new ArrayList<>();
+                    break;
+                }
+            }
+        }
+
+        if (entries == null) {
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Evicting the {} entries of the oldest slab of the entry cache", entries.size());
+        }
+        entries.forEach(entry -> entry.cache.invalidateEntry(entry.position));
+    }
+
+    int getAllocatedSlabs() {
+        return allocatedSlabs.get();
+    }
+
+    synchronized void clear() {
+        if (currentSlab != null) {
+            currentSlab.release();
+            currentSlab = null;
+        }
+    }
+
+    private static class SlabEntry {
+        private final EntryCacheImpl cache;
+        private final PositionImpl position;
+
+        SlabEntry(EntryCacheImpl cache, PositionImpl position) {
+            this.cache = cache;
+            this.position = position;
+        }
+    }
+
+    private class Slab extends UnpooledDirectByteBuf {
+        // Entries stored in the slab, guarded by the allocator lock
+        private List<SlabEntry> entries = new ArrayList<>();
+
+        Slab(int size) {
+            super(UnpooledByteBufAllocator.DEFAULT, size, size);
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            liveSlabs.remove(this);
+            allocatedSlabs.decrementAndGet();
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(EntryCacheSlabAllocator.class);
+}
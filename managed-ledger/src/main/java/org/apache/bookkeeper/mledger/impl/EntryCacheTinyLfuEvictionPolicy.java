@@ -0,0 +1,307 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.Lists;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.bookkeeper.mledger.util.FrequencySketch;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Frequency-aware eviction policy.
+ *
+ * <p/>The policy tracks the individual entries of the caches of all the ledgers. The reads of each entry are recorded
+ * in a {@link FrequencySketch}, whether the entry is found in the cache or not. Eviction works as a segmented LRU:
+ * <ul>
+ * <li>New entries are inserted in the probation segment, in insertion order</li>
+ * <li>Entries read while they are in the probation segment are promoted to the protected segment, which is kept in
+ * access order and holds at most {@link #PROTECTED_RATIO} of the tracked entries. The least recently read protected
+ * entries are moved back to the probation segment when it grows beyond that</li>
+ * <li>Eviction drops the oldest entries of the probation segment first, and only then the least recently read entries
+ * of the protected segment</li>
+ * </ul>
+ *
+ * <p/>While the cache is under pressure, an entry read back from storage is admitted only if it was read at least as
+ * frequently as the next entry to be evicted (TinyLFU). The entries added by the writers are always admitted, since the
+ * real-time consumers are about to read them: they are promoted to the protected segment by these reads, while the
+ * entries of a reader catching up only compete with the other entries that were not read again.
+ *
+ * <p/>The reads are on the path of every dispatcher, so the sketch is updated without locking, and the tracked entries
+ * are spread over {@link #STRIPES} stripes by hash, each with its own segments and lock. Eviction takes the victims from
+ * all the stripes in turn.
+ */
+public class EntryCacheTinyLfuEvictionPolicy implements EntryCacheEvictionPolicy {
+
+    static final double PROTECTED_RATIO = 0.8;
+
+    static final int STRIPES = 16;
+
+    private static final int SKETCH_WIDTH = 1024 * 1024;
+
+    private final FrequencySketch sketch = new FrequencySketch(SKETCH_WIDTH);
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    // Sizes of the segments over all the stripes
+    private final AtomicLong probationSize = new AtomicLong();
+    private final AtomicLong protectedSize = new AtomicLong();
+
+    public EntryCacheTinyLfuEvictionPolicy() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public boolean isTrackingEntries() {
+        return true;
+    }
+
+    @Override
+    public void recordAccess(EntryCache cache, long ledgerId, long firstEntry, long lastEntry) {
+        int cacheHash = cache.getName().hashCode();
+        for (long entryId = firstEntry; entryId <= lastEntry; entryId++) {
+            int hash = hash(cacheHash, ledgerId, entryId);
+            // Concurrent updates of the sketch might be lost, which only affects the accuracy of the estimation
+            sketch.increment(hash);
+            stripeOf(hash).recordAccess(cache, ledgerId, entryId, hash);
+        }
+    }
+
+    @Override
+    public boolean shouldAdmit(EntryCache cache, PositionImpl position) {
+        int hash = hash(cache.getName().hashCode(), position.getLedgerId(), position.getEntryId());
+        // The stripes hold random samples of the tracked entries, the victim of the stripe of the candidate (or of the
+        // next stripe that has one) stands for the next victim of the whole cache
+        int victimHash = 0;
+        for (int i = 0; i < STRIPES && victimHash == 0; i++) {
+            victimHash = stripes[(stripeIndexOf(hash) + i) & (STRIPES - 1)].nextVictimHash();
+        }
+        return victimHash == 0 || sketch.frequency(hash) >= sketch.frequency(victimHash);
+    }
+
+    @Override
+    public void entryInserted(EntryCache cache, PositionImpl position, long size) {
+        int hash = hash(cache.getName().hashCode(), position.getLedgerId(), position.getEntryId());
+        stripeOf(hash).entryInserted(cache, position.getLedgerId(), position.getEntryId(), hash, size);
+    }
+
+    @Override
+    public void entryRemoved(EntryCache cache, PositionImpl position) {
+        int hash = hash(cache.getName().hashCode(), position.getLedgerId(), position.getEntryId());
+        stripeOf(hash).entryRemoved(cache, position.getLedgerId(), position.getEntryId(), hash);
+    }
+
+    @Override
+    public void doEviction(List<EntryCache> caches, long sizeToFree) {
+        checkArgument(sizeToFree > 0);
+        checkArgument(!caches.isEmpty());
+
+        // Pick the victims first, from the probation segments and then from the protected ones, taking one entry of
+        // each stripe in turn. They are evicted without holding the locks, since the caches notify the removals
+        List<EntryKey> victims = Lists.newArrayList();
+        long victimsSize = 0;
+        for (boolean fromProbation : new boolean[] { true, false }) {
+            boolean found = true;
+            while (found && victimsSize < sizeToFree) {
+                found = false;
+                for (int i = 0; i < STRIPES && victimsSize < sizeToFree; i++) {
+                    EntryKey victim = stripes[i].pollVictim(fromProbation);
+                    if (victim != null) {
+                        victims.add(victim);
+                        victimsSize += victim.size;
+                        found = true;
+                    }
+                }
+            }
+        }
+
+        int evictedEntries = 0;
+        long evictedSize = 0;
+        for (EntryKey victim : victims) {
+            long size = victim.cache.evictEntry(PositionImpl.get(victim.ledgerId, victim.entryId));
+            if (size > 0) {
+                ++evictedEntries;
+                evictedSize += size;
+            }
+        }
+
+        if (evictedSize < sizeToFree) {
+            // Entries that were not tracked, like the ones inserted before the cache was created, are evicted from the
+            // biggest caches
+            List<EntryCache> cachesToEvict = Lists.newArrayList(caches);
+            cachesToEvict.sort(Comparator.reverseOrder());
+            for (EntryCache cache : cachesToEvict) {
+                if (evictedSize >= sizeToFree) {
+                    break;
+                }
+
+                long cacheSizeToFree = Math.min(sizeToFree - evictedSize, cache.getSize());
+                if (cacheSizeToFree > 0) {
+                    Pair<Integer, Long> evicted = cache.evictEntries(cacheSizeToFree);
+                    evictedEntries += evicted.getLeft();
+                    evictedSize += evicted.getRight();
+                }
+            }
+        }
+
+        log.info("Completed cache eviction. Removed {} entries ({} Mb) -- Probation: {} Mb -- Protected: {} Mb",
+                evictedEntries, evictedSize / EntryCacheManager.MB, getProbationSize() / EntryCacheManager.MB,
+                getProtectedSize() / EntryCacheManager.MB);
+    }
+
+    long getProbationSize() {
+        return probationSize.get();
+    }
+
+    long getProtectedSize() {
+        return protectedSize.get();
+    }
+
+    private Stripe stripeOf(int hash) {
+        return stripes[stripeIndexOf(hash)];
+    }
+
+    private static int stripeIndexOf(int hash) {
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private static int hash(int cacheHash, long ledgerId, long entryId) {
+        int hash = 31 * cacheHash + Long.hashCode(ledgerId);
+        hash = 31 * hash + Long.hashCode(entryId);
+        // 0 stands for no victim
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * Segments of a subset of the tracked entries. The keys are mapped to themselves, so that an entry is found with a
+     * reused lookup key and moved between the segments without allocating.
+     */
+    private class Stripe {
+        // Entries not read since they were inserted, in insertion order
+        private final LinkedHashMap<EntryKey, EntryKey> probation = new LinkedHashMap<>();
+        // Entries read while in the cache, in access order
+        private final LinkedHashMap<EntryKey, EntryKey> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        private final EntryKey lookupKey = new EntryKey();
+
+        synchronized void recordAccess(EntryCache cache, long ledgerId, long entryId, int hash) {
+            EntryKey key = probation.remove(lookupKey.set(cache, ledgerId, entryId, hash));
+            if (key != null) {
+                probationSize.addAndGet(-key.size);
+                protectedSegment.put(key, key);
+                long protectedTotal = protectedSize.addAndGet(key.size);
+
+                // Keep the protected segments within their share of all the tracked entries
+                Iterator<EntryKey> iterator = protectedSegment.keySet().iterator();
+                while (protectedTotal > PROTECTED_RATIO * (probationSize.get() + protectedTotal)
+                        && iterator.hasNext()) {
+                    EntryKey demoted = iterator.next();
+                    iterator.remove();
+                    protectedTotal = protectedSize.addAndGet(-demoted.size);
+                    probation.put(demoted, demoted);
+                    probationSize.addAndGet(demoted.size);
+                }
+            } else {
+                // Refresh the access order
+                protectedSegment.get(lookupKey);
+            }
+        }
+
+        synchronized void entryInserted(EntryCache cache, long ledgerId, long entryId, int hash, long size) {
+            lookupKey.set(cache, ledgerId, entryId, hash);
+            if (!protectedSegment.containsKey(lookupKey) && !probation.containsKey(lookupKey)) {
+                EntryKey key = new EntryKey().set(cache, ledgerId, entryId, hash);
+                key.size = size;
+                probation.put(key, key);
+                probationSize.addAndGet(size);
+            }
+        }
+
+        synchronized void entryRemoved(EntryCache cache, long ledgerId, long entryId, int hash) {
+            lookupKey.set(cache, ledgerId, entryId, hash);
+            EntryKey key = probation.remove(lookupKey);
+            if (key != null) {
+                probationSize.addAndGet(-key.size);
+            } else if ((key = protectedSegment.remove(lookupKey)) != null) {
+                protectedSize.addAndGet(-key.size);
+            }
+        }
+
+        synchronized int nextVictimHash() {
+            if (!probation.isEmpty()) {
+                return probation.keySet().iterator().next().hash;
+            } else if (!protectedSegment.isEmpty()) {
+                return protectedSegment.keySet().iterator().next().hash;
+            } else {
+                return 0;
+            }
+        }
+
+        synchronized EntryKey pollVictim(boolean fromProbation) {
+            LinkedHashMap<EntryKey, EntryKey> segment = fromProbation ? probation : protectedSegment;
+            Iterator<EntryKey> iterator = segment.keySet().iterator();
+            if (!iterator.hasNext()) {
+                return null;
+            }
+
+            EntryKey victim = iterator.next();
+            iterator.remove();
+            (fromProbation ? probationSize : protectedSize).addAndGet(-victim.size);
+            return victim;
+        }
+    }
+
+    private static class EntryKey {
+        private EntryCache cache;
+        private long ledgerId;
+        private long entryId;
+        private int hash;
+        private long size;
+
+        EntryKey set(EntryCache cache, long ledgerId, long entryId, int hash) {
+            this.cache = cache;
+            this.ledgerId = ledgerId;
+            this.entryId = entryId;
+            this.hash = hash;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof EntryKey)) {
+                return false;
+            }
+            EntryKey other = (EntryKey) obj;
+            return cache == other.cache && ledgerId == other.ledgerId && entryId == other.entryId;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(EntryCacheTinyLfuEvictionPolicy.class);
+}
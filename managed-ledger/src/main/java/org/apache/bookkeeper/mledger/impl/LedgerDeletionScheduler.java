@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.apache.bookkeeper.mledger.util.SafeRun.safeRun;
+
+import com.google.common.util.concurrent.RateLimiter;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Issues the deletions of the ledgers trimmed by all the managed ledgers of a factory, from a dedicated thread and
+ * with a global rate limit.
+ *
+ * <p/>When the retention of many topics expires at once, the deletions of the BookKeeper ledgers and of their
+ * offloaded copies are spread over time instead of being sent all together to the metadata store and the bookies,
+ * which would slow down the creation of ledgers and the writes. The ledgers are removed from the list of ledgers of
+ * the managed ledger when they are trimmed, so the deletions are not blocking anything, but they are kept in the
+ * metadata of the managed ledger until they are deleted. The deletions lost in a crash, or not issued within the
+ * shutdown timeout, are issued again when the managed ledger is opened.
+ */
+class LedgerDeletionScheduler {
+
+    private final RateLimiter rateLimiter;
+    private final ExecutorService executor;
+    private final AtomicInteger pendingDeletions = new AtomicInteger();
+    private volatile boolean shuttingDown = false;
+
+    LedgerDeletionScheduler(double maxDeletionsPerSecond) {
+        this.rateLimiter = RateLimiter.create(maxDeletionsPerSecond);
+        this.executor = Executors.newSingleThreadExecutor(new DefaultThreadFactory("bookkeeper-ml-ledger-deletion"));
+    }
+
+    /**
+     * Queue a deletion, which is run once the rate limit allows it.
+     */
+    void schedule(Runnable deletion) {
+        pendingDeletions.incrementAndGet();
+        try {
+            executor.execute(safeRun(() -> {
+                if (!shuttingDown) {
+                    rateLimiter.acquire();
+                }
+                pendingDeletions.decrementAndGet();
+                deletion.run();
+            }));
+        } catch (RejectedExecutionException e) {
+            // The factory is shutting down
+            pendingDeletions.decrementAndGet();
+            deletion.run();
+        }
+    }
+
+    int getPendingDeletions() {
+        return pendingDeletions.get();
+    }
+
+    /**
+     * Issue the pending deletions without rate limit, before the BookKeeper client is closed.
+     */
+    void shutdown() throws InterruptedException {
+        int pending = pendingDeletions.get();
+        if (pending > 0) {
+            log.info("Issuing {} pending ledger deletions", pending);
+        }
+        shuttingDown = true;
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("Timed out while issuing {} pending ledger deletions", pendingDeletions.get());
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(LedgerDeletionScheduler.class);
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Bloom filter of the keys of the messages added to the ledger currently being written.
+ *
+ * <p/>When the ledger is closed, the filter is stored in the metadata store apart from the managed ledger info, so
+ * that the ledgers which cannot contain a key can be skipped. If the keys of an entry cannot be determined, no filter
+ * is stored for the ledger. The size of the filters is capped to {@link #MAX_SERIALIZED_SIZE}, by sizing them for
+ * fewer keys than expected if needed.
+ */
+class LedgerKeyFilter {
+
+    static final int MAX_SERIALIZED_SIZE = 256 * 1024;
+
+    // Strategy ordinal (byte) + number of hash functions (byte) + number of longs (int), and a long of rounding
+    private static final int SERIALIZED_OVERHEAD = 1 + 1 + 4 + 8;
+
+    private final int expectedKeys;
+    private final double falsePositiveProbability;
+
+    private long ledgerId = -1;
+    private BloomFilter<CharSequence> filter = null;
+    // Whether all the keys of the ledger were added to the filter
+    private boolean complete = false;
+
+    LedgerKeyFilter(int expectedKeys, double falsePositiveProbability) {
+        this.expectedKeys = Math.min(expectedKeys, maxExpectedKeys(falsePositiveProbability));
+        this.falsePositiveProbability = falsePositiveProbability;
+    }
+
+    /**
+     * @return the largest number of expected keys for which a filter fits in {@link #MAX_SERIALIZED_SIZE}
+     */
+    static int maxExpectedKeys(double falsePositiveProbability) {
+        // A filter takes -n * ln(p) / ln(2)^2 bits
+        double maxBits = (MAX_SERIALIZED_SIZE - SERIALIZED_OVERHEAD) * 8.0;
+        return (int) (maxBits * Math.log(2) * Math.log(2) / -Math.log(falsePositiveProbability));
+    }
+
+    /**
+     * Add the keys of an entry of the given ledger.
+     *
+     * @param keys
+     *            the keys, or null if they are unknown
+     */
+    synchronized void add(long ledgerId, List<String> keys) {
+        if (ledgerId != this.ledgerId) {
+            // The filter only covers the current ledger
+            this.ledgerId = ledgerId;
+            this.filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedKeys,
+                    falsePositiveProbability);
+            this.complete = true;
+        }
+
+        if (keys == null) {
+            complete = false;
+        } else if (complete) {
+            for (int i = 0; i < keys.size(); i++) {
+                filter.put(keys.get(i));
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the filter of the given ledger, or null if it does not hold all the keys of the ledger
+     */
+    synchronized BloomFilter<CharSequence> getCompleteFilter(long ledgerId) {
+        return ledgerId == this.ledgerId && complete ? filter.copy() : null;
+    }
+
+    /**
+     * @return false if the current ledger is the given one and cannot contain the key
+     */
+    synchronized boolean mightContain(long ledgerId, String key) {
+        return ledgerId != this.ledgerId || !complete || filter.mightContain(key);
+    }
+
+    /**
+     * @return the serialized filter, or null if it is larger than {@link #MAX_SERIALIZED_SIZE}
+     */
+    static byte[] serialize(BloomFilter<CharSequence> filter) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            filter.writeTo(output);
+        } catch (IOException e) {
+            // This is in-memory serialization, should not fail
+            throw new RuntimeException(e);
+        }
+        return output.size() <= MAX_SERIALIZED_SIZE ? output.toByteArray() : null;
+    }
+
+    static BloomFilter<CharSequence> deserialize(byte[] data) throws IOException {
+        if (data.length > MAX_SERIALIZED_SIZE) {
+            throw new IOException("Key filter of " + data.length + " bytes exceeds " + MAX_SERIALIZED_SIZE + " bytes");
+        }
+        return BloomFilter.readFrom(new ByteArrayInputStream(data), Funnels.stringFunnel(StandardCharsets.UTF_8));
+    }
+}
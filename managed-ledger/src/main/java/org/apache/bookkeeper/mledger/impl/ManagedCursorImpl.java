@@ -42,6 +42,7 @@ import io.netty.util.concurrent.FastThreadLocal;
 
 import java.time.Clock;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -49,12 +50,14 @@ import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 import org.apache.bookkeeper.client.AsyncCallback.CloseCallback;
 import org.apache.bookkeeper.client.AsyncCallback.DeleteCallback;
@@ -89,6 +92,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.apache.pulsar.common.util.collections.LongPairRangeSet;
 import org.apache.pulsar.common.util.collections.LongPairRangeSet.LongPairConsumer;
 import org.apache.pulsar.common.util.collections.ConcurrentOpenLongPairRangeSet;
+import org.apache.pulsar.common.util.collections.CompressedLongPairRangeSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -130,6 +134,8 @@ public class ManagedCursorImpl implements ManagedCursor {
     private volatile LedgerHandle cursorLedger;
     // Stat of the cursor z-node
     private volatile Stat cursorLedgerStat;
+    // Chunks of unacked ranges last written in the cursor ledger, referenced again by the next persist when unchanged
+    private volatile PersistedChunks persistedChunks = null;
 
     private static final LongPairConsumer<PositionImpl> positionRangeConverter = (key, value) -> new PositionImpl(key,
             value);
@@ -145,6 +151,9 @@ public class ManagedCursorImpl implements ManagedCursor {
     private RateLimiter markDeleteLimiter;
 
     private boolean alwaysInactive = false;
+
+    // Prefetch stage used when the cursor is catching up, null if read-ahead is disabled
+    private final CursorReadAhead readAhead;
     
     /** used temporary variables to {@link #getNumIndividualDeletedEntriesToSkip(long)} **/
     private static final FastThreadLocal<Long> tempTotalEntriesToSkip = new FastThreadLocal<>();
@@ -172,6 +181,21 @@ public class ManagedCursorImpl implements ManagedCursor {
         }
     }
 
+    static class PersistedChunks {
+        final long cursorLedgerId;
+        final List<UnackedRangesEncoder.Chunk> chunks;
+        final long[] entryIds;
+        final PositionInfo[] infos;
+
+        PersistedChunks(long cursorLedgerId, List<UnackedRangesEncoder.Chunk> chunks, long[] entryIds,
+                PositionInfo[] infos) {
+            this.cursorLedgerId = cursorLedgerId;
+            this.chunks = chunks;
+            this.entryIds = entryIds;
+            this.infos = infos;
+        }
+    }
+
     private final ArrayDeque<MarkDeleteEntry> pendingMarkDeleteOps = new ArrayDeque<>();
     private static final AtomicIntegerFieldUpdater<ManagedCursorImpl> PENDING_MARK_DELETED_SUBMITTED_COUNT_UPDATER =
         AtomicIntegerFieldUpdater.newUpdater(ManagedCursorImpl.class, "pendingMarkDeletedSubmittedCount");
@@ -208,9 +232,13 @@ public class ManagedCursorImpl implements ManagedCursor {
         this.config = config;
         this.ledger = ledger;
         this.name = cursorName;
-        this.individualDeletedMessages = config.isUnackedRangesOpenCacheSetEnabled()
-                ? new ConcurrentOpenLongPairRangeSet<PositionImpl>(4096, positionRangeConverter)
-                : new LongPairRangeSet.DefaultRangeSet<>(positionRangeConverter);
+        if (config.isUnackedRangesCompressedSetEnabled()) {
+            this.individualDeletedMessages = new CompressedLongPairRangeSet<>(positionRangeConverter);
+        } else if (config.isUnackedRangesOpenCacheSetEnabled()) {
+            this.individualDeletedMessages = new ConcurrentOpenLongPairRangeSet<>(4096, positionRangeConverter);
+        } else {
+            this.individualDeletedMessages = new LongPairRangeSet.DefaultRangeSet<>(positionRangeConverter);
+        }
         this.digestType = BookKeeper.DigestType.fromApiDigestType(config.getDigestType());
         STATE_UPDATER.set(this, State.Uninitialized);
         PENDING_MARK_DELETED_SUBMITTED_COUNT_UPDATER.set(this, 0);
@@ -227,6 +255,11 @@ public class ManagedCursorImpl implements ManagedCursor {
             // Disable mark-delete rate limiter
             markDeleteLimiter = null;
         }
+
+        this.readAhead = config.getReadAheadMaxEntries() > 0
+                ? new CursorReadAhead(ledger, cursorName, config.getReadAheadMaxEntries(),
+                        config.getReadAheadMaxSizeBytes())
+                : null;
     }
 
     @Override
@@ -317,53 +350,164 @@ public class ManagedCursorImpl implements ManagedCursor {
                 return;
             }
 
-            lh.asyncReadEntries(lastEntryInLedger, lastEntryInLedger, (rc1, lh1, seq, ctx1) -> {
-                if (log.isDebugEnabled()) {
-                    log.debug("[{}} readComplete rc={} entryId={}", ledger.getName(), rc1, lh1.getLastAddConfirmed());
-                }
-                if (isBkErrorNotRecoverable(rc1)) {
-                    log.error("[{}] Error reading from metadata ledger {} for consumer {}: {}", ledger.getName(),
-                            ledgerId, name, BKException.getMessage(rc1));
-                    // Rewind to oldest entry available
-                    initialize(getRollbackPosition(info), Collections.emptyMap(), callback);
-                    return;
-                } else if (rc1 != BKException.Code.OK) {
-                    log.warn("[{}] Error reading from metadata ledger {} for consumer {}: {}", ledger.getName(),
-                            ledgerId, name, BKException.getMessage(rc1));
+            // Skip reading the ledger if the local snapshot is up to date
+            CursorSnapshotStore snapshotStore = getSnapshotStore();
+            CursorSnapshotStore.Snapshot snapshot = snapshotStore != null ? snapshotStore.read(ledger.getName(), name)
+                    : null;
+            if (snapshot != null && snapshot.cursorLedgerId == ledgerId && snapshot.lastEntryId == lastEntryInLedger) {
+                log.info("[{}] Consumer {} meta-data recovered from local snapshot of ledger {}", ledger.getName(),
+                        name, ledgerId);
+                recoverFromSnapshot(snapshot, lh);
+                callback.operationComplete();
+                return;
+            } else if (snapshot != null) {
+                log.info("[{}] Consumer {} local snapshot of entry {}:{} is outdated, ledger ends at entry {}:{}",
+                        ledger.getName(), name, snapshot.cursorLedgerId, snapshot.lastEntryId, ledgerId,
+                        lastEntryInLedger);
+            }
 
-                    callback.operationFailed(createManagedLedgerException(rc1));
-                    return;
-                }
+            recoverFromEntry(info, lh, lastEntryInLedger, callback);
+        }, null);
+    }
 
-                LedgerEntry entry = seq.nextElement();
-                PositionInfo positionInfo;
-                try {
-                    positionInfo = PositionInfo.parseFrom(entry.getEntry());
-                } catch (InvalidProtocolBufferException e) {
-                    callback.operationFailed(new ManagedLedgerException(e));
-                    return;
+    /**
+     * Recover the cursor from an entry of the cursor ledger. If the cursor was stopped while writing the chunks of
+     * unacked ranges, the entries after the last complete one only hold chunks and are skipped.
+     */
+    private void recoverFromEntry(final ManagedCursorInfo info, final LedgerHandle lh, long entryId,
+            final VoidCallback callback) {
+        long ledgerId = lh.getId();
+        lh.asyncReadEntries(entryId, entryId, (rc1, lh1, seq, ctx1) -> {
+            if (log.isDebugEnabled()) {
+                log.debug("[{}} readComplete rc={} entryId={}", ledger.getName(), rc1, entryId);
+            }
+            if (isBkErrorNotRecoverable(rc1)) {
+                log.error("[{}] Error reading from metadata ledger {} for consumer {}: {}", ledger.getName(),
+                        ledgerId, name, BKException.getMessage(rc1));
+                // Rewind to oldest entry available
+                initialize(getRollbackPosition(info), Collections.emptyMap(), callback);
+                return;
+            } else if (rc1 != BKException.Code.OK) {
+                log.warn("[{}] Error reading from metadata ledger {} for consumer {}: {}", ledger.getName(),
+                        ledgerId, name, BKException.getMessage(rc1));
+
+                callback.operationFailed(createManagedLedgerException(rc1));
+                return;
+            }
+
+            LedgerEntry entry = seq.nextElement();
+            PositionInfo positionInfo;
+            try {
+                positionInfo = PositionInfo.parseFrom(entry.getEntry());
+            } catch (InvalidProtocolBufferException e) {
+                callback.operationFailed(new ManagedLedgerException(e));
+                return;
+            }
+
+            if (positionInfo.getIndividualDeletedMessageRangesCount() > 0
+                    && positionInfo.getIndividualDeletedMessagesChunkEntriesCount() == 0) {
+                if (entryId == 0) {
+                    log.warn("[{}] Error reading from metadata ledger {} for consumer {}: No complete entry in ledger",
+                            ledger.getName(), ledgerId, name);
+                    initialize(getRollbackPosition(info), Collections.emptyMap(), callback);
+                } else {
+                    log.warn("[{}] [{}] Skipping incomplete set of unacked ranges chunks at entry {}:{}",
+                            ledger.getName(), name, ledgerId, entryId);
+                    recoverFromEntry(info, lh, entryId - 1, callback);
                 }
+                return;
+            }
 
-                Map<String, Long> recoveredProperties = Collections.emptyMap();
-                if (positionInfo.getPropertiesCount() > 0) {
-                    // Recover properties map
-                    recoveredProperties = Maps.newHashMap();
-                    for (int i = 0; i < positionInfo.getPropertiesCount(); i++) {
-                        LongProperty property = positionInfo.getProperties(i);
-                        recoveredProperties.put(property.getName(), property.getValue());
-                    }
+            Map<String, Long> recoveredProperties = recoverProperties(positionInfo.getPropertiesList());
+            PositionImpl position = new PositionImpl(positionInfo);
+            if (positionInfo.getIndividualDeletedMessagesChunkEntriesCount() == 0) {
+                if (positionInfo.getIndividualDeletedMessagesCount() > 0) {
+                    recoverIndividualDeletedMessages(positionInfo.getIndividualDeletedMessagesList());
                 }
+                recoveredCursor(position, recoveredProperties, lh);
+                callback.operationComplete();
+                return;
+            }
 
-                PositionImpl position = new PositionImpl(positionInfo);
+            // Only apply the unacked ranges once all the chunks have been read
+            readIndividualDeletedMessageChunks(info, lh, positionInfo, Lists.newArrayList(), chunks -> {
                 if (positionInfo.getIndividualDeletedMessagesCount() > 0) {
                     recoverIndividualDeletedMessages(positionInfo.getIndividualDeletedMessagesList());
                 }
+                chunks.forEach(this::recoverIndividualDeletedMessageChunk);
                 recoveredCursor(position, recoveredProperties, lh);
                 callback.operationComplete();
-            }, null);
+            }, callback);
         }, null);
     }
 
+    private void recoverFromSnapshot(CursorSnapshotStore.Snapshot snapshot, LedgerHandle lh) {
+        PositionInfo positionInfo = snapshot.positionInfo;
+        if (positionInfo.getIndividualDeletedMessagesCount() > 0) {
+            recoverIndividualDeletedMessages(positionInfo.getIndividualDeletedMessagesList());
+        }
+        snapshot.chunks.forEach(this::recoverIndividualDeletedMessageChunk);
+        recoveredCursor(new PositionImpl(positionInfo), recoverProperties(positionInfo.getPropertiesList()), lh);
+    }
+
+    private static Map<String, Long> recoverProperties(List<LongProperty> properties) {
+        if (properties.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Long> recoveredProperties = Maps.newHashMap();
+        for (LongProperty property : properties) {
+            recoveredProperties.put(property.getName(), property.getValue());
+        }
+        return recoveredProperties;
+    }
+
+    /**
+     * Read back the chunks of unacked ranges referenced by an entry of the cursor ledger, one at a time. Read errors
+     * are handled like the ones of the entry itself.
+     */
+    private void readIndividualDeletedMessageChunks(final ManagedCursorInfo info, final LedgerHandle lh,
+            PositionInfo positionInfo, List<PositionInfo> chunks, Consumer<List<PositionInfo>> onComplete,
+            final VoidCallback callback) {
+        long entryId = positionInfo.getIndividualDeletedMessagesChunkEntries(chunks.size());
+        lh.asyncReadEntries(entryId, entryId, (rc, lh1, seq, ctx) -> {
+            if (isBkErrorNotRecoverable(rc)) {
+                log.error("[{}] Error reading unacked ranges from entry {} of metadata ledger {} for consumer {}: {}",
+                        ledger.getName(), entryId, lh1.getId(), name, BKException.getMessage(rc));
+                // Rewind to oldest entry available
+                initialize(getRollbackPosition(info), Collections.emptyMap(), callback);
+                return;
+            } else if (rc != BKException.Code.OK) {
+                log.warn("[{}] Error reading unacked ranges from entry {} of metadata ledger {} for consumer {}: {}",
+                        ledger.getName(), entryId, lh1.getId(), name, BKException.getMessage(rc));
+                callback.operationFailed(createManagedLedgerException(rc));
+                return;
+            }
+
+            try {
+                chunks.add(PositionInfo.parseFrom(seq.nextElement().getEntry()));
+            } catch (InvalidProtocolBufferException e) {
+                callback.operationFailed(new ManagedLedgerException(e));
+                return;
+            }
+
+            if (chunks.size() < positionInfo.getIndividualDeletedMessagesChunkEntriesCount()) {
+                readIndividualDeletedMessageChunks(info, lh, positionInfo, chunks, onComplete, callback);
+            } else {
+                onComplete.accept(chunks);
+            }
+        }, null);
+    }
+
+    private void recoverIndividualDeletedMessageChunk(PositionInfo chunk) {
+        lock.writeLock().lock();
+        try {
+            UnackedRangesEncoder.decode(chunk, individualDeletedMessages);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     private void recoverIndividualDeletedMessages(List<MLDataFormats.MessageRange> individualDeletedMessagesList) {
         lock.writeLock().lock();
         try {
@@ -807,6 +951,60 @@ public class ManagedCursorImpl implements ManagedCursor {
         op.find();
     }
 
+    @Override
+    public void asyncFindNewestMatching(FindPositionConstraint constraint, Predicate<Entry> condition,
+            long timestamp, FindEntryCallback callback, Object ctx) {
+        PositionImpl startPosition;
+        switch (constraint) {
+        case SearchAllAvailableEntries:
+            startPosition = (PositionImpl) getFirstPosition();
+            break;
+        case SearchActiveEntries:
+            startPosition = ledger.getNextValidPosition(markDeletePosition);
+            break;
+        default:
+            callback.findEntryFailed(new ManagedLedgerException("Unknown position constraint"), ctx);
+            return;
+        }
+        PositionImpl lastPosition = ledger.getLastPosition();
+        Range<PositionImpl> publishTimeRange = ledger.getPublishTimeRange(timestamp);
+        if (startPosition == null || startPosition.compareTo(lastPosition) > 0
+                || publishTimeRange.equals(Range.all())) {
+            asyncFindNewestMatching(constraint, condition, callback, ctx);
+            return;
+        }
+
+        // The newest matching entry is between the index points surrounding the timestamp. The lower one is known to
+        // match, and the upper one not to match.
+        final boolean startMatches = publishTimeRange.hasLowerBound()
+                && publishTimeRange.lowerEndpoint().compareTo(startPosition) >= 0;
+        final PositionImpl searchStart = startMatches ? publishTimeRange.lowerEndpoint() : startPosition;
+        final Range<PositionImpl> searchRange;
+        if (publishTimeRange.hasUpperBound() && publishTimeRange.upperEndpoint().compareTo(lastPosition) <= 0) {
+            if (publishTimeRange.upperEndpoint().compareTo(searchStart) <= 0) {
+                // All the entries from the start position were published after the timestamp
+                callback.findEntryComplete(null, ctx);
+                return;
+            }
+            searchRange = Range.open(searchStart, publishTimeRange.upperEndpoint());
+        } else {
+            searchRange = Range.openClosed(searchStart, lastPosition);
+        }
+
+        long max = ledger.getNumberOfEntries(searchRange);
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] [{}] Searching entries published before {} from {} in {} entries of {}", ledger.getName(),
+                    name, timestamp, searchStart, max, searchRange);
+        }
+        if (startMatches && max == 0) {
+            // The index points are consecutive entries, there's nothing to read
+            callback.findEntryComplete(searchStart, ctx);
+            return;
+        }
+
+        new OpFindNewest(this, searchStart, startMatches, condition, max, callback, ctx).find();
+    }
+
     @Override
     public void setActive() {
         if (!alwaysInactive) {
@@ -1508,6 +1706,13 @@ public class ManagedCursorImpl implements ManagedCursor {
                 if (PENDING_READ_OPS_UPDATER.get(this) > 0) {
                     // Wait until no read operation are pending
                     pendingMarkDeleteOps.add(mdEntry);
+                } else if (config.isMarkDeleteGroupCommitEnabled()
+                        && (PENDING_MARK_DELETED_SUBMITTED_COUNT_UPDATER.get(this) > 0
+                                || !pendingMarkDeleteOps.isEmpty())) {
+                    // Persist it together with the other requests received before the outstanding write completes.
+                    // The requests already queued must be written first, not to persist an older position after this
+                    // one.
+                    pendingMarkDeleteOps.add(mdEntry);
                 } else {
                     // Execute the mark delete immediately
                     internalMarkDelete(mdEntry);
@@ -2023,7 +2228,34 @@ public class ManagedCursorImpl implements ManagedCursor {
             callback.closeComplete(ctx);
             return;
         }
-        persistPosition(-1, lastMarkDeleteEntry.newPosition, lastMarkDeleteEntry.properties, callback, ctx);
+        releaseReadAhead();
+
+        // The queued mark-delete requests are persisted with the final position of the cursor
+        final List<MarkDeleteEntry> queuedMarkDeletes;
+        synchronized (pendingMarkDeleteOps) {
+            queuedMarkDeletes = Lists.newArrayList(pendingMarkDeleteOps);
+            pendingMarkDeleteOps.clear();
+        }
+
+        if (queuedMarkDeletes.isEmpty()) {
+            persistPosition(-1, lastMarkDeleteEntry.newPosition, lastMarkDeleteEntry.properties, callback, ctx);
+        } else {
+            MarkDeleteEntry mdEntry = queuedMarkDeletes.get(queuedMarkDeletes.size() - 1);
+            lastMarkDeleteEntry = mdEntry;
+            persistPosition(-1, mdEntry.newPosition, mdEntry.properties, new AsyncCallbacks.CloseCallback() {
+                @Override
+                public void closeComplete(Object ctx) {
+                    queuedMarkDeletes.forEach(e -> e.callback.markDeleteComplete(e.ctx));
+                    callback.closeComplete(ctx);
+                }
+
+                @Override
+                public void closeFailed(ManagedLedgerException exception, Object ctx) {
+                    queuedMarkDeletes.forEach(e -> e.callback.markDeleteFailed(exception, e.ctx));
+                    callback.closeFailed(exception, ctx);
+                }
+            }, ctx);
+        }
         STATE_UPDATER.set(this, State.Closed);
     }
 
@@ -2096,6 +2328,9 @@ public class ManagedCursorImpl implements ManagedCursor {
         MarkDeleteEntry lastEntry = pendingMarkDeleteOps.getLast();
         lastEntry.callbackGroup = Lists.newArrayList(pendingMarkDeleteOps);
         pendingMarkDeleteOps.clear();
+        if (lastEntry.callbackGroup.size() > 1) {
+            ledger.mbean.recordCoalescedMarkDeletes(lastEntry.callbackGroup.size() - 1);
+        }
 
         internalMarkDelete(lastEntry);
     }
@@ -2214,20 +2449,129 @@ public class ManagedCursorImpl implements ManagedCursor {
         }
     }
 
+    /**
+     * Encode all the unacked ranges in chunks to be stored in separate entries, when they can't all be persisted in
+     * a single entry. The boundaries of the previous chunks are kept, so that the unchanged ones can be reused.
+     */
+    private List<UnackedRangesEncoder.Chunk> buildIndividualDeletedMessageChunks(PersistedChunks previous) {
+        if (!config.isPersistentUnackedRangesWithMultipleEntriesEnabled()) {
+            return Collections.emptyList();
+        }
+
+        lock.readLock().lock();
+        try {
+            if (individualDeletedMessages.size() <= config.getMaxUnackedRangesToPersist()) {
+                return Collections.emptyList();
+            }
+
+            UnackedRangesEncoder encoder = new UnackedRangesEncoder(config.getPersistentUnackedRangesMaxEntrySize(),
+                    previous != null ? previous.chunks : Collections.emptyList());
+            individualDeletedMessages.forEach((positionRange) -> {
+                PositionImpl lower = positionRange.lowerEndpoint();
+                PositionImpl upper = positionRange.upperEndpoint();
+                encoder.add(lower.getLedgerId(), lower.getEntryId(), upper.getLedgerId(), upper.getEntryId());
+                return true;
+            });
+            return encoder.getChunks();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     void persistPositionToLedger(final LedgerHandle lh, MarkDeleteEntry mdEntry, final VoidCallback callback) {
         PositionImpl position = mdEntry.newPosition;
-        PositionInfo pi = PositionInfo.newBuilder().setLedgerId(position.getLedgerId())
+        PositionInfo.Builder piBuilder = PositionInfo.newBuilder().setLedgerId(position.getLedgerId())
                 .setEntryId(position.getEntryId())
-                .addAllIndividualDeletedMessages(buildIndividualDeletedMessageRanges())
-                .addAllProperties(buildPropertiesMap(mdEntry.properties)).build();
+                .addAllProperties(buildPropertiesMap(mdEntry.properties));
+        List<MLDataFormats.MessageRange> ranges = buildIndividualDeletedMessageRanges();
+        // Chunk entries can only be referenced from the same cursor ledger
+        PersistedChunks previous = persistedChunks;
+        if (previous != null && previous.cursorLedgerId != lh.getId()) {
+            previous = null;
+        }
+        List<UnackedRangesEncoder.Chunk> chunks = buildIndividualDeletedMessageChunks(previous);
 
+        checkNotNull(lh);
+        if (chunks.isEmpty()) {
+            persistedChunks = null;
+            appendPositionInfo(lh, mdEntry, piBuilder.addAllIndividualDeletedMessages(ranges).build(),
+                    Collections.emptyList(), callback);
+            return;
+        }
+
+        // Write the chunks first, then an entry with the position and the ids of the chunk entries. The chunks that
+        // are the same as in the previous persist are not written again, their entries are referenced instead. The
+        // bytes written then grow with the number of changed chunks, rather than with the number of unacked ranges.
+        final long[] chunkEntries = new long[chunks.size()];
+        final PositionInfo[] chunkInfos = new PositionInfo[chunks.size()];
+        final List<Integer> changedChunks = Lists.newArrayList();
+        int previousIndex = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            UnackedRangesEncoder.Chunk chunk = chunks.get(i);
+            while (previous != null && previousIndex < previous.chunks.size()
+                    && previous.chunks.get(previousIndex).startsBefore(chunk)) {
+                previousIndex++;
+            }
+            if (previous != null && previousIndex < previous.chunks.size()
+                    && previous.chunks.get(previousIndex).startsAt(chunk)
+                    && Arrays.equals(previous.chunks.get(previousIndex).ranges, chunk.ranges)) {
+                chunkEntries[i] = previous.entryIds[previousIndex];
+                chunkInfos[i] = previous.infos[previousIndex];
+                continue;
+            }
+
+            PositionInfo.Builder chunkBuilder = piBuilder.clone();
+            for (long value : chunk.ranges) {
+                chunkBuilder.addIndividualDeletedMessageRanges(value);
+            }
+            chunkInfos[i] = chunkBuilder.build();
+            changedChunks.add(i);
+        }
+
+        final Runnable appendChunkEntries = () -> {
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] Cursor {} Appended {} of {} chunks of unacked ranges to ledger={}",
+                        ledger.getName(), name, changedChunks.size(), chunkEntries.length, lh.getId());
+            }
+            persistedChunks = new PersistedChunks(lh.getId(), chunks, chunkEntries, chunkInfos);
+            for (long chunkEntry : chunkEntries) {
+                piBuilder.addIndividualDeletedMessagesChunkEntries(chunkEntry);
+            }
+            appendPositionInfo(lh, mdEntry, piBuilder.addAllIndividualDeletedMessages(ranges).build(),
+                    Arrays.asList(chunkInfos), callback);
+        };
+        if (changedChunks.isEmpty()) {
+            appendChunkEntries.run();
+            return;
+        }
+
+        final AtomicInteger pendingChunks = new AtomicInteger(changedChunks.size());
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        for (int chunkIndex : changedChunks) {
+            lh.asyncAddEntry(chunkInfos[chunkIndex].toByteArray(), (rc, lh1, entryId, ctx) -> {
+                if (rc != BKException.Code.OK) {
+                    if (failed.compareAndSet(false, true)) {
+                        persistPositionToLedgerFailed(lh1, mdEntry, rc, callback);
+                    }
+                    return;
+                }
 
+                chunkEntries[chunkIndex] = entryId;
+                if (pendingChunks.decrementAndGet() == 0 && !failed.get()) {
+                    appendChunkEntries.run();
+                }
+            }, null);
+        }
+    }
+
+    private void appendPositionInfo(final LedgerHandle lh, MarkDeleteEntry mdEntry, PositionInfo pi,
+            List<PositionInfo> chunks, final VoidCallback callback) {
+        PositionImpl position = mdEntry.newPosition;
         if (log.isDebugEnabled()) {
             log.debug("[{}] Cursor {} Appending to ledger={} position={}", ledger.getName(), name, lh.getId(),
                     position);
         }
 
-        checkNotNull(lh);
         lh.asyncAddEntry(pi.toByteArray(), (rc, lh1, entryId, ctx) -> {
             if (rc == BKException.Code.OK) {
                 if (log.isDebugEnabled()) {
@@ -2235,6 +2579,12 @@ public class ManagedCursorImpl implements ManagedCursor {
                             lh1.getId());
                 }
 
+                CursorSnapshotStore snapshotStore = getSnapshotStore();
+                if (snapshotStore != null) {
+                    snapshotStore.write(ledger.getName(), name,
+                            new CursorSnapshotStore.Snapshot(lh1.getId(), entryId, pi, chunks));
+                }
+
                 if (shouldCloseLedger(lh1)) {
                     if (log.isDebugEnabled()) {
                         log.debug("[{}] Need to create new metadata ledger for consumer {}", ledger.getName(), name);
@@ -2244,35 +2594,42 @@ public class ManagedCursorImpl implements ManagedCursor {
 
                 callback.operationComplete();
             } else {
-                log.warn("[{}] Error updating cursor {} position {} in meta-ledger {}: {}", ledger.getName(), name,
-                        position, lh1.getId(), BKException.getMessage(rc));
-                // If we've had a write error, the ledger will be automatically closed, we need to create a new one,
-                // in the meantime the mark-delete will be queued.
-                STATE_UPDATER.compareAndSet(ManagedCursorImpl.this, State.Open, State.NoLedger);
-
-                // Before giving up, try to persist the position in the metadata store
-                persistPositionMetaStore(-1, position, mdEntry.properties, new MetaStoreCallback<Void>() {
-                    @Override
-                    public void operationComplete(Void result, Stat stat) {
-                        if (log.isDebugEnabled()) {
-                            log.debug(
-                                    "[{}][{}] Updated cursor in meta store after previous failure in ledger at position {}",
-                                    ledger.getName(), name, position);
-                        }
-                        callback.operationComplete();
-                    }
-
-                    @Override
-                    public void operationFailed(MetaStoreException e) {
-                        log.warn("[{}][{}] Failed to update cursor in meta store after previous failure in ledger: {}",
-                                ledger.getName(), name, e.getMessage());
-                        callback.operationFailed(createManagedLedgerException(rc));
-                    }
-                }, true);
+                persistPositionToLedgerFailed(lh1, mdEntry, rc, callback);
             }
         }, null);
     }
 
+    private void persistPositionToLedgerFailed(final LedgerHandle lh, MarkDeleteEntry mdEntry, int rc,
+            final VoidCallback callback) {
+        PositionImpl position = mdEntry.newPosition;
+        log.warn("[{}] Error updating cursor {} position {} in meta-ledger {}: {}", ledger.getName(), name,
+                position, lh.getId(), BKException.getMessage(rc));
+        persistedChunks = null;
+        // If we've had a write error, the ledger will be automatically closed, we need to create a new one,
+        // in the meantime the mark-delete will be queued.
+        STATE_UPDATER.compareAndSet(ManagedCursorImpl.this, State.Open, State.NoLedger);
+
+        // Before giving up, try to persist the position in the metadata store
+        persistPositionMetaStore(-1, position, mdEntry.properties, new MetaStoreCallback<Void>() {
+            @Override
+            public void operationComplete(Void result, Stat stat) {
+                if (log.isDebugEnabled()) {
+                    log.debug(
+                            "[{}][{}] Updated cursor in meta store after previous failure in ledger at position {}",
+                            ledger.getName(), name, position);
+                }
+                callback.operationComplete();
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                log.warn("[{}][{}] Failed to update cursor in meta store after previous failure in ledger: {}",
+                        ledger.getName(), name, e.getMessage());
+                callback.operationFailed(createManagedLedgerException(rc));
+            }
+        }, true);
+    }
+
     boolean shouldCloseLedger(LedgerHandle lh) {
         long now = clock.millis();
         if ((lh.getLastAddConfirmed() >= config.getMetadataMaxEntriesPerLedger()
@@ -2344,6 +2701,44 @@ public class ManagedCursorImpl implements ManagedCursor {
         }
     }
 
+    /**
+     * Notification of a new entry added to the ledger. When the waiting read operation is at the position of the
+     * entry, the entry is returned to it directly, otherwise the read is done as usual. Takes ownership of
+     * <code>entry</code>.
+     */
+    void notifyEntryAdded(EntryImpl entry) {
+        OpReadEntry opReadEntry = WAITING_READ_OP_UPDATER.getAndSet(this, null);
+
+        if (opReadEntry == null) {
+            // No one is waiting to be notified. Ignore
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] [{}] Received notification but had no pending read operation", ledger.getName(), name);
+            }
+            entry.release();
+            return;
+        }
+
+        PENDING_READ_OPS_UPDATER.incrementAndGet(this);
+        opReadEntry.readPosition = (PositionImpl) getReadPosition();
+        if (opReadEntry.readPosition.getLedgerId() == entry.getLedgerId()
+                && opReadEntry.readPosition.getEntryId() == entry.getEntryId()) {
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] [{}] Received added entry {}:{}", ledger.getName(), name, entry.getLedgerId(),
+                        entry.getEntryId());
+            }
+            ledger.mbean.addReadEntriesSample(1, entry.getLength());
+            ledger.mbean.recordTailReadFanOutEntry();
+            opReadEntry.readEntriesComplete(Lists.newArrayList(entry), opReadEntry.ctx);
+        } else {
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] [{}] Received added entry {}:{} while reading at {}", ledger.getName(), name,
+                        entry.getLedgerId(), entry.getEntryId(), opReadEntry.readPosition);
+            }
+            entry.release();
+            ledger.asyncReadEntries(opReadEntry);
+        }
+    }
+
     void asyncCloseCursorLedger(final AsyncCallbacks.CloseCallback callback, final Object ctx) {
         LedgerHandle lh = cursorLedger;
         ledger.mbean.startCursorLedgerCloseOp();
@@ -2368,6 +2763,15 @@ public class ManagedCursorImpl implements ManagedCursor {
                 // A metadata ledger switch was pending and now we can do it since we don't have any more
                 // outstanding mark-delete requests
                 createNewMetadataLedger();
+            } else if (config.isMarkDeleteGroupCommitEnabled()) {
+                synchronized (pendingMarkDeleteOps) {
+                    // Write in one entry all the requests received while the previous write was outstanding. If there
+                    // are pending reads, the requests will be flushed when the reads complete.
+                    if (STATE_UPDATER.get(this) == State.Open && PENDING_READ_OPS_UPDATER.get(this) == 0
+                            && PENDING_MARK_DELETED_SUBMITTED_COUNT_UPDATER.get(this) == 0) {
+                        flushPendingMarkDeletes();
+                    }
+                }
             }
         }
     }
@@ -2418,7 +2822,15 @@ public class ManagedCursorImpl implements ManagedCursor {
         }, null);
     }
 
+    private CursorSnapshotStore getSnapshotStore() {
+        return ledger.factory != null ? ledger.factory.getCursorSnapshotStore() : null;
+    }
+
     void asyncDeleteCursorLedger() {
+        CursorSnapshotStore snapshotStore = getSnapshotStore();
+        if (snapshotStore != null) {
+            snapshotStore.delete(ledger.getName(), name);
+        }
         asyncDeleteCursorLedger(DEFAULT_LEDGER_DELETE_RETRIES);
     }
 
@@ -2486,6 +2898,16 @@ public class ManagedCursorImpl implements ManagedCursor {
     }
 
     // / Expose internal values for debugging purpose
+    CursorReadAhead getReadAhead() {
+        return readAhead;
+    }
+
+    void releaseReadAhead() {
+        if (readAhead != null) {
+            readAhead.clear();
+        }
+    }
+
     public int getPendingReadOpsCount() {
         return PENDING_READ_OPS_UPDATER.get(this);
     }
@@ -81,6 +81,7 @@ import org.slf4j.LoggerFactory;
 
 public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
     private final MetaStore store;
+    private final MetaStoreZookeeperBatcher metadataBatcher;
     private final BookkeeperFactoryForCustomEnsemblePlacementPolicy bookkeeperFactory;
     private final boolean isBookkeeperManaged;
     private final ZooKeeper zookeeper;
@@ -94,6 +95,11 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
 
     protected final ConcurrentHashMap<String, CompletableFuture<ManagedLedgerImpl>> ledgers = new ConcurrentHashMap<>();
     private final EntryCacheManager entryCacheManager;
+    private final CursorSnapshotStore cursorSnapshotStore;
+    private final LedgerDeletionScheduler ledgerDeletionScheduler;
+
+    // Read-only snapshots shared by the read-only cursors, guarded by itself
+    private final Map<String, ReadOnlyManagedLedgerImpl> readOnlyLedgers = Maps.newHashMap();
 
     private long lastStatTimestamp = System.nanoTime();
     private final ScheduledFuture<?> statsTask;
@@ -157,10 +163,23 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
         this.bookkeeperFactory = bookKeeperGroupFactory;
         this.isBookkeeperManaged = isBookkeeperManaged;
         this.zookeeper = isBookkeeperManaged ? zooKeeper : null;
-        this.store = new MetaStoreImplZookeeper(zooKeeper, orderedExecutor);
         this.config = config;
         this.mbean = new ManagedLedgerFactoryMBeanImpl(this);
+        this.metadataBatcher = config.getMetadataStoreRocksDbDirectory() == null
+                && config.getMetadataBatchMaxOperations() > 1
+                ? new MetaStoreZookeeperBatcher(zooKeeper, scheduledExecutor, mbean,
+                        config.getMetadataBatchMaxOperations(), config.getMetadataBatchMaxSizeBytes(),
+                        config.getMetadataBatchMaxDelayMillis())
+                : null;
+        this.store = config.getMetadataStoreRocksDbDirectory() != null
+                ? new MetaStoreImplRocksDb(config.getMetadataStoreRocksDbDirectory(),
+                        config.isMetadataStoreRocksDbSyncWrites(), orderedExecutor)
+                : new MetaStoreImplZookeeper(zooKeeper, orderedExecutor, metadataBatcher);
         this.entryCacheManager = new EntryCacheManager(this);
+        this.cursorSnapshotStore = config.getCursorSnapshotDirectory() != null
+                ? new CursorSnapshotStore(config.getCursorSnapshotDirectory()) : null;
+        this.ledgerDeletionScheduler = config.getLedgerDeletionMaxRate() > 0
+                ? new LedgerDeletionScheduler(config.getLedgerDeletionMaxRate()) : null;
         this.statsTask = scheduledExecutor.scheduleAtFixedRate(() -> refreshStats(), 0, StatsPeriodSeconds, TimeUnit.SECONDS);
 
 
@@ -357,18 +376,18 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
     }
 
     @Override
-    public void asyncOpenReadOnlyCursor(String managedLedgerName, Position startPosition, ManagedLedgerConfig config,
+    public void asyncOpenReadOnlyCursor(String managedLedgerName, Position startPosition, ManagedLedgerConfig mlConfig,
             OpenReadOnlyCursorCallback callback, Object ctx) {
         checkArgument(startPosition instanceof PositionImpl);
-        ReadOnlyManagedLedgerImpl roManagedLedger = new ReadOnlyManagedLedgerImpl(this,
-                bookkeeperFactory
-                        .get(new EnsemblePlacementPolicyConfig(config.getBookKeeperEnsemblePlacementPolicyClassName(),
-                                config.getBookKeeperEnsemblePlacementPolicyProperties())),
-                store, config, scheduledExecutor, orderedExecutor, managedLedgerName);
+        final ReadOnlyManagedLedgerImpl roManagedLedger = config.isReadOnlyManagedLedgerSharingEnabled()
+                ? retainReadOnlyManagedLedger(managedLedgerName, mlConfig)
+                : newReadOnlyManagedLedger(managedLedgerName, mlConfig, false);
 
         roManagedLedger.initializeAndCreateCursor((PositionImpl) startPosition).thenAccept(roCursor -> {
             callback.openReadOnlyCursorComplete(roCursor, ctx);
         }).exceptionally(ex -> {
+            roManagedLedger.cursorClosed();
+
             Throwable t = ex;
             if (t instanceof CompletionException) {
                 t = ex.getCause();
@@ -384,6 +403,54 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
         });
     }
 
+    private ReadOnlyManagedLedgerImpl newReadOnlyManagedLedger(String managedLedgerName, ManagedLedgerConfig mlConfig,
+            boolean shared) {
+        return new ReadOnlyManagedLedgerImpl(this,
+                bookkeeperFactory
+                        .get(new EnsemblePlacementPolicyConfig(mlConfig.getBookKeeperEnsemblePlacementPolicyClassName(),
+                                mlConfig.getBookKeeperEnsemblePlacementPolicyProperties())),
+                store, mlConfig, scheduledExecutor, orderedExecutor, managedLedgerName, shared);
+    }
+
+    /**
+     * Get the read-only snapshot of a managed ledger, creating it if no cursor is currently using it, and take a
+     * reference on it for a new cursor.
+     */
+    private ReadOnlyManagedLedgerImpl retainReadOnlyManagedLedger(String managedLedgerName,
+            ManagedLedgerConfig mlConfig) {
+        synchronized (readOnlyLedgers) {
+            ReadOnlyManagedLedgerImpl roManagedLedger = readOnlyLedgers.computeIfAbsent(managedLedgerName,
+                    name -> newReadOnlyManagedLedger(name, mlConfig, true));
+            roManagedLedger.retain();
+            return roManagedLedger;
+        }
+    }
+
+    /**
+     * Release the reference of a cursor on a read-only snapshot. The ledger handles and the cached entries of the
+     * snapshot are released with the last reference.
+     */
+    void releaseReadOnlyManagedLedger(ReadOnlyManagedLedgerImpl roManagedLedger) {
+        synchronized (readOnlyLedgers) {
+            if (roManagedLedger.release() > 0) {
+                return;
+            }
+            readOnlyLedgers.remove(roManagedLedger.getName(), roManagedLedger);
+        }
+
+        roManagedLedger.closeLedgerHandles();
+        if (!ledgers.containsKey(roManagedLedger.getName())) {
+            // The entry cache is not shared with a managed ledger open for writing
+            entryCacheManager.removeEntryCache(roManagedLedger.getName());
+        }
+    }
+
+    ReadOnlyManagedLedgerImpl getReadOnlyManagedLedger(String managedLedgerName) {
+        synchronized (readOnlyLedgers) {
+            return readOnlyLedgers.get(managedLedgerName);
+        }
+    }
+
     void close(ManagedLedger ledger) {
         // Remove the ledger from the internal factory cache
         ledgers.remove(ledger.getName());
@@ -422,6 +489,19 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
         latch.await();
         log.info("{} ledgers closed", numLedgers);
 
+        if (metadataBatcher != null) {
+            metadataBatcher.flush();
+        }
+
+        if (ledgerDeletionScheduler != null) {
+            ledgerDeletionScheduler.shutdown();
+        }
+
+        synchronized (readOnlyLedgers) {
+            readOnlyLedgers.values().forEach(ReadOnlyManagedLedgerImpl::closeLedgerHandles);
+            readOnlyLedgers.clear();
+        }
+
         if (zookeeper != null) {
             zookeeper.close();
         }
@@ -440,6 +520,10 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
         scheduledExecutor.shutdown();
         orderedExecutor.shutdown();
         cacheEvictionExecutor.shutdownNow();
+        if (cursorSnapshotStore != null) {
+            cursorSnapshotStore.close();
+        }
+        store.close();
 
         entryCacheManager.clear();
     }
@@ -597,6 +681,14 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
         return entryCacheManager;
     }
 
+    CursorSnapshotStore getCursorSnapshotStore() {
+        return cursorSnapshotStore;
+    }
+
+    LedgerDeletionScheduler getLedgerDeletionScheduler() {
+        return ledgerDeletionScheduler;
+    }
+
     public ManagedLedgerFactoryMXBean getCacheStats() {
         return this.mbean;
     }
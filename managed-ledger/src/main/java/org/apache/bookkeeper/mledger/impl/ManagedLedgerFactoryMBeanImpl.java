@@ -21,15 +21,24 @@ package org.apache.bookkeeper.mledger.impl;
 import java.util.concurrent.TimeUnit;
 import org.apache.bookkeeper.mledger.ManagedLedgerFactoryMXBean;
 import org.apache.bookkeeper.mledger.util.Rate;
+import org.apache.bookkeeper.mledger.util.StatsBuckets;
 
 @SuppressWarnings("checkstyle:javadoctype")
 public class ManagedLedgerFactoryMBeanImpl implements ManagedLedgerFactoryMXBean {
 
+    public static final long[] METADATA_BATCH_SIZE_BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500 };
+
     private final ManagedLedgerFactoryImpl factory;
 
     final Rate cacheHits = new Rate();
     final Rate cacheMisses = new Rate();
     final Rate cacheEvictions = new Rate();
+    final Rate cacheAdmissionRejections = new Rate();
+    final Rate cacheSlabAllocationFailures = new Rate();
+
+    private final StatsBuckets metadataBatchSizeStats = new StatsBuckets(METADATA_BATCH_SIZE_BUCKETS);
+    private final StatsBuckets metadataBatchQueueLatencyStatsUsec = new StatsBuckets(
+            ManagedLedgerMBeanImpl.ENTRY_LATENCY_BUCKETS_USEC);
 
     public ManagedLedgerFactoryMBeanImpl(ManagedLedgerFactoryImpl factory) throws Exception {
         this.factory = factory;
@@ -46,6 +55,10 @@ public class ManagedLedgerFactoryMBeanImpl implements ManagedLedgerFactoryMXBean
         cacheHits.calculateRate(seconds);
         cacheMisses.calculateRate(seconds);
         cacheEvictions.calculateRate(seconds);
+        cacheAdmissionRejections.calculateRate(seconds);
+        cacheSlabAllocationFailures.calculateRate(seconds);
+        metadataBatchSizeStats.refresh();
+        metadataBatchQueueLatencyStatsUsec.refresh();
     }
 
     public void recordCacheHit(long size) {
@@ -64,6 +77,22 @@ public class ManagedLedgerFactoryMBeanImpl implements ManagedLedgerFactoryMXBean
         cacheEvictions.recordEvent();
     }
 
+    public void recordCacheAdmissionRejection() {
+        cacheAdmissionRejections.recordEvent();
+    }
+
+    public void recordCacheSlabAllocationFailure() {
+        cacheSlabAllocationFailures.recordEvent();
+    }
+
+    public void recordMetadataBatch(int size) {
+        metadataBatchSizeStats.addValue(size);
+    }
+
+    public void recordMetadataBatchQueueLatency(long latency, TimeUnit unit) {
+        metadataBatchQueueLatencyStatsUsec.addValue(unit.toMicros(latency));
+    }
+
     // //
 
     @Override
@@ -106,4 +135,40 @@ public class ManagedLedgerFactoryMBeanImpl implements ManagedLedgerFactoryMXBean
         return cacheEvictions.getCount();
     }
 
+    @Override
+    public double getCacheAdmissionRejectionsRate() {
+        return cacheAdmissionRejections.getRate();
+    }
+
+    @Override
+    public double getCacheSlabAllocationFailuresRate() {
+        return cacheSlabAllocationFailures.getRate();
+    }
+
+    @Override
+    public double getMetadataBatchSizeAverage() {
+        return metadataBatchSizeStats.getAvg();
+    }
+
+    @Override
+    public long[] getMetadataBatchSizeBuckets() {
+        return metadataBatchSizeStats.getBuckets();
+    }
+
+    @Override
+    public double getMetadataBatchQueueLatencyAverageUsec() {
+        return metadataBatchQueueLatencyStatsUsec.getAvg();
+    }
+
+    @Override
+    public long[] getMetadataBatchQueueLatencyBuckets() {
+        return metadataBatchQueueLatencyStatsUsec.getBuckets();
+    }
+
+    @Override
+    public long getPendingLedgerDeletions() {
+        LedgerDeletionScheduler deletionScheduler = factory.getLedgerDeletionScheduler();
+        return deletionScheduler != null ? deletionScheduler.getPendingDeletions() : 0;
+    }
+
 }
@@ -30,12 +30,14 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
 import com.google.common.collect.Range;
+import com.google.common.hash.BloomFilter;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.util.Recycler;
 import io.netty.util.Recycler.Handle;
 
+import java.io.IOException;
 import java.time.Clock;
 import java.util.Collections;
 import java.util.HashMap;
@@ -49,6 +51,7 @@ import java.util.Random;
 import java.util.UUID;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -87,6 +90,8 @@ import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntryCallback;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.TerminateCallback;
 import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.EntryKeyExtractor;
+import org.apache.bookkeeper.mledger.EntryTimestampExtractor;
 import org.apache.bookkeeper.mledger.ManagedCursor;
 import org.apache.bookkeeper.mledger.ManagedLedger;
 import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
@@ -132,7 +137,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
     protected ManagedLedgerConfig config;
     protected final MetaStore store;
 
-    private final ConcurrentLongHashMap<CompletableFuture<ReadHandle>> ledgerCache = new ConcurrentLongHashMap<>(
+    protected final ConcurrentLongHashMap<CompletableFuture<ReadHandle>> ledgerCache = new ConcurrentLongHashMap<>(
             16 /* initial capacity */, 1 /* number of sections */);
     protected final NavigableMap<Long, LedgerInfo> ledgers = new ConcurrentSkipListMap<>();
     private volatile Stat ledgersStat;
@@ -164,6 +169,19 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
 
     final EntryCache entryCache;
 
+    // Publish time of the entries of the current ledger, null if disabled
+    final PublishTimeIndex publishTimeIndex;
+    final EntryTimestampExtractor entryTimestampExtractor;
+
+    // Keys of the messages of the current ledger, null if disabled
+    final LedgerKeyFilter ledgerKeyFilter;
+    final EntryKeyExtractor entryKeyExtractor;
+
+    // Key filters of the closed ledgers, loaded from the metadata store when first used. A null filter means the
+    // ledger might contain any key
+    private final ConcurrentHashMap<Long, CompletableFuture<BloomFilter<CharSequence>>> closedLedgerKeyFilters =
+            new ConcurrentHashMap<>();
+
     private ScheduledFuture<?> timeoutTask;
 
     /**
@@ -176,12 +194,30 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
     private final CallbackMutex offloadMutex = new CallbackMutex();
     private final static CompletableFuture<PositionImpl> NULL_OFFLOAD_PROMISE = CompletableFuture
             .completedFuture(PositionImpl.latest);
+    /**
+     * The state of the write path (current ledger, pending adds, ledger rollover) is only updated from the managed
+     * ledger thread of the ordered executor, so that adding entries never needs to acquire the managed ledger lock.
+     */
     private volatile LedgerHandle currentLedger;
-    private long currentLedgerEntries = 0;
-    private long currentLedgerSize = 0;
+    private volatile long currentLedgerEntries = 0;
+    private volatile long currentLedgerSize = 0;
     private long lastLedgerCreatedTimestamp = 0;
     private long lastLedgerCreationFailureTimestamp = 0;
     private long lastLedgerCreationInitiationTimestamp = 0;
+    // Time at which the writes started to be queued because of a ledger rollover
+    private long rolloverStallStartTimestamp = 0;
+
+    // Ledger created in advance, to switch to when the current ledger is full
+    private LedgerHandle standbyLedger = null;
+    private boolean standbyLedgerCreationInProgress = false;
+    // Set when a rollover is waiting for the standby ledger being created, so that the ledger ids stay ordered
+    private boolean waitingForStandbyLedger = false;
+    // Id of the standby ledger stored in the metadata, to delete it on recovery if it was never switched to
+    private volatile long standbyLedgerId = -1;
+
+    // Ledgers trimmed while the deletions are rate limited, kept in the metadata until they are physically deleted
+    private final NavigableMap<Long, LedgerInfo> pendingLedgerDeletions = new ConcurrentSkipListMap<>();
+    private final AtomicBoolean pendingLedgerDeletionsUpdateScheduled = new AtomicBoolean();
 
     private static final Random random = new Random(System.currentTimeMillis());
     private long maximumRolloverTimeMs;
@@ -265,6 +301,21 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         this.uninitializedCursors = Maps.newHashMap();
         this.clock = config.getClock();
         this.backloggedCursorThresholdEntries = factory.getConfig().getThresholdBackloggedCursor();
+        if (config.getPublishTimeIndexMaxPointsPerLedger() > 0 && config.getEntryTimestampExtractor() != null) {
+            this.publishTimeIndex = new PublishTimeIndex(config.getPublishTimeIndexMaxPointsPerLedger());
+            this.entryTimestampExtractor = config.getEntryTimestampExtractor();
+        } else {
+            this.publishTimeIndex = null;
+            this.entryTimestampExtractor = null;
+        }
+        if (config.getKeyBloomFilterExpectedKeysPerLedger() > 0 && config.getEntryKeyExtractor() != null) {
+            this.ledgerKeyFilter = new LedgerKeyFilter(config.getKeyBloomFilterExpectedKeysPerLedger(),
+                    config.getKeyBloomFilterFalsePositiveProbability());
+            this.entryKeyExtractor = config.getEntryKeyExtractor();
+        } else {
+            this.ledgerKeyFilter = null;
+            this.entryKeyExtractor = null;
+        }
 
         // Get the next rollover time. Add a random value upto 5% to avoid rollover multiple ledgers at the same time
         this.maximumRolloverTimeMs = (long) (config.getMaximumRolloverTimeMs() * (1 + random.nextDouble() * 5 / 100.0));
@@ -288,6 +339,17 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                     ledgers.put(ls.getLedgerId(), ls);
                 }
 
+                if (mlInfo.hasStandbyLedgerId() && !ledgers.containsKey(mlInfo.getStandbyLedgerId())) {
+                    // The managed ledger was not closed properly before switching to its standby ledger
+                    log.info("[{}] Deleting standby ledger {} left from a previous session", name,
+                            mlInfo.getStandbyLedgerId());
+                    asyncDeleteLedger(mlInfo.getStandbyLedgerId(), DEFAULT_LEDGER_DELETE_RETRIES);
+                }
+
+                for (LedgerInfo ls : mlInfo.getPendingDeletionLedgerInfoList()) {
+                    pendingLedgerDeletions.put(ls.getLedgerId(), ls);
+                }
+
                 // Last ledger stat may be zeroed, we must update it
                 if (ledgers.size() > 0) {
                     final long id = ledgers.lastKey();
@@ -438,6 +500,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                 }
 
                 if (consumers.isEmpty()) {
+                    deletePendingLedgers();
                     callback.initializeComplete();
                     return;
                 }
@@ -459,6 +522,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
 
                             if (cursorCount.decrementAndGet() == 0) {
                                 // The initialization is now completed, register the jmx mbean
+                                deletePendingLedgers();
                                 callback.initializeComplete();
                             }
                         }
@@ -554,7 +618,8 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         }));
     }
 
-    private synchronized void internalAsyncAddEntry(OpAddEntry addOperation) {
+    // Called in the managed ledger thread
+    private void internalAsyncAddEntry(OpAddEntry addOperation) {
         final State state = STATE_UPDATER.get(this);
         if (state == State.Fenced) {
             addOperation.failed(new ManagedLedgerFencedException());
@@ -587,9 +652,8 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                 log.debug("[{}] Creating a new ledger", name);
             }
             if (STATE_UPDATER.compareAndSet(this, State.ClosedLedger, State.CreatingLedger)) {
-                this.lastLedgerCreationInitiationTimestamp = System.nanoTime();
-                mbean.startDataLedgerCreateOp();
-                asyncCreateLedger(bookKeeper, config, digestType, this, Collections.emptyMap());
+                this.rolloverStallStartTimestamp = System.nanoTime();
+                createNewLedger();
             }
         } else {
             checkArgument(state == State.LedgerOpened, "ledger=%s is not opened", state);
@@ -612,6 +676,9 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                 // This entry will be the last added to current ledger
                 addOperation.setCloseWhenDone(true);
                 STATE_UPDATER.set(this, State.ClosingLedger);
+                rolloverStallStartTimestamp = System.nanoTime();
+            } else if (shouldCreateStandbyLedger()) {
+                createStandbyLedger();
             }
 
             addOperation.initiate();
@@ -751,6 +818,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             return;
         } else if (!cursor.isDurable()) {
             cursors.removeCursor(consumerName);
+            cursor.releaseReadAhead();
             callback.deleteCursorComplete(ctx);
             return;
         }
@@ -762,6 +830,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             public void operationComplete(Void result, Stat stat) {
                 cursor.asyncDeleteCursorLedger();
                 cursors.removeCursor(consumerName);
+                cursor.releaseReadAhead();
 
                 // Redo invalidation of entries in cache
                 PositionImpl slowestConsumerPosition = cursors.getSlowestReaderPosition();
@@ -1012,17 +1081,19 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                 callback.terminateFailed(createManagedLedgerException(rc), ctx);
             } else {
                 lastConfirmedEntry = new PositionImpl(lh.getId(), lh.getLastAddConfirmed());
-                // Store the new state in metadata
-                store.asyncUpdateLedgerIds(name, getManagedLedgerInfo(), ledgersStat, new MetaStoreCallback<Void>() {
+                // Store the new state in metadata, after the update of a ledger rollover in progress
+                updateLedgersListAfterRollover(new MetaStoreCallback<Void>() {
                     @Override
                     public void operationComplete(Void result, Stat stat) {
                         ledgersStat = stat;
+                        ledgersListMutex.unlock();
                         log.info("[{}] Terminated managed ledger at {}", name, lastConfirmedEntry);
                         callback.terminateComplete(lastConfirmedEntry, ctx);
                     }
 
                     @Override
                     public void operationFailed(MetaStoreException e) {
+                        ledgersListMutex.unlock();
                         log.error("[{}] Failed to terminate managed ledger: {}", name, e.getMessage());
                         callback.terminateFailed(new ManagedLedgerException(e), ctx);
                     }
@@ -1108,6 +1179,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
     public synchronized void asyncClose(final CloseCallback callback, final Object ctx) {
         State state = STATE_UPDATER.get(this);
         if (state == State.Fenced) {
+            discardStandbyLedger();
             factory.close(this);
             callback.closeFailed(new ManagedLedgerFencedException(), ctx);
             return;
@@ -1123,6 +1195,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
 
         factory.close(this);
         STATE_UPDATER.set(this, State.Closed);
+        discardStandbyLedger();
 
         LedgerHandle lh = currentLedger;
 
@@ -1177,7 +1250,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
     // Callbacks
 
     @Override
-    public synchronized void createComplete(int rc, final LedgerHandle lh, Object ctx) {
+    public void createComplete(int rc, final LedgerHandle lh, Object ctx) {
         if (log.isDebugEnabled()) {
             log.debug("[{}] createComplete rc={} ledger={}", name, rc, lh != null ? lh.getId() : -1);
         }
@@ -1186,6 +1259,12 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             return;
         }
 
+        // Switch to the new ledger from the managed ledger thread
+        executor.executeOrdered(name, safeRun(() -> ledgerCreated(rc, lh)));
+    }
+
+    // Called in the managed ledger thread
+    private void ledgerCreated(int rc, final LedgerHandle lh) {
         mbean.endDataLedgerCreateOp();
         if (rc != BKException.Code.OK) {
             log.error("[{}] Error creating ledger rc={} {}", name, rc, BKException.getMessage(rc));
@@ -1196,9 +1275,22 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             lastLedgerCreationFailureTimestamp = clock.millis();
             STATE_UPDATER.set(this, State.ClosedLedger);
         } else {
-            log.info("[{}] Created new ledger {}", name, lh.getId());
-            ledgers.put(lh.getId(), LedgerInfo.newBuilder().setLedgerId(lh.getId()).setTimestamp(0).build());
-            currentLedger = lh;
+            // Serialize the switch with the close and terminate operations, which read the current ledger
+            synchronized (this) {
+                final State state = STATE_UPDATER.get(this);
+                if (state == State.Closed || state == State.Fenced || state == State.Terminated) {
+                    log.info("[{}] Deleting new ledger {} created after the managed ledger was {}", name, lh.getId(),
+                            state);
+                    clearPendingAddEntries(writeRejectedException(state));
+                    lh.asyncClose((rc1, lh1, ctx1) -> asyncDeleteLedger(lh.getId(), DEFAULT_LEDGER_DELETE_RETRIES),
+                            null);
+                    return;
+                }
+
+                log.info("[{}] Created new ledger {}", name, lh.getId());
+                ledgers.put(lh.getId(), LedgerInfo.newBuilder().setLedgerId(lh.getId()).setTimestamp(0).build());
+                currentLedger = lh;
+            }
             currentLedgerEntries = 0;
             currentLedgerSize = 0;
 
@@ -1210,24 +1302,23 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                     }
                     ledgersStat = stat;
                     ledgersListMutex.unlock();
-                    updateLedgersIdsComplete(stat);
-                    synchronized (ManagedLedgerImpl.this) {
+                    executor.executeOrdered(name, safeRun(() -> {
+                        updateLedgersIdsComplete(stat);
                         mbean.addLedgerSwitchLatencySample(System.nanoTime() - lastLedgerCreationInitiationTimestamp,
                                 TimeUnit.NANOSECONDS);
-                    }
+                    }));
                 }
 
                 @Override
                 public void operationFailed(MetaStoreException e) {
                     if (e instanceof BadVersionException) {
-                        synchronized (ManagedLedgerImpl.this) {
-                            log.error(
-                                    "[{}] Failed to udpate ledger list. z-node version mismatch. Closing managed ledger",
-                                    name);
+                        log.error("[{}] Failed to udpate ledger list. z-node version mismatch. Closing managed ledger",
+                                name);
+                        executor.executeOrdered(name, safeRun(() -> {
                             STATE_UPDATER.set(ManagedLedgerImpl.this, State.Fenced);
                             clearPendingAddEntries(e);
-                            return;
-                        }
+                        }));
+                        return;
                     }
 
                     log.warn("[{}] Error updating meta data with the new list of ledgers: {}", name, e.getMessage());
@@ -1245,11 +1336,11 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
 
                     ledgersListMutex.unlock();
 
-                    synchronized (ManagedLedgerImpl.this) {
+                    executor.executeOrdered(name, safeRun(() -> {
                         lastLedgerCreationFailureTimestamp = clock.millis();
                         STATE_UPDATER.set(ManagedLedgerImpl.this, State.ClosedLedger);
                         clearPendingAddEntries(e);
-                    }
+                    }));
                 }
             };
 
@@ -1270,9 +1361,20 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         store.asyncUpdateLedgerIds(name, getManagedLedgerInfo(), ledgersStat, callback);
     }
 
-    public synchronized void updateLedgersIdsComplete(Stat stat) {
-        STATE_UPDATER.set(this, State.LedgerOpened);
+    // Called in the managed ledger thread
+    void updateLedgersIdsComplete(Stat stat) {
+        if (!STATE_UPDATER.compareAndSet(this, State.CreatingLedger, State.LedgerOpened)) {
+            // The managed ledger was closed, terminated or fenced while the new ledger was being created
+            final State state = STATE_UPDATER.get(this);
+            log.info("[{}] Not writing into new ledger {}, managed ledger is {}", name, currentLedger.getId(), state);
+            clearPendingAddEntries(writeRejectedException(state));
+            return;
+        }
         lastLedgerCreatedTimestamp = clock.millis();
+        if (rolloverStallStartTimestamp > 0) {
+            mbean.addLedgerRolloverStallSample(System.nanoTime() - rolloverStallStartTimestamp, TimeUnit.NANOSECONDS);
+            rolloverStallStartTimestamp = 0;
+        }
 
         if (log.isDebugEnabled()) {
             log.debug("[{}] Resending {} pending messages", name, pendingAddEntries.size());
@@ -1290,6 +1392,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
 
             if (currentLedgerIsFull()) {
                 STATE_UPDATER.set(this, State.ClosingLedger);
+                rolloverStallStartTimestamp = System.nanoTime();
                 op.setCloseWhenDone(true);
                 op.initiate();
                 if (log.isDebugEnabled()) {
@@ -1306,14 +1409,15 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
     // //////////////////////////////////////////////////////////////////////
     // Private helpers
 
-    synchronized void ledgerClosed(final LedgerHandle lh) {
+    // Called in the managed ledger thread
+    void ledgerClosed(final LedgerHandle lh) {
         final State state = STATE_UPDATER.get(this);
         LedgerHandle currentLedger = this.currentLedger;
         if (currentLedger == lh && (state == State.ClosingLedger || state == State.LedgerOpened)) {
             STATE_UPDATER.set(this, State.ClosedLedger);
-        } else if (state == State.Closed) {
-            // The managed ledger was closed during the write operation
-            clearPendingAddEntries(new ManagedLedgerAlreadyClosedException("Managed ledger was already closed"));
+        } else if (state == State.Closed || state == State.Terminated || state == State.Fenced) {
+            // The managed ledger was closed, terminated or fenced during the write operation
+            clearPendingAddEntries(writeRejectedException(state));
             return;
         } else {
             // In case we get multiple write errors for different outstanding write request, we should close the ledger
@@ -1326,9 +1430,15 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             log.debug("[{}] Ledger has been closed id={} entries={}", name, lh.getId(), entriesInLedger);
         }
         if (entriesInLedger > 0) {
-            LedgerInfo info = LedgerInfo.newBuilder().setLedgerId(lh.getId()).setEntries(entriesInLedger)
-                    .setSize(lh.getLength()).setTimestamp(clock.millis()).build();
-            ledgers.put(lh.getId(), info);
+            LedgerInfo.Builder info = LedgerInfo.newBuilder().setLedgerId(lh.getId()).setEntries(entriesInLedger)
+                    .setSize(lh.getLength()).setTimestamp(clock.millis());
+            if (publishTimeIndex != null) {
+                publishTimeIndex.addTo(lh.getId(), info);
+            }
+            if (ledgerKeyFilter != null) {
+                storeLedgerKeyFilter(lh.getId(), info);
+            }
+            ledgers.put(lh.getId(), info.build());
         } else {
             // The last ledger was empty, so we can discard it
             ledgers.remove(lh.getId());
@@ -1349,12 +1459,158 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                 log.debug("[{}] Creating a new ledger", name);
             }
             STATE_UPDATER.set(this, State.CreatingLedger);
-            this.lastLedgerCreationInitiationTimestamp = System.nanoTime();
+            createNewLedger();
+        }
+    }
+
+    /**
+     * Create the ledger to write into after a rollover, or switch to the standby ledger if it was already created.
+     */
+    private void createNewLedger() {
+        this.lastLedgerCreationInitiationTimestamp = System.nanoTime();
+        if (standbyLedger != null) {
+            LedgerHandle lh = standbyLedger;
+            standbyLedger = null;
+            standbyLedgerId = -1;
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] Switching to standby ledger {}", name, lh.getId());
+            }
+            mbean.startDataLedgerCreateOp();
+            ledgerCreated(BKException.Code.OK, lh);
+        } else if (standbyLedgerCreationInProgress) {
+            // The standby ledger creation will complete the rollover
+            waitingForStandbyLedger = true;
+        } else {
             mbean.startDataLedgerCreateOp();
             asyncCreateLedger(bookKeeper, config, digestType, this, Collections.emptyMap());
         }
     }
 
+    private boolean shouldCreateStandbyLedger() {
+        double threshold = config.getStandbyLedgerCreationThreshold();
+        if (threshold <= 0 || standbyLedger != null || standbyLedgerCreationInProgress) {
+            return false;
+        }
+
+        return currentLedgerEntries >= threshold * config.getMaxEntriesPerLedger()
+                || currentLedgerSize >= threshold * config.getMaxSizePerLedgerMb() * MegaByte
+                || clock.millis() - lastLedgerCreatedTimestamp >= threshold * maximumRolloverTimeMs;
+    }
+
+    private void createStandbyLedger() {
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Creating standby ledger, current ledger lh={} entries={} size={}", name,
+                    currentLedger.getId(), currentLedgerEntries, currentLedgerSize);
+        }
+        standbyLedgerCreationInProgress = true;
+        mbean.startDataLedgerCreateOp();
+        asyncCreateLedger(bookKeeper, config, digestType, (rc, lh, ctx) -> {
+            if (checkAndCompleteLedgerOpTask(rc, lh, ctx)) {
+                return;
+            }
+            executor.executeOrdered(name, safeRun(() -> standbyLedgerCreateComplete(rc, lh)));
+        }, Collections.emptyMap());
+    }
+
+    // Called in the managed ledger thread
+    private void standbyLedgerCreateComplete(int rc, LedgerHandle lh) {
+        final State state = STATE_UPDATER.get(this);
+        if (rc != BKException.Code.OK || state == State.Closed || state == State.Fenced
+                || state == State.Terminated) {
+            standbyLedgerReady(rc, lh);
+            return;
+        }
+
+        // Store the standby ledger in the metadata before using it, so that it is not leaked if the broker stops
+        // before switching to it
+        standbyLedgerId = lh.getId();
+        updateLedgersListAfterRollover(new MetaStoreCallback<Void>() {
+            @Override
+            public void operationComplete(Void v, Stat stat) {
+                ledgersStat = stat;
+                ledgersListMutex.unlock();
+                executor.executeOrdered(name, safeRun(() -> standbyLedgerReady(BKException.Code.OK, lh)));
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                ledgersListMutex.unlock();
+                log.warn("[{}] Error storing standby ledger {} in the metadata: {}", name, lh.getId(),
+                        e.getMessage());
+                executor.executeOrdered(name, safeRun(() -> {
+                    standbyLedgerId = -1;
+                    asyncDeleteLedger(lh.getId(), DEFAULT_LEDGER_DELETE_RETRIES);
+                    if (e instanceof BadVersionException) {
+                        standbyLedgerCreationInProgress = false;
+                        waitingForStandbyLedger = false;
+                        mbean.endDataLedgerCreateOp();
+                        STATE_UPDATER.set(ManagedLedgerImpl.this, State.Fenced);
+                        clearPendingAddEntries(e);
+                    } else {
+                        standbyLedgerReady(BKException.Code.ZKException, null);
+                    }
+                }));
+            }
+        });
+    }
+
+    // Called in the managed ledger thread
+    private void standbyLedgerReady(int rc, LedgerHandle lh) {
+        standbyLedgerCreationInProgress = false;
+        if (waitingForStandbyLedger) {
+            waitingForStandbyLedger = false;
+            standbyLedgerId = -1;
+            ledgerCreated(rc, lh);
+            return;
+        }
+
+        mbean.endDataLedgerCreateOp();
+        if (rc != BKException.Code.OK) {
+            // The next ledger will be created on rollover
+            log.warn("[{}] Error creating standby ledger rc={} {}", name, rc, BKException.getMessage(rc));
+            return;
+        }
+
+        final State state = STATE_UPDATER.get(this);
+        if (state == State.Closed || state == State.Fenced || state == State.Terminated) {
+            log.info("[{}] Deleting standby ledger {} created after the managed ledger was {}", name, lh.getId(),
+                    state);
+            standbyLedgerId = -1;
+            asyncDeleteLedger(lh.getId(), DEFAULT_LEDGER_DELETE_RETRIES);
+            return;
+        }
+
+        log.info("[{}] Created standby ledger {}", name, lh.getId());
+        standbyLedger = lh;
+    }
+
+    private void discardStandbyLedger() {
+        if (config.getStandbyLedgerCreationThreshold() <= 0) {
+            return;
+        }
+        // The state was already changed, a standby ledger being created will be deleted once complete
+        executor.executeOrdered(name, safeRun(() -> {
+            waitingForStandbyLedger = false;
+            if (standbyLedger != null) {
+                log.info("[{}] Deleting standby ledger {}", name, standbyLedger.getId());
+                asyncDeleteLedger(standbyLedger.getId(), DEFAULT_LEDGER_DELETE_RETRIES);
+                standbyLedger = null;
+                standbyLedgerId = -1;
+            }
+        }));
+    }
+
+    private static ManagedLedgerException writeRejectedException(State state) {
+        switch (state) {
+        case Fenced:
+            return new ManagedLedgerFencedException();
+        case Terminated:
+            return new ManagedLedgerTerminatedException("Managed ledger was already terminated");
+        default:
+            return new ManagedLedgerAlreadyClosedException("Managed ledger was already closed");
+        }
+    }
+
     void clearPendingAddEntries(ManagedLedgerException e) {
         while (!pendingAddEntries.isEmpty()) {
             OpAddEntry op = pendingAddEntries.poll();
@@ -1417,18 +1673,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
 
             CompletableFuture<ReadHandle> promise = new CompletableFuture<>();
 
-            LedgerInfo info = ledgers.get(ledgerId);
-            CompletableFuture<ReadHandle> openFuture = new CompletableFuture<>();
-            if (info != null && info.hasOffloadContext() && info.getOffloadContext().getComplete()) {
-                UUID uid = new UUID(info.getOffloadContext().getUidMsb(), info.getOffloadContext().getUidLsb());
-                // TODO: improve this to load ledger offloader by driver name recorded in metadata
-                openFuture = config.getLedgerOffloader().readOffloaded(ledgerId, uid,
-                        OffloadUtils.getOffloadDriverMetadata(info));
-            } else {
-                openFuture = bookKeeper.newOpenLedgerOp().withRecovery(!isReadOnly()).withLedgerId(ledgerId)
-                        .withDigestType(config.getDigestType()).withPassword(config.getPassword()).execute();
-            }
-            openFuture.whenCompleteAsync((res, ex) -> {
+            openReadHandle(ledgerId).whenCompleteAsync((res, ex) -> {
                 mbean.endDataLedgerOpenOp();
                 if (ex != null) {
                     ledgerCache.remove(ledgerId, promise);
@@ -1444,6 +1689,19 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         });
     }
 
+    CompletableFuture<ReadHandle> openReadHandle(long ledgerId) {
+        LedgerInfo info = ledgers.get(ledgerId);
+        if (info != null && info.hasOffloadContext() && info.getOffloadContext().getComplete()) {
+            UUID uid = new UUID(info.getOffloadContext().getUidMsb(), info.getOffloadContext().getUidLsb());
+            // TODO: improve this to load ledger offloader by driver name recorded in metadata
+            return config.getLedgerOffloader().readOffloaded(ledgerId, uid,
+                    OffloadUtils.getOffloadDriverMetadata(info));
+        } else {
+            return bookKeeper.newOpenLedgerOp().withRecovery(!isReadOnly()).withLedgerId(ledgerId)
+                    .withDigestType(config.getDigestType()).withPassword(config.getPassword()).execute();
+        }
+    }
+
     void invalidateLedgerHandle(ReadHandle ledgerHandle, Throwable t) {
         long ledgerId = ledgerHandle.getId();
         if (currentLedger != null && ledgerId != currentLedger.getId()) {
@@ -1524,6 +1782,15 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             log.debug("[{}] Reading entries from ledger {} - first={} last={}", name, ledger.getId(), firstEntry,
                     lastEntry);
         }
+
+        // Cursors behind the cache can have their next reads prefetched. Active cursors reading the ledger being
+        // written are served by the entry cache instead.
+        CursorReadAhead readAhead = cursor != null ? cursor.getReadAhead() : null;
+        if (readAhead != null && (ledger.getId() != lastPosition.getLedgerId() || !cursor.isActive())
+                && readAhead.read(ledger, firstEntry, lastEntry, lastEntryInLedger, opReadEntry)) {
+            return;
+        }
+
         asyncReadEntry(ledger, firstEntry, lastEntry, false, opReadEntry, opReadEntry.ctx);
     }
 
@@ -1789,6 +2056,23 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         }
     }
 
+    /**
+     * Notify the waiting cursors of the addition of <code>addedEntry</code>. Each cursor gets its own entry sharing
+     * the data buffer of <code>addedEntry</code>, which it uses without reading it from the cache if it is waiting to read at
+     * this position.
+     */
+    void notifyCursors(EntryImpl addedEntry) {
+        while (true) {
+            final ManagedCursorImpl waitingCursor = waitingCursors.poll();
+            if (waitingCursor == null) {
+                break;
+            }
+
+            final EntryImpl entry = EntryImpl.create(addedEntry);
+            executor.execute(safeRun(() -> waitingCursor.notifyEntryAdded(entry)));
+        }
+    }
+
     private void trimConsumedLedgersInBackground() {
         trimConsumedLedgersInBackground(Futures.NULL_PROMISE);
     }
@@ -1978,8 +2262,12 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             }
 
             // Update metadata
+            boolean deletionsRateLimited = factory.getLedgerDeletionScheduler() != null;
             for (LedgerInfo ls : ledgersToDelete) {
                 ledgerCache.remove(ls.getLedgerId());
+                if (deletionsRateLimited) {
+                    pendingLedgerDeletions.put(ls.getLedgerId(), ls);
+                }
 
                 ledgers.remove(ls.getLedgerId());
                 NUMBER_OF_ENTRIES_UPDATER.addAndGet(this, -ls.getEntries());
@@ -1996,6 +2284,10 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                         config.getLedgerOffloader().getOffloadDriverMetadata());
                 OffloadUtils.setOffloadDriverMetadata(newInfoBuilder, driverName, driverMetadata);
                 ledgers.put(ls.getLedgerId(), newInfoBuilder.build());
+                if (deletionsRateLimited) {
+                    // Only the copy of the ledger in BookKeeper is to be deleted
+                    pendingLedgerDeletions.put(ls.getLedgerId(), ls.toBuilder().clearOffloadContext().build());
+                }
             }
 
             if (log.isDebugEnabled()) {
@@ -2026,6 +2318,12 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                 @Override
                 public void operationFailed(MetaStoreException e) {
                     log.warn("[{}] Failed to update the list of ledgers after trimming", name, e);
+                    for (LedgerInfo ls : ledgersToDelete) {
+                        pendingLedgerDeletions.remove(ls.getLedgerId());
+                    }
+                    for (LedgerInfo ls : offloadedLedgersToDelete) {
+                        pendingLedgerDeletions.remove(ls.getLedgerId());
+                    }
                     ledgersListMutex.unlock();
                     trimmerMutex.unlock();
 
@@ -2074,6 +2372,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         // Delete the managed ledger without closing, since we are not interested in gracefully closing cursors and
         // ledgers
         STATE_UPDATER.set(this, State.Fenced);
+        discardStandbyLedger();
 
         List<ManagedCursor> cursors = Lists.newArrayList(this.cursors);
         if (cursors.isEmpty()) {
@@ -2118,6 +2417,10 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
     }
 
     private void asyncDeleteLedger(long ledgerId, LedgerInfo info) {
+        if (info.getKeyFilterStored()) {
+            removeLedgerKeyFilter(ledgerId);
+        }
+
         if (!info.getOffloadContext().getBookkeeperDeleted()) {
             // only delete if it hasn't been previously deleted for offload
             asyncDeleteLedger(ledgerId, DEFAULT_LEDGER_DELETE_RETRIES);
@@ -2137,9 +2440,19 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             log.warn("[{}] Failed to delete ledger after retries {}", name, ledgerId);
             return;
         }
+        LedgerDeletionScheduler deletionScheduler = factory.getLedgerDeletionScheduler();
+        if (deletionScheduler != null) {
+            deletionScheduler.schedule(() -> deleteLedger(ledgerId, retry));
+        } else {
+            deleteLedger(ledgerId, retry);
+        }
+    }
+
+    private void deleteLedger(long ledgerId, long retry) {
         bookKeeper.asyncDeleteLedger(ledgerId, (rc, ctx) -> {
             if (rc == BKException.Code.NoSuchLedgerExistsException) {
                 log.warn("[{}] Ledger was already deleted {}", name, ledgerId);
+                pendingLedgerDeletionComplete(ledgerId, null);
             } else if (rc != BKException.Code.OK) {
                 log.error("[{}] Error deleting ledger {}", name, ledgerId, BKException.getMessage(rc));
                 scheduledExecutor.schedule(safeRun(() -> {
@@ -2149,13 +2462,90 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                 if (log.isDebugEnabled()) {
                     log.debug("[{}] Deleted ledger {}", name, ledgerId);
                 }
+                pendingLedgerDeletionComplete(ledgerId, null);
             }
         }, null);
     }
 
+    /**
+     * Issue the deletions of the ledgers trimmed in a previous session which were still pending.
+     */
+    private void deletePendingLedgers() {
+        for (LedgerInfo ls : pendingLedgerDeletions.values()) {
+            log.info("[{}] Deleting ledger {} trimmed in a previous session", name, ls.getLedgerId());
+            asyncDeleteLedger(ls.getLedgerId(), ls);
+        }
+    }
+
+    /**
+     * Record that a trimmed ledger was deleted from BookKeeper, or from the offload storage when the uuid of the
+     * offloaded copy is given. The ledger is removed from the metadata once all its copies are deleted.
+     */
+    private void pendingLedgerDeletionComplete(long ledgerId, UUID offloadUuid) {
+        if (!pendingLedgerDeletions.containsKey(ledgerId)) {
+            return;
+        }
+
+        LedgerInfo info = pendingLedgerDeletions.computeIfPresent(ledgerId, (id, ls) -> {
+            LedgerInfo.Builder builder = ls.toBuilder();
+            if (offloadUuid == null) {
+                builder.getOffloadContextBuilder().setBookkeeperDeleted(true);
+            } else if (ls.getOffloadContext().hasUidMsb() && offloadUuid.equals(
+                    new UUID(ls.getOffloadContext().getUidMsb(), ls.getOffloadContext().getUidLsb()))) {
+                builder.getOffloadContextBuilder().clearUidMsb().clearUidLsb();
+            } else {
+                return ls;
+            }
+            OffloadContext context = builder.getOffloadContext();
+            return context.getBookkeeperDeleted() && !context.hasUidMsb() ? null : builder.build();
+        });
+
+        if (info == null && pendingLedgerDeletionsUpdateScheduled.compareAndSet(false, true)) {
+            updatePendingLedgerDeletions();
+        }
+    }
+
+    private void updatePendingLedgerDeletions() {
+        final State state = STATE_UPDATER.get(this);
+        if (state == State.Closed || state == State.Fenced) {
+            // The deletions still in the metadata are issued again when the managed ledger is opened
+            pendingLedgerDeletionsUpdateScheduled.set(false);
+            return;
+        }
+
+        if (!ledgersListMutex.tryLock()) {
+            // Defer update for later
+            scheduledExecutor.schedule(safeRun(this::updatePendingLedgerDeletions), 100, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        pendingLedgerDeletionsUpdateScheduled.set(false);
+        store.asyncUpdateLedgerIds(name, getManagedLedgerInfo(), ledgersStat, new MetaStoreCallback<Void>() {
+            @Override
+            public void operationComplete(Void result, Stat stat) {
+                if (log.isDebugEnabled()) {
+                    log.debug("[{}] Updated the ledgers pending deletion: {}", name, pendingLedgerDeletions.keySet());
+                }
+                ledgersStat = stat;
+                ledgersListMutex.unlock();
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                log.warn("[{}] Failed to update the ledgers pending deletion", name, e);
+                ledgersListMutex.unlock();
+            }
+        });
+    }
+
     @SuppressWarnings("checkstyle:fallthrough")
     private void deleteAllLedgers(DeleteLedgerCallback callback, Object ctx) {
         List<LedgerInfo> ledgers = Lists.newArrayList(ManagedLedgerImpl.this.ledgers.values());
+        // The trimmed ledgers still to be deleted are forgotten once the metadata is removed
+        pendingLedgerDeletions.values().stream()
+                .filter(ls -> !ls.getOffloadContext().getBookkeeperDeleted()
+                        && !ManagedLedgerImpl.this.ledgers.containsKey(ls.getLedgerId()))
+                .forEach(ledgers::add);
         AtomicInteger ledgersToDelete = new AtomicInteger(ledgers.size());
         if (ledgers.isEmpty()) {
             // No ledgers to delete, proceed with deleting metadata
@@ -2199,6 +2589,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             @Override
             public void operationComplete(Void result, Stat stat) {
                 log.info("[{}] Successfully deleted managed ledger", name);
+                closedLedgerKeyFilters.clear();
                 factory.close(ManagedLedgerImpl.this);
                 callback.deleteLedgerComplete(ctx);
             }
@@ -2537,6 +2928,16 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                                                                                        * identify offloader
                                                                                        */
             Map<String, String> offloadDriverMetadata, String cleanupReason) {
+        LedgerDeletionScheduler deletionScheduler = factory.getLedgerDeletionScheduler();
+        if (deletionScheduler != null) {
+            deletionScheduler.schedule(() -> deleteOffloaded(ledgerId, uuid, offloadDriverMetadata, cleanupReason));
+        } else {
+            deleteOffloaded(ledgerId, uuid, offloadDriverMetadata, cleanupReason);
+        }
+    }
+
+    private void deleteOffloaded(long ledgerId, UUID uuid, Map<String, String> offloadDriverMetadata,
+            String cleanupReason) {
         Retries.run(Backoff.exponentialJittered(TimeUnit.SECONDS.toMillis(1), TimeUnit.SECONDS.toHours(1)).limit(10),
                 Retries.NonFatalPredicate,
                 () -> config.getLedgerOffloader().deleteOffloaded(ledgerId, uuid, offloadDriverMetadata),
@@ -2544,10 +2945,54 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                     if (exception != null) {
                         log.warn("Error cleaning up offload for {}, (cleanup reason: {})", ledgerId, cleanupReason,
                                 exception);
+                    } else {
+                        pendingLedgerDeletionComplete(ledgerId, uuid);
                     }
                 });
     }
 
+    /**
+     * Get the range of positions where the newest entry published at or before a timestamp is stored, according to the
+     * publish time index. Like the search by publish time, it assumes that the publish time of the entries doesn't
+     * decrease.
+     *
+     * @return the range from the newest indexed entry published at or before the timestamp, included, to the oldest
+     *         indexed entry published after it, excluded, with no lower or upper bound when there is no such entry
+     */
+    Range<PositionImpl> getPublishTimeRange(long timestamp) {
+        PositionImpl lower = null;
+        PositionImpl upper = null;
+
+        search: for (LedgerInfo li : ledgers.values()) {
+            final long ledgerId = li.getLedgerId();
+            long[][] points = PublishTimeIndex.getPoints(li);
+            if (points == null && publishTimeIndex != null) {
+                points = publishTimeIndex.getPoints(ledgerId);
+            }
+
+            if (points != null) {
+                for (int i = 0; i < points[0].length; i++) {
+                    if (points[1][i] <= timestamp) {
+                        lower = PositionImpl.get(ledgerId, points[0][i]);
+                    } else {
+                        upper = PositionImpl.get(ledgerId, points[0][i]);
+                        break search;
+                    }
+                }
+            }
+        }
+
+        if (lower != null && upper != null) {
+            return Range.closedOpen(lower, upper);
+        } else if (lower != null) {
+            return Range.atLeast(lower);
+        } else if (upper != null) {
+            return Range.lessThan(upper);
+        } else {
+            return Range.all();
+        }
+    }
+
     /**
      * Get the number of entries between a contiguous range of two positions.
      *
@@ -2879,6 +3324,10 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             mlInfo.setTerminatedPosition(NestedPositionInfo.newBuilder().setLedgerId(lastConfirmedEntry.getLedgerId())
                     .setEntryId(lastConfirmedEntry.getEntryId()));
         }
+        if (standbyLedgerId != -1) {
+            mlInfo.setStandbyLedgerId(standbyLedgerId);
+        }
+        mlInfo.addAllPendingDeletionLedgerInfo(pendingLedgerDeletions.values());
 
         return mlInfo.build();
     }
@@ -2960,6 +3409,97 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         return lastConfirmedEntry;
     }
 
+    @Override
+    public boolean ledgerMightContainKey(long ledgerId, String key) {
+        LedgerInfo info = ledgers.get(ledgerId);
+        if (info != null && info.getKeyFilterStored()) {
+            CompletableFuture<BloomFilter<CharSequence>> filterFuture = closedLedgerKeyFilters.get(ledgerId);
+            if (filterFuture == null) {
+                CompletableFuture<BloomFilter<CharSequence>> loadFuture = new CompletableFuture<>();
+                filterFuture = closedLedgerKeyFilters.putIfAbsent(ledgerId, loadFuture);
+                if (filterFuture == null) {
+                    filterFuture = loadFuture;
+                    loadLedgerKeyFilter(ledgerId, loadFuture);
+                }
+            }
+            // The ledger might contain any key until its filter is loaded
+            BloomFilter<CharSequence> filter = filterFuture.getNow(null);
+            return filter == null || filter.mightContain(key);
+        }
+        return ledgerKeyFilter == null || ledgerKeyFilter.mightContain(ledgerId, key);
+    }
+
+    /**
+     * Store the key filter of a ledger being closed, if it holds all the keys of the ledger.
+     */
+    private void storeLedgerKeyFilter(long ledgerId, LedgerInfo.Builder info) {
+        BloomFilter<CharSequence> filter = ledgerKeyFilter.getCompleteFilter(ledgerId);
+        byte[] serializedFilter = filter != null ? LedgerKeyFilter.serialize(filter) : null;
+        if (serializedFilter == null) {
+            return;
+        }
+
+        // A filter which fails to be stored is not found when it is loaded again, which is the same as no filter
+        info.setKeyFilterStored(true);
+        closedLedgerKeyFilters.put(ledgerId, CompletableFuture.completedFuture(filter));
+        store.asyncStoreLedgerKeyFilter(name, ledgerId, serializedFilter, new MetaStoreCallback<Void>() {
+            @Override
+            public void operationComplete(Void result, Stat stat) {
+                if (log.isDebugEnabled()) {
+                    log.debug("[{}] Stored key filter of ledger {} ({} bytes)", name, ledgerId,
+                            serializedFilter.length);
+                }
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                log.warn("[{}] Failed to store the key filter of ledger {}", name, ledgerId, e);
+            }
+        });
+    }
+
+    private void loadLedgerKeyFilter(long ledgerId, CompletableFuture<BloomFilter<CharSequence>> future) {
+        store.asyncGetLedgerKeyFilter(name, ledgerId, new MetaStoreCallback<byte[]>() {
+            @Override
+            public void operationComplete(byte[] result, Stat stat) {
+                try {
+                    future.complete(LedgerKeyFilter.deserialize(result));
+                } catch (IOException e) {
+                    log.warn("[{}] Invalid key filter for ledger {}: {}", name, ledgerId, e.getMessage());
+                    future.complete(null);
+                }
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                if (!(e instanceof MetadataNotFoundException)) {
+                    // Load the filter again on the next lookup
+                    log.warn("[{}] Failed to load the key filter of ledger {}", name, ledgerId, e);
+                    closedLedgerKeyFilters.remove(ledgerId, future);
+                }
+                future.complete(null);
+            }
+        });
+    }
+
+    private void removeLedgerKeyFilter(long ledgerId) {
+        closedLedgerKeyFilters.remove(ledgerId);
+        store.asyncRemoveLedgerKeyFilter(name, ledgerId, new MetaStoreCallback<Void>() {
+            @Override
+            public void operationComplete(Void result, Stat stat) {
+                if (log.isDebugEnabled()) {
+                    log.debug("[{}] Removed key filter of ledger {}", name, ledgerId);
+                }
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                // The filter is removed anyway with the managed ledger
+                log.warn("[{}] Failed to remove the key filter of ledger {}", name, ledgerId, e);
+            }
+        });
+    }
+
     public String getState() {
         return STATE_UPDATER.get(this).toString();
     }
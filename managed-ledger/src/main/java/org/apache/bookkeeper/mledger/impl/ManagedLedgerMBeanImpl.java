@@ -39,6 +39,12 @@ public class ManagedLedgerMBeanImpl implements ManagedLedgerMXBean {
     private final Rate readEntriesOps = new Rate();
     private final Rate readEntriesOpsFailed = new Rate();
     private final Rate markDeleteOps = new Rate();
+    private final Rate readAheadEntries = new Rate();
+    private final Rate readAheadHits = new Rate();
+    private final Rate readAheadDiscarded = new Rate();
+    private final Rate coalescedReads = new Rate();
+    private final Rate coalescedMarkDeletes = new Rate();
+    private final Rate tailReadFanOutEntries = new Rate();
 
     private final LongAdder dataLedgerOpenOp = new LongAdder();
     private final LongAdder dataLedgerCloseOp = new LongAdder();
@@ -51,6 +57,7 @@ public class ManagedLedgerMBeanImpl implements ManagedLedgerMXBean {
 
     private final StatsBuckets addEntryLatencyStatsUsec = new StatsBuckets(ENTRY_LATENCY_BUCKETS_USEC);
     private final StatsBuckets ledgerSwitchLatencyStatsUsec = new StatsBuckets(ENTRY_LATENCY_BUCKETS_USEC);
+    private final StatsBuckets ledgerRolloverStallLatencyStatsUsec = new StatsBuckets(ENTRY_LATENCY_BUCKETS_USEC);
     private final StatsBuckets entryStats = new StatsBuckets(ENTRY_SIZE_BUCKETS_BYTES);
 
     public ManagedLedgerMBeanImpl(ManagedLedgerImpl managedLedger) {
@@ -64,9 +71,16 @@ public class ManagedLedgerMBeanImpl implements ManagedLedgerMXBean {
         readEntriesOps.calculateRate(seconds);
         readEntriesOpsFailed.calculateRate(seconds);
         markDeleteOps.calculateRate(seconds);
+        readAheadEntries.calculateRate(seconds);
+        readAheadHits.calculateRate(seconds);
+        readAheadDiscarded.calculateRate(seconds);
+        coalescedReads.calculateRate(seconds);
+        coalescedMarkDeletes.calculateRate(seconds);
+        tailReadFanOutEntries.calculateRate(seconds);
 
         addEntryLatencyStatsUsec.refresh();
         ledgerSwitchLatencyStatsUsec.refresh();
+        ledgerRolloverStallLatencyStatsUsec.refresh();
         entryStats.refresh();
     }
 
@@ -95,10 +109,38 @@ public class ManagedLedgerMBeanImpl implements ManagedLedgerMXBean {
         ledgerSwitchLatencyStatsUsec.addValue(unit.toMicros(latency));
     }
 
+    public void addLedgerRolloverStallSample(long latency, TimeUnit unit) {
+        ledgerRolloverStallLatencyStatsUsec.addValue(unit.toMicros(latency));
+    }
+
     public void addReadEntriesSample(int count, long totalSize) {
         readEntriesOps.recordMultipleEvents(count, totalSize);
     }
 
+    public void recordReadAheadEntries(int count) {
+        readAheadEntries.recordMultipleEvents(count, 0);
+    }
+
+    public void recordReadAheadHits(int count) {
+        readAheadHits.recordMultipleEvents(count, 0);
+    }
+
+    public void recordReadAheadDiscarded(int count) {
+        readAheadDiscarded.recordMultipleEvents(count, 0);
+    }
+
+    public void recordCoalescedReads(int count) {
+        coalescedReads.recordMultipleEvents(count, 0);
+    }
+
+    public void recordCoalescedMarkDeletes(int count) {
+        coalescedMarkDeletes.recordMultipleEvents(count, 0);
+    }
+
+    public void recordTailReadFanOutEntry() {
+        tailReadFanOutEntries.recordEvent();
+    }
+
     public void startDataLedgerOpenOp() {
         dataLedgerOpenOp.increment();
     }
@@ -213,6 +255,36 @@ public class ManagedLedgerMBeanImpl implements ManagedLedgerMXBean {
         return markDeleteOps.getRate();
     }
 
+    @Override
+    public double getReadAheadEntriesRate() {
+        return readAheadEntries.getRate();
+    }
+
+    @Override
+    public double getReadAheadHitsRate() {
+        return readAheadHits.getRate();
+    }
+
+    @Override
+    public double getReadAheadDiscardedRate() {
+        return readAheadDiscarded.getRate();
+    }
+
+    @Override
+    public double getCoalescedReadsRate() {
+        return coalescedReads.getRate();
+    }
+
+    @Override
+    public double getCoalescedMarkDeleteRate() {
+        return coalescedMarkDeletes.getRate();
+    }
+
+    @Override
+    public double getTailReadFanOutRate() {
+        return tailReadFanOutEntries.getRate();
+    }
+
     @Override
     public double getEntrySizeAverage() {
         return entryStats.getAvg();
@@ -253,6 +325,16 @@ public class ManagedLedgerMBeanImpl implements ManagedLedgerMXBean {
         return ledgerSwitchLatencyStatsUsec.getAvg();
     }
 
+    @Override
+    public long[] getLedgerRolloverStallLatencyBuckets() {
+        return ledgerRolloverStallLatencyStatsUsec.getBuckets();
+    }
+
+    @Override
+    public double getLedgerRolloverStallLatencyAverageUsec() {
+        return ledgerRolloverStallLatencyStatsUsec.getAvg();
+    }
+
     @Override
     public long getStoredMessagesSize() {
         return managedLedger.getTotalSize() * managedLedger.getConfig().getWriteQuorumSize();
@@ -119,7 +119,8 @@ public interface MetaStore {
     void asyncRemoveCursor(String ledgerName, String cursorName, MetaStoreCallback<Void> callback);
 
     /**
-     * Drop the persistent state for the ManagedLedger and all its associated consumers.
+     * Drop the persistent state for the ManagedLedger, all its associated consumers and the key filters of its
+     * ledgers.
      *
      * @param ledgerName
      *            the name of the ManagedLedger
@@ -128,6 +129,50 @@ public interface MetaStore {
      */
     void removeManagedLedger(String ledgerName, MetaStoreCallback<Void> callback);
 
+    /**
+     * Get the serialized key bloom filter of a ledger.
+     *
+     * <p/>The filters are kept apart from the managed ledger info, so that they do not grow it. The operation fails
+     * with a {@link org.apache.bookkeeper.mledger.ManagedLedgerException.MetadataNotFoundException} if the ledger has
+     * no stored filter.
+     *
+     * @param ledgerName
+     *            the name of the ManagedLedger
+     * @param ledgerId
+     *            the id of the ledger
+     * @param callback
+     *            callback object
+     */
+    void asyncGetLedgerKeyFilter(String ledgerName, long ledgerId, MetaStoreCallback<byte[]> callback);
+
+    /**
+     * Store the serialized key bloom filter of a ledger, replacing the previous one if any.
+     *
+     * @param ledgerName
+     *            the name of the ManagedLedger
+     * @param ledgerId
+     *            the id of the ledger
+     * @param filter
+     *            the serialized filter
+     * @param callback
+     *            callback object
+     */
+    void asyncStoreLedgerKeyFilter(String ledgerName, long ledgerId, byte[] filter, MetaStoreCallback<Void> callback);
+
+    /**
+     * Drop the key bloom filter of a ledger. Removing a filter which does not exist is not an error.
+     *
+     * <p/>The remaining filters of a ManagedLedger are dropped with it by {@link #removeManagedLedger}.
+     *
+     * @param ledgerName
+     *            the name of the ManagedLedger
+     * @param ledgerId
+     *            the id of the ledger
+     * @param callback
+     *            callback object
+     */
+    void asyncRemoveLedgerKeyFilter(String ledgerName, long ledgerId, MetaStoreCallback<Void> callback);
+
     /**
      * Get a list of all the managed ledgers in the system.
      *
@@ -135,4 +180,10 @@ public interface MetaStore {
      * @throws MetaStoreException
      */
     Iterable<String> getManagedLedgers() throws MetaStoreException;
+
+    /**
+     * Release the resources held by the metadata store.
+     */
+    default void close() throws MetaStoreException {
+    }
 }
@@ -0,0 +1,427 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.apache.bookkeeper.mledger.util.SafeRun.safeRun;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.bookkeeper.common.util.OrderedExecutor;
+import org.apache.bookkeeper.mledger.ManagedLedgerException.BadVersionException;
+import org.apache.bookkeeper.mledger.ManagedLedgerException.MetaStoreException;
+import org.apache.bookkeeper.mledger.ManagedLedgerException.MetadataNotFoundException;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedCursorInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metadata store keeping the managed ledgers, cursors and ledger key filters info in a local RocksDB database.
+ *
+ * <p/>The metadata is only visible to the process owning the database, so this store is meant for standalone and test
+ * deployments. Each value is prefixed with its version and timestamps, and the operations on a managed ledger and its
+ * cursors are executed in order on the managed ledger thread, which makes the version checks atomic.
+ */
+public class MetaStoreImplRocksDb implements MetaStore {
+
+    private static final byte LEDGER_PREFIX = 'L';
+    private static final byte CURSOR_PREFIX = 'C';
+    private static final byte NAME_SEPARATOR = 0;
+    private static final byte KEY_FILTER_PREFIX = 'F';
+
+    // version (int) + creation timestamp (long) + modification timestamp (long)
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+
+    private final RocksDB db;
+    private final WriteOptions writeOptions;
+    private final OrderedExecutor executor;
+
+    // Prevents the database from being closed while an operation is using it
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed = false;
+
+    private static class RocksDbStat implements Stat {
+        private final int version;
+        private final long creationTimestamp;
+        private final long modificationTimestamp;
+
+        RocksDbStat(int version, long creationTimestamp, long modificationTimestamp) {
+            this.version = version;
+            this.creationTimestamp = creationTimestamp;
+            this.modificationTimestamp = modificationTimestamp;
+        }
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public long getCreationTimestamp() {
+            return creationTimestamp;
+        }
+
+        @Override
+        public long getModificationTimestamp() {
+            return modificationTimestamp;
+        }
+    }
+
+    private static class Node {
+        final RocksDbStat stat;
+        final byte[] data;
+
+        Node(RocksDbStat stat, byte[] data) {
+            this.stat = stat;
+            this.data = data;
+        }
+    }
+
+    @FunctionalInterface
+    private interface StoreOperation<T> {
+        void run(MetaStoreCallback<T> callback) throws RocksDBException, MetaStoreException;
+    }
+
+    /**
+     * @param syncWrites
+     *            whether each update is synced to disk before completing. Otherwise the updates survive a crash of the
+     *            process, but the last ones can be lost if the machine crashes
+     */
+    public MetaStoreImplRocksDb(String directory, boolean syncWrites, OrderedExecutor executor)
+            throws MetaStoreException {
+        RocksDB.loadLibrary();
+        try (Options options = new Options().setCreateIfMissing(true)) {
+            this.db = RocksDB.open(options, directory);
+        } catch (RocksDBException e) {
+            throw new MetaStoreException(e);
+        }
+        this.writeOptions = new WriteOptions().setSync(syncWrites);
+        this.executor = executor;
+        log.info("Storing managed ledgers metadata in RocksDB database {}", directory);
+    }
+
+    @Override
+    public void getManagedLedgerInfo(String ledgerName, boolean createIfMissing,
+            MetaStoreCallback<ManagedLedgerInfo> callback) {
+        execute(ledgerName, callback, cb -> {
+            byte[] key = ledgerKey(ledgerName);
+            Node node = get(key);
+            if (node != null) {
+                cb.operationComplete(parse(() -> ManagedLedgerInfo.parseFrom(node.data)), node.stat);
+            } else if (createIfMissing) {
+                log.info("Creating managed ledger metadata for {}", ledgerName);
+                cb.operationComplete(ManagedLedgerInfo.getDefaultInstance(), put(key, null, new byte[0]));
+            } else {
+                cb.operationFailed(new MetadataNotFoundException(notFound(ledgerName)));
+            }
+        });
+    }
+
+    @Override
+    public void asyncUpdateLedgerIds(String ledgerName, ManagedLedgerInfo mlInfo, Stat stat,
+            MetaStoreCallback<Void> callback) {
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Updating metadata version={} with content={}", ledgerName, stat.getVersion(), mlInfo);
+        }
+        execute(ledgerName, callback, cb -> {
+            byte[] key = ledgerKey(ledgerName);
+            cb.operationComplete(null, put(key, checkVersion(ledgerName, get(key), stat), mlInfo.toByteArray()));
+        });
+    }
+
+    @Override
+    public void getCursors(String ledgerName, MetaStoreCallback<List<String>> callback) {
+        execute(ledgerName, callback, cb -> {
+            byte[] prefix = cursorKey(ledgerName, "");
+            List<String> cursors = Lists.newArrayList();
+            try (RocksIterator iterator = db.newIterator()) {
+                for (iterator.seek(prefix); iterator.isValid() && startsWith(iterator.key(), prefix);
+                        iterator.next()) {
+                    byte[] key = iterator.key();
+                    cursors.add(new String(key, prefix.length, key.length - prefix.length, Charsets.UTF_8));
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] Get cursors list: {}", ledgerName, cursors);
+            }
+            cb.operationComplete(cursors, null);
+        });
+    }
+
+    @Override
+    public void asyncGetCursorInfo(String ledgerName, String cursorName,
+            MetaStoreCallback<ManagedCursorInfo> callback) {
+        execute(ledgerName, callback, cb -> {
+            Node node = get(cursorKey(ledgerName, cursorName));
+            if (node == null) {
+                cb.operationFailed(new MetadataNotFoundException(notFound(ledgerName + "/" + cursorName)));
+            } else {
+                cb.operationComplete(parse(() -> ManagedCursorInfo.parseFrom(node.data)), node.stat);
+            }
+        });
+    }
+
+    @Override
+    public void asyncUpdateCursorInfo(String ledgerName, String cursorName, ManagedCursorInfo info, Stat stat,
+            MetaStoreCallback<Void> callback) {
+        log.info("[{}] [{}] Updating cursor info ledgerId={} mark-delete={}:{}", ledgerName, cursorName,
+                info.getCursorsLedgerId(), info.getMarkDeleteLedgerId(), info.getMarkDeleteEntryId());
+        execute(ledgerName, callback, cb -> {
+            byte[] key = cursorKey(ledgerName, cursorName);
+            Node node = get(key);
+            if (stat == null && node != null) {
+                cb.operationFailed(new MetaStoreException(
+                        new IllegalStateException("Cursor " + ledgerName + "/" + cursorName + " already exists")));
+                return;
+            }
+            cb.operationComplete(null, put(key, stat == null ? null : checkVersion(cursorName, node, stat),
+                    info.toByteArray()));
+        });
+    }
+
+    @Override
+    public void asyncRemoveCursor(String ledgerName, String cursorName, MetaStoreCallback<Void> callback) {
+        log.info("[{}] Remove consumer={}", ledgerName, cursorName);
+        execute(ledgerName, callback, cb -> cb.operationComplete(null, delete(cursorKey(ledgerName, cursorName),
+                ledgerName + "/" + cursorName)));
+    }
+
+    @Override
+    public void removeManagedLedger(String ledgerName, MetaStoreCallback<Void> callback) {
+        log.info("[{}] Remove ManagedLedger", ledgerName);
+        execute(ledgerName, callback, cb -> {
+            RocksDbStat stat = delete(ledgerKey(ledgerName), ledgerName);
+            byte[] prefix = keyFilterKeyPrefix(ledgerName);
+            try (RocksIterator iterator = db.newIterator()) {
+                for (iterator.seek(prefix); iterator.isValid() && startsWith(iterator.key(), prefix);
+                        iterator.next()) {
+                    db.delete(writeOptions, iterator.key());
+                }
+            }
+            cb.operationComplete(null, stat);
+        });
+    }
+
+    @Override
+    public void asyncGetLedgerKeyFilter(String ledgerName, long ledgerId, MetaStoreCallback<byte[]> callback) {
+        execute(ledgerName, callback, cb -> {
+            Node node = get(keyFilterKey(ledgerName, ledgerId));
+            if (node == null) {
+                cb.operationFailed(new MetadataNotFoundException(notFound(ledgerName + "/" + ledgerId)));
+            } else {
+                cb.operationComplete(node.data, node.stat);
+            }
+        });
+    }
+
+    @Override
+    public void asyncStoreLedgerKeyFilter(String ledgerName, long ledgerId, byte[] filter,
+            MetaStoreCallback<Void> callback) {
+        execute(ledgerName, callback, cb -> {
+            byte[] key = keyFilterKey(ledgerName, ledgerId);
+            Node node = get(key);
+            cb.operationComplete(null, put(key, node == null ? null : node.stat, filter));
+        });
+    }
+
+    @Override
+    public void asyncRemoveLedgerKeyFilter(String ledgerName, long ledgerId, MetaStoreCallback<Void> callback) {
+        execute(ledgerName, callback, cb -> {
+            db.delete(writeOptions, keyFilterKey(ledgerName, ledgerId));
+            cb.operationComplete(null, null);
+        });
+    }
+
+    @Override
+    public Iterable<String> getManagedLedgers() throws MetaStoreException {
+        closeLock.readLock().lock();
+        try {
+            checkNotClosed();
+            List<String> ledgers = Lists.newArrayList();
+            try (RocksIterator iterator = db.newIterator()) {
+                for (iterator.seek(new byte[] { LEDGER_PREFIX });
+                        iterator.isValid() && iterator.key()[0] == LEDGER_PREFIX; iterator.next()) {
+                    byte[] key = iterator.key();
+                    ledgers.add(new String(key, 1, key.length - 1, Charsets.UTF_8));
+                }
+            }
+            return ledgers;
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                writeOptions.close();
+                db.close();
+            }
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+    }
+
+    private <T> void execute(String ledgerName, MetaStoreCallback<T> callback, StoreOperation<T> operation) {
+        executor.executeOrdered(ledgerName, safeRun(() -> {
+            closeLock.readLock().lock();
+            try {
+                checkNotClosed();
+                operation.run(callback);
+            } catch (MetaStoreException e) {
+                callback.operationFailed(e);
+            } catch (RocksDBException e) {
+                log.warn("[{}] Metadata store operation failed: {}", ledgerName, e.getMessage());
+                callback.operationFailed(new MetaStoreException(e));
+            } finally {
+                closeLock.readLock().unlock();
+            }
+        }));
+    }
+
+    private void checkNotClosed() throws MetaStoreException {
+        if (closed) {
+            throw new MetaStoreException(new IllegalStateException("Metadata store is closed"));
+        }
+    }
+
+    private Node get(byte[] key) throws RocksDBException {
+        byte[] value = db.get(key);
+        if (value == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        RocksDbStat stat = new RocksDbStat(buffer.getInt(), buffer.getLong(), buffer.getLong());
+        return new Node(stat, Arrays.copyOfRange(value, HEADER_SIZE, value.length));
+    }
+
+    /**
+     * Write the data of a node and return its new stat.
+     *
+     * @param previous
+     *            the current stat of the node, or null if the node is being created
+     */
+    private RocksDbStat put(byte[] key, RocksDbStat previous, byte[] data) throws RocksDBException {
+        long now = System.currentTimeMillis();
+        RocksDbStat stat = previous == null ? new RocksDbStat(0, now, now)
+                : new RocksDbStat(previous.version + 1, previous.creationTimestamp, now);
+        ByteBuffer value = ByteBuffer.allocate(HEADER_SIZE + data.length);
+        value.putInt(stat.version).putLong(stat.creationTimestamp).putLong(stat.modificationTimestamp).put(data);
+        db.put(writeOptions, key, value.array());
+        return stat;
+    }
+
+    private RocksDbStat delete(byte[] key, String name) throws RocksDBException, MetaStoreException {
+        if (db.get(key) == null) {
+            throw new MetadataNotFoundException(notFound(name));
+        }
+        db.delete(writeOptions, key);
+        return null;
+    }
+
+    private static RocksDbStat checkVersion(String name, Node node, Stat expected) throws MetaStoreException {
+        if (node == null) {
+            throw new MetadataNotFoundException(notFound(name));
+        }
+        if (node.stat.version != expected.getVersion()) {
+            throw new BadVersionException(new IllegalStateException("Metadata of " + name + " is at version "
+                    + node.stat.version + " instead of " + expected.getVersion()));
+        }
+        return node.stat;
+    }
+
+    @FunctionalInterface
+    private interface Parser<T> {
+        T parse() throws InvalidProtocolBufferException;
+    }
+
+    private static <T> T parse(Parser<T> parser) throws MetaStoreException {
+        try {
+            return parser.parse();
+        } catch (InvalidProtocolBufferException e) {
+            throw new MetaStoreException(e);
+        }
+    }
+
+    private static NoSuchElementException notFound(String name) {
+        return new NoSuchElementException("Metadata of " + name + " not found");
+    }
+
+    private static byte[] ledgerKey(String ledgerName) {
+        byte[] name = ledgerName.getBytes(Charsets.UTF_8);
+        byte[] key = new byte[name.length + 1];
+        key[0] = LEDGER_PREFIX;
+        System.arraycopy(name, 0, key, 1, name.length);
+        return key;
+    }
+
+    private static byte[] cursorKey(String ledgerName, String cursorName) {
+        byte[] ledger = ledgerName.getBytes(Charsets.UTF_8);
+        byte[] cursor = cursorName.getBytes(Charsets.UTF_8);
+        byte[] key = new byte[ledger.length + cursor.length + 2];
+        key[0] = CURSOR_PREFIX;
+        System.arraycopy(ledger, 0, key, 1, ledger.length);
+        key[ledger.length + 1] = NAME_SEPARATOR;
+        System.arraycopy(cursor, 0, key, ledger.length + 2, cursor.length);
+        return key;
+    }
+
+    private static byte[] keyFilterKeyPrefix(String ledgerName) {
+        byte[] ledger = ledgerName.getBytes(Charsets.UTF_8);
+        byte[] key = new byte[ledger.length + 2];
+        key[0] = KEY_FILTER_PREFIX;
+        System.arraycopy(ledger, 0, key, 1, ledger.length);
+        key[ledger.length + 1] = NAME_SEPARATOR;
+        return key;
+    }
+
+    private static byte[] keyFilterKey(String ledgerName, long ledgerId) {
+        byte[] prefix = keyFilterKeyPrefix(ledgerName);
+        return ByteBuffer.allocate(prefix.length + 8).put(prefix).putLong(ledgerId).array();
+    }
+
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(MetaStoreImplRocksDb.class);
+}
@@ -30,14 +30,17 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import org.apache.bookkeeper.common.util.OrderedExecutor;
+import org.apache.bookkeeper.util.ZkUtils;
 import org.apache.bookkeeper.mledger.ManagedLedgerException;
 import org.apache.bookkeeper.mledger.ManagedLedgerException.BadVersionException;
 import org.apache.bookkeeper.mledger.ManagedLedgerException.MetaStoreException;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedCursorInfo;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
 import org.apache.zookeeper.AsyncCallback.StringCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
@@ -57,8 +60,12 @@ public class MetaStoreImplZookeeper implements MetaStore {
     private static final String prefixName = "/managed-ledgers";
     private static final String prefix = prefixName + "/";
 
+    // The key filters of the ledgers are not stored under the managed ledger node, since its children are the cursors
+    private static final String keyFiltersPrefix = "/managed-ledger-key-filters/";
+
     private final ZooKeeper zk;
     private final OrderedExecutor executor;
+    private final MetaStoreZookeeperBatcher batcher;
 
     private static class ZKStat implements Stat {
         private final int version;
@@ -95,8 +102,13 @@ public class MetaStoreImplZookeeper implements MetaStore {
 
     public MetaStoreImplZookeeper(ZooKeeper zk, OrderedExecutor executor)
             throws Exception {
+        this(zk, executor, null);
+    }
+
+    MetaStoreImplZookeeper(ZooKeeper zk, OrderedExecutor executor, MetaStoreZookeeperBatcher batcher) {
         this.zk = zk;
         this.executor = executor;
+        this.batcher = batcher;
     }
 
     //
@@ -118,11 +130,8 @@ public class MetaStoreImplZookeeper implements MetaStore {
                 infoList.add(ledgerInfo);
             }
         }
-        ManagedLedgerInfo.Builder mlInfo = ManagedLedgerInfo.newBuilder();
+        ManagedLedgerInfo.Builder mlInfo = info.toBuilder().clearLedgerInfo();
         mlInfo.addAllLedgerInfo(infoList);
-        if (info.hasTerminatedPosition()) {
-            mlInfo.setTerminatedPosition(info.getTerminatedPosition());
-        }
         return mlInfo.build();
     }
 
@@ -182,7 +191,7 @@ public class MetaStoreImplZookeeper implements MetaStore {
 
         byte[] serializedMlInfo = mlInfo.toByteArray(); // Binary format
 
-        zk.setData(prefix + ledgerName, serializedMlInfo, zkStat.getVersion(),
+        setData(prefix + ledgerName, serializedMlInfo, zkStat.getVersion(),
                 (rc, path, zkCtx, stat1) -> executor.executeOrdered(ledgerName, safeRun(() -> {
                     if (log.isDebugEnabled()) {
                         log.debug("[{}] UpdateLedgersIdsCallback.processResult rc={} newVersion={}", ledgerName,
@@ -199,7 +208,7 @@ public class MetaStoreImplZookeeper implements MetaStore {
                     } else {
                         callback.operationComplete(null, new ZKStat(stat1));
                     }
-                })), null);
+                })));
     }
 
     @Override
@@ -282,7 +291,7 @@ public class MetaStoreImplZookeeper implements MetaStore {
             if (log.isDebugEnabled()) {
                 log.debug("[{}] Updating consumer {} on meta-data store with {}", ledgerName, cursorName, info);
             }
-            zk.setData(path, content, zkStat.getVersion(),
+            setData(path, content, zkStat.getVersion(),
                     (rc, path1, ctx, stat1) -> executor.executeOrdered(ledgerName, safeRun(() -> {
                 if (rc == Code.BADVERSION.intValue()) {
                     callback.operationFailed(new BadVersionException(KeeperException.create(Code.get(rc))));
@@ -291,7 +300,7 @@ public class MetaStoreImplZookeeper implements MetaStore {
                 } else {
                     callback.operationComplete(null, new ZKStat(stat1));
                 }
-            })), null);
+            })));
         }
     }
 
@@ -320,6 +329,7 @@ public class MetaStoreImplZookeeper implements MetaStore {
                 log.debug("[{}] zk delete done. rc={}", ledgerName, Code.get(rc));
             }
             if (rc == Code.OK.intValue()) {
+                removeLedgerKeyFilters(ledgerName);
                 callback.operationComplete(null, null);
             } else {
                 callback.operationFailed(new MetaStoreException(KeeperException.create(Code.get(rc))));
@@ -327,6 +337,97 @@ public class MetaStoreImplZookeeper implements MetaStore {
         })), null);
     }
 
+    @Override
+    public void asyncGetLedgerKeyFilter(String ledgerName, long ledgerId, MetaStoreCallback<byte[]> callback) {
+        zk.getData(keyFiltersPrefix + ledgerName + "/" + ledgerId, false,
+                (rc, path, ctx, data, stat) -> executor.executeOrdered(ledgerName, safeRun(() -> {
+            if (rc == Code.OK.intValue()) {
+                callback.operationComplete(data, new ZKStat(stat));
+            } else if (rc == Code.NONODE.intValue()) {
+                callback.operationFailed(new ManagedLedgerException.MetadataNotFoundException(
+                        KeeperException.create(Code.get(rc))));
+            } else {
+                callback.operationFailed(new MetaStoreException(KeeperException.create(Code.get(rc))));
+            }
+        })), null);
+    }
+
+    @Override
+    public void asyncStoreLedgerKeyFilter(String ledgerName, long ledgerId, byte[] filter,
+            MetaStoreCallback<Void> callback) {
+        String path = keyFiltersPrefix + ledgerName + "/" + ledgerId;
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Storing key filter of ledger {} ({} bytes)", ledgerName, ledgerId, filter.length);
+        }
+        ZkUtils.asyncCreateFullPathOptimistic(zk, path, filter, Acl, CreateMode.PERSISTENT,
+                (rc, path1, ctx, name) -> executor.executeOrdered(ledgerName, safeRun(() -> {
+            if (rc == Code.OK.intValue()) {
+                callback.operationComplete(null, new ZKStat());
+            } else if (rc == Code.NODEEXISTS.intValue()) {
+                zk.setData(path, filter, -1, (rc1, path2, ctx1, stat) -> executor.executeOrdered(ledgerName,
+                        safeRun(() -> {
+                    if (rc1 == Code.OK.intValue()) {
+                        callback.operationComplete(null, new ZKStat(stat));
+                    } else {
+                        callback.operationFailed(new MetaStoreException(KeeperException.create(Code.get(rc1))));
+                    }
+                })), null);
+            } else {
+                callback.operationFailed(new MetaStoreException(KeeperException.create(Code.get(rc))));
+            }
+        })), null);
+    }
+
+    @Override
+    public void asyncRemoveLedgerKeyFilter(String ledgerName, long ledgerId, MetaStoreCallback<Void> callback) {
+        zk.delete(keyFiltersPrefix + ledgerName + "/" + ledgerId, -1,
+                (rc, path, ctx) -> executor.executeOrdered(ledgerName, safeRun(() -> {
+            if (rc == Code.OK.intValue() || rc == Code.NONODE.intValue()) {
+                callback.operationComplete(null, null);
+            } else {
+                callback.operationFailed(new MetaStoreException(KeeperException.create(Code.get(rc))));
+            }
+        })), null);
+    }
+
+    /**
+     * Best-effort removal of the key filters left by a deleted managed ledger.
+     */
+    private void removeLedgerKeyFilters(String ledgerName) {
+        String path = keyFiltersPrefix + ledgerName;
+        zk.getChildren(path, false, (rc, path1, ctx, children) -> {
+            if (rc != Code.OK.intValue()) {
+                if (rc != Code.NONODE.intValue()) {
+                    log.warn("[{}] Failed to list the key filters to remove: {}", ledgerName, Code.get(rc));
+                }
+                return;
+            }
+
+            Runnable removeLedgerNode = () -> zk.delete(path, -1, (rc1, path2, ctx1) -> {
+                if (rc1 != Code.OK.intValue() && rc1 != Code.NONODE.intValue()) {
+                    log.warn("[{}] Failed to remove the key filters node: {}", ledgerName, Code.get(rc1));
+                }
+            }, null);
+            if (children.isEmpty()) {
+                removeLedgerNode.run();
+                return;
+            }
+
+            AtomicInteger remaining = new AtomicInteger(children.size());
+            for (String child : children) {
+                zk.delete(path + "/" + child, -1, (rc1, path2, ctx1) -> {
+                    if (rc1 != Code.OK.intValue() && rc1 != Code.NONODE.intValue()) {
+                        log.warn("[{}] Failed to remove the key filter of ledger {}: {}", ledgerName, child,
+                                Code.get(rc1));
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        removeLedgerNode.run();
+                    }
+                }, null);
+            }
+        }, null);
+    }
+
     @Override
     public Iterable<String> getManagedLedgers() throws MetaStoreException {
         try {
@@ -336,6 +437,14 @@ public class MetaStoreImplZookeeper implements MetaStore {
         }
     }
 
+    private void setData(String path, byte[] data, int version, StatCallback callback) {
+        if (batcher != null) {
+            batcher.setData(path, data, version, callback);
+        } else {
+            zk.setData(path, data, version, callback, null);
+        }
+    }
+
     private ManagedLedgerInfo parseManagedLedgerInfo(byte[] data)
             throws ParseException, InvalidProtocolBufferException {
         // First try binary format, then fallback to text
@@ -0,0 +1,195 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.apache.bookkeeper.mledger.util.SafeRun.safeRun;
+
+import com.google.common.collect.Lists;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.OpResult.ErrorResult;
+import org.apache.zookeeper.OpResult.SetDataResult;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups the metadata updates of the managed ledgers and cursors into ZooKeeper multi transactions.
+ *
+ * <p/>Updates are queued until the batch reaches the max number of operations or the max size, or until the oldest
+ * update has waited for the max delay. A multi transaction is atomic: when one of its updates fails, the callback of
+ * this update gets the error and the other updates, which were not applied, are sent again in a new transaction.
+ */
+class MetaStoreZookeeperBatcher {
+
+    private static class PendingUpdate {
+        final String path;
+        final byte[] data;
+        final int version;
+        final StatCallback callback;
+        final long enqueueTimeNanos;
+
+        PendingUpdate(String path, byte[] data, int version, StatCallback callback) {
+            this.path = path;
+            this.data = data;
+            this.version = version;
+            this.callback = callback;
+            this.enqueueTimeNanos = System.nanoTime();
+        }
+    }
+
+    private final ZooKeeper zk;
+    private final ScheduledExecutorService scheduler;
+    private final ManagedLedgerFactoryMBeanImpl mbean;
+    private final int maxOperations;
+    private final int maxSizeBytes;
+    private final long maxDelayMillis;
+
+    // Guarded by this
+    private final ArrayDeque<PendingUpdate> pendingUpdates = new ArrayDeque<>();
+    private int pendingSizeBytes = 0;
+    private ScheduledFuture<?> flushTask = null;
+
+    MetaStoreZookeeperBatcher(ZooKeeper zk, ScheduledExecutorService scheduler, ManagedLedgerFactoryMBeanImpl mbean,
+            int maxOperations, int maxSizeBytes, long maxDelayMillis) {
+        this.zk = zk;
+        this.scheduler = scheduler;
+        this.mbean = mbean;
+        this.maxOperations = maxOperations;
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    void setData(String path, byte[] data, int version, StatCallback callback) {
+        boolean flushNow = false;
+        synchronized (this) {
+            pendingUpdates.add(new PendingUpdate(path, data, version, callback));
+            pendingSizeBytes += data.length;
+
+            if (pendingUpdates.size() >= maxOperations || pendingSizeBytes >= maxSizeBytes || maxDelayMillis <= 0) {
+                flushNow = true;
+            } else if (flushTask == null) {
+                try {
+                    flushTask = scheduler.schedule(safeRun(this::flush), maxDelayMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // The factory is shutting down
+                    flushNow = true;
+                }
+            }
+        }
+
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * Send all the pending updates.
+     */
+    void flush() {
+        List<List<PendingUpdate>> batches = Lists.newArrayList();
+        synchronized (this) {
+            if (flushTask != null) {
+                flushTask.cancel(false);
+                flushTask = null;
+            }
+
+            while (!pendingUpdates.isEmpty()) {
+                List<PendingUpdate> batch = Lists.newArrayList();
+                int batchSizeBytes = 0;
+                while (!pendingUpdates.isEmpty() && batch.size() < maxOperations
+                        && (batch.isEmpty() || batchSizeBytes + pendingUpdates.peek().data.length <= maxSizeBytes)) {
+                    PendingUpdate update = pendingUpdates.poll();
+                    batchSizeBytes += update.data.length;
+                    batch.add(update);
+                }
+                batches.add(batch);
+            }
+            pendingSizeBytes = 0;
+        }
+
+        long now = System.nanoTime();
+        for (List<PendingUpdate> batch : batches) {
+            mbean.recordMetadataBatch(batch.size());
+            batch.forEach(update -> mbean.recordMetadataBatchQueueLatency(now - update.enqueueTimeNanos,
+                    TimeUnit.NANOSECONDS));
+            send(batch);
+        }
+    }
+
+    private void send(List<PendingUpdate> batch) {
+        if (batch.size() == 1) {
+            PendingUpdate update = batch.get(0);
+            zk.setData(update.path, update.data, update.version, update.callback, null);
+            return;
+        }
+
+        List<Op> ops = Lists.newArrayListWithCapacity(batch.size());
+        batch.forEach(update -> ops.add(Op.setData(update.path, update.data, update.version)));
+
+        zk.multi(ops, (rc, path, ctx, results) -> {
+            if (log.isDebugEnabled()) {
+                log.debug("Metadata batch of {} updates completed rc={}", batch.size(), Code.get(rc));
+            }
+
+            if (rc == Code.OK.intValue()) {
+                for (int i = 0; i < batch.size(); i++) {
+                    PendingUpdate update = batch.get(i);
+                    update.callback.processResult(rc, update.path, null, ((SetDataResult) results.get(i)).getStat());
+                }
+                return;
+            }
+
+            if (results == null || results.size() != batch.size()) {
+                // The transaction was not processed, eg: connection loss
+                batch.forEach(update -> update.callback.processResult(rc, update.path, null, null));
+                return;
+            }
+
+            // Only report the updates that failed, and retry the ones that were rolled back because of them
+            List<PendingUpdate> retries = Lists.newArrayList();
+            for (int i = 0; i < batch.size(); i++) {
+                PendingUpdate update = batch.get(i);
+                OpResult result = results.get(i);
+                int err = result instanceof ErrorResult ? ((ErrorResult) result).getErr() : rc;
+                if (err == Code.OK.intValue() || err == Code.RUNTIMEINCONSISTENCY.intValue()) {
+                    retries.add(update);
+                } else {
+                    update.callback.processResult(err, update.path, null, null);
+                }
+            }
+
+            if (retries.size() == batch.size()) {
+                retries.forEach(update -> update.callback.processResult(rc, update.path, null, null));
+            } else if (!retries.isEmpty()) {
+                send(retries);
+            }
+        }, null);
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(MetaStoreZookeeperBatcher.class);
+}
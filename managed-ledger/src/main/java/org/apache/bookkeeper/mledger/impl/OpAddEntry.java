@@ -24,6 +24,7 @@ import io.netty.buffer.ByteBuf;
 import io.netty.util.Recycler;
 import io.netty.util.Recycler.Handle;
 
+import java.util.List;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
@@ -62,6 +63,10 @@ class OpAddEntry extends SafeRunnable implements AddCallback, CloseCallback {
     volatile int completed = FALSE;
     ByteBuf data;
     private int dataLength;
+    // Keys of the messages of the entry, extracted in the caller thread when the ledgers have key bloom filters
+    private List<String> keys;
+    // Publish time of the entry, extracted in the caller thread when the ledgers have a publish time index
+    private long publishTime;
 
     private static final AtomicReferenceFieldUpdater<OpAddEntry, AddEntryCallback> callbackUpdater =
         AtomicReferenceFieldUpdater.newUpdater(OpAddEntry.class, AddEntryCallback.class, "callback");
@@ -78,6 +83,8 @@ class OpAddEntry extends SafeRunnable implements AddCallback, CloseCallback {
         op.entryId = -1;
         op.startTime = System.nanoTime();
         op.completed = FALSE;
+        op.keys = ml.ledgerKeyFilter != null ? ml.entryKeyExtractor.getKeys(data) : null;
+        op.publishTime = ml.publishTimeIndex != null ? ml.entryTimestampExtractor.getTimestamp(data) : -1;
         ml.mbean.addAddEntrySample(op.dataLength);
         if (log.isDebugEnabled()) {
             log.debug("Created new OpAddEntry {}", op);
@@ -148,13 +155,28 @@ class OpAddEntry extends SafeRunnable implements AddCallback, CloseCallback {
 
         ManagedLedgerImpl.NUMBER_OF_ENTRIES_UPDATER.incrementAndGet(ml);
         ManagedLedgerImpl.TOTAL_SIZE_UPDATER.addAndGet(ml, dataLength);
+        // Entry kept to be passed to the cursors waiting for it, with the tail read fan-out
+        EntryImpl addedEntry = null;
         if (ml.hasActiveCursors()) {
             // Avoid caching entries if no cursor has been created
             EntryImpl entry = EntryImpl.create(ledger.getId(), entryId, data);
             // EntryCache.insert: duplicates entry by allocating new entry and data. so, recycle entry after calling
             // insert
-            ml.entryCache.insert(entry);
-            entry.release();
+            if (ml.getConfig().isTailReadFanOutEnabled() && !closeWhenDone) {
+                // The waiting cursors get the cached copy of the entry, so that its data is only held once
+                addedEntry = ml.entryCache.insertAndGet(entry);
+                if (addedEntry == null) {
+                    addedEntry = entry;
+                } else {
+                    entry.release();
+                }
+            } else {
+                ml.entryCache.insert(entry);
+                entry.release();
+            }
+        }
+        if (ml.ledgerKeyFilter != null) {
+            ml.ledgerKeyFilter.add(ledger.getId(), keys);
         }
 
         // We are done using the byte buffer
@@ -163,6 +185,9 @@ class OpAddEntry extends SafeRunnable implements AddCallback, CloseCallback {
         PositionImpl lastEntry = PositionImpl.get(ledger.getId(), entryId);
         ManagedLedgerImpl.ENTRIES_ADDED_COUNTER_UPDATER.incrementAndGet(ml);
         ml.lastConfirmedEntry = lastEntry;
+        if (ml.publishTimeIndex != null) {
+            ml.publishTimeIndex.add(ledger.getId(), entryId, publishTime);
+        }
 
         if (closeWhenDone) {
             log.info("[{}] Closing ledger {} for being full", ml.getName(), ledger.getId());
@@ -172,9 +197,16 @@ class OpAddEntry extends SafeRunnable implements AddCallback, CloseCallback {
             AddEntryCallback cb = callbackUpdater.getAndSet(this, null);
             if (cb != null) {
                 cb.addComplete(lastEntry, ctx);
-                ml.notifyCursors();
+                if (addedEntry != null) {
+                    ml.notifyCursors(addedEntry);
+                } else {
+                    ml.notifyCursors();
+                }
                 this.recycle();
             }
+            if (addedEntry != null) {
+                addedEntry.release();
+            }
         }
     }
 
@@ -189,15 +221,18 @@ class OpAddEntry extends SafeRunnable implements AddCallback, CloseCallback {
             log.warn("Error when closing ledger {}. Status={}", lh.getId(), BKException.getMessage(rc));
         }
 
-        ml.ledgerClosed(lh);
-        updateLatency();
+        // Roll over the ledger in the thread hashed on the managed ledger name, before completing the last write
+        ml.getExecutor().executeOrdered(ml.getName(), SafeRun.safeRun(() -> {
+            ml.ledgerClosed(lh);
+            updateLatency();
 
-        AddEntryCallback cb = callbackUpdater.getAndSet(this, null);
-        if (cb != null) {
-            cb.addComplete(PositionImpl.get(lh.getId(), entryId), ctx);
-            ml.notifyCursors();
-            this.recycle();
-        }
+            AddEntryCallback cb = callbackUpdater.getAndSet(this, null);
+            if (cb != null) {
+                cb.addComplete(PositionImpl.get(lh.getId(), entryId), ctx);
+                ml.notifyCursors();
+                this.recycle();
+            }
+        }));
     }
 
     private void updateLatency() {
@@ -232,8 +267,8 @@ class OpAddEntry extends SafeRunnable implements AddCallback, CloseCallback {
         ml.mbean.recordAddEntryError();
 
         ml.getExecutor().executeOrdered(ml.getName(), SafeRun.safeRun(() -> {
-            // Force the creation of a new ledger. Doing it in a background thread to avoid acquiring ML lock
-            // from a BK callback.
+            // Force the creation of a new ledger. Doing it in the managed ledger thread, which owns the state of the
+            // write path.
             ml.ledgerClosed(ledger);
         }));
     }
@@ -255,6 +290,8 @@ class OpAddEntry extends SafeRunnable implements AddCallback, CloseCallback {
         ledger = null;
         data = null;
         dataLength = -1;
+        keys = null;
+        publishTime = -1;
         callback = null;
         ctx = null;
         closeWhenDone = false;
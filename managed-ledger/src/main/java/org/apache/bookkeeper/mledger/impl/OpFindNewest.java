@@ -45,6 +45,16 @@ class OpFindNewest implements ReadEntryCallback {
 
     public OpFindNewest(ManagedCursorImpl cursor, PositionImpl startPosition, Predicate<Entry> condition,
             long numberOfEntries, FindEntryCallback callback, Object ctx) {
+        this(cursor, startPosition, false, condition, numberOfEntries, callback, ctx);
+    }
+
+    /**
+     * @param startMatches
+     *            whether the entry at the start position is already known to match the condition, in which case it is
+     *            not read again
+     */
+    OpFindNewest(ManagedCursorImpl cursor, PositionImpl startPosition, boolean startMatches,
+            Predicate<Entry> condition, long numberOfEntries, FindEntryCallback callback, Object ctx) {
         this.cursor = cursor;
         this.startPosition = startPosition;
         this.callback = callback;
@@ -54,8 +64,14 @@ class OpFindNewest implements ReadEntryCallback {
         this.min = 0;
         this.max = numberOfEntries;
 
-        this.searchPosition = startPosition;
-        this.state = State.checkFirst;
+        if (startMatches) {
+            this.lastMatchedPosition = startPosition;
+            this.searchPosition = cursor.ledger.getPositionAfterN(startPosition, max, PositionBound.startExcluded);
+            this.state = State.checkLast;
+        } else {
+            this.searchPosition = startPosition;
+            this.state = State.checkFirst;
+        }
     }
 
     @Override
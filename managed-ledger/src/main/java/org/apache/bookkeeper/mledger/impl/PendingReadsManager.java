@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl.createManagedLedgerException;
+
+import com.google.common.collect.Lists;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.bookkeeper.client.api.BKException;
+import org.apache.bookkeeper.client.api.LedgerEntries;
+import org.apache.bookkeeper.client.api.LedgerEntry;
+import org.apache.bookkeeper.client.api.ReadHandle;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deduplicates the BookKeeper reads issued by the entry cache of a managed ledger.
+ *
+ * <p/>When several cursors are catching up together, they tend to request the same ranges of entries at around the
+ * same time. A read for a range that is fully contained in a range already being read from the bookies is attached to
+ * the outstanding read instead of being sent again. When the read completes, each of the attached callbacks gets its
+ * own copy of the entries it asked for, sharing the same underlying buffers.
+ */
+class PendingReadsManager {
+
+    private final EntryCacheImpl entryCache;
+    private final ManagedLedgerImpl ml;
+
+    // Outstanding reads, by ledger id
+    private final Map<Long, List<PendingRead>> pendingReads = new HashMap<>();
+
+    private static class ReadRequest {
+        final long firstEntry;
+        final long lastEntry;
+        final ReadEntriesCallback callback;
+        final Object ctx;
+
+        ReadRequest(long firstEntry, long lastEntry, ReadEntriesCallback callback, Object ctx) {
+            this.firstEntry = firstEntry;
+            this.lastEntry = lastEntry;
+            this.callback = callback;
+            this.ctx = ctx;
+        }
+    }
+
+    private static class PendingRead {
+        final long firstEntry;
+        final long lastEntry;
+        final List<ReadRequest> requests = Lists.newArrayListWithExpectedSize(1);
+
+        PendingRead(long firstEntry, long lastEntry) {
+            this.firstEntry = firstEntry;
+            this.lastEntry = lastEntry;
+        }
+
+        boolean includes(long first, long last) {
+            return firstEntry <= first && last <= lastEntry;
+        }
+    }
+
+    PendingReadsManager(EntryCacheImpl entryCache, ManagedLedgerImpl ml) {
+        this.entryCache = entryCache;
+        this.ml = ml;
+    }
+
+    /**
+     * Read a range of entries from BookKeeper, joining an outstanding read of the same ledger if there is one that
+     * covers the requested range.
+     */
+    void readEntries(ReadHandle lh, long firstEntry, long lastEntry, ReadEntriesCallback callback, Object ctx) {
+        final long ledgerId = lh.getId();
+        final ReadRequest request = new ReadRequest(firstEntry, lastEntry, callback, ctx);
+        final PendingRead pendingRead;
+
+        synchronized (this) {
+            List<PendingRead> reads = pendingReads.get(ledgerId);
+            if (reads != null) {
+                for (PendingRead read : reads) {
+                    if (read.includes(firstEntry, lastEntry)) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("[{}] Joining pending read on ledger {} ({}-{}) for entries {}-{}",
+                                    ml.getName(), ledgerId, read.firstEntry, read.lastEntry, firstEntry, lastEntry);
+                        }
+                        read.requests.add(request);
+                        return;
+                    }
+                }
+            } else {
+                reads = Lists.newArrayListWithExpectedSize(1);
+                pendingReads.put(ledgerId, reads);
+            }
+
+            pendingRead = new PendingRead(firstEntry, lastEntry);
+            pendingRead.requests.add(request);
+            reads.add(pendingRead);
+        }
+
+        lh.readAsync(firstEntry, lastEntry).whenCompleteAsync((ledgerEntries, exception) -> {
+            readComplete(lh, pendingRead, ledgerEntries, exception);
+        }, ml.getExecutor().chooseThread(ml.getName()));
+    }
+
+    synchronized int getPendingReadsCount() {
+        return pendingReads.values().stream().mapToInt(List::size).sum();
+    }
+
+    private void readComplete(ReadHandle lh, PendingRead pendingRead, LedgerEntries ledgerEntries,
+            Throwable exception) {
+        synchronized (this) {
+            // No more requests can join the read from now on
+            List<PendingRead> reads = pendingReads.get(lh.getId());
+            if (reads != null) {
+                reads.remove(pendingRead);
+                if (reads.isEmpty()) {
+                    pendingReads.remove(lh.getId());
+                }
+            }
+        }
+
+        if (exception != null) {
+            if (!(exception instanceof BKException
+                    && ((BKException) exception).getCode() == BKException.Code.TooManyRequestsException)) {
+                ml.invalidateLedgerHandle(lh, exception);
+            }
+            for (ReadRequest request : pendingRead.requests) {
+                try {
+                    request.callback.readEntriesFailed(createManagedLedgerException(exception), request.ctx);
+                } catch (Throwable t) {
+                    log.error("[{}] Read entries failed callback error on ledger {}", ml.getName(), lh.getId(), t);
+                }
+            }
+            return;
+        }
+
+        final List<EntryImpl> entries;
+        long totalSize = 0;
+        try {
+            // We got the entries, we need to transform them to a List<> type
+            entries = Lists.newArrayListWithExpectedSize((int) (pendingRead.lastEntry - pendingRead.firstEntry + 1));
+            for (LedgerEntry e : ledgerEntries) {
+                EntryImpl entry = EntryImpl.create(e);
+                entries.add(entry);
+                totalSize += entry.getLength();
+            }
+        } finally {
+            ledgerEntries.close();
+        }
+
+        ml.getMBean().addReadEntriesSample(entries.size(), totalSize);
+
+        if (pendingRead.requests.size() == 1) {
+            // Common case, the read was not shared
+            entryCache.readFromStorageComplete(entries, totalSize, pendingRead.requests.get(0).callback,
+                    pendingRead.requests.get(0).ctx);
+            return;
+        }
+
+        ml.getMBean().recordCoalescedReads(pendingRead.requests.size() - 1);
+        for (ReadRequest request : pendingRead.requests) {
+            int fromIndex = (int) (request.firstEntry - pendingRead.firstEntry);
+            int toIndex = (int) Math.min(request.lastEntry - pendingRead.firstEntry + 1, entries.size());
+            List<EntryImpl> requestEntries = Lists.newArrayListWithExpectedSize(Math.max(0, toIndex - fromIndex));
+            long requestSize = 0;
+            for (int i = fromIndex; i < toIndex; i++) {
+                EntryImpl entry = EntryImpl.create(entries.get(i));
+                requestEntries.add(entry);
+                requestSize += entry.getLength();
+            }
+            try {
+                entryCache.readFromStorageComplete(requestEntries, requestSize, request.callback, request.ctx);
+            } catch (Throwable t) {
+                // The other requests attached to the read still need to complete
+                log.error("[{}] Read entries complete callback error on ledger {}", ml.getName(), lh.getId(), t);
+            }
+        }
+
+        entries.forEach(EntryImpl::release);
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(PendingReadsManager.class);
+}
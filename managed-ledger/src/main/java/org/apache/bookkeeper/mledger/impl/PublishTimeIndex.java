@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import java.util.Arrays;
+import org.apache.bookkeeper.mledger.EntryTimestampExtractor;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
+
+/**
+ * Sparse index of the publish time of the entries of the ledger currently being written, as returned by the
+ * {@link EntryTimestampExtractor}.
+ *
+ * <p/>A point is recorded for the first entry of the ledger, then for the first entry published after each interval.
+ * Entries published before the last point are skipped, so that the publish time of the points never decreases. When
+ * the max number of points is reached, every other point is dropped and the interval is doubled, so that the points
+ * stay spread over the whole life of the ledger. When the ledger is closed, the points are delta-encoded in its
+ * {@link LedgerInfo}, taking about 5 bytes each.
+ */
+class PublishTimeIndex {
+
+    // Bound the size added to the managed ledger metadata by each ledger
+    static final int MAX_POINTS_PER_LEDGER = 64;
+
+    private static final long INITIAL_INTERVAL_MS = 1000;
+
+    private final int maxPoints;
+
+    // Updated by the thread completing the add operations, read without lock to skip the entries that are not indexed
+    private volatile long ledgerId = -1;
+    private volatile long nextPointTimestamp = 0;
+
+    private final long[] entryIds;
+    private final long[] timestamps;
+    private int size = 0;
+    private long intervalMs = INITIAL_INTERVAL_MS;
+
+    PublishTimeIndex(int maxPoints) {
+        // At least the first point and the last one
+        this.maxPoints = Math.max(2, Math.min(maxPoints, MAX_POINTS_PER_LEDGER));
+        this.entryIds = new long[this.maxPoints];
+        this.timestamps = new long[this.maxPoints];
+    }
+
+    void add(long ledgerId, long entryId, long publishTime) {
+        if (publishTime < 0 || (ledgerId == this.ledgerId && publishTime < nextPointTimestamp)) {
+            return;
+        }
+
+        synchronized (this) {
+            if (ledgerId != this.ledgerId) {
+                // The index only covers the current ledger
+                size = 0;
+                intervalMs = INITIAL_INTERVAL_MS;
+                this.ledgerId = ledgerId;
+            } else if (size == maxPoints) {
+                for (int i = 1; i < (size + 1) / 2; i++) {
+                    entryIds[i] = entryIds[2 * i];
+                    timestamps[i] = timestamps[2 * i];
+                }
+                size = (size + 1) / 2;
+                intervalMs *= 2;
+            }
+
+            entryIds[size] = entryId;
+            timestamps[size] = publishTime;
+            ++size;
+            nextPointTimestamp = timestamps[size - 1] + intervalMs;
+        }
+    }
+
+    /**
+     * Store the points of the given ledger in its ledger info.
+     */
+    synchronized void addTo(long ledgerId, LedgerInfo.Builder builder) {
+        if (ledgerId == this.ledgerId && size > 0) {
+            for (int i = 0; i < size; i++) {
+                builder.addPublishTimeIndexEntries(i == 0 ? entryIds[i] : entryIds[i] - entryIds[i - 1]);
+                builder.addPublishTimeIndexTimestamps(i == 0 ? timestamps[i] : timestamps[i] - timestamps[i - 1]);
+            }
+        }
+    }
+
+    /**
+     * @return the entry ids and publish times of the points of the given ledger, or null if the ledger is not indexed
+     */
+    synchronized long[][] getPoints(long ledgerId) {
+        if (ledgerId != this.ledgerId || size == 0) {
+            return null;
+        }
+        return new long[][] { Arrays.copyOf(entryIds, size), Arrays.copyOf(timestamps, size) };
+    }
+
+    /**
+     * @return the entry ids and publish times of the points stored in a ledger info, or null if it has none
+     */
+    static long[][] getPoints(LedgerInfo info) {
+        int size = Math.min(info.getPublishTimeIndexEntriesCount(), info.getPublishTimeIndexTimestampsCount());
+        if (size == 0) {
+            return null;
+        }
+
+        long[][] points = new long[2][size];
+        for (int i = 0; i < size; i++) {
+            points[0][i] = info.getPublishTimeIndexEntries(i) + (i == 0 ? 0 : points[0][i - 1]);
+            points[1][i] = info.getPublishTimeIndexTimestamps(i) + (i == 0 ? 0 : points[1][i - 1]);
+        }
+        return points;
+    }
+}
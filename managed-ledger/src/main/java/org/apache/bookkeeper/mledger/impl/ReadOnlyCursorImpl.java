@@ -59,7 +59,16 @@ public class ReadOnlyCursorImpl extends ManagedCursorImpl implements ReadOnlyCur
 
     @Override
     public void asyncClose(final AsyncCallbacks.CloseCallback callback, final Object ctx) {
-        state = State.Closed;
+        boolean wasClosed;
+        synchronized (this) {
+            wasClosed = state == State.Closed;
+            state = State.Closed;
+        }
+
+        if (!wasClosed && ledger instanceof ReadOnlyManagedLedgerImpl) {
+            // Release the reference of this cursor on the read-only managed ledger
+            ((ReadOnlyManagedLedgerImpl) ledger).cursorClosed();
+        }
         callback.closeComplete(ctx);
     }
 
@@ -18,12 +18,15 @@
  */
 package org.apache.bookkeeper.mledger.impl;
 
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 
 import com.google.common.collect.Range;
+import com.google.common.collect.Sets;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.bookkeeper.client.BookKeeper;
+import org.apache.bookkeeper.client.api.ReadHandle;
 import org.apache.bookkeeper.common.util.OrderedExecutor;
 import org.apache.bookkeeper.common.util.OrderedScheduler;
 import org.apache.bookkeeper.mledger.AsyncCallbacks;
@@ -38,13 +41,33 @@ import org.apache.bookkeeper.mledger.impl.MetaStore.Stat;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
 
+/**
+ * Read-only view of a managed ledger, used by the read-only cursors.
+ *
+ * <p/>When shared, the same instance is used by all the read-only cursors opened on the managed ledger through the
+ * factory, so that they reuse the ledger handles and the cached entries. The list of ledgers is refreshed each time a
+ * new cursor is opened, and the snapshot is released when its last cursor is closed. The ledger handles replaced by a
+ * refresh are closed once the reads of the other cursors are completed (see {@link SharedReadHandle}).
+ */
 @Slf4j
 public class ReadOnlyManagedLedgerImpl extends ManagedLedgerImpl {
 
+    private final boolean shared;
+
+    // Number of cursors using the snapshot, guarded by the factory
+    private int refCount = 0;
+
     public ReadOnlyManagedLedgerImpl(ManagedLedgerFactoryImpl factory, BookKeeper bookKeeper, MetaStore store,
             ManagedLedgerConfig config, OrderedScheduler scheduledExecutor, OrderedExecutor orderedExecutor,
             String name) {
+        this(factory, bookKeeper, store, config, scheduledExecutor, orderedExecutor, name, false);
+    }
+
+    ReadOnlyManagedLedgerImpl(ManagedLedgerFactoryImpl factory, BookKeeper bookKeeper, MetaStore store,
+            ManagedLedgerConfig config, OrderedScheduler scheduledExecutor, OrderedExecutor orderedExecutor,
+            String name, boolean shared) {
         super(factory, bookKeeper, store, config, scheduledExecutor, orderedExecutor, name);
+        this.shared = shared;
     }
 
     CompletableFuture<ReadOnlyCursor> initializeAndCreateCursor(PositionImpl startPosition) {
@@ -56,13 +79,25 @@ public class ReadOnlyManagedLedgerImpl extends ManagedLedgerImpl {
             public void operationComplete(ManagedLedgerInfo mlInfo, Stat stat) {
                 state = State.LedgerOpened;
 
+                Set<Long> ledgerIds = Sets.newHashSet();
                 for (LedgerInfo ls : mlInfo.getLedgerInfoList()) {
-                    ledgers.put(ls.getLedgerId(), ls);
+                    ledgerIds.add(ls.getLedgerId());
+                    updateLedgerInfo(ls);
+                }
+
+                // Forget the ledgers trimmed since the snapshot was last refreshed
+                for (Long ledgerId : Sets.newHashSet(ledgers.keySet())) {
+                    if (!ledgerIds.contains(ledgerId)) {
+                        ledgers.remove(ledgerId);
+                        invalidateReadHandle(ledgerId);
+                        entryCache.invalidateAllEntries(ledgerId);
+                    }
                 }
 
                 // Last ledger stat may be zeroed, we must update it
-                if (ledgers.size() > 0 && ledgers.lastEntry().getValue().getEntries() == 0) {
-                    long lastLedgerId = ledgers.lastKey();
+                int numLedgers = mlInfo.getLedgerInfoCount();
+                if (numLedgers > 0 && mlInfo.getLedgerInfo(numLedgers - 1).getEntries() == 0) {
+                    long lastLedgerId = mlInfo.getLedgerInfo(numLedgers - 1).getLedgerId();
 
                     // Fetch last add confirmed for last ledger
                     bookKeeper.newOpenLedgerOp().withRecovery(false).withLedgerId(lastLedgerId)
@@ -72,7 +107,9 @@ public class ReadOnlyManagedLedgerImpl extends ManagedLedgerImpl {
                                     LedgerInfo info = LedgerInfo.newBuilder().setLedgerId(lastLedgerId)
                                             .setEntries(lastAddConfirmed + 1).setSize(readHandle.getLength())
                                             .setTimestamp(clock.millis()).build();
-                                    ledgers.put(lastLedgerId, info);
+                                    updateLedgerInfo(info);
+                                    replaceReadHandle(lastLedgerId, shared ? new SharedReadHandle(readHandle)
+                                            : readHandle);
 
                                     future.complete(createReadOnlyCursor(startPosition));
                                 }).exceptionally(ex -> {
@@ -81,7 +118,8 @@ public class ReadOnlyManagedLedgerImpl extends ManagedLedgerImpl {
                                         // The last ledger was empty, so we cannot read the last add confirmed.
                                         LedgerInfo info = LedgerInfo.newBuilder().setLedgerId(lastLedgerId)
                                                 .setEntries(0).setSize(0).setTimestamp(clock.millis()).build();
-                                        ledgers.put(lastLedgerId, info);
+                                        updateLedgerInfo(info);
+                                        readHandle.closeAsync();
                                         future.complete(createReadOnlyCursor(startPosition));
                                     } else {
                                         future.completeExceptionally(new ManagedLedgerException(ex));
@@ -94,7 +132,7 @@ public class ReadOnlyManagedLedgerImpl extends ManagedLedgerImpl {
                                     // The last ledger was empty, so we cannot read the last add confirmed.
                                     LedgerInfo info = LedgerInfo.newBuilder().setLedgerId(lastLedgerId).setEntries(0)
                                             .setSize(0).setTimestamp(clock.millis()).build();
-                                    ledgers.put(lastLedgerId, info);
+                                    updateLedgerInfo(info);
                                     future.complete(createReadOnlyCursor(startPosition));
                                 } else {
                                     future.completeExceptionally(new ManagedLedgerException(ex));
@@ -121,19 +159,27 @@ public class ReadOnlyManagedLedgerImpl extends ManagedLedgerImpl {
     }
 
     private ReadOnlyCursor createReadOnlyCursor(PositionImpl startPosition) {
+        PositionImpl lastPosition;
         if (ledgers.isEmpty()) {
-            lastConfirmedEntry = PositionImpl.earliest;
+            lastPosition = PositionImpl.earliest;
         } else if (ledgers.lastEntry().getValue().getEntries() > 0) {
             // Last ledger has some of the entries
-            lastConfirmedEntry = new PositionImpl(ledgers.lastKey(), ledgers.lastEntry().getValue().getEntries() - 1);
+            lastPosition = new PositionImpl(ledgers.lastKey(), ledgers.lastEntry().getValue().getEntries() - 1);
         } else {
             // Last ledger is empty. If there is a previous ledger, position on the last entry of that ledger
             if (ledgers.size() > 1) {
                 long lastLedgerId = ledgers.lastKey();
                 LedgerInfo li = ledgers.headMap(lastLedgerId, false).lastEntry().getValue();
-                lastConfirmedEntry = new PositionImpl(li.getLedgerId(), li.getEntries() - 1);
+                lastPosition = new PositionImpl(li.getLedgerId(), li.getEntries() - 1);
             } else {
-                lastConfirmedEntry = PositionImpl.earliest;
+                lastPosition = PositionImpl.earliest;
+            }
+        }
+
+        synchronized (this) {
+            // Concurrent refreshes of a shared snapshot must not move the last position backward
+            if (lastConfirmedEntry == null || lastPosition.compareTo(lastConfirmedEntry) > 0) {
+                lastConfirmedEntry = lastPosition;
             }
         }
 
@@ -141,6 +187,67 @@ public class ReadOnlyManagedLedgerImpl extends ManagedLedgerImpl {
         return cursor;
     }
 
+    /**
+     * Update the info of a ledger, unless the snapshot already knows more entries in it. When the ledger has more
+     * entries, or was offloaded, its read handle is opened again.
+     */
+    private void updateLedgerInfo(LedgerInfo info) {
+        synchronized (ledgers) {
+            LedgerInfo previous = ledgers.get(info.getLedgerId());
+            if (previous != null && (previous.getEntries() > info.getEntries() || previous.equals(info))) {
+                return;
+            }
+
+            ledgers.put(info.getLedgerId(), info);
+            if (previous != null) {
+                invalidateReadHandle(info.getLedgerId());
+            }
+        }
+    }
+
+    @Override
+    CompletableFuture<ReadHandle> openReadHandle(long ledgerId) {
+        CompletableFuture<ReadHandle> future = super.openReadHandle(ledgerId);
+        return shared ? future.thenApply(SharedReadHandle::new) : future;
+    }
+
+    private void replaceReadHandle(long ledgerId, ReadHandle readHandle) {
+        CompletableFuture<ReadHandle> previous = ledgerCache.put(ledgerId, CompletableFuture.completedFuture(readHandle));
+        if (previous != null) {
+            previous.thenAccept(ReadHandle::closeAsync);
+        }
+    }
+
+    private void invalidateReadHandle(long ledgerId) {
+        CompletableFuture<ReadHandle> previous = ledgerCache.remove(ledgerId);
+        if (previous != null) {
+            previous.thenAccept(ReadHandle::closeAsync);
+        }
+    }
+
+    void retain() {
+        ++refCount;
+    }
+
+    int release() {
+        return --refCount;
+    }
+
+    /**
+     * Called when a cursor of this managed ledger is closed, or could not be opened.
+     */
+    void cursorClosed() {
+        if (shared) {
+            factory.releaseReadOnlyManagedLedger(this);
+        }
+    }
+
+    void closeLedgerHandles() {
+        state = State.Closed;
+        ledgerCache.forEach((ledgerId, readHandle) -> readHandle.thenAccept(ReadHandle::closeAsync));
+        ledgerCache.clear();
+    }
+
     @Override
     void asyncReadEntry(PositionImpl position, AsyncCallbacks.ReadEntryCallback callback, Object ctx) {
             this.getLedgerHandle(position.getLedgerId()).thenAccept((ledger) -> {
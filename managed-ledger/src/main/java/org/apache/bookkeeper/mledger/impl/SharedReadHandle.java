@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.apache.bookkeeper.client.BKException;
+import org.apache.bookkeeper.client.api.LastConfirmedAndEntry;
+import org.apache.bookkeeper.client.api.LedgerEntries;
+import org.apache.bookkeeper.client.api.LedgerMetadata;
+import org.apache.bookkeeper.client.api.ReadHandle;
+
+/**
+ * Read handle of a shared read-only snapshot, closed only when the snapshot has closed it and the reads of all its
+ * cursors are completed.
+ *
+ * <p/>When the snapshot is refreshed for a new cursor, it closes the handles of the ledgers which were trimmed or which
+ * have more entries, while the other cursors may still be reading from them.
+ */
+class SharedReadHandle implements ReadHandle {
+
+    private final ReadHandle handle;
+
+    // One reference for the snapshot, and one per pending read
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final CompletableFuture<Void> closeFuture = new CompletableFuture<>();
+
+    SharedReadHandle(ReadHandle handle) {
+        this.handle = handle;
+    }
+
+    private boolean retain() {
+        while (true) {
+            int count = refCount.get();
+            if (count == 0) {
+                return false;
+            } else if (refCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void release() {
+        if (refCount.decrementAndGet() == 0) {
+            handle.closeAsync().whenComplete((ignore, ex) -> {
+                if (ex != null) {
+                    closeFuture.completeExceptionally(ex);
+                } else {
+                    closeFuture.complete(null);
+                }
+            });
+        }
+    }
+
+    private <T> CompletableFuture<T> read(Supplier<CompletableFuture<T>> op) {
+        if (!retain()) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(new BKException.BKLedgerClosedException());
+            return future;
+        }
+
+        CompletableFuture<T> future;
+        try {
+            future = op.get();
+        } catch (Throwable t) {
+            release();
+            throw t;
+        }
+        return future.whenComplete((ignore, ex) -> release());
+    }
+
+    @Override
+    public CompletableFuture<LedgerEntries> readAsync(long firstEntry, long lastEntry) {
+        return read(() -> handle.readAsync(firstEntry, lastEntry));
+    }
+
+    @Override
+    public CompletableFuture<LedgerEntries> readUnconfirmedAsync(long firstEntry, long lastEntry) {
+        return read(() -> handle.readUnconfirmedAsync(firstEntry, lastEntry));
+    }
+
+    @Override
+    public CompletableFuture<Long> readLastAddConfirmedAsync() {
+        return read(handle::readLastAddConfirmedAsync);
+    }
+
+    @Override
+    public CompletableFuture<Long> tryReadLastAddConfirmedAsync() {
+        return read(handle::tryReadLastAddConfirmedAsync);
+    }
+
+    @Override
+    public CompletableFuture<LastConfirmedAndEntry> readLastAddConfirmedAndEntryAsync(long entryId,
+            long timeOutInMillis, boolean parallel) {
+        return read(() -> handle.readLastAddConfirmedAndEntryAsync(entryId, timeOutInMillis, parallel));
+    }
+
+    @Override
+    public long getLastAddConfirmed() {
+        return handle.getLastAddConfirmed();
+    }
+
+    @Override
+    public long getLength() {
+        return handle.getLength();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return handle.isClosed();
+    }
+
+    @Override
+    public long getId() {
+        return handle.getId();
+    }
+
+    @Override
+    public LedgerMetadata getLedgerMetadata() {
+        return handle.getLedgerMetadata();
+    }
+
+    /**
+     * Release the reference of the snapshot. The handle is closed once the pending reads are completed.
+     */
+    @Override
+    public CompletableFuture<Void> closeAsync() {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
+        return closeFuture;
+    }
+}
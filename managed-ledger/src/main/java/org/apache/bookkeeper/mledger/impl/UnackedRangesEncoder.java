@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.CodedOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.PositionInfo;
+import org.apache.pulsar.common.util.collections.LongPairRangeSet;
+
+/**
+ * Encodes the individually deleted messages of a cursor in chunks of bounded size, to be stored in separate entries
+ * of the cursor ledger.
+ *
+ * <p/>Each range {@code (lowerLedgerId:lowerEntryId, upperLedgerId:upperEntryId]} is stored as 4 zig-zag varints,
+ * holding the deltas of its endpoints with the end of the previous range. Sparse acks on the same ledger take few
+ * bytes per range, against about 30 bytes for a {@code MessageRange}. Every chunk starts from position 0:0, so that
+ * chunks can be decoded one at a time.
+ *
+ * <p/>A chunk is also started at each position where a chunk of a previous encoding started. The chunks that hold the
+ * same ranges as before are then encoded the same way, and their entries don't need to be written again.
+ */
+class UnackedRangesEncoder {
+
+    /**
+     * A chunk of encoded ranges, with the lower endpoint of its first range.
+     */
+    static class Chunk {
+        final long firstLedgerId;
+        final long firstEntryId;
+        final long[] ranges;
+
+        Chunk(long firstLedgerId, long firstEntryId, long[] ranges) {
+            this.firstLedgerId = firstLedgerId;
+            this.firstEntryId = firstEntryId;
+            this.ranges = ranges;
+        }
+
+        boolean startsAt(Chunk other) {
+            return firstLedgerId == other.firstLedgerId && firstEntryId == other.firstEntryId;
+        }
+
+        boolean startsBefore(Chunk other) {
+            return UnackedRangesEncoder.startsBefore(firstLedgerId, firstEntryId, other);
+        }
+    }
+
+    private final int maxChunkSize;
+    private final List<Chunk> previousChunks;
+    private final List<Chunk> chunks = Lists.newArrayList();
+    private int nextBoundary = 1;
+
+    private long[] current = new long[64];
+    private int currentLength = 0;
+    private int currentSize = 0;
+    private long previousLedgerId = 0;
+    private long previousEntryId = 0;
+    private long currentFirstLedgerId = 0;
+    private long currentFirstEntryId = 0;
+
+    UnackedRangesEncoder(int maxChunkSize) {
+        this(maxChunkSize, Collections.emptyList());
+    }
+
+    /**
+     * @param previousChunks the chunks of a previous encoding, whose boundaries are kept
+     */
+    UnackedRangesEncoder(int maxChunkSize, List<Chunk> previousChunks) {
+        this.maxChunkSize = maxChunkSize;
+        this.previousChunks = previousChunks;
+    }
+
+    void add(long lowerLedgerId, long lowerEntryId, long upperLedgerId, long upperEntryId) {
+        boolean crossedBoundary = false;
+        while (nextBoundary < previousChunks.size()
+                && !startsBefore(lowerLedgerId, lowerEntryId, previousChunks.get(nextBoundary))) {
+            nextBoundary++;
+            crossedBoundary = true;
+        }
+
+        long lowerLedgerDelta = lowerLedgerId - previousLedgerId;
+        long lowerEntryDelta = lowerEntryId - (lowerLedgerDelta == 0 ? previousEntryId : 0);
+        long upperLedgerDelta = upperLedgerId - lowerLedgerId;
+        long upperEntryDelta = upperEntryId - (upperLedgerDelta == 0 ? lowerEntryId : 0);
+
+        int size = CodedOutputStream.computeSInt64SizeNoTag(lowerLedgerDelta)
+                + CodedOutputStream.computeSInt64SizeNoTag(lowerEntryDelta)
+                + CodedOutputStream.computeSInt64SizeNoTag(upperLedgerDelta)
+                + CodedOutputStream.computeSInt64SizeNoTag(upperEntryDelta);
+        if (currentLength > 0 && (crossedBoundary || currentSize + size > maxChunkSize)) {
+            finishChunk();
+            // Start again from the absolute position
+            add(lowerLedgerId, lowerEntryId, upperLedgerId, upperEntryId);
+            return;
+        }
+
+        if (currentLength == 0) {
+            currentFirstLedgerId = lowerLedgerId;
+            currentFirstEntryId = lowerEntryId;
+        }
+        if (currentLength + 4 > current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[currentLength++] = lowerLedgerDelta;
+        current[currentLength++] = lowerEntryDelta;
+        current[currentLength++] = upperLedgerDelta;
+        current[currentLength++] = upperEntryDelta;
+        currentSize += size;
+        previousLedgerId = upperLedgerId;
+        previousEntryId = upperEntryId;
+    }
+
+    private static boolean startsBefore(long ledgerId, long entryId, Chunk chunk) {
+        return ledgerId < chunk.firstLedgerId || (ledgerId == chunk.firstLedgerId && entryId < chunk.firstEntryId);
+    }
+
+    /**
+     * @return the encoded chunks, the ranges of each one to be stored in the {@code individualDeletedMessageRanges}
+     *         field of a {@link PositionInfo}
+     */
+    List<Chunk> getChunks() {
+        if (currentLength > 0) {
+            finishChunk();
+        }
+        return chunks;
+    }
+
+    private void finishChunk() {
+        chunks.add(new Chunk(currentFirstLedgerId, currentFirstEntryId, Arrays.copyOf(current, currentLength)));
+        currentLength = 0;
+        currentSize = 0;
+        previousLedgerId = 0;
+        previousEntryId = 0;
+    }
+
+    /**
+     * Add the ranges encoded in the given entry of the cursor ledger to a range set.
+     */
+    static void decode(PositionInfo positionInfo, LongPairRangeSet<?> rangeSet) {
+        long previousLedgerId = 0;
+        long previousEntryId = 0;
+        int count = positionInfo.getIndividualDeletedMessageRangesCount() / 4 * 4;
+        for (int i = 0; i < count; i += 4) {
+            long lowerLedgerDelta = positionInfo.getIndividualDeletedMessageRanges(i);
+            long lowerLedgerId = previousLedgerId + lowerLedgerDelta;
+            long lowerEntryId = positionInfo.getIndividualDeletedMessageRanges(i + 1)
+                    + (lowerLedgerDelta == 0 ? previousEntryId : 0);
+            long upperLedgerDelta = positionInfo.getIndividualDeletedMessageRanges(i + 2);
+            long upperLedgerId = lowerLedgerId + upperLedgerDelta;
+            long upperEntryId = positionInfo.getIndividualDeletedMessageRanges(i + 3)
+                    + (upperLedgerDelta == 0 ? lowerEntryId : 0);
+
+            rangeSet.addOpenClosed(lowerLedgerId, lowerEntryId, upperLedgerId, upperEntryId);
+            previousLedgerId = upperLedgerId;
+            previousEntryId = upperEntryId;
+        }
+    }
+}
@@ -44,6 +44,8 @@ public class RangeCache<Key extends Comparable<Key>, Value extends ReferenceCoun
     private AtomicLong size; // Total size of values stored in cache
     private final Weighter<Value> weighter; // Weighter object used to extract the size from values
     private final TimestampExtractor<Value> timestampExtractor; // Extract the timestamp associated with a value
+    // Notified of each value removed from the cache, before it is released
+    private volatile RemovalListener<Value> removalListener = null;
 
     /**
      * Construct a new RangeLruCache with default Weighter.
@@ -141,6 +143,7 @@ public class RangeCache<Key extends Comparable<Key>, Value extends ReferenceCoun
             }
 
             removedSize += weighter.getSize(value);
+            valueRemoved(value);
             value.release();
             ++removedEntries;
         }
@@ -170,6 +173,7 @@ public class RangeCache<Key extends Comparable<Key>, Value extends ReferenceCoun
             Value value = entry.getValue();
             ++removedEntries;
             removedSize += weighter.getSize(value);
+            valueRemoved(value);
             value.release();
         }
 
@@ -198,6 +202,7 @@ public class RangeCache<Key extends Comparable<Key>, Value extends ReferenceCoun
 
            Value value = entry.getValue();
            removedSize += weighter.getSize(value);
+           valueRemoved(value);
            value.release();
        }
 
@@ -205,6 +210,20 @@ public class RangeCache<Key extends Comparable<Key>, Value extends ReferenceCoun
        return removedSize;
    }
 
+    /**
+     * Set a listener notified of each value removed from the cache, whether it is invalidated, evicted or cleared.
+     */
+    public void setRemovalListener(RemovalListener<Value> removalListener) {
+        this.removalListener = removalListener;
+    }
+
+    protected void valueRemoved(Value value) {
+        RemovalListener<Value> listener = removalListener;
+        if (listener != null) {
+            listener.removed(value);
+        }
+    }
+
     /**
      * Just for testing. Getting the number of entries is very expensive on the conncurrent map
      */
@@ -231,6 +250,7 @@ public class RangeCache<Key extends Comparable<Key>, Value extends ReferenceCoun
             }
             Value value = entry.getValue();
             removedSize += weighter.getSize(value);
+            valueRemoved(value);
             value.release();
         }
 
@@ -256,6 +276,15 @@ public class RangeCache<Key extends Comparable<Key>, Value extends ReferenceCoun
         long getTimestamp(ValueT value);
     }
 
+    /**
+     * Interface of a object that is notified of the values removed from the cache.
+     *
+     * @param <ValueT>
+     */
+    public interface RemovalListener<ValueT> {
+        void removed(ValueT value);
+    }
+
     /**
      * Default cache weighter, every value is assumed the same cost.
      *
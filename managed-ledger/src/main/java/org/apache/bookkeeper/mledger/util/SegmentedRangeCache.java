@@ -0,0 +1,517 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.Lists;
+import io.netty.util.ReferenceCounted;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * A {@link RangeCache} that organizes the values in append-ordered segments.
+ *
+ * <p/>Each key is mapped to a (segment, offset) pair through a {@link KeyMapper}. Every segment stores its values in a
+ * ring array indexed by offset, so that range lookups, range removals and evictions from the head are plain array
+ * operations instead of skip-list traversals. Each segment is guarded by its own lock, so operations on different
+ * segments do not contend with each other.
+ *
+ * <p/>This structure is meant for keys that are mostly inserted in increasing offset order within a segment (eg.
+ * entries appended to a ledger). Values can also be inserted before the head of a segment (eg. older entries read
+ * back from storage), as long as the distance between the first and the last offsets of the segment stays within the
+ * max segment capacity. Values that would stretch a segment beyond it are rejected.
+ *
+ * @param <Key>
+ *            Cache key. Needs to be Comparable and consistent with the segment/offset ordering
+ * @param <Value>
+ *            Cache value
+ */
+public class SegmentedRangeCache<Key extends Comparable<Key>, Value extends ReferenceCounted>
+        extends RangeCache<Key, Value> {
+
+    private static final int INITIAL_SEGMENT_CAPACITY = 64;
+
+    // Default max distance allowed between the head and the tail of a single segment
+    public static final int DEFAULT_MAX_SEGMENT_CAPACITY = 1 << 16;
+
+    // Upper bound of the max segment capacity, a segment array holds at most 1M references
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 20;
+
+    private final int maxSegmentCapacity;
+    private final ConcurrentNavigableMap<Long, Segment<Value>> segments;
+    private final AtomicLong size; // Total size of values stored in cache
+    private final KeyMapper<Key> keyMapper;
+    private final Weighter<Value> weighter;
+    private final TimestampExtractor<Value> timestampExtractor;
+
+    /**
+     * Construct a new SegmentedRangeCache.
+     *
+     * @param keyMapper
+     *            maps each key into its segment and offset
+     * @param weighter
+     *            a custom weighter to compute the size of each stored value
+     * @param timestampExtractor
+     *            extract the timestamp associated with each stored value
+     */
+    public SegmentedRangeCache(KeyMapper<Key> keyMapper, Weighter<Value> weighter,
+            TimestampExtractor<Value> timestampExtractor) {
+        this(keyMapper, weighter, timestampExtractor, DEFAULT_MAX_SEGMENT_CAPACITY);
+    }
+
+    /**
+     * Construct a new SegmentedRangeCache.
+     *
+     * @param keyMapper
+     *            maps each key into its segment and offset
+     * @param weighter
+     *            a custom weighter to compute the size of each stored value
+     * @param timestampExtractor
+     *            extract the timestamp associated with each stored value
+     * @param maxSegmentCapacity
+     *            max distance between the first and the last offsets of a segment, capped to 1M
+     */
+    public SegmentedRangeCache(KeyMapper<Key> keyMapper, Weighter<Value> weighter,
+            TimestampExtractor<Value> timestampExtractor, int maxSegmentCapacity) {
+        super(weighter, timestampExtractor);
+        checkArgument(maxSegmentCapacity > 0);
+        this.maxSegmentCapacity = Math.min(maxSegmentCapacity, MAX_SEGMENT_CAPACITY);
+        this.segments = new ConcurrentSkipListMap<>();
+        this.size = new AtomicLong(0);
+        this.keyMapper = keyMapper;
+        this.weighter = weighter;
+        this.timestampExtractor = timestampExtractor;
+    }
+
+    @Override
+    public boolean put(Key key, Value value) {
+        long segmentId = keyMapper.getSegmentId(key);
+        long offset = keyMapper.getOffset(key);
+
+        while (true) {
+            Segment<Value> segment = segments.get(segmentId);
+            if (segment == null) {
+                segment = segments.computeIfAbsent(segmentId, id -> new Segment<>(id, maxSegmentCapacity));
+            }
+            synchronized (segment) {
+                if (segment.removed) {
+                    // The segment was dropped after being emptied, retry on a fresh one
+                    continue;
+                }
+
+                if (!segment.put(offset, value)) {
+                    return false;
+                }
+            }
+
+            size.addAndGet(weighter.getSize(value));
+            return true;
+        }
+    }
+
+    @Override
+    public Value get(Key key) {
+        Segment<Value> segment = segments.get(keyMapper.getSegmentId(key));
+        if (segment == null) {
+            return null;
+        }
+
+        synchronized (segment) {
+            Value value = segment.get(keyMapper.getOffset(key));
+            if (value == null) {
+                return null;
+            }
+
+            try {
+                value.retain();
+                return value;
+            } catch (Throwable t) {
+                // Value was already destroyed
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public Collection<Value> getRange(Key first, Key last) {
+        List<Value> values = Lists.newArrayList();
+        long firstSegmentId = keyMapper.getSegmentId(first);
+        long lastSegmentId = keyMapper.getSegmentId(last);
+
+        for (Segment<Value> segment : segments.subMap(firstSegmentId, true, lastSegmentId, true).values()) {
+            long firstOffset = segment.segmentId == firstSegmentId ? keyMapper.getOffset(first) : Long.MIN_VALUE;
+            long lastOffset = segment.segmentId == lastSegmentId ? keyMapper.getOffset(last) : Long.MAX_VALUE;
+
+            synchronized (segment) {
+                segment.collect(firstOffset, lastOffset, values);
+            }
+        }
+
+        return values;
+    }
+
+    @Override
+    public Pair<Integer, Long> removeRange(Key first, Key last, boolean lastInclusive) {
+        long firstSegmentId = keyMapper.getSegmentId(first);
+        long lastSegmentId = keyMapper.getSegmentId(last);
+
+        int removedEntries = 0;
+        long removedSize = 0;
+
+        for (Segment<Value> segment : segments.subMap(firstSegmentId, true, lastSegmentId, true).values()) {
+            long firstOffset = segment.segmentId == firstSegmentId ? keyMapper.getOffset(first) : Long.MIN_VALUE;
+            long lastOffset = Long.MAX_VALUE;
+            if (segment.segmentId == lastSegmentId) {
+                lastOffset = keyMapper.getOffset(last);
+                if (!lastInclusive) {
+                    if (lastOffset == Long.MIN_VALUE) {
+                        continue;
+                    }
+                    --lastOffset;
+                }
+            }
+
+            synchronized (segment) {
+                for (long offset = Math.max(firstOffset, segment.firstOffset); offset <= lastOffset
+                        && offset < segment.endOffset(); offset++) {
+                    Value value = segment.remove(offset);
+                    if (value != null) {
+                        removedSize += weighter.getSize(value);
+                        valueRemoved(value);
+                        value.release();
+                        ++removedEntries;
+                    }
+                }
+
+                dropIfEmpty(segment);
+            }
+        }
+
+        size.addAndGet(-removedSize);
+        return Pair.of(removedEntries, removedSize);
+    }
+
+    @Override
+    public Pair<Integer, Long> evictLeastAccessedEntries(long minSize) {
+        checkArgument(minSize > 0);
+
+        long removedSize = 0;
+        int removedEntries = 0;
+
+        for (Segment<Value> segment : segments.values()) {
+            if (removedSize >= minSize) {
+                break;
+            }
+
+            synchronized (segment) {
+                while (removedSize < minSize) {
+                    Value value = segment.pollFirst();
+                    if (value == null) {
+                        break;
+                    }
+
+                    ++removedEntries;
+                    removedSize += weighter.getSize(value);
+                    valueRemoved(value);
+                    value.release();
+                }
+
+                dropIfEmpty(segment);
+            }
+        }
+
+        size.addAndGet(-removedSize);
+        return Pair.of(removedEntries, removedSize);
+    }
+
+    @Override
+    public long evictLEntriesBeforeTimestamp(long maxTimestamp) {
+        long removedSize = 0;
+
+        for (Segment<Value> segment : segments.values()) {
+            boolean reachedTimestamp = false;
+
+            synchronized (segment) {
+                while (true) {
+                    Value value = segment.peekFirst();
+                    if (value == null) {
+                        break;
+                    }
+
+                    if (timestampExtractor.getTimestamp(value) > maxTimestamp) {
+                        reachedTimestamp = true;
+                        break;
+                    }
+
+                    segment.pollFirst();
+                    removedSize += weighter.getSize(value);
+                    valueRemoved(value);
+                    value.release();
+                }
+
+                dropIfEmpty(segment);
+            }
+
+            if (reachedTimestamp) {
+                // Segments are ordered, all the following values are newer
+                break;
+            }
+        }
+
+        size.addAndGet(-removedSize);
+        return removedSize;
+    }
+
+    @Override
+    protected long getNumberOfEntries() {
+        long count = 0;
+        for (Segment<Value> segment : segments.values()) {
+            synchronized (segment) {
+                count += segment.count;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getSize() {
+        return size.get();
+    }
+
+    @Override
+    public synchronized long clear() {
+        long removedSize = 0;
+
+        while (true) {
+            Map.Entry<Long, Segment<Value>> entry = segments.pollFirstEntry();
+            if (entry == null) {
+                break;
+            }
+
+            Segment<Value> segment = entry.getValue();
+            synchronized (segment) {
+                Value value;
+                while ((value = segment.pollFirst()) != null) {
+                    removedSize += weighter.getSize(value);
+                    valueRemoved(value);
+                    value.release();
+                }
+                segment.removed = true;
+            }
+        }
+
+        return size.getAndAdd(-removedSize);
+    }
+
+    private void dropIfEmpty(Segment<Value> segment) {
+        // Must be called while holding the segment lock
+        if (segment.count == 0 && !segment.removed) {
+            segment.removed = true;
+            segments.remove(segment.segmentId, segment);
+        }
+    }
+
+    /**
+     * Interface of a object that is able to map a key into its segment and its offset within the segment.
+     *
+     * @param <KeyT>
+     */
+    public interface KeyMapper<KeyT> {
+        long getSegmentId(KeyT key);
+
+        long getOffset(KeyT key);
+    }
+
+    /**
+     * Ring array of values with contiguous offsets, starting at {@code firstOffset}. Slots can be empty when a value
+     * was not inserted or was removed from the middle of the segment.
+     */
+    private static class Segment<Value extends ReferenceCounted> {
+        private final long segmentId;
+        private final int maxCapacity;
+        private Object[] slots = new Object[INITIAL_SEGMENT_CAPACITY];
+        private int head = 0; // Index in slots of firstOffset
+        private int span = 0; // Number of slots between the head and the last used slot (included)
+        private int count = 0; // Number of non-empty slots
+        private long firstOffset = 0;
+        private boolean removed = false;
+
+        Segment(long segmentId, int maxCapacity) {
+            this.segmentId = segmentId;
+            this.maxCapacity = maxCapacity;
+        }
+
+        long endOffset() {
+            return firstOffset + span;
+        }
+
+        boolean put(long offset, Value value) {
+            if (span == 0) {
+                head = 0;
+                firstOffset = offset;
+            } else if (offset < firstOffset) {
+                if (endOffset() - offset > maxCapacity) {
+                    return false;
+                }
+                prepend((int) (firstOffset - offset));
+            }
+
+            long relative = offset - firstOffset;
+            if (relative >= maxCapacity) {
+                return false;
+            }
+
+            int idx = (int) relative;
+            if (idx >= slots.length) {
+                grow(idx + 1);
+            }
+
+            int slot = (head + idx) & (slots.length - 1);
+            if (slots[slot] != null) {
+                return false;
+            }
+
+            slots[slot] = value;
+            span = Math.max(span, idx + 1);
+            ++count;
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        Value get(long offset) {
+            if (offset < firstOffset || offset >= endOffset()) {
+                return null;
+            }
+
+            return (Value) slots[(head + (int) (offset - firstOffset)) & (slots.length - 1)];
+        }
+
+        @SuppressWarnings("unchecked")
+        void collect(long from, long to, List<Value> values) {
+            long start = Math.max(from, firstOffset);
+            long end = Math.min(to, endOffset() - 1);
+            int mask = slots.length - 1;
+
+            for (long offset = start; offset <= end; offset++) {
+                Value value = (Value) slots[(head + (int) (offset - firstOffset)) & mask];
+                if (value == null) {
+                    continue;
+                }
+
+                try {
+                    value.retain();
+                    values.add(value);
+                } catch (Throwable t) {
+                    // Value was already destroyed
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Value remove(long offset) {
+            if (offset < firstOffset || offset >= endOffset()) {
+                return null;
+            }
+
+            int slot = (head + (int) (offset - firstOffset)) & (slots.length - 1);
+            Value value = (Value) slots[slot];
+            if (value != null) {
+                slots[slot] = null;
+                --count;
+                trim();
+            }
+            return value;
+        }
+
+        @SuppressWarnings("unchecked")
+        Value peekFirst() {
+            return span == 0 ? null : (Value) slots[head];
+        }
+
+        @SuppressWarnings("unchecked")
+        Value pollFirst() {
+            if (span == 0) {
+                return null;
+            }
+
+            Value value = (Value) slots[head];
+            slots[head] = null;
+            --count;
+            trim();
+            return value;
+        }
+
+        /**
+         * Advance the head past empty slots and shrink the tail, so that the first and the last slots are always
+         * populated.
+         */
+        private void trim() {
+            int mask = slots.length - 1;
+            while (span > 0 && slots[head] == null) {
+                head = (head + 1) & mask;
+                ++firstOffset;
+                --span;
+            }
+
+            while (span > 0 && slots[(head + span - 1) & mask] == null) {
+                --span;
+            }
+
+            if (span == 0) {
+                head = 0;
+            }
+        }
+
+        /**
+         * Move the head back by {@code distance} empty slots, growing the array if needed.
+         */
+        private void prepend(int distance) {
+            int newSpan = span + distance;
+            if (newSpan > slots.length) {
+                grow(newSpan);
+            }
+
+            head = (head - distance) & (slots.length - 1);
+            firstOffset -= distance;
+            span = newSpan;
+        }
+
+        private void grow(int minCapacity) {
+            int newCapacity = slots.length;
+            while (newCapacity < minCapacity) {
+                newCapacity <<= 1;
+            }
+
+            Object[] newSlots = new Object[newCapacity];
+            int mask = slots.length - 1;
+            for (int i = 0; i < span; i++) {
+                newSlots[i] = slots[(head + i) & mask];
+            }
+
+            slots = newSlots;
+            head = 0;
+        }
+    }
+}
@@ -21,15 +21,19 @@ package org.apache.bookkeeper.mledger.impl;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
+import com.google.common.collect.Lists;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.bookkeeper.common.util.OrderedScheduler;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
 import org.apache.bookkeeper.mledger.Entry;
 import org.apache.bookkeeper.mledger.ManagedCursor;
 import org.apache.bookkeeper.mledger.ManagedLedger;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
 import org.apache.bookkeeper.mledger.ManagedLedgerFactory;
 import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
 import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
@@ -310,4 +314,215 @@ public class EntryCacheManagerTest extends MockedBookKeeperTestCase {
         factory.shutdown();
     }
 
+
+    @Test
+    void slabAllocation() throws Exception {
+        ManagedLedgerFactoryConfig config = new ManagedLedgerFactoryConfig();
+        config.setMaxCacheSize(100);
+        config.setCacheEvictionWatermark(0.8);
+        config.setCacheSlabSize(40);
+
+        factory = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle(), config);
+
+        EntryCacheManager cacheManager = factory.getEntryCacheManager();
+        EntryCacheSlabAllocator slabAllocator = cacheManager.getSlabAllocator();
+        EntryCache cache1 = cacheManager.getEntryCache(ml1);
+
+        assertTrue(cache1.insert(EntryImpl.create(1, 0, new byte[30])));
+        assertEquals(slabAllocator.getAllocatedSlabs(), 1);
+
+        // Doesn't fit in the first slab
+        assertTrue(cache1.insert(EntryImpl.create(1, 1, new byte[30])));
+        assertEquals(slabAllocator.getAllocatedSlabs(), 2);
+        assertEquals(cacheManager.getSize(), 60);
+
+        // No more slabs available, the entries of the oldest slab are evicted to make room
+        assertTrue(cache1.insert(EntryImpl.create(1, 2, new byte[30])));
+        assertEquals(slabAllocator.getAllocatedSlabs(), 2);
+        assertEquals(cacheManager.getSize(), 60);
+
+        // Entries bigger than a slab are never cached
+        assertFalse(cache1.insert(EntryImpl.create(1, 3, new byte[50])));
+
+        // Only the failures to get a slab are counted
+        factory.mbean.refreshStats(1, TimeUnit.SECONDS);
+        assertEquals(factory.mbean.getCacheSlabAllocationFailuresRate(), 0.0);
+
+        // Evicting the only entry of a slab releases it
+        cache1.invalidateEntries(new PositionImpl(1, 2));
+        assertEquals(slabAllocator.getAllocatedSlabs(), 1);
+        assertEquals(cacheManager.getSize(), 30);
+
+        assertTrue(cache1.insert(EntryImpl.create(1, 3, new byte[30])));
+        assertEquals(slabAllocator.getAllocatedSlabs(), 2);
+
+        cacheManager.removeEntryCache("cache1");
+        assertEquals(cacheManager.getSize(), 0);
+        assertEquals(slabAllocator.getAllocatedSlabs(), 1);
+
+        cacheManager.clear();
+        assertEquals(slabAllocator.getAllocatedSlabs(), 0);
+    }
+
+    @Test
+    void slabFragmentation() throws Exception {
+        ManagedLedgerFactoryConfig config = new ManagedLedgerFactoryConfig();
+        config.setMaxCacheSize(100);
+        config.setCacheEvictionWatermark(0.8);
+        config.setCacheSlabSize(40);
+
+        factory = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle(), config);
+
+        EntryCacheManager cacheManager = factory.getEntryCacheManager();
+        EntryCacheSlabAllocator slabAllocator = cacheManager.getSlabAllocator();
+        EntryCacheImpl cache1 = (EntryCacheImpl) cacheManager.getEntryCache(ml1);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(cache1.insert(EntryImpl.create(1, i, new byte[20])));
+        }
+        assertEquals(slabAllocator.getAllocatedSlabs(), 2);
+
+        // Each slab is held by a single long-lived entry, far below the eviction threshold
+        cache1.invalidateEntry(new PositionImpl(1, 0));
+        cache1.invalidateEntry(new PositionImpl(1, 2));
+        assertEquals(cacheManager.getSize(), 40);
+        assertEquals(slabAllocator.getAllocatedSlabs(), 2);
+
+        // The inserts recover by evicting the oldest slab
+        for (int i = 4; i < 10; i++) {
+            assertTrue(cache1.insert(EntryImpl.create(1, i, new byte[20])));
+        }
+        assertEquals(slabAllocator.getAllocatedSlabs(), 2);
+        assertEquals(cacheManager.getSize(), 80);
+        assertEquals(cache1.getSize(), 80);
+
+        factory.mbean.refreshStats(1, TimeUnit.SECONDS);
+        assertEquals(factory.mbean.getCacheSlabAllocationFailuresRate(), 0.0);
+
+        cacheManager.clear();
+        assertEquals(slabAllocator.getAllocatedSlabs(), 0);
+    }
+
+    @Test
+    void tinyLfuEvictionPolicy() throws Exception {
+        ManagedLedgerFactoryConfig config = new ManagedLedgerFactoryConfig();
+        config.setMaxCacheSize(10);
+        config.setCacheEvictionWatermark(0.8);
+        config.setCacheEvictionPolicyClassName(EntryCacheTinyLfuEvictionPolicy.class.getName());
+
+        factory = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle(), config);
+
+        EntryCacheManager cacheManager = factory.getEntryCacheManager();
+        EntryCache cache1 = cacheManager.getEntryCache(ml1);
+        EntryCache cache2 = cacheManager.getEntryCache(ml2);
+
+        // Entries of a reader catching up on cache2, that are not read again
+        for (int i = 0; i < 5; i++) {
+            assertTrue(cache2.insert(EntryImpl.create(2, i, new byte[1])));
+        }
+
+        // Tail entries of cache1, read by the consumers after they are inserted
+        for (int i = 0; i < 4; i++) {
+            assertTrue(cache1.insert(EntryImpl.create(1, i, new byte[1])));
+        }
+        cacheManager.recordAccess(cache1, 1, 0, 3);
+
+        assertTrue(cache2.insert(EntryImpl.create(2, 5, new byte[1])));
+        assertEquals(cacheManager.getSize(), 10);
+
+        // Next insert triggers a cache eviction to force the size to 8. The entries that were not read again are
+        // evicted first, even if they are the most recent ones of the cache
+        assertFalse(cache2.insert(EntryImpl.create(2, 6, new byte[1])));
+
+        // Wait for eviction to be completed in background
+        Thread.sleep(100);
+        assertEquals(cacheManager.getSize(), 8);
+        assertEquals(cache1.getSize(), 4);
+        assertEquals(cache2.getSize(), 4);
+
+        // Entries removed from the caches are no longer tracked
+        cache2.invalidateAllEntries(2);
+        cache1.invalidateEntries(new PositionImpl(1, 2));
+        assertEquals(cacheManager.getSize(), 2);
+        EntryCacheTinyLfuEvictionPolicy factoryPolicy = (EntryCacheTinyLfuEvictionPolicy) cacheManager
+                .getEvictionPolicy();
+        assertEquals(factoryPolicy.getProbationSize() + factoryPolicy.getProtectedSize(), 2);
+
+        // Under pressure, entries are admitted only if they are read as frequently as the next victim
+        EntryCacheTinyLfuEvictionPolicy policy = new EntryCacheTinyLfuEvictionPolicy();
+        policy.entryInserted(cache1, new PositionImpl(1, 0), 1);
+        for (int i = 0; i < 3; i++) {
+            policy.recordAccess(cache1, 1, 0, 0);
+        }
+        assertFalse(policy.shouldAdmit(cache2, new PositionImpl(2, 10)));
+        for (int i = 0; i < 3; i++) {
+            policy.recordAccess(cache2, 2, 10, 10);
+        }
+        assertTrue(policy.shouldAdmit(cache2, new PositionImpl(2, 10)));
+    }
+
+    @Test
+    void tinyLfuCatchUpAndTailingReaders() throws Exception {
+        ManagedLedgerFactoryConfig config = new ManagedLedgerFactoryConfig();
+        config.setMaxCacheSize(10);
+        config.setCacheEvictionWatermark(0.5);
+        config.setCacheEvictionPolicyClassName(EntryCacheTinyLfuEvictionPolicy.class.getName());
+
+        factory = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle(), config);
+
+        // The entries read from storage are only cached for read-only managed ledgers
+        ManagedLedgerImpl catchUpLedger = mock(ManagedLedgerImpl.class);
+        when(catchUpLedger.getName()).thenReturn("cache3");
+        when(catchUpLedger.isReadOnly()).thenReturn(true);
+
+        EntryCacheManager cacheManager = factory.getEntryCacheManager();
+        EntryCache tailCache = cacheManager.getEntryCache(ml1);
+        EntryCacheImpl catchUpCache = (EntryCacheImpl) cacheManager.getEntryCache(catchUpLedger);
+        ReadEntriesCallback releaseEntries = new ReadEntriesCallback() {
+            @Override
+            public void readEntriesComplete(List<Entry> entries, Object ctx) {
+                entries.forEach(Entry::release);
+            }
+
+            @Override
+            public void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+            }
+        };
+
+        // A reader catching up reads its backlog from storage, each entry is read once
+        for (long entryId = 0; entryId < 5; entryId++) {
+            readFromStorage(cacheManager, catchUpCache, entryId, releaseEntries);
+        }
+
+        for (int i = 0; i < 3; i++) {
+            // The new entries are cached above the watermark, and the tailing reader reads them from the cache
+            assertTrue(cacheManager.getSize() >= 5);
+            assertTrue(tailCache.insert(EntryImpl.create(1, i, new byte[1])));
+            cacheManager.recordAccess(tailCache, 1, i, i);
+
+            if (i < 2) {
+                readFromStorage(cacheManager, catchUpCache, 5 + i, releaseEntries);
+            }
+        }
+        assertEquals(cacheManager.getSize(), 10);
+
+        // Eviction drops the backlog entries that were not read again, the tail entries stay cached
+        assertFalse(tailCache.insert(EntryImpl.create(1, 3, new byte[1])));
+
+        // Wait for eviction to be completed in background
+        Thread.sleep(100);
+        assertEquals(cacheManager.getSize(), 5);
+        assertEquals(tailCache.getSize(), 3);
+        assertEquals(catchUpCache.getSize(), 2);
+
+        factory.mbean.refreshStats(1, TimeUnit.SECONDS);
+        assertEquals(factory.mbean.getCacheAdmissionRejectionsRate(), 0.0);
+    }
+
+    private static void readFromStorage(EntryCacheManager cacheManager, EntryCacheImpl cache, long entryId,
+            ReadEntriesCallback callback) {
+        cacheManager.recordAccess(cache, 3, entryId, entryId);
+        cache.readFromStorageComplete(Lists.newArrayList(EntryImpl.create(3, entryId, new byte[1])), 1, callback,
+                null);
+    }
 }
@@ -22,6 +22,9 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.*;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
 
 import io.netty.buffer.Unpooled;
 import java.lang.reflect.Method;
@@ -35,6 +38,7 @@ import org.apache.bookkeeper.client.api.LedgerEntries;
 import org.apache.bookkeeper.client.api.LedgerEntry;
 import org.apache.bookkeeper.client.api.ReadHandle;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntryCallback;
 import org.apache.bookkeeper.mledger.Entry;
 import org.apache.bookkeeper.mledger.ManagedLedgerException;
 import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
@@ -91,6 +95,41 @@ public class EntryCacheTest extends MockedBookKeeperTestCase {
         verify(lh, never()).readAsync(anyLong(), anyLong());
     }
 
+    @Test(timeOut = 5000)
+    void testInsertAndGet() throws Exception {
+        ReadHandle lh = getLedgerHandle();
+        when(lh.getId()).thenReturn((long) 0);
+
+        EntryCacheManager cacheManager = factory.getEntryCacheManager();
+        EntryCache entryCache = cacheManager.getEntryCache(ml);
+
+        EntryImpl entry = EntryImpl.create(0, 0, "entry-0".getBytes());
+        EntryImpl sharedEntry = entryCache.insertAndGet(entry);
+        assertNotNull(sharedEntry);
+        assertEquals(sharedEntry.getPosition(), entry.getPosition());
+
+        // The returned entry shares the buffer of the cached copy, not the one of the inserted entry
+        CompletableFuture<Entry> cachedEntry = new CompletableFuture<>();
+        entryCache.asyncReadEntry(lh, PositionImpl.get(0, 0), new ReadEntryCallback() {
+            public void readEntryComplete(Entry entry, Object ctx) {
+                cachedEntry.complete(entry);
+            }
+
+            public void readEntryFailed(ManagedLedgerException exception, Object ctx) {
+                cachedEntry.completeExceptionally(exception);
+            }
+        }, null);
+        assertSame(((EntryImpl) cachedEntry.get()).getDataBuffer().unwrap(), sharedEntry.getDataBuffer().unwrap());
+        assertNotSame(entry.getDataBuffer().unwrap(), sharedEntry.getDataBuffer().unwrap());
+        cachedEntry.get().release();
+        entry.release();
+
+        // The entry stays valid when the cached copy is evicted
+        entryCache.clear();
+        assertEquals(new String(sharedEntry.getDataAndRelease()), "entry-0");
+        verify(lh, never()).readAsync(anyLong(), anyLong());
+    }
+
     @Test(timeOut = 5000)
     void testReadMissingBefore() throws Exception {
         ReadHandle lh = getLedgerHandle();
@@ -236,6 +275,124 @@ public class EntryCacheTest extends MockedBookKeeperTestCase {
         counter.await();
     }
 
+    @Test(timeOut = 5000)
+    void testConcurrentReadsAreCoalesced() throws Exception {
+        final ReadHandle lh = mock(ReadHandle.class);
+        when(lh.getId()).thenReturn((long) 0);
+
+        CompletableFuture<LedgerEntries> readFuture = new CompletableFuture<>();
+        doReturn(readFuture).when(lh).readAsync(anyLong(), anyLong());
+
+        EntryCacheManager cacheManager = factory.getEntryCacheManager();
+        EntryCacheImpl entryCache = (EntryCacheImpl) cacheManager.getEntryCache(ml);
+
+        final CountDownLatch counter = new CountDownLatch(3);
+        final List<List<Entry>> results = new Vector<>();
+        ReadEntriesCallback callback = new ReadEntriesCallback() {
+            public void readEntriesComplete(List<Entry> entries, Object ctx) {
+                results.add(entries);
+                counter.countDown();
+            }
+
+            public void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+                Assert.fail("should not have failed");
+            }
+        };
+
+        entryCache.asyncReadEntry(lh, 0, 9, false, callback, null);
+        entryCache.asyncReadEntry(lh, 0, 9, false, callback, null);
+        entryCache.asyncReadEntry(lh, 3, 5, false, callback, null);
+        assertEquals(entryCache.getPendingReadsManager().getPendingReadsCount(), 1);
+
+        // Only one read was sent to the bookies
+        verify(lh, times(1)).readAsync(anyLong(), anyLong());
+
+        Vector<LedgerEntry> entries = new Vector<>();
+        for (int i = 0; i < 10; i++) {
+            LedgerEntry ledgerEntry = mock(LedgerEntry.class);
+            doReturn(Unpooled.wrappedBuffer(new byte[] { (byte) i })).when(ledgerEntry).getEntryBuffer();
+            doReturn((long) i).when(ledgerEntry).getEntryId();
+            doReturn((long) 1).when(ledgerEntry).getLength();
+            entries.add(ledgerEntry);
+        }
+        LedgerEntries ledgerEntries = mock(LedgerEntries.class);
+        doAnswer((invocation) -> entries.iterator()).when(ledgerEntries).iterator();
+        readFuture.complete(ledgerEntries);
+        counter.await();
+
+        assertEquals(entryCache.getPendingReadsManager().getPendingReadsCount(), 0);
+        assertEquals(results.size(), 3);
+        for (List<Entry> result : results) {
+            long firstEntry = result.get(0).getEntryId();
+            assertEquals(result.size(), firstEntry == 0 ? 10 : 3);
+            for (int i = 0; i < result.size(); i++) {
+                assertEquals(result.get(i).getEntryId(), firstEntry + i);
+                assertEquals(result.get(i).getData()[0], (byte) (firstEntry + i));
+            }
+            result.forEach(Entry::release);
+        }
+
+        // A range that is not fully covered triggers a new read
+        readFuture = new CompletableFuture<>();
+        doReturn(readFuture).when(lh).readAsync(anyLong(), anyLong());
+        entryCache.asyncReadEntry(lh, 0, 9, false, callback, null);
+        entryCache.asyncReadEntry(lh, 5, 12, false, callback, null);
+        assertEquals(entryCache.getPendingReadsManager().getPendingReadsCount(), 2);
+        verify(lh, times(3)).readAsync(anyLong(), anyLong());
+    }
+
+    @Test(timeOut = 5000)
+    void testCoalescedReadsCompleteWhenCallbackFails() throws Exception {
+        final ReadHandle lh = mock(ReadHandle.class);
+        when(lh.getId()).thenReturn((long) 0);
+
+        EntryCacheManager cacheManager = factory.getEntryCacheManager();
+        EntryCacheImpl entryCache = (EntryCacheImpl) cacheManager.getEntryCache(ml);
+
+        final CountDownLatch completed = new CountDownLatch(2);
+        final CountDownLatch failed = new CountDownLatch(2);
+        ReadEntriesCallback callback = new ReadEntriesCallback() {
+            public void readEntriesComplete(List<Entry> entries, Object ctx) {
+                entries.forEach(Entry::release);
+                completed.countDown();
+                if (ctx != null) {
+                    throw new RuntimeException("callback failure");
+                }
+            }
+
+            public void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+                failed.countDown();
+                if (ctx != null) {
+                    throw new RuntimeException("callback failure");
+                }
+            }
+        };
+
+        // The first callback throws, the second one still completes
+        CompletableFuture<LedgerEntries> readFuture = new CompletableFuture<>();
+        doReturn(readFuture).when(lh).readAsync(anyLong(), anyLong());
+        entryCache.asyncReadEntry(lh, 0, 0, false, callback, "throw");
+        entryCache.asyncReadEntry(lh, 0, 0, false, callback, null);
+
+        LedgerEntry ledgerEntry = mock(LedgerEntry.class);
+        doReturn(Unpooled.wrappedBuffer(new byte[1])).when(ledgerEntry).getEntryBuffer();
+        doReturn((long) 0).when(ledgerEntry).getEntryId();
+        doReturn((long) 1).when(ledgerEntry).getLength();
+        Vector<LedgerEntry> entries = new Vector<>();
+        entries.add(ledgerEntry);
+        LedgerEntries ledgerEntries = mock(LedgerEntries.class);
+        doAnswer((invocation) -> entries.iterator()).when(ledgerEntries).iterator();
+        readFuture.complete(ledgerEntries);
+        completed.await();
+
+        readFuture = new CompletableFuture<>();
+        doReturn(readFuture).when(lh).readAsync(anyLong(), anyLong());
+        entryCache.asyncReadEntry(lh, 1, 1, false, callback, "throw");
+        entryCache.asyncReadEntry(lh, 1, 1, false, callback, null);
+        readFuture.completeExceptionally(new BKNoSuchLedgerExistsException());
+        failed.await();
+    }
+
     private static ReadHandle getLedgerHandle() {
         final ReadHandle lh = mock(ReadHandle.class);
         final LedgerEntry ledgerEntry = mock(LedgerEntry.class, Mockito.CALLS_REAL_METHODS);
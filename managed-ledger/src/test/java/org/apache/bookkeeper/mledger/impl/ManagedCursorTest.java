@@ -28,14 +28,17 @@ import static org.testng.Assert.*;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutorService;
@@ -51,13 +54,16 @@ import org.apache.bookkeeper.client.BKException;
 import org.apache.bookkeeper.client.BookKeeper;
 import org.apache.bookkeeper.client.BookKeeper.DigestType;
 import org.apache.bookkeeper.client.LedgerEntry;
+import org.apache.bookkeeper.client.LedgerHandle;
 import org.apache.bookkeeper.mledger.AsyncCallbacks;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.AddEntryCallback;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.DeleteCallback;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.FindEntryCallback;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.MarkDeleteCallback;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
 import org.apache.bookkeeper.mledger.Entry;
 import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedCursor.FindPositionConstraint;
 import org.apache.bookkeeper.mledger.ManagedCursor.IndividualDeletedEntries;
 import org.apache.bookkeeper.mledger.ManagedLedger;
 import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
@@ -69,9 +75,12 @@ import org.apache.bookkeeper.mledger.Position;
 import org.apache.bookkeeper.mledger.impl.ManagedCursorImpl.VoidCallback;
 import org.apache.bookkeeper.mledger.impl.MetaStore.MetaStoreCallback;
 import org.apache.bookkeeper.mledger.impl.MetaStore.Stat;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.LongProperty;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedCursorInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.PositionInfo;
 import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
+import org.apache.pulsar.common.util.collections.CompressedLongPairRangeSet;
 import org.apache.zookeeper.KeeperException.Code;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -1561,6 +1570,51 @@ public class ManagedCursorTest extends MockedBookKeeperTestCase {
         assertEquals(c1.getReadPosition(), p4.getNext());
     }
 
+    @Test(timeOut = 20000)
+    void individualDeletesWithCompressedRangeSet() throws Exception {
+        ManagedLedgerConfig config = new ManagedLedgerConfig().setUnackedRangesCompressedSetEnabled(true)
+                .setMaxEntriesPerLedger(5);
+        ManagedLedger ledger = factory.open("my_test_ledger", config);
+        ManagedCursorImpl c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        assertTrue(c1.getIndividuallyDeletedMessagesSet() instanceof CompressedLongPairRangeSet);
+
+        List<Position> positions = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            positions.add(ledger.addEntry(("entry-" + i).getBytes(Encoding)));
+        }
+
+        // Delete every other entry, except the first one
+        for (int i = 1; i < 20; i += 2) {
+            c1.delete(positions.get(i));
+        }
+        assertEquals(c1.getNumberOfEntriesInBacklog(), 10);
+        assertEquals(c1.getTotalNonContiguousDeletedMessagesRange(), 10);
+        assertTrue(isIndividuallyDeleted(c1, positions.get(3)));
+        assertFalse(isIndividuallyDeleted(c1, positions.get(4)));
+
+        c1.delete(positions.get(0));
+        c1.delete(positions.get(2));
+        assertEquals(c1.getMarkDeletedPosition(), positions.get(3));
+        assertEquals(c1.getTotalNonContiguousDeletedMessagesRange(), 8);
+
+        ledger.close();
+
+        // The unacked ranges are recovered in a compressed set
+        ledger = factory.open("my_test_ledger", config);
+        c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        assertTrue(c1.getIndividuallyDeletedMessagesSet() instanceof CompressedLongPairRangeSet);
+        assertEquals(c1.getMarkDeletedPosition(), positions.get(3));
+        assertEquals(c1.getNumberOfEntriesInBacklog(), 8);
+        assertEquals(c1.getTotalNonContiguousDeletedMessagesRange(), 8);
+        assertTrue(isIndividuallyDeleted(c1, positions.get(19)));
+        assertFalse(isIndividuallyDeleted(c1, positions.get(18)));
+    }
+
+    private static boolean isIndividuallyDeleted(ManagedCursorImpl cursor, Position position) {
+        PositionImpl p = (PositionImpl) position;
+        return cursor.getIndividuallyDeletedMessagesSet().contains(p.getLedgerId(), p.getEntryId());
+    }
+
     @Test(timeOut = 10000, dataProvider = "useOpenRangeSet")
     void testReadEntriesOrWait(boolean useOpenRangeSet) throws Exception {
         ManagedLedger ledger = factory.open("my_test_ledger",
@@ -1649,6 +1703,72 @@ public class ManagedCursorTest extends MockedBookKeeperTestCase {
                 c1.findNewestMatching(entry -> Arrays.equals(entry.getDataAndRelease(), "expired".getBytes(Encoding))));
     }
 
+    @Test(timeOut = 20000)
+    void testFindNewestMatchingWithPublishTimeIndex() throws Exception {
+        ManagedLedgerConfig config = new ManagedLedgerConfig().setPublishTimeIndexMaxPointsPerLedger(16)
+                .setEntryTimestampExtractor(data -> Long.parseLong(data.toString(Encoding)))
+                .setMaxEntriesPerLedger(100);
+        ManagedLedger ledger = factory.open("my_test_ledger", config);
+        ManagedCursorImpl c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+
+        // One entry published per second, the last ledger only has 5 entries
+        List<Position> positions = Lists.newArrayList();
+        List<Long> publishTimes = Lists.newArrayList();
+        long firstPublishTime = System.currentTimeMillis();
+        for (int i = 0; i < 1005; i++) {
+            long publishTime = firstPublishTime + TimeUnit.SECONDS.toMillis(i);
+            positions.add(ledger.addEntry(Long.toString(publishTime).getBytes(Encoding)));
+            publishTimes.add(publishTime);
+        }
+        LedgerInfo firstLedger = ((ManagedLedgerImpl) ledger).getLedgersInfoAsList().get(0);
+        assertTrue(firstLedger.getPublishTimeIndexEntriesCount() > 1);
+        assertTrue(firstLedger.getPublishTimeIndexEntriesCount() <= 16);
+
+        // Only the entries between the index points around the timestamp are read
+        for (int i : new int[] { 0, 250, 499, 500, 501, 750, 999, 1000, 1004 }) {
+            List<Long> checkedPublishTimes = Collections.synchronizedList(Lists.newArrayList());
+            assertEquals(findNewestPublishedBefore(c1, publishTimes.get(i), checkedPublishTimes), positions.get(i));
+            assertEquals(findNewestPublishedBefore(c1, publishTimes.get(i) + 500, checkedPublishTimes),
+                    positions.get(i));
+            assertTrue(checkedPublishTimes.size() <= 10, "Checked " + checkedPublishTimes);
+        }
+
+        // All the entries of the current ledger are indexed, no entry is read
+        List<Long> checkedPublishTimes = Collections.synchronizedList(Lists.newArrayList());
+        assertEquals(findNewestPublishedBefore(c1, publishTimes.get(1002), checkedPublishTimes), positions.get(1002));
+        assertNull(findNewestPublishedBefore(c1, firstPublishTime - 1, checkedPublishTimes));
+        assertEquals(checkedPublishTimes, Collections.emptyList());
+
+        // The index of the closed ledgers is recovered
+        ManagedLedgerFactory factory2 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
+        ledger = factory2.open("my_test_ledger", config);
+        c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        assertEquals(findNewestPublishedBefore(c1, publishTimes.get(750), checkedPublishTimes), positions.get(750));
+        assertTrue(checkedPublishTimes.size() <= 5, "Checked " + checkedPublishTimes);
+        factory2.shutdown();
+    }
+
+    private static Position findNewestPublishedBefore(ManagedCursor cursor, long timestamp,
+            List<Long> checkedPublishTimes) throws Exception {
+        CompletableFuture<Position> future = new CompletableFuture<>();
+        cursor.asyncFindNewestMatching(FindPositionConstraint.SearchAllAvailableEntries, entry -> {
+            long publishTime = Long.parseLong(new String(entry.getDataAndRelease(), Encoding));
+            checkedPublishTimes.add(publishTime);
+            return publishTime <= timestamp;
+        }, timestamp, new FindEntryCallback() {
+            @Override
+            public void findEntryComplete(Position position, Object ctx) {
+                future.complete(position);
+            }
+
+            @Override
+            public void findEntryFailed(ManagedLedgerException exception, Object ctx) {
+                future.completeExceptionally(exception);
+            }
+        }, null);
+        return future.get();
+    }
+
     @Test(timeOut = 20000)
     void testFindNewestMatchingOdd1() throws Exception {
         ManagedLedger ledger = factory.open("my_test_ledger");
@@ -2503,6 +2623,375 @@ public class ManagedCursorTest extends MockedBookKeeperTestCase {
         factory2.shutdown();
     }
 
+    @Test(timeOut = 20000)
+    public void testUnackedRangesPersistenceInMultipleEntriesAfterCrash() throws Exception {
+        ManagedLedgerConfig config = new ManagedLedgerConfig().setMaxUnackedRangesToPersist(10)
+                .setPersistentUnackedRangesWithMultipleEntriesEnabled(true)
+                .setPersistentUnackedRangesMaxEntrySize(64);
+        config.setMaxUnackedRangesToPersistInZk(5);
+        ManagedLedger ledger = factory.open("my_test_ledger", config);
+
+        ManagedCursorImpl c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        List<Position> addedPositions = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Position p = ledger.addEntry(("dummy-entry-" + i).getBytes(Encoding));
+            addedPositions.add(p);
+        }
+
+        // Acknowledge every other message, leaving 100 holes
+        for (int i = 1; i < 200; i += 2) {
+            c1.delete(addedPositions.get(i));
+        }
+        assertEquals(c1.getNumberOfEntriesInBacklog(), 100);
+        assertEquals(c1.getTotalNonContiguousDeletedMessagesRange(), 100);
+        long cursorLedgerEntries = c1.getCursorLedgerLastEntry();
+
+        // Re-Open
+        ManagedLedgerFactory factory2 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
+        ledger = factory2.open("my_test_ledger", config);
+        c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        assertEquals(c1.getNumberOfEntriesInBacklog(), 100);
+        assertEquals(c1.getTotalNonContiguousDeletedMessagesRange(), 100);
+
+        List<Entry> entries = c1.readEntries(200);
+        assertEquals(entries.size(), 100);
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(new String(entries.get(i).getDataAndRelease(), Encoding), "dummy-entry-" + (2 * i));
+        }
+
+        // Only the first unacked ranges are recovered without multiple entries
+        assertTrue(cursorLedgerEntries > 0);
+        ManagedLedgerFactory factory3 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
+        ledger = factory3.open("my_test_ledger", config.setPersistentUnackedRangesWithMultipleEntriesEnabled(false));
+        c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        c1.delete(addedPositions.get(0));
+        ManagedLedgerFactory factory4 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
+        ledger = factory4.open("my_test_ledger", config);
+        c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        assertEquals(c1.getMarkDeletedPosition(), addedPositions.get(1));
+        assertTrue(c1.getTotalNonContiguousDeletedMessagesRange() < 99);
+
+        factory2.shutdown();
+        factory3.shutdown();
+        factory4.shutdown();
+    }
+
+    @Test(timeOut = 20000)
+    public void testUnackedRangesChunksReusedAcrossUpdates() throws Exception {
+        ManagedLedgerConfig config = new ManagedLedgerConfig().setMaxUnackedRangesToPersist(10)
+                .setPersistentUnackedRangesWithMultipleEntriesEnabled(true)
+                .setPersistentUnackedRangesMaxEntrySize(64);
+        config.setMaxUnackedRangesToPersistInZk(5);
+        ManagedLedger ledger = factory.open("my_test_ledger", config);
+
+        ManagedCursorImpl c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        List<Position> addedPositions = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            addedPositions.add(ledger.addEntry(("dummy-entry-" + i).getBytes(Encoding)));
+        }
+        for (int i = 1; i < 200; i += 2) {
+            c1.delete(addedPositions.get(i));
+        }
+
+        // Only the last chunk is written again, followed by the entry with the position
+        long cursorLedgerEntries = c1.getCursorLedgerLastEntry();
+        c1.delete(addedPositions.get(198));
+        assertEquals(c1.getCursorLedgerLastEntry(), cursorLedgerEntries + 2);
+
+        // Merging the ranges at the start of a chunk changes at most two chunks
+        cursorLedgerEntries = c1.getCursorLedgerLastEntry();
+        c1.delete(addedPositions.get(100));
+        assertTrue(c1.getCursorLedgerLastEntry() <= cursorLedgerEntries + 3);
+
+        // The reused chunks are recovered
+        ManagedLedgerFactory factory2 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
+        ledger = factory2.open("my_test_ledger", config);
+        c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        assertEquals(c1.getNumberOfEntriesInBacklog(), 98);
+        assertEquals(c1.getTotalNonContiguousDeletedMessagesRange(), 98);
+
+        List<Entry> entries = c1.readEntries(200);
+        assertEquals(entries.size(), 98);
+        List<String> entriesStr = entries.stream().map(e -> new String(e.getDataAndRelease(), Encoding))
+                .collect(Collectors.toList());
+        for (int i = 0; i < 200; i += 2) {
+            assertEquals(entriesStr.contains("dummy-entry-" + i), i != 100 && i != 198);
+        }
+
+        factory2.shutdown();
+    }
+
+    @Test(timeOut = 20000)
+    public void testUnackedRangesRecoveryFromIncompleteChunks() throws Exception {
+        ManagedLedgerConfig config = new ManagedLedgerConfig().setMaxUnackedRangesToPersist(10)
+                .setPersistentUnackedRangesWithMultipleEntriesEnabled(true)
+                .setPersistentUnackedRangesMaxEntrySize(64);
+        config.setMaxUnackedRangesToPersistInZk(5);
+        ManagedLedger ledger = factory.open("my_test_ledger", config);
+
+        ManagedCursorImpl c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        List<Position> addedPositions = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            addedPositions.add(ledger.addEntry(("dummy-entry-" + i).getBytes(Encoding)));
+        }
+        for (int i = 1; i < 200; i += 2) {
+            c1.delete(addedPositions.get(i));
+        }
+
+        // The cursor stops after writing a chunk, without the entry referencing it
+        PositionImpl first = (PositionImpl) addedPositions.get(0);
+        UnackedRangesEncoder encoder = new UnackedRangesEncoder(64);
+        encoder.add(first.getLedgerId(), first.getEntryId(), first.getLedgerId(), first.getEntryId() + 10);
+        PositionInfo.Builder chunk = PositionInfo.newBuilder().setLedgerId(first.getLedgerId()).setEntryId(-1);
+        for (long value : encoder.getChunks().get(0).ranges) {
+            chunk.addIndividualDeletedMessageRanges(value);
+        }
+        LedgerHandle cursorLedger = bkc.openLedgerNoRecovery(c1.getCursorLedger(), DigestType.CRC32C, new byte[0]);
+        cursorLedger.addEntry(chunk.build().toByteArray());
+
+        // The previous complete entry is recovered instead
+        ManagedLedgerFactory factory2 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
+        ledger = factory2.open("my_test_ledger", config);
+        c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        assertEquals(c1.getNumberOfEntriesInBacklog(), 100);
+        assertEquals(c1.getTotalNonContiguousDeletedMessagesRange(), 100);
+
+        // A chunk that can't be parsed fails the recovery instead of losing unacked ranges
+        cursorLedger = bkc.openLedgerNoRecovery(c1.getCursorLedger(), DigestType.CRC32C, new byte[0]);
+        long corruptedChunk = cursorLedger.addEntry(new byte[0]);
+        cursorLedger.addEntry(PositionInfo.newBuilder().setLedgerId(first.getLedgerId()).setEntryId(-1)
+                .addIndividualDeletedMessagesChunkEntries(corruptedChunk).build().toByteArray());
+
+        ManagedLedgerFactory factory3 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
+        try {
+            factory3.open("my_test_ledger", config);
+            fail("Should have failed to recover the cursor");
+        } catch (ManagedLedgerException e) {
+            // Expected
+        }
+
+        factory2.shutdown();
+        factory3.shutdown();
+    }
+
+    @Test(timeOut = 20000)
+    public void testCursorRecoveryFromLocalSnapshot() throws Exception {
+        String snapshotDirectory = Files.createTempDirectory("cursor-snapshots").toString();
+        ManagedLedgerFactoryConfig factoryConfig = new ManagedLedgerFactoryConfig();
+        factoryConfig.setCursorSnapshotDirectory(snapshotDirectory);
+        ManagedLedgerConfig config = new ManagedLedgerConfig().setMaxUnackedRangesToPersist(10)
+                .setPersistentUnackedRangesWithMultipleEntriesEnabled(true)
+                .setPersistentUnackedRangesMaxEntrySize(64);
+        config.setMaxUnackedRangesToPersistInZk(5);
+
+        ManagedLedgerFactory factory1 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle(), factoryConfig);
+        ManagedLedger ledger = factory1.open("my_test_ledger", config);
+        ManagedCursorImpl c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        List<Position> addedPositions = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            addedPositions.add(ledger.addEntry(("dummy-entry-" + i).getBytes(Encoding)));
+        }
+        for (int i = 1; i < 200; i += 2) {
+            c1.delete(addedPositions.get(i));
+        }
+
+        // An outdated snapshot is ignored
+        CursorSnapshotStore snapshotStore = new CursorSnapshotStore(snapshotDirectory);
+        CursorSnapshotStore.Snapshot snapshot = waitForSnapshot(snapshotStore, c1);
+        snapshotStore.write("my_test_ledger", "c1", markedSnapshot(snapshot, snapshot.lastEntryId - 1));
+        snapshotStore.close();
+
+        ManagedLedgerFactory factory2 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle(), factoryConfig);
+        ledger = factory2.open("my_test_ledger", config);
+        c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        assertFalse(c1.getProperties().containsKey("snapshot"));
+        assertEquals(c1.getNumberOfEntriesInBacklog(), 100);
+        assertEquals(c1.getTotalNonContiguousDeletedMessagesRange(), 100);
+
+        // The snapshot of the last entry of the cursor ledger is used instead of reading the ledger
+        c1.delete(addedPositions.get(198));
+        snapshotStore = new CursorSnapshotStore(snapshotDirectory);
+        snapshot = waitForSnapshot(snapshotStore, c1);
+        assertFalse(snapshot.chunks.isEmpty());
+        snapshotStore.write("my_test_ledger", "c1", markedSnapshot(snapshot, snapshot.lastEntryId));
+        snapshotStore.close();
+
+        ManagedLedgerFactory factory3 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle(), factoryConfig);
+        ledger = factory3.open("my_test_ledger", config);
+        c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        assertTrue(c1.getProperties().containsKey("snapshot"));
+        assertEquals(c1.getNumberOfEntriesInBacklog(), 99);
+        assertEquals(c1.getTotalNonContiguousDeletedMessagesRange(), 99);
+
+        List<Entry> entries = c1.readEntries(200);
+        assertEquals(entries.size(), 99);
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(new String(entries.get(i).getDataAndRelease(), Encoding), "dummy-entry-" + (2 * i));
+        }
+
+        factory1.shutdown();
+        factory2.shutdown();
+        factory3.shutdown();
+    }
+
+    private static CursorSnapshotStore.Snapshot waitForSnapshot(CursorSnapshotStore snapshotStore,
+            ManagedCursorImpl cursor) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            CursorSnapshotStore.Snapshot snapshot = snapshotStore.read("my_test_ledger", cursor.getName());
+            if (snapshot != null && snapshot.cursorLedgerId == cursor.getCursorLedger()
+                    && snapshot.lastEntryId == cursor.getCursorLedgerLastEntry()) {
+                return snapshot;
+            }
+            Thread.sleep(100);
+        }
+        fail("Cursor snapshot was not written");
+        return null;
+    }
+
+    private static CursorSnapshotStore.Snapshot markedSnapshot(CursorSnapshotStore.Snapshot snapshot,
+            long lastEntryId) {
+        PositionInfo positionInfo = PositionInfo.newBuilder(snapshot.positionInfo)
+                .addProperties(LongProperty.newBuilder().setName("snapshot").setValue(1)).build();
+        return new CursorSnapshotStore.Snapshot(snapshot.cursorLedgerId, lastEntryId, positionInfo, snapshot.chunks);
+    }
+
+    @Test
+    public void testCursorSnapshotSerialization() throws Exception {
+        PositionInfo positionInfo = PositionInfo.newBuilder().setLedgerId(1).setEntryId(2)
+                .addIndividualDeletedMessagesChunkEntries(0).build();
+        PositionInfo chunk = PositionInfo.newBuilder().setLedgerId(1).setEntryId(2)
+                .addIndividualDeletedMessageRanges(1).addIndividualDeletedMessageRanges(4)
+                .addIndividualDeletedMessageRanges(0).addIndividualDeletedMessageRanges(1).build();
+        byte[] data = CursorSnapshotStore.serialize(
+                new CursorSnapshotStore.Snapshot(3, 1, positionInfo, Collections.singletonList(chunk)));
+
+        CursorSnapshotStore.Snapshot snapshot = CursorSnapshotStore.deserialize(data);
+        assertEquals(snapshot.cursorLedgerId, 3);
+        assertEquals(snapshot.lastEntryId, 1);
+        assertEquals(snapshot.positionInfo, positionInfo);
+        assertEquals(snapshot.chunks, Collections.singletonList(chunk));
+
+        // Corrupted snapshots are rejected
+        data[10] ^= 1;
+        try {
+            CursorSnapshotStore.deserialize(data);
+            fail("Should have failed");
+        } catch (IOException e) {
+            // Expected
+        }
+        try {
+            CursorSnapshotStore.deserialize(Arrays.copyOf(data, 2));
+            fail("Should have failed");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test(timeOut = 20000)
+    public void testMarkDeleteGroupCommit() throws Exception {
+        ManagedLedgerConfig config = new ManagedLedgerConfig().setMarkDeleteGroupCommitEnabled(true);
+        ManagedLedger ledger = factory.open("my_test_ledger", config);
+
+        ManagedCursorImpl c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        final int N = 100;
+        List<Position> addedPositions = new ArrayList<>();
+        for (int i = 0; i < N; i++) {
+            addedPositions.add(ledger.addEntry(("dummy-entry-" + i).getBytes(Encoding)));
+        }
+        long cursorLedgerEntries = c1.getCursorLedgerLastEntry();
+
+        // Acknowledge all the messages without waiting, they get queued behind the outstanding write
+        final CountDownLatch counter = new CountDownLatch(N);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        for (Position p : addedPositions) {
+            c1.asyncDelete(p, new DeleteCallback() {
+                @Override
+                public void deleteComplete(Object ctx) {
+                    counter.countDown();
+                }
+
+                @Override
+                public void deleteFailed(ManagedLedgerException exception, Object ctx) {
+                    failed.set(true);
+                    counter.countDown();
+                }
+            }, null);
+        }
+        counter.await();
+        assertFalse(failed.get());
+        assertEquals(c1.getMarkDeletedPosition(), addedPositions.get(N - 1));
+
+        // Fewer writes than acknowledgments
+        long writes = c1.getCursorLedgerLastEntry() - cursorLedgerEntries;
+        assertTrue(writes > 0 && writes < N, "Writes: " + writes);
+
+        // Re-Open without closing, the last position was persisted in the cursor ledger
+        ManagedLedgerFactory factory2 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
+        ledger = factory2.open("my_test_ledger", config);
+        c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        assertEquals(c1.getMarkDeletedPosition(), addedPositions.get(N - 1));
+        assertEquals(c1.getNumberOfEntriesInBacklog(), 0);
+        factory2.shutdown();
+    }
+
+    @Test(timeOut = 20000)
+    public void testTailReadFanOut() throws Exception {
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger",
+                new ManagedLedgerConfig().setTailReadFanOutEnabled(true));
+
+        ManagedCursor c1 = ledger.openCursor("c1");
+        ManagedCursor c2 = ledger.openCursor("c2");
+        ManagedCursor c3 = ledger.openCursor("c3");
+        ledger.addEntry("entry-0".getBytes(Encoding));
+        c1.readEntries(1).forEach(Entry::release);
+        c2.readEntries(1).forEach(Entry::release);
+
+        // c1 and c2 wait at the tail, c3 is behind
+        List<CompletableFuture<List<Entry>>> futures = new ArrayList<>();
+        for (ManagedCursor cursor : Lists.newArrayList(c1, c2, c3)) {
+            CompletableFuture<List<Entry>> future = new CompletableFuture<>();
+            futures.add(future);
+            cursor.asyncReadEntriesOrWait(10, new ReadEntriesCallback() {
+                @Override
+                public void readEntriesComplete(List<Entry> entries, Object ctx) {
+                    future.complete(entries);
+                }
+
+                @Override
+                public void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+                    future.completeExceptionally(exception);
+                }
+            }, null);
+        }
+
+        List<Entry> entries = futures.get(2).get();
+        assertEquals(entries.size(), 1);
+        assertEquals(new String(entries.get(0).getDataAndRelease(), Encoding), "entry-0");
+
+        while (ledger.getWaitingCursorsCount() < 2) {
+            Thread.sleep(10);
+        }
+        Position position = ledger.addEntry("entry-1".getBytes(Encoding));
+
+        List<Entry> entries1 = futures.get(0).get();
+        List<Entry> entries2 = futures.get(1).get();
+        assertEquals(entries1.size(), 1);
+        assertEquals(entries2.size(), 1);
+        assertEquals(entries1.get(0).getPosition(), position);
+        assertEquals(entries2.get(0).getPosition(), position);
+
+        // Both cursors got the same buffer
+        assertTrue(((EntryImpl) entries1.get(0)).getDataBuffer().unwrap()
+                == ((EntryImpl) entries2.get(0)).getDataBuffer().unwrap());
+        assertEquals(new String(entries1.get(0).getDataAndRelease(), Encoding), "entry-1");
+        assertEquals(new String(entries2.get(0).getDataAndRelease(), Encoding), "entry-1");
+        assertEquals(c1.getReadPosition(), position.getNext());
+        assertEquals(c2.getReadPosition(), position.getNext());
+
+        ledger.mbean.refreshStats(1, TimeUnit.SECONDS);
+        assertEquals(ledger.mbean.getTailReadFanOutRate(), 2.0);
+    }
+
     /**
      * <pre>
      * Verifies that {@link ManagedCursorImpl#createNewMetadataLedger()} cleans up orphan ledgers if fails to switch new
@@ -2900,5 +3389,46 @@ public class ManagedCursorTest extends MockedBookKeeperTestCase {
         assertEquals(c1.getReadPosition(), positions[markDelete + 1]);
     }
     
+    @Test(timeOut = 20000)
+    void readAheadOnCatchUpCursor() throws Exception {
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger",
+                new ManagedLedgerConfig().setMaxEntriesPerLedger(100).setReadAheadMaxEntries(20));
+
+        ManagedCursorImpl c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        // The cursor is behind the cache
+        c1.setInactive();
+
+        for (int i = 0; i < 60; i++) {
+            ledger.addEntry(("entry-" + i).getBytes(Encoding));
+        }
+
+        int expected = 0;
+        while (expected < 60) {
+            List<Entry> entries = c1.readEntries(5);
+            assertFalse(entries.isEmpty());
+            for (Entry entry : entries) {
+                assertEquals(new String(entry.getData(), Encoding), "entry-" + expected);
+                ++expected;
+                entry.release();
+            }
+        }
+
+        assertFalse(c1.hasMoreEntries());
+
+        ledger.mbean.refreshStats(1, TimeUnit.SECONDS);
+        assertTrue(ledger.mbean.getReadAheadEntriesRate() > 0);
+        assertTrue(ledger.mbean.getReadAheadHitsRate() > 0);
+
+        // A seek makes the prefetched entries useless
+        c1.seek(ledger.getFirstPosition().getNext());
+        List<Entry> entries = c1.readEntries(5);
+        assertEquals(new String(entries.get(0).getData(), Encoding), "entry-0");
+        entries.forEach(Entry::release);
+
+        c1.close();
+        assertEquals(c1.getReadAhead().getBufferedEntries(), 0);
+        assertEquals(c1.getReadAhead().getBufferSize(), 0);
+    }
+
     private static final Logger log = LoggerFactory.getLogger(ManagedCursorTest.class);
 }
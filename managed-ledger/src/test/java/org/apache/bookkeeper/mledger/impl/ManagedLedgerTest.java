@@ -18,6 +18,7 @@
  */
 package org.apache.bookkeeper.mledger.impl;
 
+import static org.apache.bookkeeper.mledger.util.SafeRun.safeRun;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.doNothing;
@@ -25,13 +26,17 @@ import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -41,6 +46,7 @@ import java.lang.reflect.Field;
 import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -48,6 +54,7 @@ import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -1619,6 +1626,202 @@ public class ManagedLedgerTest extends MockedBookKeeperTestCase {
         assertEquals(ledger.getLedgersInfoAsList().size(), 2);
     }
 
+    @Test
+    public void testStandbyLedger() throws Exception {
+        ManagedLedgerConfig conf = new ManagedLedgerConfig();
+        conf.setMaxEntriesPerLedger(10);
+        conf.setStandbyLedgerCreationThreshold(0.5);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger", conf);
+        ManagedCursorImpl cursor = (ManagedCursorImpl) ledger.openCursor("c1");
+
+        for (int i = 0; i < 25; i++) {
+            ledger.addEntry(("entry-" + i).getBytes(Encoding));
+        }
+
+        List<LedgerInfo> ledgers = ledger.getLedgersInfoAsList();
+        assertEquals(ledgers.size(), 3);
+        assertEquals(ledgers.get(0).getEntries(), 10);
+        assertEquals(ledgers.get(1).getEntries(), 10);
+        assertEquals(cursor.getNumberOfEntries(), 25);
+
+        // The rollovers did not wait for a ledger to be created
+        ledger.getMBean().refreshStats(1, TimeUnit.SECONDS);
+        assertEquals(Arrays.stream(ledger.getMBean().getLedgerRolloverStallLatencyBuckets()).sum(), 2);
+
+        // The next ledger is already created since the current one is half full
+        Set<Long> dataLedgers = Sets.newTreeSet();
+        ledgers.forEach(info -> dataLedgers.add(info.getLedgerId()));
+        Set<Long> bkLedgers = Sets.newTreeSet();
+        for (int i = 0; i < 50 && bkLedgers.size() != dataLedgers.size() + 1; i++) {
+            Thread.sleep(100);
+            bkLedgers = Sets.newTreeSet(bkc.getLedgers());
+            bkLedgers.remove(cursor.getCursorLedger());
+        }
+        assertEquals(bkLedgers.size(), dataLedgers.size() + 1);
+        assertTrue(bkLedgers.containsAll(dataLedgers));
+
+        // The standby ledger is deleted when the managed ledger is closed
+        ledger.close();
+        for (int i = 0; i < 50 && !bkLedgers.equals(dataLedgers); i++) {
+            Thread.sleep(100);
+            bkLedgers = Sets.newTreeSet(bkc.getLedgers());
+            bkLedgers.remove(cursor.getCursorLedger());
+        }
+        assertEquals(bkLedgers, dataLedgers);
+    }
+
+    @Test
+    public void testStandbyLedgerDeletedOnRecovery() throws Exception {
+        ManagedLedgerConfig conf = new ManagedLedgerConfig();
+        conf.setMaxEntriesPerLedger(10);
+        conf.setStandbyLedgerCreationThreshold(0.5);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger", conf);
+        ManagedCursorImpl cursor = (ManagedCursorImpl) ledger.openCursor("c1");
+
+        for (int i = 0; i < 6; i++) {
+            ledger.addEntry(("entry-" + i).getBytes(Encoding));
+        }
+
+        // The standby ledger is stored in the metadata once created
+        long standbyLedgerId = -1;
+        for (int i = 0; i < 50 && standbyLedgerId == -1; i++) {
+            Thread.sleep(100);
+            CompletableFuture<ManagedLedgerInfo> future = new CompletableFuture<>();
+            factory.getMetaStore().getManagedLedgerInfo("my_test_ledger", false,
+                    new MetaStoreCallback<ManagedLedgerInfo>() {
+                        @Override
+                        public void operationComplete(ManagedLedgerInfo result, Stat stat) {
+                            future.complete(result);
+                        }
+
+                        @Override
+                        public void operationFailed(MetaStoreException e) {
+                            future.completeExceptionally(e);
+                        }
+                    });
+            ManagedLedgerInfo mlInfo = future.get();
+            if (mlInfo.hasStandbyLedgerId()) {
+                standbyLedgerId = mlInfo.getStandbyLedgerId();
+            }
+        }
+        assertNotEquals(standbyLedgerId, -1L);
+        assertTrue(bkc.getLedgers().contains(standbyLedgerId));
+        assertEquals(ledger.getLedgersInfoAsList().size(), 1);
+
+        // Reopen the managed ledger without closing it, as if the broker had crashed
+        ManagedLedgerFactory factory2 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
+        ManagedLedger ledger2 = factory2.open("my_test_ledger", conf);
+        ledger2.openCursor("c1");
+        for (int i = 0; i < 50 && bkc.getLedgers().contains(standbyLedgerId); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(bkc.getLedgers().contains(standbyLedgerId));
+        assertEquals(ledger2.getNumberOfEntries(), 6);
+        factory2.shutdown();
+    }
+
+    @Test(timeOut = 20000)
+    public void testAddEntryWithoutManagedLedgerLock() throws Exception {
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger");
+        ManagedCursor cursor = ledger.openCursor("c1");
+
+        // The adds complete while another thread holds the managed ledger lock
+        final CountDownLatch counter = new CountDownLatch(10);
+        synchronized (ledger) {
+            for (int i = 0; i < 10; i++) {
+                ledger.asyncAddEntry(("entry-" + i).getBytes(Encoding), new AddEntryCallback() {
+                    @Override
+                    public void addComplete(Position position, Object ctx) {
+                        counter.countDown();
+                    }
+
+                    @Override
+                    public void addFailed(ManagedLedgerException exception, Object ctx) {
+                        fail(exception.getMessage());
+                    }
+                }, null);
+            }
+            assertTrue(counter.await(10, TimeUnit.SECONDS));
+        }
+
+        assertEquals(ledger.getNumberOfEntries(), 10);
+        assertEquals(cursor.getNumberOfEntries(), 10);
+    }
+
+    @Test
+    public void testAddEntriesAfterTerminationDuringRollover() throws Exception {
+        ManagedLedgerConfig conf = new ManagedLedgerConfig();
+        conf.setMaxEntriesPerLedger(1);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger", conf);
+        ManagedCursorImpl cursor = (ManagedCursorImpl) ledger.openCursor("c1");
+
+        // The rollover is in progress when the managed ledger is terminated
+        ledger.addEntry("entry-0".getBytes(Encoding));
+        for (int i = 0; i < 50 && !ledger.getState().equals("ClosedLedger"); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(ledger.getState(), "ClosedLedger");
+        // Hold the creation of the next ledger
+        CompletableFuture<Void> ledgerCreation = bkc.promiseAfter(0);
+        List<CompletableFuture<Position>> futures = Lists.newArrayList();
+        for (int i = 1; i < 5; i++) {
+            CompletableFuture<Position> future = new CompletableFuture<>();
+            ledger.asyncAddEntry(("entry-" + i).getBytes(Encoding), new AddEntryCallback() {
+                @Override
+                public void addComplete(Position position, Object ctx) {
+                    future.complete(position);
+                }
+
+                @Override
+                public void addFailed(ManagedLedgerException exception, Object ctx) {
+                    future.completeExceptionally(exception);
+                }
+            }, null);
+            futures.add(future);
+        }
+        // Wait for the managed ledger thread to request the creation of the next ledger
+        CompletableFuture<Void> barrier = new CompletableFuture<>();
+        ledger.getExecutor().executeOrdered(ledger.getName(), safeRun(() -> barrier.complete(null)));
+        barrier.get();
+        assertEquals(ledger.getState(), "CreatingLedger");
+
+        Position lastPosition = ledger.terminate();
+        ledgerCreation.complete(null);
+
+        // Every write either succeeded before the termination or failed
+        for (CompletableFuture<Position> future : futures) {
+            try {
+                Position position = future.get(10, TimeUnit.SECONDS);
+                assertTrue(((PositionImpl) position).compareTo((PositionImpl) lastPosition) <= 0);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ManagedLedgerException);
+            }
+        }
+
+        // The ledger created by the rollover is not added to the terminated managed ledger, and it is deleted
+        List<LedgerInfo> ledgers = ledger.getLedgersInfoAsList();
+        assertEquals(ledgers.get(ledgers.size() - 1).getLedgerId(), ((PositionImpl) lastPosition).getLedgerId());
+        Set<Long> dataLedgers = Sets.newTreeSet();
+        ledgers.forEach(info -> dataLedgers.add(info.getLedgerId()));
+        Set<Long> bkLedgers = Sets.newTreeSet(bkc.getLedgers());
+        for (int i = 0; i < 50 && !bkLedgers.equals(dataLedgers); i++) {
+            Thread.sleep(100);
+            bkLedgers = Sets.newTreeSet(bkc.getLedgers());
+            bkLedgers.remove(cursor.getCursorLedger());
+        }
+        assertEquals(bkLedgers, dataLedgers);
+
+        // The terminated state and the ledger list are stored in the metadata
+        ManagedLedgerFactory factory2 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
+        ManagedLedgerImpl ledger2 = (ManagedLedgerImpl) factory2.open("my_test_ledger", conf);
+        assertTrue(ledger2.isTerminated());
+        assertEquals(ledger2.getLastConfirmedEntry(), lastPosition);
+        Set<Long> recoveredLedgers = Sets.newTreeSet();
+        ledger2.getLedgersInfoAsList().forEach(info -> recoveredLedgers.add(info.getLedgerId()));
+        assertEquals(recoveredLedgers, dataLedgers);
+        factory2.shutdown();
+    }
+
     @Test
     public void testRetention() throws Exception {
         ManagedLedgerFactory factory = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
@@ -1643,6 +1846,117 @@ public class ManagedLedgerTest extends MockedBookKeeperTestCase {
         assertTrue(ml.getTotalSize() > "shortmessage".getBytes().length);
     }
 
+    @Test(timeOut = 20000)
+    public void testRateLimitedLedgerDeletion() throws Exception {
+        ManagedLedgerFactoryConfig factoryConfig = new ManagedLedgerFactoryConfig();
+        factoryConfig.setLedgerDeletionMaxRate(5);
+        ManagedLedgerFactoryImpl factory = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle(), factoryConfig);
+        ManagedLedgerImpl ml = (ManagedLedgerImpl) factory.open("rate_limited_deletion_ledger",
+                new ManagedLedgerConfig().setMaxEntriesPerLedger(1));
+        ManagedCursor c1 = ml.openCursor("c1");
+
+        Position lastPosition = null;
+        for (int i = 0; i < 11; i++) {
+            lastPosition = ml.addEntry(("entry-" + i).getBytes(Encoding));
+        }
+        Set<Long> trimmedLedgers = Sets.newHashSet();
+        ml.getLedgersInfoAsList().forEach(li -> trimmedLedgers.add(li.getLedgerId()));
+        trimmedLedgers.remove(ml.getLedgersInfoAsList().get(ml.getLedgersInfoAsList().size() - 1).getLedgerId());
+        assertEquals(trimmedLedgers.size(), 10);
+
+        long start = System.nanoTime();
+        c1.markDelete(lastPosition);
+
+        // The ledgers are removed from the metadata right away, and deleted from BookKeeper at the max rate
+        retryStrategically((test) -> ml.getLedgersInfoAsList().size() == 1
+                && factory.getCacheStats().getPendingLedgerDeletions() > 0, 10, 100);
+        assertEquals(ml.getLedgersInfoAsList().size(), 1);
+        assertTrue(factory.getCacheStats().getPendingLedgerDeletions() > 0);
+        assertFalse(Collections.disjoint(bkc.getLedgers(), trimmedLedgers));
+
+        retryStrategically((test) -> Collections.disjoint(bkc.getLedgers(), trimmedLedgers), 20, 100);
+        assertTrue(Collections.disjoint(bkc.getLedgers(), trimmedLedgers));
+        assertEquals(factory.getCacheStats().getPendingLedgerDeletions(), 0);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(1500));
+        factory.shutdown();
+    }
+
+    @Test(timeOut = 20000)
+    public void testPendingLedgerDeletionsRecovered() throws Exception {
+        ManagedLedgerFactoryConfig factoryConfig = new ManagedLedgerFactoryConfig();
+        factoryConfig.setLedgerDeletionMaxRate(0.1);
+        ManagedLedgerFactoryImpl factory = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle(), factoryConfig);
+        ManagedLedgerConfig config = new ManagedLedgerConfig().setMaxEntriesPerLedger(1);
+        ManagedLedgerImpl ml = (ManagedLedgerImpl) factory.open("pending_deletions_ledger", config);
+        ManagedCursor c1 = ml.openCursor("c1");
+
+        Position lastPosition = null;
+        for (int i = 0; i < 6; i++) {
+            lastPosition = ml.addEntry(("entry-" + i).getBytes(Encoding));
+        }
+        Set<Long> trimmedLedgers = Sets.newHashSet();
+        ml.getLedgersInfoAsList().forEach(li -> trimmedLedgers.add(li.getLedgerId()));
+        trimmedLedgers.remove(ml.getLedgersInfoAsList().get(ml.getLedgersInfoAsList().size() - 1).getLedgerId());
+        assertEquals(trimmedLedgers.size(), 5);
+
+        c1.markDelete(lastPosition);
+
+        // The trimmed ledgers waiting for their deletion are kept in the metadata. Only the first deletion is issued
+        // before the rate limit applies, and the ledger is then removed from the metadata
+        retryStrategically((test) -> {
+            try {
+                return getManagedLedgerInfo(factory, "pending_deletions_ledger")
+                        .getPendingDeletionLedgerInfoCount() == 4;
+            } catch (Exception e) {
+                return false;
+            }
+        }, 50, 100);
+        assertEquals(ml.getLedgersInfoAsList().size(), 1);
+        Set<Long> pendingLedgers = Sets.newHashSet();
+        getManagedLedgerInfo(factory, "pending_deletions_ledger").getPendingDeletionLedgerInfoList()
+                .forEach(li -> pendingLedgers.add(li.getLedgerId()));
+        assertEquals(pendingLedgers.size(), 4);
+        assertTrue(trimmedLedgers.containsAll(pendingLedgers));
+        assertFalse(Collections.disjoint(bkc.getLedgers(), trimmedLedgers));
+
+        // Reopen the managed ledger without closing it, as if the broker had crashed
+        ManagedLedgerFactoryImpl factory2 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
+        ManagedLedger ml2 = factory2.open("pending_deletions_ledger", config);
+        assertEquals(ml2.getNumberOfEntries(), 1);
+        retryStrategically((test) -> Collections.disjoint(bkc.getLedgers(), trimmedLedgers), 50, 100);
+        assertTrue(Collections.disjoint(bkc.getLedgers(), trimmedLedgers));
+        retryStrategically((test) -> {
+            try {
+                return getManagedLedgerInfo(factory2, "pending_deletions_ledger")
+                        .getPendingDeletionLedgerInfoCount() == 0;
+            } catch (Exception e) {
+                return false;
+            }
+        }, 50, 100);
+        assertEquals(getManagedLedgerInfo(factory2, "pending_deletions_ledger").getPendingDeletionLedgerInfoCount(),
+                0);
+
+        factory2.shutdown();
+        factory.shutdown();
+    }
+
+    private static ManagedLedgerInfo getManagedLedgerInfo(ManagedLedgerFactoryImpl factory, String name)
+            throws Exception {
+        CompletableFuture<ManagedLedgerInfo> future = new CompletableFuture<>();
+        factory.getMetaStore().getManagedLedgerInfo(name, false, new MetaStoreCallback<ManagedLedgerInfo>() {
+            @Override
+            public void operationComplete(ManagedLedgerInfo result, Stat stat) {
+                future.complete(result);
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future.get();
+    }
+
     @Test(enabled = true)
     public void testNoRetention() throws Exception {
         ManagedLedgerFactory factory = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
@@ -2392,6 +2706,97 @@ public class ManagedLedgerTest extends MockedBookKeeperTestCase {
         setFieldValue(ManagedLedgerImpl.class, ledger, "currentLedger", null);
     }
 
+    @Test(timeOut = 20000)
+    public void testLedgerKeyBloomFilters() throws Exception {
+        // Entries are "key:<key>", or "unknown" for the entries with unknown keys
+        ManagedLedgerConfig config = new ManagedLedgerConfig().setMaxEntriesPerLedger(10)
+                .setKeyBloomFilterExpectedKeysPerLedger(100).setEntryKeyExtractor(data -> {
+                    String value = data.toString(data.readerIndex(), data.readableBytes(), Encoding);
+                    return value.startsWith("key:") ? Collections.singletonList(value.substring(4)) : null;
+                });
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger", config);
+        ledger.openCursor("c1");
+
+        List<Position> positions = Lists.newArrayList();
+        for (int i = 0; i < 25; i++) {
+            String value = i == 15 ? "unknown" : "key:key-" + i;
+            positions.add(ledger.addEntry(value.getBytes(Encoding)));
+        }
+        long firstLedgerId = ((PositionImpl) positions.get(0)).getLedgerId();
+        long secondLedgerId = ((PositionImpl) positions.get(10)).getLedgerId();
+        long currentLedgerId = ((PositionImpl) positions.get(24)).getLedgerId();
+        assertEquals(ledger.getLedgersInfoAsList().size(), 3);
+        assertTrue(ledger.getLedgersInfoAsList().get(0).getKeyFilterStored());
+        assertFalse(ledger.getLedgersInfoAsList().get(1).getKeyFilterStored());
+
+        // The filter is stored apart from the managed ledger info
+        retryStrategically(test -> {
+            try {
+                return zkc.exists("/managed-ledger-key-filters/my_test_ledger/" + firstLedgerId, false) != null;
+            } catch (Exception e) {
+                return false;
+            }
+        }, 10, 100);
+        assertNotNull(zkc.exists("/managed-ledger-key-filters/my_test_ledger/" + firstLedgerId, false));
+        assertNull(zkc.exists("/managed-ledger-key-filters/my_test_ledger/" + secondLedgerId, false));
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(ledger.ledgerMightContainKey(firstLedgerId, "key-" + i));
+        }
+        assertFalse(ledger.ledgerMightContainKey(firstLedgerId, "key-10"));
+        assertFalse(ledger.ledgerMightContainKey(firstLedgerId, "key-24"));
+
+        // Any key might be in the ledger with an unknown key
+        assertTrue(ledger.ledgerMightContainKey(secondLedgerId, "key-0"));
+
+        // Filter of the ledger being written
+        assertTrue(ledger.ledgerMightContainKey(currentLedgerId, "key-24"));
+        assertFalse(ledger.ledgerMightContainKey(currentLedgerId, "key-0"));
+        ledger.close();
+
+        // The filters of the closed ledgers are loaded when first used, any key might be there until then
+        ManagedLedgerFactory factory2 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
+        ManagedLedger ledger2 = factory2.open("my_test_ledger", config);
+        retryStrategically(test -> !ledger2.ledgerMightContainKey(firstLedgerId, "key-24"), 10, 100);
+        assertFalse(ledger2.ledgerMightContainKey(firstLedgerId, "key-24"));
+        assertTrue(ledger2.ledgerMightContainKey(firstLedgerId, "key-5"));
+        assertTrue(ledger2.ledgerMightContainKey(currentLedgerId, "key-0"));
+        factory2.shutdown();
+
+        // The stored filters are still used when the filters are disabled
+        ManagedLedgerFactory factory3 = new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle());
+        ManagedLedger ledger3 = factory3.open("my_test_ledger", new ManagedLedgerConfig());
+        retryStrategically(test -> !ledger3.ledgerMightContainKey(firstLedgerId, "key-24"), 10, 100);
+        assertFalse(ledger3.ledgerMightContainKey(firstLedgerId, "key-24"));
+
+        // The filter is removed with its ledger
+        ledger3.openCursor("c1").markDelete(positions.get(24));
+        retryStrategically(test -> {
+            try {
+                return zkc.exists("/managed-ledger-key-filters/my_test_ledger/" + firstLedgerId, false) == null;
+            } catch (Exception e) {
+                return false;
+            }
+        }, 10, 100);
+        assertNull(zkc.exists("/managed-ledger-key-filters/my_test_ledger/" + firstLedgerId, false));
+        factory3.shutdown();
+    }
+
+    @Test
+    public void testLedgerKeyFilterSizeCap() throws Exception {
+        LedgerKeyFilter keyFilter = new LedgerKeyFilter(Integer.MAX_VALUE, 0.01);
+        keyFilter.add(1, Collections.singletonList("key"));
+        byte[] serializedFilter = LedgerKeyFilter.serialize(keyFilter.getCompleteFilter(1));
+        assertNotNull(serializedFilter);
+        assertTrue(serializedFilter.length <= LedgerKeyFilter.MAX_SERIALIZED_SIZE);
+        assertTrue(serializedFilter.length > LedgerKeyFilter.MAX_SERIALIZED_SIZE * 0.99);
+        assertTrue(LedgerKeyFilter.deserialize(serializedFilter).mightContain("key"));
+
+        // Larger filters are not stored
+        assertNull(LedgerKeyFilter.serialize(BloomFilter.create(Funnels.stringFunnel(Encoding),
+                LedgerKeyFilter.maxExpectedKeys(0.01) * 2, 0.01)));
+    }
+
     private void setFieldValue(Class clazz, Object classObj, String fieldName, Object fieldValue) throws Exception {
         Field field = clazz.getDeclaredField(fieldName);
         field.setAccessible(true);
@@ -0,0 +1,281 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedger;
+import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerException.BadVersionException;
+import org.apache.bookkeeper.mledger.ManagedLedgerException.MetaStoreException;
+import org.apache.bookkeeper.mledger.ManagedLedgerException.MetadataNotFoundException;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.apache.bookkeeper.mledger.Position;
+import org.apache.bookkeeper.mledger.impl.MetaStore.MetaStoreCallback;
+import org.apache.bookkeeper.mledger.impl.MetaStore.Stat;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedCursorInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
+import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+public class MetaStoreImplRocksDbTest extends MockedBookKeeperTestCase {
+
+    @Test(timeOut = 20000)
+    public void updateWithVersions() throws Exception {
+        File directory = Files.createTempDirectory("ml-metadata").toFile();
+        MetaStore store = new MetaStoreImplRocksDb(directory.getAbsolutePath(), false, executor);
+        try {
+            try {
+                getManagedLedgerInfo(store, "my_test", false).get();
+                fail("should have failed");
+            } catch (ExecutionException e) {
+                assertEquals(e.getCause().getClass(), MetadataNotFoundException.class);
+            }
+
+            Stat stat = getManagedLedgerInfo(store, "my_test", true).get();
+            assertEquals(stat.getVersion(), 0);
+
+            ManagedLedgerInfo info = ManagedLedgerInfo.newBuilder()
+                    .addLedgerInfo(LedgerInfo.newBuilder().setLedgerId(1).setEntries(10).setSize(100)).build();
+            CompletableFuture<Stat> future = new CompletableFuture<>();
+            store.asyncUpdateLedgerIds("my_test", info, stat, callback(future));
+            assertEquals(future.get().getVersion(), 1);
+
+            // Stale version
+            future = new CompletableFuture<>();
+            store.asyncUpdateLedgerIds("my_test", info, stat, callback(future));
+            try {
+                future.get();
+                fail("should have failed");
+            } catch (ExecutionException e) {
+                assertEquals(e.getCause().getClass(), BadVersionException.class);
+            }
+
+            CompletableFuture<ManagedLedgerInfo> infoFuture = new CompletableFuture<>();
+            store.getManagedLedgerInfo("my_test", false, new MetaStoreCallback<ManagedLedgerInfo>() {
+                @Override
+                public void operationComplete(ManagedLedgerInfo result, Stat stat) {
+                    infoFuture.complete(result);
+                }
+
+                @Override
+                public void operationFailed(MetaStoreException e) {
+                    infoFuture.completeExceptionally(e);
+                }
+            });
+            assertEquals(infoFuture.get(), info);
+        } finally {
+            store.close();
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test(timeOut = 20000)
+    public void cursorsOfLedgersWithSharedPrefix() throws Exception {
+        File directory = Files.createTempDirectory("ml-metadata").toFile();
+        MetaStore store = new MetaStoreImplRocksDb(directory.getAbsolutePath(), false, executor);
+        try {
+            for (String ledgerName : Lists.newArrayList("my_test", "my_test/1", "my_test_2")) {
+                getManagedLedgerInfo(store, ledgerName, true).get();
+                for (String cursorName : Lists.newArrayList("c1", "c2")) {
+                    CompletableFuture<Stat> future = new CompletableFuture<>();
+                    store.asyncUpdateCursorInfo(ledgerName, cursorName, ManagedCursorInfo.newBuilder()
+                            .setCursorsLedgerId(-1).build(), null, callback(future));
+                    future.get();
+                }
+            }
+
+            CompletableFuture<Stat> future = new CompletableFuture<>();
+            store.asyncRemoveCursor("my_test_2", "c2", callback(future));
+            future.get();
+
+            assertEquals(Sets.newHashSet(getCursors(store, "my_test").get()), Sets.newHashSet("c1", "c2"));
+            assertEquals(Sets.newHashSet(getCursors(store, "my_test/1").get()), Sets.newHashSet("c1", "c2"));
+            assertEquals(getCursors(store, "my_test_2").get(), Lists.newArrayList("c1"));
+            assertEquals(Sets.newHashSet(store.getManagedLedgers()),
+                    Sets.newHashSet("my_test", "my_test/1", "my_test_2"));
+        } finally {
+            store.close();
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test(timeOut = 20000)
+    public void recoverManagedLedgerFromRocksDb() throws Exception {
+        File directory = Files.createTempDirectory("ml-metadata").toFile();
+        ManagedLedgerFactoryConfig config = new ManagedLedgerFactoryConfig();
+        config.setMetadataStoreRocksDbDirectory(directory.getAbsolutePath());
+
+        try {
+            ManagedLedgerFactoryImpl factory1 = new ManagedLedgerFactoryImpl(bkc, zkc, config);
+            ManagedLedger ledger = factory1.open("my_test_ledger", new ManagedLedgerConfig().setMaxEntriesPerLedger(2));
+            ManagedCursor cursor = ledger.openCursor("c1");
+            List<Position> positions = Lists.newArrayList();
+            for (int i = 0; i < 5; i++) {
+                positions.add(ledger.addEntry(("entry-" + i).getBytes()));
+            }
+            cursor.markDelete(positions.get(2));
+            factory1.shutdown();
+
+            ManagedLedgerFactoryImpl factory2 = new ManagedLedgerFactoryImpl(bkc, zkc, config);
+            ledger = factory2.open("my_test_ledger", new ManagedLedgerConfig().setMaxEntriesPerLedger(2));
+            cursor = ledger.openCursor("c1");
+            assertEquals(cursor.getMarkDeletedPosition(), positions.get(2));
+            assertEquals(cursor.getNumberOfEntriesInBacklog(), 2);
+            List<Entry> entries = cursor.readEntries(10);
+            assertEquals(entries.size(), 2);
+            assertEquals(new String(entries.get(0).getData()), "entry-3");
+            assertEquals(new String(entries.get(1).getData()), "entry-4");
+            entries.forEach(Entry::release);
+            factory2.shutdown();
+
+            // Nothing was written in ZooKeeper
+            assertNull(zkc.exists("/managed-ledgers/my_test_ledger", false));
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test(timeOut = 20000)
+    public void ledgerKeyFilters() throws Exception {
+        File directory = Files.createTempDirectory("ml-metadata").toFile();
+        MetaStore store = new MetaStoreImplRocksDb(directory.getAbsolutePath(), false, executor);
+        try {
+            for (String ledgerName : Lists.newArrayList("my_test", "my_test_2")) {
+                getManagedLedgerInfo(store, ledgerName, true).get();
+                for (long ledgerId = 1; ledgerId <= 2; ledgerId++) {
+                    CompletableFuture<Stat> future = new CompletableFuture<>();
+                    store.asyncStoreLedgerKeyFilter(ledgerName, ledgerId, new byte[] { (byte) ledgerId },
+                            callback(future));
+                    future.get();
+                }
+            }
+            CompletableFuture<Stat> future = new CompletableFuture<>();
+            store.asyncStoreLedgerKeyFilter("my_test", 2, new byte[] { 3 }, callback(future));
+            assertEquals(future.get().getVersion(), 1);
+
+            assertEquals(getLedgerKeyFilter(store, "my_test", 1).get(), new byte[] { 1 });
+            assertEquals(getLedgerKeyFilter(store, "my_test", 2).get(), new byte[] { 3 });
+            assertEquals(getLedgerKeyFilter(store, "my_test_2", 2).get(), new byte[] { 2 });
+            assertEquals(getCursors(store, "my_test").get(), Lists.newArrayList());
+            assertEquals(Sets.newHashSet(store.getManagedLedgers()), Sets.newHashSet("my_test", "my_test_2"));
+
+            future = new CompletableFuture<>();
+            store.asyncRemoveLedgerKeyFilter("my_test", 1, callback(future));
+            future.get();
+            try {
+                getLedgerKeyFilter(store, "my_test", 1).get();
+                fail("should have failed");
+            } catch (ExecutionException e) {
+                assertEquals(e.getCause().getClass(), MetadataNotFoundException.class);
+            }
+
+            // The remaining filters are removed with the managed ledger
+            future = new CompletableFuture<>();
+            store.removeManagedLedger("my_test", callback(future));
+            future.get();
+            try {
+                getLedgerKeyFilter(store, "my_test", 2).get();
+                fail("should have failed");
+            } catch (ExecutionException e) {
+                assertEquals(e.getCause().getClass(), MetadataNotFoundException.class);
+            }
+            assertEquals(getLedgerKeyFilter(store, "my_test_2", 1).get(), new byte[] { 1 });
+        } finally {
+            store.close();
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    private static CompletableFuture<byte[]> getLedgerKeyFilter(MetaStore store, String ledgerName, long ledgerId) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        store.asyncGetLedgerKeyFilter(ledgerName, ledgerId, new MetaStoreCallback<byte[]>() {
+            @Override
+            public void operationComplete(byte[] result, Stat stat) {
+                future.complete(result);
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static CompletableFuture<Stat> getManagedLedgerInfo(MetaStore store, String ledgerName,
+            boolean createIfMissing) {
+        CompletableFuture<Stat> future = new CompletableFuture<>();
+        store.getManagedLedgerInfo(ledgerName, createIfMissing, new MetaStoreCallback<ManagedLedgerInfo>() {
+            @Override
+            public void operationComplete(ManagedLedgerInfo result, Stat stat) {
+                future.complete(stat);
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static CompletableFuture<List<String>> getCursors(MetaStore store, String ledgerName) {
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        store.getCursors(ledgerName, new MetaStoreCallback<List<String>>() {
+            @Override
+            public void operationComplete(List<String> result, Stat stat) {
+                future.complete(result);
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static MetaStoreCallback<Void> callback(CompletableFuture<Stat> future) {
+        return new MetaStoreCallback<Void>() {
+            @Override
+            public void operationComplete(Void result, Stat stat) {
+                future.complete(stat);
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                future.completeExceptionally(e);
+            }
+        };
+    }
+}
@@ -20,13 +20,20 @@ package org.apache.bookkeeper.mledger.impl;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
+import com.google.common.collect.Lists;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import org.apache.bookkeeper.mledger.ManagedLedgerException.BadVersionException;
 import org.apache.bookkeeper.mledger.ManagedLedgerException.MetaStoreException;
+import org.apache.bookkeeper.mledger.ManagedLedgerException.MetadataNotFoundException;
 import org.apache.bookkeeper.mledger.impl.MetaStore.MetaStoreCallback;
 import org.apache.bookkeeper.mledger.impl.MetaStore.Stat;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats;
@@ -269,4 +276,170 @@ public class MetaStoreImplZookeeperTest extends MockedBookKeeperTestCase {
                 });
         promise2.get();
     }
+
+    @Test(timeOut = 20000)
+    public void batchedCursorUpdates() throws Exception {
+        ManagedLedgerFactoryMBeanImpl mbean = new ManagedLedgerFactoryMBeanImpl(factory);
+        MetaStoreZookeeperBatcher batcher = new MetaStoreZookeeperBatcher(zkc, executor, mbean, 10, 1024 * 1024,
+                TimeUnit.MINUTES.toMillis(1));
+        MetaStore store = new MetaStoreImplZookeeper(zkc, executor, batcher);
+        zkc.create("/managed-ledgers/my_test", "".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        List<Stat> stats = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            stats.add(updateCursor(store, "c" + i, 0, null).get());
+        }
+
+        // The 10th update fills the batch and sends it
+        List<CompletableFuture<Stat>> futures = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            futures.add(updateCursor(store, "c" + i, i, stats.get(i)));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(futures.get(i).get().getVersion(), 1);
+            ManagedCursorInfo info = ManagedCursorInfo.parseFrom(zkc.getData("/managed-ledgers/my_test/c" + i,
+                    false, null));
+            assertEquals(info.getMarkDeleteEntryId(), i);
+        }
+
+        mbean.refreshStats(1, TimeUnit.SECONDS);
+        assertEquals(mbean.getMetadataBatchSizeAverage(), 10.0);
+        assertTrue(mbean.getMetadataBatchQueueLatencyAverageUsec() > 0);
+    }
+
+    @Test(timeOut = 20000)
+    public void batchedUpdatesPartialFailure() throws Exception {
+        ManagedLedgerFactoryMBeanImpl mbean = new ManagedLedgerFactoryMBeanImpl(factory);
+        MetaStoreZookeeperBatcher batcher = new MetaStoreZookeeperBatcher(zkc, executor, mbean, 10, 1024 * 1024,
+                TimeUnit.MINUTES.toMillis(1));
+        MetaStore store = new MetaStoreImplZookeeper(zkc, executor, batcher);
+        zkc.create("/managed-ledgers/my_test", "".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        Stat stat1 = updateCursor(store, "c1", 0, null).get();
+        Stat stat2 = updateCursor(store, "c2", 0, null).get();
+        Stat stat3 = updateCursor(store, "c3", 0, null).get();
+
+        // Modify c2 behind the store
+        zkc.setData("/managed-ledgers/my_test/c2", ManagedCursorInfo.newBuilder().setCursorsLedgerId(-1)
+                .setMarkDeleteLedgerId(0).setMarkDeleteEntryId(5).build().toByteArray(), stat2.getVersion());
+
+        CompletableFuture<Stat> future1 = updateCursor(store, "c1", 1, stat1);
+        CompletableFuture<Stat> future2 = updateCursor(store, "c2", 1, stat2);
+        CompletableFuture<Stat> future3 = updateCursor(store, "c3", 1, stat3);
+        batcher.flush();
+
+        // Only the update of c2 fails, the others are sent again
+        assertEquals(future1.get().getVersion(), 1);
+        assertEquals(future3.get().getVersion(), 1);
+        try {
+            future2.get();
+            fail("should have failed");
+        } catch (ExecutionException e) {
+            assertEquals(e.getCause().getClass(), BadVersionException.class);
+        }
+
+        assertEquals(ManagedCursorInfo.parseFrom(zkc.getData("/managed-ledgers/my_test/c1", false, null))
+                .getMarkDeleteEntryId(), 1);
+        assertEquals(ManagedCursorInfo.parseFrom(zkc.getData("/managed-ledgers/my_test/c2", false, null))
+                .getMarkDeleteEntryId(), 5);
+        assertEquals(ManagedCursorInfo.parseFrom(zkc.getData("/managed-ledgers/my_test/c3", false, null))
+                .getMarkDeleteEntryId(), 1);
+    }
+
+    @Test(timeOut = 20000)
+    public void ledgerKeyFilters() throws Exception {
+        MetaStore store = new MetaStoreImplZookeeper(zkc, executor);
+        zkc.create("/managed-ledgers/my_test", "".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        store.asyncStoreLedgerKeyFilter("my_test", 1, new byte[] { 1 }, callback(future));
+        future.get();
+        future = new CompletableFuture<>();
+        store.asyncStoreLedgerKeyFilter("my_test", 2, new byte[] { 2 }, callback(future));
+        future.get();
+        future = new CompletableFuture<>();
+        store.asyncStoreLedgerKeyFilter("my_test", 2, new byte[] { 3 }, callback(future));
+        future.get();
+
+        // The filters are not seen as cursors
+        assertEquals(zkc.getChildren("/managed-ledgers/my_test", false).size(), 0);
+        assertEquals(getLedgerKeyFilter(store, 1).get(), new byte[] { 1 });
+        assertEquals(getLedgerKeyFilter(store, 2).get(), new byte[] { 3 });
+
+        future = new CompletableFuture<>();
+        store.asyncRemoveLedgerKeyFilter("my_test", 1, callback(future));
+        future.get();
+        try {
+            getLedgerKeyFilter(store, 1).get();
+            fail("should have failed");
+        } catch (ExecutionException e) {
+            assertEquals(e.getCause().getClass(), MetadataNotFoundException.class);
+        }
+        future = new CompletableFuture<>();
+        store.asyncRemoveLedgerKeyFilter("my_test", 1, callback(future));
+        future.get();
+
+        // The remaining filters are removed with the managed ledger
+        future = new CompletableFuture<>();
+        store.removeManagedLedger("my_test", callback(future));
+        future.get();
+        ManagedLedgerTest.retryStrategically(test -> {
+            try {
+                return zkc.exists("/managed-ledger-key-filters/my_test", false) == null;
+            } catch (Exception e) {
+                return false;
+            }
+        }, 10, 100);
+        assertNull(zkc.exists("/managed-ledger-key-filters/my_test", false));
+    }
+
+    private static CompletableFuture<byte[]> getLedgerKeyFilter(MetaStore store, long ledgerId) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        store.asyncGetLedgerKeyFilter("my_test", ledgerId, new MetaStoreCallback<byte[]>() {
+            @Override
+            public void operationComplete(byte[] result, Stat stat) {
+                future.complete(result);
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static MetaStoreCallback<Void> callback(CompletableFuture<Void> future) {
+        return new MetaStoreCallback<Void>() {
+            @Override
+            public void operationComplete(Void result, Stat stat) {
+                future.complete(null);
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                future.completeExceptionally(e);
+            }
+        };
+    }
+
+    private static CompletableFuture<Stat> updateCursor(MetaStore store, String cursorName, long markDeleteEntryId,
+            Stat stat) {
+        CompletableFuture<Stat> future = new CompletableFuture<>();
+        ManagedCursorInfo info = ManagedCursorInfo.newBuilder().setCursorsLedgerId(-1).setMarkDeleteLedgerId(0)
+                .setMarkDeleteEntryId(markDeleteEntryId).build();
+        store.asyncUpdateCursorInfo("my_test", cursorName, info, stat, new MetaStoreCallback<Void>() {
+            @Override
+            public void operationComplete(Void result, Stat stat) {
+                future.complete(stat);
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
 }
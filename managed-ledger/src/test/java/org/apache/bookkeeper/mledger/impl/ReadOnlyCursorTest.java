@@ -18,17 +18,28 @@
  */
 package org.apache.bookkeeper.mledger.impl;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.bookkeeper.client.api.LedgerEntries;
+import org.apache.bookkeeper.client.api.ReadHandle;
 import org.apache.bookkeeper.mledger.Entry;
 import org.apache.bookkeeper.mledger.ManagedLedger;
 import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
 import org.apache.bookkeeper.mledger.ManagedLedgerException.ManagedLedgerNotFoundException;
 import org.apache.bookkeeper.mledger.Position;
 import org.apache.bookkeeper.mledger.ReadOnlyCursor;
@@ -220,4 +231,118 @@ public class ReadOnlyCursorTest extends MockedBookKeeperTestCase {
         assertTrue(cursor.hasMoreEntries());
     }
 
+    @Test
+    void sharedSnapshot() throws Exception {
+        ManagedLedger ledger = factory.open("shared",
+                new ManagedLedgerConfig().setMaxEntriesPerLedger(5).setRetentionTime(1, TimeUnit.HOURS));
+
+        int N = 12;
+
+        for (int i = 0; i < N; i++) {
+            ledger.addEntry(("entry-" + i).getBytes());
+        }
+        ledger.close();
+
+        ManagedLedgerFactoryImpl sharingFactory = newSharingFactory();
+        ReadOnlyCursorImpl cursor1 = (ReadOnlyCursorImpl) sharingFactory.openReadOnlyCursor("shared",
+                PositionImpl.earliest, new ManagedLedgerConfig());
+        ReadOnlyCursorImpl cursor2 = (ReadOnlyCursorImpl) sharingFactory.openReadOnlyCursor("shared",
+                PositionImpl.earliest, new ManagedLedgerConfig());
+
+        ReadOnlyManagedLedgerImpl snapshot = sharingFactory.getReadOnlyManagedLedger("shared");
+        assertSame(cursor1.ledger, snapshot);
+        assertSame(cursor2.ledger, snapshot);
+
+        List<Entry> entries = cursor1.readEntries(N);
+        assertEquals(entries.size(), N);
+        entries.forEach(Entry::release);
+
+        // The entries read by the first cursor are cached for the second one
+        assertTrue(snapshot.entryCache.getSize() > 0);
+
+        entries = cursor2.readEntries(N);
+        assertEquals(entries.size(), N);
+        for (int i = 0; i < N; i++) {
+            assertEquals(new String(entries.get(i).getData()), "entry-" + i);
+        }
+        entries.forEach(Entry::release);
+
+        cursor1.close();
+        assertSame(sharingFactory.getReadOnlyManagedLedger("shared"), snapshot);
+
+        // The snapshot is released with its last cursor
+        cursor2.close();
+        cursor2.close();
+        assertNull(sharingFactory.getReadOnlyManagedLedger("shared"));
+        assertEquals(snapshot.entryCache.getSize(), 0);
+        sharingFactory.shutdown();
+    }
+
+    @Test
+    void sharedSnapshotRefreshedOnOpen() throws Exception {
+        ManagedLedger ledger = factory.open("refreshed",
+                new ManagedLedgerConfig().setMaxEntriesPerLedger(5).setRetentionTime(1, TimeUnit.HOURS));
+
+        int N = 8;
+
+        for (int i = 0; i < N; i++) {
+            ledger.addEntry(("entry-" + i).getBytes());
+        }
+
+        ManagedLedgerFactoryImpl sharingFactory = newSharingFactory();
+        ReadOnlyCursor cursor1 = sharingFactory.openReadOnlyCursor("refreshed", PositionImpl.earliest,
+                new ManagedLedgerConfig());
+        assertEquals(cursor1.getNumberOfEntries(), N);
+
+        for (int i = N; i < 2 * N; i++) {
+            ledger.addEntry(("entry-" + i).getBytes());
+        }
+
+        // A new cursor sees the entries written since the snapshot was created
+        ReadOnlyCursor cursor2 = sharingFactory.openReadOnlyCursor("refreshed", PositionImpl.earliest,
+                new ManagedLedgerConfig());
+        assertSame(((ReadOnlyCursorImpl) cursor2).ledger, ((ReadOnlyCursorImpl) cursor1).ledger);
+        assertEquals(cursor2.getNumberOfEntries(), 2 * N);
+
+        List<Entry> entries = cursor2.readEntries(2 * N);
+        assertEquals(entries.size(), 2 * N);
+        assertEquals(new String(entries.get(2 * N - 1).getData()), "entry-" + (2 * N - 1));
+        entries.forEach(Entry::release);
+
+        cursor1.close();
+        cursor2.close();
+        assertNull(sharingFactory.getReadOnlyManagedLedger("refreshed"));
+        sharingFactory.shutdown();
+    }
+
+    @Test
+    void sharedReadHandleClosedAfterPendingReads() throws Exception {
+        ReadHandle handle = mock(ReadHandle.class);
+        CompletableFuture<LedgerEntries> pendingRead = new CompletableFuture<>();
+        when(handle.readAsync(0, 0)).thenReturn(pendingRead);
+        when(handle.closeAsync()).thenReturn(CompletableFuture.completedFuture(null));
+
+        SharedReadHandle sharedHandle = new SharedReadHandle(handle);
+        CompletableFuture<LedgerEntries> read = sharedHandle.readAsync(0, 0);
+
+        // The snapshot closes the handle while a cursor is reading from it
+        CompletableFuture<Void> closeFuture = sharedHandle.closeAsync();
+        sharedHandle.closeAsync();
+        verify(handle, never()).closeAsync();
+        assertFalse(closeFuture.isDone());
+
+        pendingRead.complete(mock(LedgerEntries.class));
+        assertTrue(read.isDone());
+        verify(handle, times(1)).closeAsync();
+        assertTrue(closeFuture.isDone());
+
+        // No more reads once the handle is closed
+        assertTrue(sharedHandle.readAsync(0, 0).isCompletedExceptionally());
+    }
+
+    private ManagedLedgerFactoryImpl newSharingFactory() throws Exception {
+        ManagedLedgerFactoryConfig config = new ManagedLedgerFactoryConfig();
+        config.setReadOnlyManagedLedgerSharingEnabled(true);
+        return new ManagedLedgerFactoryImpl(bkc, bkc.getZkHandle(), config);
+    }
 }
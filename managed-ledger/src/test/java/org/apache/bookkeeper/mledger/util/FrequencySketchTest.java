@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+@Test
+public class FrequencySketchTest {
+
+    @Test
+    void increment() {
+        FrequencySketch sketch = new FrequencySketch(512);
+        assertEquals(sketch.frequency(1), 0);
+
+        sketch.increment(1);
+        sketch.increment(1);
+        sketch.increment(2);
+
+        assertEquals(sketch.frequency(1), 2);
+        assertEquals(sketch.frequency(2), 1);
+        assertEquals(sketch.frequency(3), 0);
+    }
+
+    @Test
+    void saturation() {
+        FrequencySketch sketch = new FrequencySketch(512);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment(1);
+        }
+
+        assertEquals(sketch.frequency(1), 15);
+    }
+
+    @Test
+    void aging() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment(1);
+        }
+        assertEquals(sketch.frequency(1), 10);
+
+        // Recording enough accesses to other keys halves all the counters
+        for (int i = 100; i < 300; i++) {
+            sketch.increment(i);
+        }
+        assertTrue(sketch.frequency(1) < 10);
+    }
+}
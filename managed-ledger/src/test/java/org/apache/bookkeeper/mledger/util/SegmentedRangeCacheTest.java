@@ -0,0 +1,315 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import com.google.common.collect.Lists;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import org.apache.commons.lang3.tuple.Pair;
+import org.testng.annotations.Test;
+
+@Test
+public class SegmentedRangeCacheTest {
+
+    // Keys are encoded as segment * 1000 + offset
+    private static final SegmentedRangeCache.KeyMapper<Integer> MAPPER = new SegmentedRangeCache.KeyMapper<Integer>() {
+        @Override
+        public long getSegmentId(Integer key) {
+            return key / 1000;
+        }
+
+        @Override
+        public long getOffset(Integer key) {
+            return key % 1000;
+        }
+    };
+
+    class RefString extends AbstractReferenceCounted implements ReferenceCounted {
+        final String s;
+
+        RefString(String s) {
+            super();
+            this.s = s;
+            setRefCnt(1);
+        }
+
+        @Override
+        protected void deallocate() {
+            // no-op
+        }
+
+        @Override
+        public ReferenceCounted touch(Object hint) {
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof RefString) {
+                return this.s.equals(((RefString) obj).s);
+            } else if (obj instanceof String) {
+                return this.s.equals((String) obj);
+            }
+
+            return false;
+        }
+    }
+
+    private SegmentedRangeCache<Integer, RefString> newCache() {
+        return new SegmentedRangeCache<>(MAPPER, value -> value.s.length(), x -> x.s.length());
+    }
+
+    @Test
+    void simple() {
+        SegmentedRangeCache<Integer, RefString> cache = newCache();
+
+        cache.put(0, new RefString("0"));
+        cache.put(1, new RefString("1"));
+
+        assertEquals(cache.getSize(), 2);
+        assertEquals(cache.getNumberOfEntries(), 2);
+
+        RefString s = cache.get(0);
+        assertEquals(s.s, "0");
+        assertEquals(s.refCnt(), 2);
+        s.release();
+
+        assertNull(cache.get(2));
+
+        cache.put(2, new RefString("2"));
+        cache.put(8, new RefString("8"));
+        cache.put(1001, new RefString("x"));
+
+        assertEquals(cache.getSize(), 5);
+        assertEquals(cache.getNumberOfEntries(), 5);
+
+        cache.removeRange(1, 5, true);
+        assertEquals(cache.getSize(), 3);
+        assertEquals(cache.getNumberOfEntries(), 3);
+
+        cache.removeRange(2, 8, false);
+        assertEquals(cache.getSize(), 3);
+        assertEquals(cache.getNumberOfEntries(), 3);
+
+        cache.removeRange(0, 1001, false);
+        assertEquals(cache.getSize(), 1);
+        assertEquals(cache.getNumberOfEntries(), 1);
+        assertEquals(cache.get(1001).s, "x");
+
+        cache.removeRange(0, 2000, false);
+        assertEquals(cache.getSize(), 0);
+        assertEquals(cache.getNumberOfEntries(), 0);
+    }
+
+    @Test
+    void doubleInsert() {
+        SegmentedRangeCache<Integer, RefString> cache = newCache();
+
+        RefString s0 = new RefString("zero");
+        assertTrue(cache.put(0, s0));
+        assertEquals(s0.refCnt(), 1);
+
+        cache.put(1, new RefString("one"));
+
+        RefString s1 = new RefString("uno");
+        assertFalse(cache.put(1, s1));
+        assertEquals(s1.refCnt(), 1);
+        s1.release();
+
+        // Should not have been overridden in cache
+        assertEquals(cache.getSize(), 7);
+        assertEquals(cache.getNumberOfEntries(), 2);
+        assertEquals(cache.get(1).s, "one");
+    }
+
+    @Test
+    void insertBeforeHead() {
+        SegmentedRangeCache<Integer, RefString> cache = newCache();
+
+        assertTrue(cache.put(5, new RefString("5")));
+        assertTrue(cache.put(4, new RefString("4")));
+        assertTrue(cache.put(1, new RefString("1")));
+        assertFalse(cache.put(4, new RefString("four")));
+
+        assertEquals(cache.getNumberOfEntries(), 3);
+        assertEquals(cache.getRange(0, 999),
+                Lists.newArrayList(new RefString("1"), new RefString("4"), new RefString("5")));
+
+        // Evictions still start from the oldest offset
+        assertEquals(cache.evictLeastAccessedEntries(1), Pair.of(1, 1L));
+        assertNull(cache.get(1));
+        assertEquals(cache.get(4).s, "4");
+    }
+
+    @Test
+    void prependGrowSegment() {
+        SegmentedRangeCache<Integer, RefString> cache = newCache();
+
+        // A tailing writer caches the end of the segment, then a catch-up reader caches the older offsets
+        for (int i = 900; i < 999; i++) {
+            assertTrue(cache.put(i, new RefString("x")));
+        }
+        for (int i = 899; i >= 0; i--) {
+            assertTrue(cache.put(i, new RefString("x")));
+        }
+
+        assertEquals(cache.getNumberOfEntries(), 999);
+        assertEquals(cache.getRange(0, 999).size(), 999);
+        assertEquals(cache.get(0).s, "x");
+        assertEquals(cache.get(998).s, "x");
+    }
+
+    @Test
+    void maxSegmentCapacity() {
+        SegmentedRangeCache<Integer, RefString> cache = new SegmentedRangeCache<>(MAPPER, value -> value.s.length(),
+                x -> x.s.length(), 8);
+
+        assertTrue(cache.put(10, new RefString("10")));
+        assertFalse(cache.put(18, new RefString("18")));
+        assertFalse(cache.put(2, new RefString("2")));
+        assertTrue(cache.put(3, new RefString("3")));
+        assertFalse(cache.put(17, new RefString("17")));
+        assertEquals(cache.getNumberOfEntries(), 2);
+
+        // Once the segment is emptied, it can restart from any offset
+        cache.removeRange(0, 999, true);
+        assertTrue(cache.put(500, new RefString("500")));
+        assertEquals(cache.getNumberOfEntries(), 1);
+    }
+
+    @Test
+    void getRange() {
+        SegmentedRangeCache<Integer, RefString> cache = newCache();
+
+        cache.put(0, new RefString("0"));
+        cache.put(1, new RefString("1"));
+        cache.put(3, new RefString("3"));
+        cache.put(5, new RefString("5"));
+
+        assertEquals(cache.getRange(1, 8),
+                Lists.newArrayList(new RefString("1"), new RefString("3"), new RefString("5")));
+
+        cache.put(8, new RefString("8"));
+        cache.put(1000, new RefString("1000"));
+        cache.put(2001, new RefString("2001"));
+        assertEquals(cache.getRange(1, 2000), Lists.newArrayList(new RefString("1"), new RefString("3"),
+                new RefString("5"), new RefString("8"), new RefString("1000")));
+
+        cache.clear();
+        assertEquals(cache.getSize(), 0);
+        assertEquals(cache.getNumberOfEntries(), 0);
+    }
+
+    @Test
+    void growSegment() {
+        SegmentedRangeCache<Integer, RefString> cache = newCache();
+
+        for (int i = 0; i < 500; i++) {
+            assertTrue(cache.put(i, new RefString("x")));
+            if (i % 3 == 0) {
+                // Keep the head moving while the ring array grows
+                assertEquals(cache.evictLeastAccessedEntries(1), Pair.of(1, 1L));
+            }
+        }
+
+        assertEquals(cache.getNumberOfEntries(), 500 - 167);
+        assertEquals(cache.getRange(0, 999).size(), 500 - 167);
+        assertNull(cache.get(166));
+        assertEquals(cache.get(167).s, "x");
+        assertEquals(cache.get(499).s, "x");
+    }
+
+    @Test
+    void eviction() {
+        SegmentedRangeCache<Integer, RefString> cache = newCache();
+
+        cache.put(0, new RefString("zero"));
+        cache.put(1, new RefString("one"));
+        cache.put(1000, new RefString("two"));
+        cache.put(1001, new RefString("three"));
+
+        // This should remove the oldest entries: 0, 1 whose combined size is 7
+        assertEquals(cache.evictLeastAccessedEntries(5), Pair.of(2, (long) 7));
+
+        assertEquals(cache.getNumberOfEntries(), 2);
+        assertEquals(cache.getSize(), 8);
+        assertNull(cache.get(0));
+        assertNull(cache.get(1));
+        assertEquals(cache.get(1000).s, "two");
+        assertEquals(cache.get(1001).s, "three");
+
+        assertEquals(cache.evictLeastAccessedEntries(100), Pair.of(2, (long) 8));
+        assertEquals(cache.getNumberOfEntries(), 0);
+        assertEquals(cache.getSize(), 0);
+
+        try {
+            cache.evictLeastAccessedEntries(0);
+            fail("should throw exception");
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+    }
+
+    @Test
+    void customTimeExtraction() {
+        SegmentedRangeCache<Integer, RefString> cache = newCache();
+
+        cache.put(1, new RefString("1"));
+        cache.put(2, new RefString("22"));
+        cache.put(1003, new RefString("333"));
+        cache.put(1004, new RefString("4444"));
+
+        assertEquals(cache.getSize(), 10);
+        assertEquals(cache.getNumberOfEntries(), 4);
+
+        long evictedSize = cache.evictLEntriesBeforeTimestamp(3);
+        assertEquals(evictedSize, 6);
+
+        assertEquals(cache.getSize(), 4);
+        assertEquals(cache.getNumberOfEntries(), 1);
+    }
+
+    @Test
+    void releaseOnRemoval() {
+        SegmentedRangeCache<Integer, RefString> cache = newCache();
+
+        RefString s0 = new RefString("0");
+        RefString s1 = new RefString("1");
+        RefString s2 = new RefString("2");
+        cache.put(0, s0);
+        cache.put(1, s1);
+        cache.put(2, s2);
+
+        cache.removeRange(1, 1, true);
+        assertEquals(s1.refCnt(), 0);
+        assertEquals(cache.getRange(0, 2), Lists.newArrayList(new RefString("0"), new RefString("2")));
+        s0.release();
+        s2.release();
+
+        cache.clear();
+        assertEquals(s0.refCnt(), 0);
+        assertEquals(s2.refCnt(), 0);
+    }
+}
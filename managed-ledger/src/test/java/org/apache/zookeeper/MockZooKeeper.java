@@ -27,6 +27,7 @@ import com.google.common.collect.Sets;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import java.lang.reflect.Constructor;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
@@ -37,6 +38,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.apache.zookeeper.AsyncCallback.Children2Callback;
 import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
 import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.MultiCallback;
 import org.apache.zookeeper.AsyncCallback.StatCallback;
 import org.apache.zookeeper.AsyncCallback.StringCallback;
 import org.apache.zookeeper.AsyncCallback.VoidCallback;
@@ -44,6 +46,7 @@ import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.Watcher.Event.KeeperState;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.SetDataRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -686,6 +689,84 @@ public class MockZooKeeper extends ZooKeeper {
         });
     }
 
+    @Override
+    public void multi(Iterable<Op> ops, MultiCallback cb, Object ctx) {
+        if (stopped) {
+            cb.processResult(KeeperException.Code.ConnectionLoss, null, ctx, null);
+            return;
+        }
+
+        executor.execute(() -> {
+            final Set<String> toNotify = Sets.newHashSet();
+            List<OpResult> results = Lists.newArrayList();
+            int rc = KeeperException.Code.Ok;
+
+            mutex.lock();
+            try {
+                if (getProgrammedFailStatus()) {
+                    rc = failReturnCode.intValue();
+                    results = null;
+                } else if (stopped) {
+                    rc = KeeperException.Code.ConnectionLoss;
+                    results = null;
+                } else {
+                    // Only set data operations are supported, they are all applied or none is
+                    Map<String, Pair<byte[], Integer>> updates = Maps.newHashMap();
+                    for (Op op : ops) {
+                        if (rc != KeeperException.Code.Ok) {
+                            results.add(new OpResult.ErrorResult(KeeperException.Code.RuntimeInconsistency));
+                            continue;
+                        }
+
+                        String path = op.getPath();
+                        Pair<byte[], Integer> node = updates.containsKey(path) ? updates.get(path) : tree.get(path);
+                        int err = KeeperException.Code.Ok;
+                        if (op.getType() != ZooDefs.OpCode.setData) {
+                            err = KeeperException.Code.Unimplemented;
+                        } else if (node == null) {
+                            err = KeeperException.Code.NoNode;
+                        } else {
+                            SetDataRequest request = (SetDataRequest) op.toRequestRecord();
+                            if (request.getVersion() != -1 && request.getVersion() != node.getRight()) {
+                                err = KeeperException.Code.BadVersion;
+                            } else {
+                                int newVersion = node.getRight() + 1;
+                                updates.put(path, Pair.of(request.getData(), newVersion));
+                                Stat stat = new Stat();
+                                stat.setVersion(newVersion);
+                                results.add(new OpResult.SetDataResult(stat));
+                            }
+                        }
+
+                        if (err != KeeperException.Code.Ok) {
+                            rc = err;
+                            // The operations before the failed one are rolled back
+                            for (int i = 0; i < results.size(); i++) {
+                                results.set(i, new OpResult.ErrorResult(KeeperException.Code.Ok));
+                            }
+                            results.add(new OpResult.ErrorResult(err));
+                        }
+                    }
+
+                    if (rc == KeeperException.Code.Ok) {
+                        tree.putAll(updates);
+                        toNotify.addAll(updates.keySet());
+                    }
+                }
+            } finally {
+                mutex.unlock();
+            }
+
+            cb.processResult(rc, null, ctx, results);
+
+            for (String path : toNotify) {
+                for (Watcher watcher : watchers.removeAll(path)) {
+                    watcher.process(new WatchedEvent(EventType.NodeDataChanged, KeeperState.SyncConnected, path));
+                }
+            }
+        });
+    }
+
     @Override
     public void delete(final String path, int version) throws InterruptedException, KeeperException {
         checkProgrammedFail();
@@ -284,6 +284,24 @@ public class ServiceConfiguration implements PulsarConfiguration {
         doc = "Enable Key_Shared subscription (default is enabled)"
     )
     private boolean subscriptionKeySharedEnable = true;
+    @FieldContext(
+        category = CATEGORY_POLICIES,
+        doc = "Select the consumers of the Key_Shared subscriptions with a consistent hashing ring instead of fixed"
+            + " hash ranges. Consumer changes then move fewer keys and the keys are spread more evenly"
+    )
+    private boolean subscriptionKeySharedUseConsistentHashing = false;
+    @FieldContext(
+        category = CATEGORY_POLICIES,
+        doc = "Number of points of each consumer on the consistent hashing ring of the Key_Shared subscriptions."
+            + " More points spread the keys more evenly, at the cost of a bigger ring"
+    )
+    private int subscriptionKeySharedConsistentHashingReplicaPoints = 100;
+    @FieldContext(
+        category = CATEGORY_POLICIES,
+        doc = "Dispatch the messages of a batch to the Key_Shared consumers of their own keys, instead of routing the"
+            + " whole batch by the key of its first message. Only uncompressed and unencrypted batches are split"
+    )
+    private boolean subscriptionKeySharedSplitBatchesEnabled = false;
 
     @FieldContext(
         category = CATEGORY_POLICIES,
@@ -449,6 +467,14 @@ public class ServiceConfiguration implements PulsarConfiguration {
     )
     private int dispatcherMaxRoundRobinBatchSize = 20;
 
+    @FieldContext(
+        category = CATEGORY_SERVER,
+        doc = "Process the flow, redelivery and read completion events of the shared and key_shared subscriptions"
+            + " in order on the topic thread, through a queue drained in batches, instead of having the connection"
+            + " threads contend on the dispatcher lock"
+    )
+    private boolean dispatcherEventQueueEnabled = false;
+
     @FieldContext(
         dynamic = true,
         category = CATEGORY_SERVER,
@@ -458,9 +484,35 @@ public class ServiceConfiguration implements PulsarConfiguration {
     @FieldContext(
         dynamic = true,
         category = CATEGORY_SERVER,
-        doc = "Max number of concurrent topic loading request broker allows to control number of zk-operations"
+        doc = "Max number of concurrent topic loading request broker allows to control number of zk-operations."
+            + " Above the limit, the topics requested by clients are loaded before the topics of newly acquired bundles"
     )
     private int maxConcurrentTopicLoadRequest = 5000;
+    @FieldContext(
+        category = CATEGORY_SERVER,
+        doc = "Pack the small messages published concurrently by a producer that does not batch into a single entry."
+            + " The entry is a batch message, so that the consumers still receive the messages individually."
+            + " Clients older than 2.4.0 get the id of the entry instead of the id of the message in the batch when"
+            + " publishing, and receive the publish time of the first message of the entry"
+    )
+    private boolean brokerPublishAggregationEnabled = false;
+    @FieldContext(
+        category = CATEGORY_SERVER,
+        doc = "Max number of messages packed into a single entry when brokerPublishAggregationEnabled is set"
+    )
+    private int brokerPublishAggregationMaxMessages = 100;
+    @FieldContext(
+        category = CATEGORY_SERVER,
+        doc = "Max size in bytes of the messages packed into a single entry when brokerPublishAggregationEnabled is"
+            + " set. Larger messages are written individually"
+    )
+    private int brokerPublishAggregationMaxBytes = 128 * 1024;
+    @FieldContext(
+        category = CATEGORY_SERVER,
+        doc = "Max time in microseconds a message waits for the outstanding writes of its producer before being"
+            + " written, when brokerPublishAggregationEnabled is set"
+    )
+    private long brokerPublishAggregationMaxDelayMicros = 1000;
     @FieldContext(
         category = CATEGORY_SERVER,
         doc = "Max concurrent non-persistent message can be processed per connection")
@@ -818,6 +870,21 @@ public class ServiceConfiguration implements PulsarConfiguration {
             (int) (PlatformDependent.maxDirectMemory() / 5 / (1024 * 1024)));
     @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Whether we should make a copy of the entry payloads when inserting in cache")
     private boolean managedLedgerCacheCopyEntries = false;
+    @FieldContext(category = CATEGORY_STORAGE_ML,
+            doc = "Whether the managed ledger cache should store entries in per-ledger segments indexed by entry id,"
+                    + " instead of a single sorted map. This makes range lookups and evictions cheaper for topics"
+                    + " with a high read and write rate")
+    private boolean managedLedgerCacheSegmentedEntries = false;
+    @FieldContext(category = CATEGORY_STORAGE_ML,
+            doc = "Size of the direct memory slabs used to store the entries in the managed ledger cache. When set,"
+                    + " entries are copied into slabs pre-allocated out of the cache budget, and the memory is"
+                    + " released one whole slab at a time. Default is 0 (disabled)")
+    private int managedLedgerCacheSlabSizeKB = 0;
+    @FieldContext(category = CATEGORY_STORAGE_ML,
+            doc = "Class name of the eviction policy for the managed ledger cache. Use"
+                    + " `org.apache.bookkeeper.mledger.impl.EntryCacheTinyLfuEvictionPolicy` to evict and admit"
+                    + " entries based on how frequently each entry is read")
+    private String managedLedgerCacheEvictionPolicy = "org.apache.bookkeeper.mledger.impl.EntryCacheDefaultEvictionPolicy";
     @FieldContext(
         category = CATEGORY_STORAGE_ML,
         doc = "Threshold to which bring down the cache level when eviction is triggered"
@@ -838,6 +905,42 @@ public class ServiceConfiguration implements PulsarConfiguration {
         doc = "Rate limit the amount of writes per second generated by consumer acking the messages"
     )
     private double managedLedgerDefaultMarkDeleteRateLimit = 1.0;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Merge the acknowledgments received while a cursor ledger write is outstanding into a single write."
+            + " Unlike managedLedgerDefaultMarkDeleteRateLimit, no acknowledgment is completed before being persisted"
+    )
+    private boolean managedLedgerMarkDeleteGroupCommitEnabled = false;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Pass the entries published on a topic directly to the subscriptions waiting at the tail of the topic,"
+            + " instead of having each subscription read them back from the entry cache. The subscriptions share"
+            + " the buffer of the cached copy of each entry. Subscriptions that fall behind read from their cursor"
+            + " as usual"
+    )
+    private boolean managedLedgerTailReadFanOutEnabled = false;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max number of points, up to 64, of the index of the publish time of the entries of each ledger, used"
+            + " to bound the search of the messages by publish time when expiring messages or resetting a cursor by"
+            + " time. The index of a ledger is stored in the managed ledger metadata when it is closed, taking about"
+            + " 5 bytes per point. 0 disables the index"
+    )
+    private int managedLedgerPublishTimeIndexMaxPointsPerLedger = 0;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Number of distinct message keys per ledger the key bloom filters of the ledgers are sized for. The"
+            + " filter of a ledger is built from the partition keys of its messages and is stored in its own"
+            + " metadata node when the ledger is closed, taking about 1.2 bytes per expected key, up to 256KB."
+            + " A ledger holding compressed or encrypted batches matches any key. 0 disables the filters"
+    )
+    private int managedLedgerKeyBloomFilterExpectedKeysPerLedger = 0;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "False positive probability of the key bloom filters of the ledgers, when they hold the expected"
+            + " number of keys"
+    )
+    private double managedLedgerKeyBloomFilterFalsePositiveProbability = 0.01;
     @FieldContext(
         category = CATEGORY_STORAGE_ML,
     	doc = "Allow automated creation of non-partition topics if set to true (default value)."
@@ -871,6 +974,12 @@ public class ServiceConfiguration implements PulsarConfiguration {
         doc = "Maximum time before forcing a ledger rollover for a topic"
     )
     private int managedLedgerMaxLedgerRolloverTimeMinutes = 240;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Fill ratio of the current ledger, in entries, size or time, above which the next ledger is created in"
+            + " advance, so that a rollover only waits for the metadata update. 0 disables the standby ledger"
+    )
+    private double managedLedgerStandbyLedgerCreationThreshold = 0.0;
     @FieldContext(
         category = CATEGORY_STORAGE_OFFLOADING,
         doc = "Delay between a ledger being successfully offloaded to long term storage,"
@@ -903,11 +1012,37 @@ public class ServiceConfiguration implements PulsarConfiguration {
             + "If number of unack message range is higher than this limit then broker will persist"
             + " unacked ranges into bookkeeper to avoid additional data overhead into zookeeper.")
     private int managedLedgerMaxUnackedRangesToPersistInZooKeeper = 1000;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Persist all the `acknowledgment holes` in the cursor ledger when there are more than"
+            + " managedLedgerMaxUnackedRangesToPersist of them.\n\n"
+            + "The ranges are encoded in chunks written as separate entries of the cursor ledger, so that"
+            + " no acknowledgment is lost in case of crashes regardless of the number of holes. Each update only"
+            + " writes again the chunks whose ranges changed since the previous one.")
+    private boolean managedLedgerPersistentUnackedRangesWithMultipleEntriesEnabled = false;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max size in bytes of each cursor ledger entry holding `acknowledgment holes`, when"
+            + " managedLedgerPersistentUnackedRangesWithMultipleEntriesEnabled is set")
+    private int managedLedgerPersistentUnackedRangesMaxEntrySize = 1024 * 1024;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Local directory where the broker keeps a copy of the last position written in the ledger of each"
+            + " cursor.\n\n"
+            + "When the broker restarts, the cursors whose ledger still ends with that position are recovered"
+            + " from the local copy, without reading their ledger. Default is empty (disabled)")
+    private String managedLedgerCursorSnapshotDirectory = null;
     @FieldContext(
             category = CATEGORY_STORAGE_OFFLOADING,
             doc = "Use Open Range-Set to cache unacked messages (it is memory efficient but it can take more cpu)" 
         )
     private boolean managedLedgerUnackedRangesOpenCacheSetEnabled = true;
+    @FieldContext(
+            category = CATEGORY_STORAGE_ML,
+            doc = "Use compressed bitmaps to cache unacked messages. It takes less memory than the Open Range-Set"
+                + " when the acks are sparse, and takes precedence over managedLedgerUnackedRangesOpenCacheSetEnabled"
+        )
+    private boolean managedLedgerUnackedRangesCompressedSetEnabled = false;
     @FieldContext(
         dynamic = true,
         category = CATEGORY_STORAGE_ML,
@@ -920,6 +1055,31 @@ public class ServiceConfiguration implements PulsarConfiguration {
         doc = "operation timeout while updating managed-ledger metadata."
     )
     private long managedLedgerMetadataOperationsTimeoutSeconds = 60;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max number of managed ledger and cursor metadata updates grouped in a single ZooKeeper multi"
+            + " transaction. Default is 0 (disabled)"
+    )
+    private int managedLedgerMetadataBatchMaxOperations = 0;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max size in bytes of the metadata updates grouped in a single ZooKeeper multi transaction."
+            + " It must be lower than the jute.maxbuffer of ZooKeeper"
+    )
+    private int managedLedgerMetadataBatchMaxSizeBytes = 512 * 1024;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max time in milliseconds a metadata update waits for other updates to be grouped with"
+    )
+    private long managedLedgerMetadataBatchMaxDelayMillis = 5;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max number of ledgers per second deleted after being trimmed, across all the topics of the broker."
+            + " The deletions of the BookKeeper ledgers and of their offloaded copies are issued from a dedicated"
+            + " thread, and the ledgers stay in the managed ledger metadata until they are deleted, to delete them"
+            + " after a restart (0 to issue them right after trimming)"
+    )
+    private double managedLedgerDeletionMaxRate = 0;
 
     @FieldContext(
             category = CATEGORY_STORAGE_ML,
@@ -932,6 +1092,15 @@ public class ServiceConfiguration implements PulsarConfiguration {
             doc = "Add entry timeout when broker tries to publish message to bookkeeper.(0 to disable it)")
     private long managedLedgerAddEntryTimeoutSeconds = 120;
 
+    @FieldContext(category = CATEGORY_STORAGE_ML,
+            doc = "Max number of entries that a cursor reading sequentially behind the cache can prefetch from"
+                    + " bookkeeper ahead of its reads (0 to disable it)")
+    private int managedLedgerReadAheadMaxEntries = 0;
+
+    @FieldContext(category = CATEGORY_STORAGE_ML,
+            doc = "Max size of the prefetched entries held by the read-ahead buffer of each cursor")
+    private int managedLedgerReadAheadMaxSizeKB = 4096;
+
     /*** --- Load balancer --- ****/
     @FieldContext(
         category = CATEGORY_LOAD_BALANCER,
@@ -30,6 +30,7 @@ import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
 import org.apache.bookkeeper.mledger.impl.ManagedLedgerFactoryImpl;
 import org.apache.bookkeeper.mledger.impl.ManagedLedgerFactoryImpl.BookkeeperFactoryForCustomEnsemblePlacementPolicy;
 import org.apache.bookkeeper.mledger.impl.ManagedLedgerFactoryImpl.EnsemblePlacementPolicyConfig;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.pulsar.broker.ServiceConfiguration;
 import org.apache.zookeeper.ZooKeeper;
 import org.slf4j.Logger;
@@ -57,6 +58,16 @@ public class ManagedLedgerClientFactory implements Closeable {
         managedLedgerFactoryConfig.setCacheEvictionTimeThresholdMillis(conf.getManagedLedgerCacheEvictionTimeThresholdMillis());
         managedLedgerFactoryConfig.setThresholdBackloggedCursor(conf.getManagedLedgerCursorBackloggedThreshold());
         managedLedgerFactoryConfig.setCopyEntriesInCache(conf.isManagedLedgerCacheCopyEntries());
+        managedLedgerFactoryConfig.setSegmentedEntryCache(conf.isManagedLedgerCacheSegmentedEntries());
+        managedLedgerFactoryConfig.setCacheSlabSize(conf.getManagedLedgerCacheSlabSizeKB() * 1024);
+        managedLedgerFactoryConfig.setCacheEvictionPolicyClassName(conf.getManagedLedgerCacheEvictionPolicy());
+        if (StringUtils.isNotBlank(conf.getManagedLedgerCursorSnapshotDirectory())) {
+            managedLedgerFactoryConfig.setCursorSnapshotDirectory(conf.getManagedLedgerCursorSnapshotDirectory());
+        }
+        managedLedgerFactoryConfig.setMetadataBatchMaxOperations(conf.getManagedLedgerMetadataBatchMaxOperations());
+        managedLedgerFactoryConfig.setMetadataBatchMaxSizeBytes(conf.getManagedLedgerMetadataBatchMaxSizeBytes());
+        managedLedgerFactoryConfig.setMetadataBatchMaxDelayMillis(conf.getManagedLedgerMetadataBatchMaxDelayMillis());
+        managedLedgerFactoryConfig.setLedgerDeletionMaxRate(conf.getManagedLedgerDeletionMaxRate());
 
         this.defaultBkClient = bookkeeperProvider.create(conf, zkClient, Optional.empty(), null);
         
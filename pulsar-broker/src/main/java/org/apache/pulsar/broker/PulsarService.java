@@ -604,7 +604,7 @@ public class PulsarService implements AutoCloseable {
                 try {
                     TopicName topicName = TopicName.get(topic);
                     if (bundle.includes(topicName)) {
-                        CompletableFuture<Topic> future = brokerService.getOrCreateTopic(topic);
+                        CompletableFuture<Topic> future = brokerService.preloadTopic(topic);
                         if (future != null) {
                             persistentTopics.add(future);
                         }
@@ -72,8 +72,6 @@ import org.apache.bookkeeper.mledger.ManagedLedgerException;
 import org.apache.bookkeeper.mledger.ManagedLedgerException.ManagedLedgerNotFoundException;
 import org.apache.bookkeeper.mledger.ManagedLedgerFactory;
 import org.apache.bookkeeper.util.ZkUtils;
-import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.apache.commons.lang3.tuple.Pair;
 import org.apache.pulsar.broker.PulsarServerException;
 import org.apache.pulsar.broker.PulsarService;
 import org.apache.pulsar.broker.ServiceConfiguration;
@@ -89,6 +87,8 @@ import org.apache.pulsar.broker.service.BrokerServiceException.PersistenceExcept
 import org.apache.pulsar.broker.service.BrokerServiceException.ServerMetadataException;
 import org.apache.pulsar.broker.service.BrokerServiceException.ServiceUnitNotReadyException;
 import org.apache.pulsar.broker.service.nonpersistent.NonPersistentTopic;
+import org.apache.pulsar.broker.service.persistent.MessageKeyExtractor;
+import org.apache.pulsar.broker.service.persistent.MessagePublishTimeExtractor;
 import org.apache.pulsar.broker.service.persistent.PersistentDispatcherMultipleConsumers;
 import org.apache.pulsar.broker.service.persistent.PersistentTopic;
 import org.apache.pulsar.broker.stats.ClusterReplicationMetrics;
@@ -159,7 +159,11 @@ public class BrokerService implements Closeable, ZooKeeperCacheListener<Policies
     private static final ConcurrentOpenHashMap<String, ConfigField> dynamicConfigurationMap = prepareDynamicConfigurationMap();
     private final ConcurrentOpenHashMap<String, Consumer<?>> configRegisteredListeners;
 
-    private final ConcurrentLinkedQueue<Pair<String, CompletableFuture<Optional<Topic>>>> pendingTopicLoadingQueue;
+    // Topic loads waiting for a permit. The loads requested by clients are processed before the topics preloaded when
+    // acquiring the ownership of a bundle.
+    private final ConcurrentLinkedQueue<PendingTopicLoad> pendingTopicLoadingQueue;
+    private final ConcurrentLinkedQueue<PendingTopicLoad> pendingTopicPreloadingQueue;
+    private final ConcurrentOpenHashMap<String, PendingTopicLoad> pendingTopicPreloads;
 
     private AuthorizationService authorizationService = null;
     private final ScheduledExecutorService statsUpdater;
@@ -203,6 +207,8 @@ public class BrokerService implements Closeable, ZooKeeperCacheListener<Policies
         this.keepAliveIntervalSeconds = pulsar.getConfiguration().getKeepAliveIntervalSeconds();
         this.configRegisteredListeners = new ConcurrentOpenHashMap<>();
         this.pendingTopicLoadingQueue = Queues.newConcurrentLinkedQueue();
+        this.pendingTopicPreloadingQueue = Queues.newConcurrentLinkedQueue();
+        this.pendingTopicPreloads = new ConcurrentOpenHashMap<>();
 
         this.multiLayerTopicsMap = new ConcurrentOpenHashMap<>();
         this.pulsarStats = new PulsarStats(pulsar);
@@ -478,7 +484,20 @@ public class BrokerService implements Closeable, ZooKeeperCacheListener<Policies
         return getTopic(topic, pulsar.getConfiguration().isAllowAutoTopicCreation()).thenApply(Optional::get);
     }
 
+    /**
+     * Load a topic of a bundle that was just acquired. If the number of concurrent topic loads is exceeded, the topic
+     * is loaded after the ones requested by clients.
+     */
+    public CompletableFuture<Topic> preloadTopic(final String topic) {
+        return getTopic(topic, pulsar.getConfiguration().isAllowAutoTopicCreation(), true).thenApply(Optional::get);
+    }
+
     public CompletableFuture<Optional<Topic>> getTopic(final String topic, boolean createIfMissing) {
+        return getTopic(topic, createIfMissing, false);
+    }
+
+    private CompletableFuture<Optional<Topic>> getTopic(final String topic, boolean createIfMissing,
+            boolean preload) {
         try {
             CompletableFuture<Optional<Topic>> topicFuture = topics.get(topic);
             if (topicFuture != null) {
@@ -487,12 +506,15 @@ public class BrokerService implements Closeable, ZooKeeperCacheListener<Policies
                     // Exceptional topics should be recreated.
                     topics.remove(topic, topicFuture);
                 } else {
+                    if (!preload && !topicFuture.isDone()) {
+                        promotePendingTopicPreload(topic);
+                    }
                     return topicFuture;
                 }
             }
             final boolean isPersistentTopic = TopicName.get(topic).getDomain().equals(TopicDomain.persistent);
             return topics.computeIfAbsent(topic, (topicName) -> {
-                    return isPersistentTopic ? this.loadOrCreatePersistentTopic(topicName, createIfMissing)
+                    return isPersistentTopic ? this.loadOrCreatePersistentTopic(topicName, createIfMissing, preload)
                         : createNonPersistentTopic(topicName);
             });
         } catch (IllegalArgumentException e) {
@@ -600,6 +622,11 @@ public class BrokerService implements Closeable, ZooKeeperCacheListener<Policies
      */
     protected CompletableFuture<Optional<Topic>> loadOrCreatePersistentTopic(final String topic,
             boolean createIfMissing) throws RuntimeException {
+        return loadOrCreatePersistentTopic(topic, createIfMissing, false);
+    }
+
+    private CompletableFuture<Optional<Topic>> loadOrCreatePersistentTopic(final String topic,
+            boolean createIfMissing, boolean preload) throws RuntimeException {
         checkTopicNsOwnership(topic);
 
         final CompletableFuture<Optional<Topic>> topicFuture = new CompletableFuture<>();
@@ -622,14 +649,52 @@ public class BrokerService implements Closeable, ZooKeeperCacheListener<Policies
                 return null;
             });
         } else {
-            pendingTopicLoadingQueue.add(new ImmutablePair<String, CompletableFuture<Optional<Topic>>>(topic, topicFuture));
+            PendingTopicLoad pendingTopic = new PendingTopicLoad(topic, topicFuture);
+            if (preload) {
+                pendingTopicPreloads.put(topic, pendingTopic);
+                pendingTopicPreloadingQueue.add(pendingTopic);
+            } else {
+                pendingTopicLoadingQueue.add(pendingTopic);
+            }
             if (log.isDebugEnabled()) {
-                log.debug("topic-loading for {} added into pending queue", topic);
+                log.debug("topic-loading for {} added into pending {}queue", topic, preload ? "preloading " : "");
             }
         }
         return topicFuture;
     }
 
+    /**
+     * A client is waiting for a topic that is still in the preloading queue: move it to the queue of the topics
+     * requested by clients.
+     */
+    private void promotePendingTopicPreload(String topic) {
+        PendingTopicLoad pendingTopic = pendingTopicPreloads.remove(topic);
+        if (pendingTopic != null) {
+            if (log.isDebugEnabled()) {
+                log.debug("topic-loading for {} moved from preloading queue to pending queue", topic);
+            }
+            pendingTopicLoadingQueue.add(pendingTopic);
+        }
+    }
+
+    private PendingTopicLoad pollPendingTopicLoad() {
+        while (true) {
+            PendingTopicLoad pendingTopic = pendingTopicLoadingQueue.poll();
+            if (pendingTopic == null) {
+                pendingTopic = pendingTopicPreloadingQueue.poll();
+                if (pendingTopic == null) {
+                    return null;
+                }
+                pendingTopicPreloads.remove(pendingTopic.topic, pendingTopic);
+            }
+
+            // A promoted topic is present in both queues
+            if (pendingTopic.started.compareAndSet(false, true)) {
+                return pendingTopic;
+            }
+        }
+    }
+
     private void createPersistentTopic(final String topic, boolean createIfMissing,
     		CompletableFuture<Optional<Topic>> topicFuture) {
 
@@ -760,21 +825,42 @@ public class BrokerService implements Closeable, ZooKeeperCacheListener<Policies
             managedLedgerConfig.setDigestType(serviceConfig.getManagedLedgerDigestType());
 
             managedLedgerConfig.setMaxUnackedRangesToPersist(serviceConfig.getManagedLedgerMaxUnackedRangesToPersist());
+            managedLedgerConfig.setPersistentUnackedRangesWithMultipleEntriesEnabled(
+                    serviceConfig.isManagedLedgerPersistentUnackedRangesWithMultipleEntriesEnabled());
+            managedLedgerConfig.setPersistentUnackedRangesMaxEntrySize(
+                    serviceConfig.getManagedLedgerPersistentUnackedRangesMaxEntrySize());
+            managedLedgerConfig.setMarkDeleteGroupCommitEnabled(
+                    serviceConfig.isManagedLedgerMarkDeleteGroupCommitEnabled());
+            managedLedgerConfig.setTailReadFanOutEnabled(serviceConfig.isManagedLedgerTailReadFanOutEnabled());
+            managedLedgerConfig.setPublishTimeIndexMaxPointsPerLedger(
+                    serviceConfig.getManagedLedgerPublishTimeIndexMaxPointsPerLedger());
+            managedLedgerConfig.setEntryTimestampExtractor(MessagePublishTimeExtractor.INSTANCE);
+            managedLedgerConfig.setKeyBloomFilterExpectedKeysPerLedger(
+                    serviceConfig.getManagedLedgerKeyBloomFilterExpectedKeysPerLedger());
+            managedLedgerConfig.setKeyBloomFilterFalsePositiveProbability(
+                    serviceConfig.getManagedLedgerKeyBloomFilterFalsePositiveProbability());
+            managedLedgerConfig.setEntryKeyExtractor(MessageKeyExtractor.INSTANCE);
             managedLedgerConfig.setMaxUnackedRangesToPersistInZk(serviceConfig.getManagedLedgerMaxUnackedRangesToPersistInZooKeeper());
             managedLedgerConfig.setMaxEntriesPerLedger(serviceConfig.getManagedLedgerMaxEntriesPerLedger());
             managedLedgerConfig.setMinimumRolloverTime(serviceConfig.getManagedLedgerMinLedgerRolloverTimeMinutes(),
                     TimeUnit.MINUTES);
             managedLedgerConfig.setMaximumRolloverTime(serviceConfig.getManagedLedgerMaxLedgerRolloverTimeMinutes(),
                     TimeUnit.MINUTES);
+            managedLedgerConfig.setStandbyLedgerCreationThreshold(
+                    serviceConfig.getManagedLedgerStandbyLedgerCreationThreshold());
             managedLedgerConfig.setMaxSizePerLedgerMb(2048);
 
             managedLedgerConfig.setMetadataOperationsTimeoutSeconds(
                     serviceConfig.getManagedLedgerMetadataOperationsTimeoutSeconds());
             managedLedgerConfig.setReadEntryTimeoutSeconds(serviceConfig.getManagedLedgerReadEntryTimeoutSeconds());
             managedLedgerConfig.setAddEntryTimeoutSeconds(serviceConfig.getManagedLedgerAddEntryTimeoutSeconds());
+            managedLedgerConfig.setReadAheadMaxEntries(serviceConfig.getManagedLedgerReadAheadMaxEntries());
+            managedLedgerConfig.setReadAheadMaxSizeBytes(serviceConfig.getManagedLedgerReadAheadMaxSizeKB() * 1024L);
             managedLedgerConfig.setMetadataEnsembleSize(serviceConfig.getManagedLedgerDefaultEnsembleSize());
             managedLedgerConfig.setUnackedRangesOpenCacheSetEnabled(
                     serviceConfig.isManagedLedgerUnackedRangesOpenCacheSetEnabled());
+            managedLedgerConfig.setUnackedRangesCompressedSetEnabled(
+                    serviceConfig.isManagedLedgerUnackedRangesCompressedSetEnabled());
             managedLedgerConfig.setMetadataWriteQuorumSize(serviceConfig.getManagedLedgerDefaultWriteQuorum());
             managedLedgerConfig.setMetadataAckQuorumSize(serviceConfig.getManagedLedgerDefaultAckQuorum());
             managedLedgerConfig
@@ -1490,15 +1576,17 @@ public class BrokerService implements Closeable, ZooKeeperCacheListener<Policies
      * permit if it was successful to acquire it.
      */
     private void createPendingLoadTopic() {
-        Pair<String, CompletableFuture<Optional<Topic>>> pendingTopic = pendingTopicLoadingQueue.poll();
+        PendingTopicLoad pendingTopic = pollPendingTopicLoad();
         if (pendingTopic == null) {
             return;
         }
 
-        final String topic = pendingTopic.getLeft();
+        final String topic = pendingTopic.topic;
+        pulsarStats.recordTopicLoadWaitTimeValue(topic,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pendingTopic.queuedTimestamp));
         try {
             checkTopicNsOwnership(topic);
-            CompletableFuture<Optional<Topic>> pendingFuture = pendingTopic.getRight();
+            CompletableFuture<Optional<Topic>> pendingFuture = pendingTopic.topicFuture;
             final Semaphore topicLoadSemaphore = topicLoadRequestSemaphore.get();
             final boolean acquiredPermit = topicLoadSemaphore.tryAcquire();
             createPersistentTopic(topic, true, pendingFuture);
@@ -1512,7 +1600,7 @@ public class BrokerService implements Closeable, ZooKeeperCacheListener<Policies
             });
         } catch (RuntimeException re) {
             log.error("Failed to create pending topic {} {}", topic, re);
-            pendingTopic.getRight().completeExceptionally(re.getCause());
+            pendingTopic.topicFuture.completeExceptionally(re.getCause());
             // schedule to process next pending topic
             inactivityMonitor.schedule(() -> createPendingLoadTopic(), 100, TimeUnit.MILLISECONDS);
         }
@@ -1640,6 +1728,18 @@ public class BrokerService implements Closeable, ZooKeeperCacheListener<Policies
         }
     }
 
+    private static class PendingTopicLoad {
+        final String topic;
+        final CompletableFuture<Optional<Topic>> topicFuture;
+        final long queuedTimestamp = System.nanoTime();
+        final AtomicBoolean started = new AtomicBoolean(false);
+
+        PendingTopicLoad(String topic, CompletableFuture<Optional<Topic>> topicFuture) {
+            this.topic = topic;
+            this.topicFuture = topicFuture;
+        }
+    }
+
     /**
      * Safely extract optional topic instance from a future, in a way to avoid unchecked exceptions and race conditions.
      */
@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import org.apache.pulsar.common.util.Murmur3_32Hash;
+
+/**
+ * This is a consumer selector based on a consistent hashing ring.
+ *
+ * 1.Each consumer is placed on the ring at a configurable number of points (virtual nodes), derived from the hash of
+ *   its name.
+ * 2.A key is served by the consumer owning the first point on the ring at or after the hash of the key, wrapping
+ *   around at the end of the ring.
+ * 3.Once a consumer is added or removed, only the keys falling between its points and the preceding points move,
+ *   about 1/n of the keys with n consumers, and they spread evenly over the other consumers.
+ *
+ * The points are kept in a skip list map, so that selecting a consumer is a O(log n) ceiling lookup. Consumers with
+ * the same name get the same points, and share them by choosing among themselves with the hash of the key.
+ */
+public class ConsistentHashingStickyKeyConsumerSelector implements StickyKeyConsumerSelector {
+
+    public static final int DEFAULT_NUMBER_OF_POINTS = 100;
+
+    private final int numberOfPoints;
+
+    // Consumers at each point of the ring. The lists are replaced on updates and never modified in place, so that
+    // they can be read without locking
+    private final ConcurrentSkipListMap<Integer, List<Consumer>> hashRing;
+
+    public ConsistentHashingStickyKeyConsumerSelector() {
+        this(DEFAULT_NUMBER_OF_POINTS);
+    }
+
+    public ConsistentHashingStickyKeyConsumerSelector(int numberOfPoints) {
+        if (numberOfPoints < 1) {
+            throw new IllegalArgumentException("number of points must be at least 1");
+        }
+        this.numberOfPoints = numberOfPoints;
+        this.hashRing = new ConcurrentSkipListMap<>();
+    }
+
+    @Override
+    public synchronized void addConsumer(Consumer consumer) {
+        for (int i = 0; i < numberOfPoints; i++) {
+            int point = pointHash(consumer, i);
+            List<Consumer> consumers = hashRing.get(point);
+            if (consumers == null) {
+                hashRing.put(point, Collections.singletonList(consumer));
+            } else {
+                List<Consumer> newConsumers = new ArrayList<>(consumers.size() + 1);
+                newConsumers.addAll(consumers);
+                newConsumers.add(consumer);
+                hashRing.put(point, Collections.unmodifiableList(newConsumers));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void removeConsumer(Consumer consumer) {
+        for (int i = 0; i < numberOfPoints; i++) {
+            int point = pointHash(consumer, i);
+            List<Consumer> consumers = hashRing.get(point);
+            if (consumers == null || !consumers.contains(consumer)) {
+                continue;
+            }
+
+            if (consumers.size() == 1) {
+                hashRing.remove(point);
+            } else {
+                List<Consumer> newConsumers = new ArrayList<>(consumers);
+                newConsumers.remove(consumer);
+                hashRing.put(point, Collections.unmodifiableList(newConsumers));
+            }
+        }
+    }
+
+    @Override
+    public Consumer select(byte[] stickyKey) {
+        return select(Murmur3_32Hash.getInstance().makeHash(stickyKey));
+    }
+
+    @Override
+    public Consumer select(int hash) {
+        Map.Entry<Integer, List<Consumer>> entry = hashRing.ceilingEntry(hash);
+        if (entry == null) {
+            // Wrap around the ring
+            entry = hashRing.firstEntry();
+            if (entry == null) {
+                return null;
+            }
+        }
+
+        List<Consumer> consumers = entry.getValue();
+        return consumers.size() == 1 ? consumers.get(0) : consumers.get((hash & Integer.MAX_VALUE) % consumers.size());
+    }
+
+    private static int pointHash(Consumer consumer, int index) {
+        // The separator keeps the points of different consumers apart, e.g. "a1" + "0" and "a" + "10"
+        return Murmur3_32Hash.getInstance().makeHash((consumer.consumerName() + "#" + index).getBytes(UTF_8));
+    }
+
+    Map<Integer, List<Consumer>> getHashRing() {
+        return Collections.unmodifiableMap(hashRing);
+    }
+}
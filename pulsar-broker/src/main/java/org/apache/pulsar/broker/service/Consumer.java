@@ -24,6 +24,7 @@ import com.google.common.base.MoreObjects;
 import com.google.common.collect.Lists;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
@@ -45,6 +46,7 @@ import org.apache.bookkeeper.mledger.util.Rate;
 import org.apache.bookkeeper.util.collections.ConcurrentLongLongPairHashMap;
 import org.apache.bookkeeper.util.collections.ConcurrentLongLongPairHashMap.LongPair;
 import org.apache.pulsar.broker.authentication.AuthenticationDataSource;
+import org.apache.pulsar.common.allocator.PulsarByteBufAllocator;
 import org.apache.pulsar.common.protocol.Commands;
 import org.apache.pulsar.common.api.proto.PulsarApi.CommandAck;
 import org.apache.pulsar.common.api.proto.PulsarApi.CommandAck.AckType;
@@ -103,6 +105,9 @@ public class Consumer {
 
     private final Map<String, String> metadata;
 
+    // Typical size of the frame headers of a message command, used to size the headers buffer of a dispatch
+    private static final int MESSAGE_HEADERS_SIZE_ESTIMATE = 48;
+
     public Consumer(Subscription subscription, SubType subType, String topicName, long consumerId,
                     int priorityLevel, String consumerName,
                     int maxUnackedMessages, ServerCnx cnx, String appId,
@@ -215,6 +220,13 @@ public class Consumer {
         msgOut.recordMultipleEvents(totalMessages, totalBytes);
 
         ctx.channel().eventLoop().execute(() -> {
+            // The frame headers of all the messages are written in a single buffer, and the messages are sent on the
+            // channel as one composite buffer of [headers][metadata and payload] slices, with a single flush
+            ByteBuf headers = PulsarByteBufAllocator.DEFAULT.buffer(entries.size() * MESSAGE_HEADERS_SIZE_ESTIMATE);
+            ByteBuf[] payloads = new ByteBuf[entries.size()];
+            int[] headersOffsets = new int[entries.size() + 1];
+            int messagesCount = 0;
+
             for (int i = 0; i < entries.size(); i++) {
                 Entry entry = entries.get(i);
                 if (entry == null) {
@@ -233,13 +245,6 @@ public class Consumer {
                     continue;
                 }
 
-                MessageIdData.Builder messageIdBuilder = MessageIdData.newBuilder();
-                MessageIdData messageId = messageIdBuilder
-                    .setLedgerId(entry.getLedgerId())
-                    .setEntryId(entry.getEntryId())
-                    .setPartition(partitionIdx)
-                    .build();
-
                 ByteBuf metadataAndPayload = entry.getDataBuffer();
                 // increment ref-count of data and release at the end of process: so, we can get chance to call entry.release
                 metadataAndPayload.retain();
@@ -254,15 +259,28 @@ public class Consumer {
                 }
 
                 int redeliveryCount = redeliveryTracker
-                        .getRedeliveryCount(PositionImpl.get(messageId.getLedgerId(), messageId.getEntryId()));
-                ctx.write(Commands.newMessage(consumerId, messageId, redeliveryCount, metadataAndPayload), ctx.voidPromise());
-                messageId.recycle();
-                messageIdBuilder.recycle();
+                        .getRedeliveryCount(PositionImpl.get(entry.getLedgerId(), entry.getEntryId()));
+                Commands.writeMessageHeaders(headers, consumerId, entry.getLedgerId(), entry.getEntryId(),
+                        partitionIdx, redeliveryCount, metadataAndPayload.readableBytes());
+                payloads[messagesCount] = metadataAndPayload;
+                headersOffsets[++messagesCount] = headers.writerIndex();
                 entry.release();
             }
 
-            // Use an empty write here so that we can just tie the flush with the write promise for last entry
-            ctx.writeAndFlush(Unpooled.EMPTY_BUFFER, writePromise);
+            if (messagesCount == 0) {
+                headers.release();
+                ctx.writeAndFlush(Unpooled.EMPTY_BUFFER, writePromise);
+            } else {
+                // The slices are taken once all the headers are written, since the buffer might have been expanded
+                CompositeByteBuf messages = PulsarByteBufAllocator.DEFAULT.compositeDirectBuffer(2 * messagesCount);
+                for (int i = 0; i < messagesCount; i++) {
+                    messages.addComponent(true,
+                            headers.retainedSlice(headersOffsets[i], headersOffsets[i + 1] - headersOffsets[i]));
+                    messages.addComponent(true, payloads[i]);
+                }
+                headers.release();
+                ctx.writeAndFlush(messages, writePromise);
+            }
             batchSizes.recyle();
         });
 
@@ -346,7 +364,6 @@ public class Consumer {
             for (int i = 0; i < ack.getMessageIdCount(); i++) {
                 MessageIdData msgId = ack.getMessageId(i);
                 PositionImpl position = PositionImpl.get(msgId.getLedgerId(), msgId.getEntryId());
-                positionsAcked.add(position);
 
                 if (Subscription.isIndividualAckMode(subType)) {
                     removePendingAcks(position);
@@ -356,8 +373,17 @@ public class Consumer {
                     log.error("[{}] [{}] Received ack for corrupted message at {} - Reason: {}", subscription,
                             consumerId, position, ack.getValidationError());
                 }
+
+                // A Key_Shared batch split between consumers is acknowledged once all of them acknowledged their part
+                if (subType == SubType.Key_Shared
+                        && !subscription.getDispatcher().entryAcknowledged(this, position)) {
+                    continue;
+                }
+                positionsAcked.add(position);
+            }
+            if (!positionsAcked.isEmpty()) {
+                subscription.acknowledgeMessage(positionsAcked, AckType.Individual, properties);
             }
-            subscription.acknowledgeMessage(positionsAcked, AckType.Individual, properties);
         }
     }
 
@@ -95,4 +95,13 @@ public interface Dispatcher {
     default long getNumberOfDelayedMessages() {
         return 0;
     }
+
+    /**
+     * Notify the dispatcher that a consumer individually acknowledged an entry.
+     * Return false if the entry should not be acknowledged on the cursor yet, because parts of it were dispatched to
+     * other consumers that did not acknowledge them yet.
+     */
+    default boolean entryAcknowledged(Consumer consumer, PositionImpl position) {
+        return true;
+    }
 }
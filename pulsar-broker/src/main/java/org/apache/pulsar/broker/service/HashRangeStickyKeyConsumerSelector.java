@@ -108,6 +108,7 @@ public class HashRangeStickyKeyConsumerSelector implements StickyKeyConsumerSele
         return select(Murmur3_32Hash.getInstance().makeHash(stickyKey));
     }
 
+    @Override
     public Consumer select(int hash) {
         if (rangeMap.size() > 0) {
             int slot = hash % rangeSize;
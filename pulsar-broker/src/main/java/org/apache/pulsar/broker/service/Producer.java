@@ -36,6 +36,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import org.apache.bookkeeper.mledger.util.Rate;
+import org.apache.pulsar.broker.ServiceConfiguration;
 import org.apache.pulsar.broker.authentication.AuthenticationDataSource;
 import org.apache.pulsar.broker.service.BrokerServiceException.TopicClosedException;
 import org.apache.pulsar.broker.service.BrokerServiceException.TopicTerminatedException;
@@ -85,6 +86,9 @@ public class Producer {
 
     private final SchemaVersion schemaVersion;
 
+    // Packs the messages published concurrently into single entries, null if disabled
+    private final PublishAggregator publishAggregator;
+
     public Producer(Topic topic, ServerCnx cnx, long producerId, String producerName, String appId,
         boolean isEncrypted, Map<String, String> metadata, SchemaVersion schemaVersion) {
         this.topic = topic;
@@ -114,6 +118,15 @@ public class Producer {
 
         this.isEncrypted = isEncrypted;
         this.schemaVersion = schemaVersion;
+
+        ServiceConfiguration conf = cnx.getBrokerService().pulsar().getConfiguration();
+        if (conf.isBrokerPublishAggregationEnabled() && topic instanceof PersistentTopic && !isRemote) {
+            this.publishAggregator = new PublishAggregator((PersistentTopic) topic, cnx.ctx().channel().eventLoop(),
+                    conf.getBrokerPublishAggregationMaxMessages(), conf.getBrokerPublishAggregationMaxBytes(),
+                    conf.getBrokerPublishAggregationMaxDelayMicros());
+        } else {
+            this.publishAggregator = null;
+        }
     }
 
     @Override
@@ -170,9 +183,13 @@ public class Producer {
         }
 
         startPublishOperation();
-        topic.publishMessage(headersAndPayload,
-                MessagePublishContext.get(this, sequenceId, msgIn, headersAndPayload.readableBytes(), batchSize,
-                        System.nanoTime()));
+        MessagePublishContext publishContext = MessagePublishContext.get(this, sequenceId, msgIn,
+                headersAndPayload.readableBytes(), batchSize, System.nanoTime());
+        if (publishAggregator != null) {
+            publishAggregator.publishMessage(headersAndPayload, publishContext);
+        } else {
+            topic.publishMessage(headersAndPayload, publishContext);
+        }
     }
 
     private boolean verifyChecksum(ByteBuf headersAndPayload) {
@@ -243,6 +260,7 @@ public class Producer {
         private long sequenceId;
         private long ledgerId;
         private long entryId;
+        private int batchIndex;
         private Rate rateIn;
         private int msgSize;
         private long batchSize;
@@ -279,6 +297,12 @@ public class Producer {
             return originalSequenceId;
         }
 
+        @Override
+        public void completed(Exception exception, long ledgerId, long entryId, int batchIndex) {
+            this.batchIndex = batchIndex;
+            completed(exception, ledgerId, entryId);
+        }
+
         /**
          * Executed from managed ledger thread when the message is persisted
          */
@@ -325,7 +349,7 @@ public class Producer {
             // stats
             rateIn.recordMultipleEvents(batchSize, msgSize);
             producer.cnx.ctx().writeAndFlush(
-                    Commands.newSendReceipt(producer.producerId, sequenceId, ledgerId, entryId),
+                    Commands.newSendReceipt(producer.producerId, sequenceId, ledgerId, entryId, batchIndex),
                     producer.cnx.ctx().voidPromise());
             producer.cnx.completedSendOperation(producer.isNonPersistentTopic);
             producer.publishOperationCompleted();
@@ -343,6 +367,7 @@ public class Producer {
             callback.originalProducerName = null;
             callback.originalSequenceId = -1;
             callback.startTimeNs = startTimeNs;
+            callback.batchIndex = -1;
             return callback;
         }
 
@@ -365,6 +390,7 @@ public class Producer {
             msgSize = 0;
             ledgerId = -1;
             entryId = -1;
+            batchIndex = -1;
             batchSize = 0;
             startTimeNs = -1;
             recyclerHandle.recycle(this);
@@ -406,6 +432,9 @@ public class Producer {
 
         if (!isClosed) {
             isClosed = true;
+            if (publishAggregator != null) {
+                publishAggregator.flush();
+            }
             if (log.isDebugEnabled()) {
                 log.debug("Trying to close producer {} -- cnxIsActive: {} -- pendingPublishAcks: {}", this,
                         cnx.isActive(), pendingPublishAcks);
@@ -0,0 +1,276 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.service;
+
+import com.google.common.collect.Lists;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.Recycler;
+import io.netty.util.Recycler.Handle;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.pulsar.broker.service.Topic.PublishContext;
+import org.apache.pulsar.broker.service.persistent.PersistentTopic;
+import org.apache.pulsar.common.allocator.PulsarByteBufAllocator;
+import org.apache.pulsar.common.api.proto.PulsarApi.CompressionType;
+import org.apache.pulsar.common.api.proto.PulsarApi.MessageMetadata;
+import org.apache.pulsar.common.api.proto.PulsarApi.SingleMessageMetadata;
+import org.apache.pulsar.common.protocol.Commands;
+import org.apache.pulsar.common.protocol.Commands.ChecksumType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packs the small messages published concurrently by a producer that does not batch into a single entry.
+ *
+ * <p/>While a write of the producer is outstanding, the following messages are kept aside and written together as a
+ * batch message when the write completes, when the max size of the batch is reached or after the max delay. The
+ * entry uses the same format as the batches built by the clients, so that the consumers still receive each message
+ * individually, and the producer gets the index of each message in the batch with its publish receipt. Only the
+ * messages that could have been batched by the client are aggregated: they must not be compressed, encrypted,
+ * replicated or delayed, and must have the same key and schema version as the rest of the batch.
+ */
+class PublishAggregator {
+
+    private final PersistentTopic topic;
+    private final ScheduledExecutorService executor;
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long maxDelayMicros;
+
+    // Messages waiting for the outstanding writes to complete
+    private final List<ByteBuf> pendingMessages = Lists.newArrayList();
+    private final List<MessageMetadata> pendingMetadata = Lists.newArrayList();
+    private final List<PublishContext> pendingContexts = Lists.newArrayList();
+    private int pendingBytes = 0;
+    private ScheduledFuture<?> flushTask = null;
+
+    private int writesInProgress = 0;
+
+    PublishAggregator(PersistentTopic topic, ScheduledExecutorService executor, int maxMessages, int maxBytes,
+            long maxDelayMicros) {
+        this.topic = topic;
+        this.executor = executor;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxDelayMicros = maxDelayMicros;
+    }
+
+    synchronized void publishMessage(ByteBuf headersAndPayload, PublishContext publishContext) {
+        if (topic.isDeduplicationEnabled() || headersAndPayload.readableBytes() >= maxBytes) {
+            // Deduplication tracks the sequence id of each entry, and large messages gain nothing from being packed
+            flush();
+            topic.publishMessage(headersAndPayload, publishContext);
+            return;
+        }
+
+        headersAndPayload.markReaderIndex();
+        MessageMetadata metadata = Commands.parseMessageMetadata(headersAndPayload);
+        headersAndPayload.resetReaderIndex();
+
+        if (!canBeAggregated(metadata)) {
+            metadata.recycle();
+            flush();
+            topic.publishMessage(headersAndPayload, publishContext);
+            return;
+        }
+
+        if (!pendingMetadata.isEmpty() && !canBeAggregatedWith(metadata, pendingMetadata.get(0))) {
+            flush();
+        }
+
+        pendingMessages.add(headersAndPayload.retain());
+        pendingMetadata.add(metadata);
+        pendingContexts.add(publishContext);
+        pendingBytes += headersAndPayload.readableBytes();
+
+        if (writesInProgress == 0 || pendingMessages.size() >= maxMessages || pendingBytes >= maxBytes) {
+            flush();
+        } else if (flushTask == null && maxDelayMicros > 0) {
+            flushTask = executor.schedule(this::flush, maxDelayMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * Write the pending messages, if any.
+     */
+    synchronized void flush() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (pendingMessages.isEmpty()) {
+            return;
+        }
+
+        AggregatedPublishContext aggregatedContext = AggregatedPublishContext.get(this);
+        aggregatedContext.contexts.addAll(pendingContexts);
+        ++writesInProgress;
+
+        if (pendingMessages.size() == 1) {
+            ByteBuf headersAndPayload = pendingMessages.get(0);
+            topic.publishMessage(headersAndPayload, aggregatedContext);
+            headersAndPayload.release();
+        } else {
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] [{}] Writing {} messages in a single entry", topic.getName(),
+                        pendingMetadata.get(0).getProducerName(), pendingMessages.size());
+            }
+            ByteBuf entry = serializeBatch();
+            topic.publishMessage(entry, aggregatedContext);
+            entry.release();
+        }
+
+        pendingMessages.clear();
+        pendingMetadata.forEach(MessageMetadata::recycle);
+        pendingMetadata.clear();
+        pendingContexts.clear();
+        pendingBytes = 0;
+    }
+
+    private synchronized void writeCompleted() {
+        --writesInProgress;
+        flush();
+    }
+
+    private static boolean canBeAggregated(MessageMetadata metadata) {
+        return !metadata.hasNumMessagesInBatch()
+                && metadata.getCompression() == CompressionType.NONE
+                && metadata.getEncryptionKeysCount() == 0
+                && !metadata.hasReplicatedFrom()
+                && metadata.getReplicateToCount() == 0
+                && !metadata.hasDeliverAtTime()
+                && !metadata.hasMarkerType();
+    }
+
+    private static boolean canBeAggregatedWith(MessageMetadata metadata, MessageMetadata first) {
+        // Dispatchers route the whole entry by its key
+        return Objects.equals(metadata.hasPartitionKey() ? metadata.getPartitionKey() : null,
+                first.hasPartitionKey() ? first.getPartitionKey() : null)
+                && Objects.equals(metadata.hasOrderingKey() ? metadata.getOrderingKey() : null,
+                        first.hasOrderingKey() ? first.getOrderingKey() : null)
+                && Objects.equals(metadata.hasSchemaVersion() ? metadata.getSchemaVersion() : null,
+                        first.hasSchemaVersion() ? first.getSchemaVersion() : null);
+    }
+
+    private ByteBuf serializeBatch() {
+        MessageMetadata first = pendingMetadata.get(0);
+        ByteBuf payload = PulsarByteBufAllocator.DEFAULT.buffer(pendingBytes);
+        for (int i = 0; i < pendingMessages.size(); i++) {
+            ByteBuf headersAndPayload = pendingMessages.get(i);
+            MessageMetadata metadata = pendingMetadata.get(i);
+            Commands.skipMessageMetadata(headersAndPayload);
+
+            SingleMessageMetadata.Builder singleMessageMetadataBuilder = SingleMessageMetadata.newBuilder();
+            if (metadata.hasPartitionKey()) {
+                singleMessageMetadataBuilder.setPartitionKey(metadata.getPartitionKey())
+                        .setPartitionKeyB64Encoded(metadata.getPartitionKeyB64Encoded());
+            }
+            if (metadata.hasOrderingKey()) {
+                singleMessageMetadataBuilder.setOrderingKey(metadata.getOrderingKey());
+            }
+            if (metadata.getPropertiesCount() > 0) {
+                singleMessageMetadataBuilder.addAllProperties(metadata.getPropertiesList());
+            }
+            if (metadata.hasEventTime()) {
+                singleMessageMetadataBuilder.setEventTime(metadata.getEventTime());
+            }
+            // The messages were published at different times, the batch only keeps the time of the first one
+            singleMessageMetadataBuilder.setPublishTime(metadata.getPublishTime());
+            Commands.serializeSingleMessageInBatchWithPayload(singleMessageMetadataBuilder, headersAndPayload, payload);
+            singleMessageMetadataBuilder.recycle();
+            headersAndPayload.release();
+        }
+
+        MessageMetadata.Builder metadataBuilder = MessageMetadata.newBuilder();
+        metadataBuilder.setProducerName(first.getProducerName());
+        metadataBuilder.setSequenceId(first.getSequenceId());
+        metadataBuilder.setPublishTime(first.getPublishTime());
+        metadataBuilder.setNumMessagesInBatch(pendingMessages.size());
+        metadataBuilder.setUncompressedSize(payload.readableBytes());
+        if (first.hasPartitionKey()) {
+            metadataBuilder.setPartitionKey(first.getPartitionKey());
+            metadataBuilder.setPartitionKeyB64Encoded(first.getPartitionKeyB64Encoded());
+        }
+        if (first.hasOrderingKey()) {
+            metadataBuilder.setOrderingKey(first.getOrderingKey());
+        }
+        if (first.hasSchemaVersion()) {
+            metadataBuilder.setSchemaVersion(first.getSchemaVersion());
+        }
+        MessageMetadata metadata = metadataBuilder.build();
+
+        ByteBuf entry = Commands.serializeMetadataAndPayload(ChecksumType.Crc32c, metadata, payload);
+        metadataBuilder.recycle();
+        metadata.recycle();
+        payload.release();
+        return entry;
+    }
+
+    /**
+     * Completes the publish contexts of all the messages written in the same entry.
+     */
+    private static final class AggregatedPublishContext implements PublishContext {
+        private PublishAggregator aggregator;
+        private final List<PublishContext> contexts = Lists.newArrayList();
+
+        @Override
+        public void completed(Exception exception, long ledgerId, long entryId) {
+            PublishAggregator aggregator = this.aggregator;
+            if (contexts.size() == 1) {
+                contexts.get(0).completed(exception, ledgerId, entryId);
+            } else {
+                // The message ids returned to the producer must match the ones the consumers receive
+                for (int i = 0; i < contexts.size(); i++) {
+                    contexts.get(i).completed(exception, ledgerId, entryId, i);
+                }
+            }
+            recycle();
+            aggregator.writeCompleted();
+        }
+
+        static AggregatedPublishContext get(PublishAggregator aggregator) {
+            AggregatedPublishContext context = RECYCLER.get();
+            context.aggregator = aggregator;
+            return context;
+        }
+
+        private final Handle<AggregatedPublishContext> recyclerHandle;
+
+        private AggregatedPublishContext(Handle<AggregatedPublishContext> recyclerHandle) {
+            this.recyclerHandle = recyclerHandle;
+        }
+
+        private static final Recycler<AggregatedPublishContext> RECYCLER = new Recycler<AggregatedPublishContext>() {
+            protected AggregatedPublishContext newObject(Recycler.Handle<AggregatedPublishContext> handle) {
+                return new AggregatedPublishContext(handle);
+            }
+        };
+
+        public void recycle() {
+            aggregator = null;
+            contexts.clear();
+            recyclerHandle.recycle(this);
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(PublishAggregator.class);
+}
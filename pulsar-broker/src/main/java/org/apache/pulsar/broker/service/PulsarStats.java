@@ -233,6 +233,14 @@ public class PulsarStats implements Closeable {
         }
     }
 
+    public void recordTopicLoadWaitTimeValue(String topic, long topicLoadWaitMs) {
+        try {
+            brokerOperabilityMetrics.recordTopicLoadWaitTimeValue(topicLoadWaitMs);
+        } catch (Exception ex) {
+            log.warn("Exception while recording topic load wait time for topic {}, {}", topic, ex.getMessage());
+        }
+    }
+
     public void recordZkLatencyTimeValue(EventType eventType, long latencyMs) {
         try {
             if (EventType.write.equals(eventType)) {
@@ -41,4 +41,12 @@ public interface StickyKeyConsumerSelector {
      * @return consumer
      */
     Consumer select(byte[] stickyKey);
+
+    /**
+     * Select a consumer by the hash of the sticky key
+     *
+     * @param keyHash Murmur3 32 bits hash of the sticky key
+     * @return consumer
+     */
+    Consumer select(int keyHash);
 }
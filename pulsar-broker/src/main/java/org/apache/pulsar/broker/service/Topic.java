@@ -75,6 +75,14 @@ public interface Topic {
         }
 
         void completed(Exception e, long ledgerId, long entryId);
+
+        /**
+         * Called instead of {@link #completed(Exception, long, long)} when the message was written by the broker in a
+         * batch entry, together with messages of other publish requests.
+         */
+        default void completed(Exception e, long ledgerId, long entryId, int batchIndex) {
+            completed(e, ledgerId, entryId);
+        }
     }
 
     void publishMessage(ByteBuf headersAndPayload, PublishContext callback);
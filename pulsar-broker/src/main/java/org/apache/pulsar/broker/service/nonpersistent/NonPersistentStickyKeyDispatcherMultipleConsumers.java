@@ -19,7 +19,9 @@
 package org.apache.pulsar.broker.service.nonpersistent;
 
 import org.apache.bookkeeper.mledger.Entry;
+import org.apache.pulsar.broker.ServiceConfiguration;
 import org.apache.pulsar.broker.service.BrokerServiceException;
+import org.apache.pulsar.broker.service.ConsistentHashingStickyKeyConsumerSelector;
 import org.apache.pulsar.broker.service.Consumer;
 import org.apache.pulsar.broker.service.EntryBatchSizes;
 import org.apache.pulsar.broker.service.HashRangeStickyKeyConsumerSelector;
@@ -42,8 +44,13 @@ public class NonPersistentStickyKeyDispatcherMultipleConsumers extends NonPersis
 
     public NonPersistentStickyKeyDispatcherMultipleConsumers(NonPersistentTopic topic, Subscription subscription) {
         super(topic, subscription);
-        //TODO: Consumer selector Pluggable
-        selector = new HashRangeStickyKeyConsumerSelector();
+        ServiceConfiguration conf = topic.getBrokerService().pulsar().getConfiguration();
+        if (conf.isSubscriptionKeySharedUseConsistentHashing()) {
+            selector = new ConsistentHashingStickyKeyConsumerSelector(
+                    conf.getSubscriptionKeySharedConsistentHashingReplicaPoints());
+        } else {
+            selector = new HashRangeStickyKeyConsumerSelector();
+        }
     }
 
     @Override
@@ -76,10 +83,7 @@ public class NonPersistentStickyKeyDispatcherMultipleConsumers extends NonPersis
             while (iterator.hasNext()) {
                 final Map.Entry<Integer, List<Entry>> entriesWithSameKey = iterator.next();
                 //TODO: None key policy
-                Consumer consumer = null;
-                if (selector instanceof HashRangeStickyKeyConsumerSelector) {
-                    consumer = ((HashRangeStickyKeyConsumerSelector)selector).select(entriesWithSameKey.getKey());
-                }
+                Consumer consumer = selector.select(entriesWithSameKey.getKey());
                 if (consumer != null) {
                     SendMessageInfo sendMessageInfo = SendMessageInfo.getThreadLocal();
                     EntryBatchSizes batchSizes = EntryBatchSizes.get(entriesWithSameKey.getValue().size());
@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.service.persistent;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.bookkeeper.mledger.EntryKeyExtractor;
+import org.apache.pulsar.common.api.proto.PulsarApi.CompressionType;
+import org.apache.pulsar.common.api.proto.PulsarApi.MessageMetadata;
+import org.apache.pulsar.common.api.proto.PulsarApi.SingleMessageMetadata;
+import org.apache.pulsar.common.protocol.Commands;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts the partition key of the messages published on a topic, to build the key bloom filters of its ledgers.
+ *
+ * <p/>The batches built by the clients don't have the keys of their messages in the batch metadata, so the keys are
+ * read from the metadata of each message of the batch. The keys of compressed or encrypted batches are unknown, since
+ * the broker cannot read their messages.
+ */
+public class MessageKeyExtractor implements EntryKeyExtractor {
+
+    public static final MessageKeyExtractor INSTANCE = new MessageKeyExtractor();
+
+    @Override
+    public List<String> getKeys(ByteBuf data) {
+        int readerIndex = data.readerIndex();
+        MessageMetadata metadata = null;
+        try {
+            metadata = Commands.parseMessageMetadata(data);
+            if (metadata.hasNumMessagesInBatch()) {
+                if (metadata.getCompression() != CompressionType.NONE || metadata.getEncryptionKeysCount() > 0) {
+                    return null;
+                }
+                return getBatchKeys(data, metadata.getNumMessagesInBatch());
+            } else if (metadata.hasPartitionKey()) {
+                return Collections.singletonList(metadata.getPartitionKey());
+            } else {
+                return Collections.emptyList();
+            }
+        } catch (Throwable t) {
+            log.warn("Failed to parse message metadata: {}", t.getMessage());
+            return null;
+        } finally {
+            data.readerIndex(readerIndex);
+            if (metadata != null) {
+                metadata.recycle();
+            }
+        }
+    }
+
+    private static List<String> getBatchKeys(ByteBuf payload, int batchSize) throws Exception {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            SingleMessageMetadata.Builder singleMessageMetadataBuilder = SingleMessageMetadata.newBuilder();
+            try {
+                Commands.deSerializeSingleMessageInBatch(payload, singleMessageMetadataBuilder, i, batchSize).release();
+                if (singleMessageMetadataBuilder.hasPartitionKey()) {
+                    keys.add(singleMessageMetadataBuilder.getPartitionKey());
+                }
+            } finally {
+                singleMessageMetadataBuilder.recycle();
+            }
+        }
+        return keys;
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(MessageKeyExtractor.class);
+}
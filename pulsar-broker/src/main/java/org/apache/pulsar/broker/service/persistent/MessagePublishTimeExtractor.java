@@ -0,0 +1,58 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.service.persistent;
+
+import io.netty.buffer.ByteBuf;
+
+import org.apache.bookkeeper.mledger.EntryTimestampExtractor;
+import org.apache.pulsar.common.api.proto.PulsarApi.MessageMetadata;
+import org.apache.pulsar.common.protocol.Commands;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts the publish time of the messages published on a topic, to build the publish time index of its ledgers.
+ *
+ * <p/>The messages of a batch share the publish time of the batch, which is the one checked when searching messages
+ * by publish time.
+ */
+public class MessagePublishTimeExtractor implements EntryTimestampExtractor {
+
+    public static final MessagePublishTimeExtractor INSTANCE = new MessagePublishTimeExtractor();
+
+    @Override
+    public long getTimestamp(ByteBuf data) {
+        int readerIndex = data.readerIndex();
+        MessageMetadata metadata = null;
+        try {
+            metadata = Commands.parseMessageMetadata(data);
+            return metadata.getPublishTime();
+        } catch (Throwable t) {
+            log.warn("Failed to parse message metadata: {}", t.getMessage());
+            return -1;
+        } finally {
+            data.readerIndex(readerIndex);
+            if (metadata != null) {
+                metadata.recycle();
+            }
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(MessagePublishTimeExtractor.class);
+}
@@ -24,8 +24,11 @@ import static org.apache.pulsar.broker.service.persistent.PersistentTopic.MESSAG
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.Lists;
 
+import io.netty.util.internal.PlatformDependent;
+
 import java.util.List;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
@@ -39,6 +42,7 @@ import org.apache.bookkeeper.mledger.ManagedLedgerException.NoMoreEntriesToReadE
 import org.apache.bookkeeper.mledger.ManagedLedgerException.TooManyRequestsException;
 import org.apache.bookkeeper.mledger.Position;
 import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.bookkeeper.mledger.util.SafeRun;
 import org.apache.pulsar.broker.ServiceConfiguration;
 import org.apache.pulsar.broker.admin.AdminResource;
 import org.apache.pulsar.broker.delayed.DelayedDeliveryTracker;
@@ -98,6 +102,13 @@ public class PersistentDispatcherMultipleConsumers extends AbstractDispatcherMul
     protected final ServiceConfiguration serviceConfig;
     protected Optional<DispatchRateLimiter> dispatchRateLimiter = Optional.empty();
 
+    // Events waiting to be processed on the topic ordered executor, when the dispatcher event queue is enabled
+    private final Queue<Runnable> pendingEvents;
+    private static final AtomicIntegerFieldUpdater<PersistentDispatcherMultipleConsumers> EVENTS_PROCESSING_SCHEDULED_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(PersistentDispatcherMultipleConsumers.class, "eventsProcessingScheduled");
+    private volatile int eventsProcessingScheduled = FALSE;
+    private static final int MAX_EVENTS_PER_BATCH = 1000;
+
     enum ReadType {
         Normal, Replay
     }
@@ -116,9 +127,58 @@ public class PersistentDispatcherMultipleConsumers extends AbstractDispatcherMul
                 .getMaxUnackedMessagesPerSubscription();
         this.isDelayedDeliveryEnabled = topic.getBrokerService().pulsar().getConfiguration()
                 .isDelayedDeliveryEnabled();
+        this.pendingEvents = serviceConfig.isDispatcherEventQueueEnabled() ? PlatformDependent.newMpscQueue() : null;
         this.initializeDispatchRateLimiterIfNeeded(Optional.empty());
     }
 
+    /**
+     * Process an event that changes the dispatching state: a flow, a redelivery request or a read completion.
+     *
+     * <p/>When the event queue is enabled, the events are added to a lock-free queue and processed in order on the
+     * topic ordered executor, which drains the queue in batches. The threads delivering the events then never wait on
+     * the dispatcher lock, which is only taken once per batch. Otherwise the event is processed on the calling thread.
+     */
+    private void processEvent(Runnable event) {
+        if (pendingEvents == null) {
+            synchronized (this) {
+                event.run();
+            }
+            return;
+        }
+
+        pendingEvents.add(event);
+        scheduleEventsProcessing();
+    }
+
+    private void scheduleEventsProcessing() {
+        if (EVENTS_PROCESSING_SCHEDULED_UPDATER.compareAndSet(this, FALSE, TRUE)) {
+            topic.getBrokerService().getTopicOrderedExecutor().executeOrdered(topic.getName(),
+                    SafeRun.safeRun(this::processPendingEvents));
+        }
+    }
+
+    private void processPendingEvents() {
+        synchronized (this) {
+            Runnable event;
+            int processedEvents = 0;
+            while (processedEvents < MAX_EVENTS_PER_BATCH && (event = pendingEvents.poll()) != null) {
+                ++processedEvents;
+                try {
+                    event.run();
+                } catch (Throwable t) {
+                    log.error("[{}] Failed to process dispatcher event", name, t);
+                }
+            }
+        }
+
+        EVENTS_PROCESSING_SCHEDULED_UPDATER.set(this, FALSE);
+        if (!pendingEvents.isEmpty()) {
+            // Leave the thread to the other topics before processing the remaining events, or the events that were
+            // added after the queue was drained
+            scheduleEventsProcessing();
+        }
+    }
+
     @Override
     public synchronized void addConsumer(Consumer consumer) throws BrokerServiceException {
         if (IS_CLOSED_UPDATER.get(this) == TRUE) {
@@ -224,7 +284,11 @@ public class PersistentDispatcherMultipleConsumers extends AbstractDispatcherMul
     }
 
     @Override
-    public synchronized void consumerFlow(Consumer consumer, int additionalNumberOfMessages) {
+    public void consumerFlow(Consumer consumer, int additionalNumberOfMessages) {
+        processEvent(() -> internalConsumerFlow(consumer, additionalNumberOfMessages));
+    }
+
+    private void internalConsumerFlow(Consumer consumer, int additionalNumberOfMessages) {
         if (!consumerSet.contains(consumer)) {
             if (log.isDebugEnabled()) {
                 log.debug("[{}] Ignoring flow control from disconnected consumer {}", name, consumer);
@@ -395,7 +459,11 @@ public class PersistentDispatcherMultipleConsumers extends AbstractDispatcherMul
     }
 
     @Override
-    public synchronized void readEntriesComplete(List<Entry> entries, Object ctx) {
+    public void readEntriesComplete(List<Entry> entries, Object ctx) {
+        processEvent(() -> internalReadEntriesComplete(entries, ctx));
+    }
+
+    private void internalReadEntriesComplete(List<Entry> entries, Object ctx) {
         ReadType readType = (ReadType) ctx;
         if (readType == ReadType.Normal) {
             havePendingRead = false;
@@ -503,8 +571,11 @@ public class PersistentDispatcherMultipleConsumers extends AbstractDispatcherMul
     }
 
     @Override
-    public synchronized void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+    public void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+        processEvent(() -> internalReadEntriesFailed(exception, ctx));
+    }
 
+    private void internalReadEntriesFailed(ManagedLedgerException exception, Object ctx) {
         ReadType readType = (ReadType) ctx;
         long waitTimeMillis = readFailureBackoff.next();
 
@@ -545,16 +616,14 @@ public class PersistentDispatcherMultipleConsumers extends AbstractDispatcherMul
 
         readBatchSize = serviceConfig.getDispatcherMinReadBatchSize();
 
-        topic.getBrokerService().executor().schedule(() -> {
-            synchronized (PersistentDispatcherMultipleConsumers.this) {
-                if (!havePendingRead) {
-                    log.info("[{}] Retrying read operation", name);
-                    readMoreEntries();
-                } else {
-                    log.info("[{}] Skipping read retry: havePendingRead {}", name, havePendingRead, exception);
-                }
+        topic.getBrokerService().executor().schedule(() -> processEvent(() -> {
+            if (!havePendingRead) {
+                log.info("[{}] Retrying read operation", name);
+                readMoreEntries();
+            } else {
+                log.info("[{}] Skipping read retry: havePendingRead {}", name, havePendingRead, exception);
             }
-        }, waitTimeMillis, TimeUnit.MILLISECONDS);
+        }), waitTimeMillis, TimeUnit.MILLISECONDS);
 
     }
 
@@ -583,9 +652,18 @@ public class PersistentDispatcherMultipleConsumers extends AbstractDispatcherMul
     }
 
     @Override
-    public synchronized void redeliverUnacknowledgedMessages(Consumer consumer) {
+    public void redeliverUnacknowledgedMessages(Consumer consumer) {
+        // Take the pending acks now, since the consumer clears them right after requesting the redelivery
+        List<PositionImpl> pendingPositions = Lists.newArrayList();
         consumer.getPendingAcks().forEach((ledgerId, entryId, batchSize, none) -> {
-            messagesToRedeliver.add(ledgerId, entryId);
+            pendingPositions.add(PositionImpl.get(ledgerId, entryId));
+        });
+        processEvent(() -> internalRedeliverPendingAcks(consumer, pendingPositions));
+    }
+
+    private void internalRedeliverPendingAcks(Consumer consumer, List<PositionImpl> pendingPositions) {
+        pendingPositions.forEach(position -> {
+            messagesToRedeliver.add(position.getLedgerId(), position.getEntryId());
         });
         if (log.isDebugEnabled()) {
             log.debug("[{}-{}] Redelivering unacknowledged messages for consumer {}", name, consumer,
@@ -595,7 +673,11 @@ public class PersistentDispatcherMultipleConsumers extends AbstractDispatcherMul
     }
 
     @Override
-    public synchronized void redeliverUnacknowledgedMessages(Consumer consumer, List<PositionImpl> positions) {
+    public void redeliverUnacknowledgedMessages(Consumer consumer, List<PositionImpl> positions) {
+        processEvent(() -> internalRedeliverMessages(consumer, positions));
+    }
+
+    private void internalRedeliverMessages(Consumer consumer, List<PositionImpl> positions) {
         positions.forEach(position -> {
             messagesToRedeliver.add(position.getLedgerId(), position.getEntryId());
             redeliveryTracker.incrementAndGetRedeliveryCount(position);
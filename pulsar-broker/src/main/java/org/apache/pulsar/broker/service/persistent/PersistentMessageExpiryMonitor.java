@@ -18,6 +18,7 @@
  */
 package org.apache.pulsar.broker.service.persistent;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import org.apache.bookkeeper.mledger.AsyncCallbacks.FindEntryCallback;
@@ -57,11 +58,14 @@ public class PersistentMessageExpiryMonitor implements FindEntryCallback {
             log.info("[{}][{}] Starting message expiry check, ttl= {} seconds", topicName, subName,
                     messageTTLInSeconds);
 
+            // Newest publish time of the expired messages, none of them expires without TTL
+            final long expirationTimestamp = messageTTLInSeconds != 0
+                    ? System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(messageTTLInSeconds) - 1 : -1;
             cursor.asyncFindNewestMatching(ManagedCursor.FindPositionConstraint.SearchActiveEntries, entry -> {
                 MessageImpl msg = null;
                 try {
                     msg = MessageImpl.deserialize(entry.getDataBuffer());
-                    return msg.isExpired(messageTTLInSeconds);
+                    return msg.getPublishTime() <= expirationTimestamp;
                 } catch (Exception e) {
                     log.error("[{}][{}] Error deserializing message for expiry check", topicName, subName, e);
                 } finally {
@@ -71,7 +75,7 @@ public class PersistentMessageExpiryMonitor implements FindEntryCallback {
                     }
                 }
                 return false;
-            }, this, null);
+            }, expirationTimestamp, this, null);
         } else {
             if (log.isDebugEnabled()) {
                 log.debug("[{}][{}] Ignore expire-message scheduled task, last check is still running", topicName,
@@ -19,17 +19,30 @@
 package org.apache.pulsar.broker.service.persistent;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.bookkeeper.mledger.Entry;
 import org.apache.bookkeeper.mledger.ManagedCursor;
 import org.apache.bookkeeper.mledger.Position;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.pulsar.broker.ServiceConfiguration;
 import org.apache.pulsar.broker.service.BrokerServiceException;
+import org.apache.pulsar.broker.service.ConsistentHashingStickyKeyConsumerSelector;
 import org.apache.pulsar.broker.service.Consumer;
 import org.apache.pulsar.broker.service.EntryBatchSizes;
 import org.apache.pulsar.broker.service.HashRangeStickyKeyConsumerSelector;
@@ -44,11 +57,43 @@ import org.slf4j.LoggerFactory;
 public class PersistentStickyKeyDispatcherMultipleConsumers extends PersistentDispatcherMultipleConsumers {
 
     private final StickyKeyConsumerSelector selector;
+    private final boolean splitBatchesEnabled;
+
+    // Batches whose messages were dispatched to several consumers, until all their messages are acknowledged
+    private final ConcurrentHashMap<PositionImpl, SplitBatch> splitBatches = new ConcurrentHashMap<>();
+
+    // Entries and parts of batches kept back until a consumer acknowledged its previous part of a batch, with the
+    // hashes of their keys: the later messages with the same keys are kept back too, to dispatch them in order
+    private final ConcurrentSkipListMap<PositionImpl, Set<Integer>> deferredPositions = new ConcurrentSkipListMap<>();
+    // Deferred positions of each key hash, only accessed with the dispatcher lock held
+    private final Map<Integer, NavigableSet<PositionImpl>> deferredPositionsByKey = new HashMap<>();
+
+    // Consumers which acknowledged their part of a batch since the deferred positions of their keys were released
+    private final Set<Consumer> consumersWithAckedParts = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean releaseOfAckedConsumersScheduled = new AtomicBoolean(false);
+
+    private static class SplitBatch {
+        // Messages not acknowledged yet
+        private final BitSet pending;
+        // Messages dispatched to each consumer and not acknowledged yet
+        private final Map<Consumer, BitSet> dispatched = new HashMap<>();
+
+        SplitBatch(int numMessages) {
+            this.pending = new BitSet(numMessages);
+            this.pending.set(0, numMessages);
+        }
+    }
 
     PersistentStickyKeyDispatcherMultipleConsumers(PersistentTopic topic, ManagedCursor cursor, Subscription subscription) {
         super(topic, cursor, subscription);
-        //TODO: Consumer selector Pluggable
-        selector = new HashRangeStickyKeyConsumerSelector();
+        ServiceConfiguration conf = topic.getBrokerService().pulsar().getConfiguration();
+        if (conf.isSubscriptionKeySharedUseConsistentHashing()) {
+            selector = new ConsistentHashingStickyKeyConsumerSelector(
+                    conf.getSubscriptionKeySharedConsistentHashingReplicaPoints());
+        } else {
+            selector = new HashRangeStickyKeyConsumerSelector();
+        }
+        splitBatchesEnabled = conf.isSubscriptionKeySharedSplitBatchesEnabled();
     }
 
     @Override
@@ -59,12 +104,159 @@ public class PersistentStickyKeyDispatcherMultipleConsumers extends PersistentDi
 
     @Override
     public synchronized void removeConsumer(Consumer consumer) throws BrokerServiceException {
+        // The messages of the consumer are dispatched again when its pending acks are replayed
+        removeDispatchedMessages(consumer, null);
+        releaseDeferredPositions();
         super.removeConsumer(consumer);
         selector.removeConsumer(consumer);
+        if (consumerList.isEmpty()) {
+            splitBatches.clear();
+            clearDeferredPositions();
+        }
+    }
+
+    @Override
+    public void redeliverUnacknowledgedMessages(Consumer consumer) {
+        removeDispatchedMessages(consumer, null);
+        releaseDeferredPositions();
+        super.redeliverUnacknowledgedMessages(consumer);
+    }
+
+    @Override
+    public void redeliverUnacknowledgedMessages(Consumer consumer, List<PositionImpl> positions) {
+        removeDispatchedMessages(consumer, positions);
+        releaseDeferredPositions();
+        super.redeliverUnacknowledgedMessages(consumer, positions);
+    }
+
+    @Override
+    public boolean entryAcknowledged(Consumer consumer, PositionImpl position) {
+        SplitBatch splitBatch = splitBatches.get(position);
+        if (splitBatch == null) {
+            return true;
+        }
+
+        BitSet acked;
+        boolean batchAcknowledged;
+        synchronized (splitBatch) {
+            acked = splitBatch.dispatched.remove(consumer);
+            if (acked != null) {
+                splitBatch.pending.andNot(acked);
+            }
+            batchAcknowledged = splitBatch.pending.isEmpty();
+        }
+        if (acked != null && !deferredPositions.isEmpty()) {
+            // Messages may be waiting for this consumer to acknowledge its part of the batch. The acks received until
+            // the release runs are handled together
+            consumersWithAckedParts.add(consumer);
+            if (releaseOfAckedConsumersScheduled.compareAndSet(false, true)) {
+                topic.getBrokerService().executor().execute(this::releaseDeferredPositionsOfAckedConsumers);
+            }
+        }
+        if (!batchAcknowledged) {
+            return false;
+        }
+        splitBatches.remove(position, splitBatch);
+        return true;
+    }
+
+    // Replay the deferred entries, the ones that still cannot be dispatched are deferred again
+    private synchronized void releaseDeferredPositions() {
+        deferredPositions.keySet().forEach(position -> messagesToRedeliver.add(position.getLedgerId(),
+                position.getEntryId()));
+    }
+
+    // Replay the deferred entries with the keys of the consumers which acknowledged their part of a batch
+    private synchronized void releaseDeferredPositionsOfAckedConsumers() {
+        releaseOfAckedConsumersScheduled.set(false);
+        Set<Consumer> consumers = new HashSet<>();
+        for (Iterator<Consumer> iterator = consumersWithAckedParts.iterator(); iterator.hasNext();) {
+            consumers.add(iterator.next());
+            iterator.remove();
+        }
+
+        boolean released = false;
+        for (Map.Entry<Integer, NavigableSet<PositionImpl>> entry : deferredPositionsByKey.entrySet()) {
+            if (consumers.contains(selector.select(entry.getKey()))) {
+                entry.getValue().forEach(position -> messagesToRedeliver.add(position.getLedgerId(),
+                        position.getEntryId()));
+                released = true;
+            }
+        }
+        if (released) {
+            readMoreEntries();
+        }
+    }
+
+    // Whether an earlier message with the same key is deferred
+    private boolean isKeyDeferred(int keyHash, PositionImpl position) {
+        NavigableSet<PositionImpl> positions = deferredPositionsByKey.get(keyHash);
+        return positions != null && positions.first().compareTo(position) < 0;
+    }
+
+    private void deferPosition(ReadType readType, PositionImpl position, Set<Integer> keyHashes) {
+        if (readType == ReadType.Replay) {
+            messagesToRedeliver.remove(position.getLedgerId(), position.getEntryId());
+        }
+        Set<Integer> previousKeyHashes = deferredPositions.put(position, keyHashes);
+        if (previousKeyHashes != null) {
+            removeDeferredKeys(position, previousKeyHashes);
+        }
+        keyHashes.forEach(keyHash -> deferredPositionsByKey.computeIfAbsent(keyHash, k -> new TreeSet<>())
+                .add(position));
+    }
+
+    private void removeDeferredPosition(PositionImpl position) {
+        Set<Integer> keyHashes = deferredPositions.remove(position);
+        if (keyHashes != null) {
+            removeDeferredKeys(position, keyHashes);
+        }
+    }
+
+    private void removeDeferredKeys(PositionImpl position, Set<Integer> keyHashes) {
+        for (Integer keyHash : keyHashes) {
+            NavigableSet<PositionImpl> positions = deferredPositionsByKey.get(keyHash);
+            if (positions != null && positions.remove(position) && positions.isEmpty()) {
+                deferredPositionsByKey.remove(keyHash);
+            }
+        }
+    }
+
+    private void clearDeferredPositions() {
+        deferredPositions.clear();
+        deferredPositionsByKey.clear();
+    }
+
+    private void removeDispatchedMessages(Consumer consumer, List<PositionImpl> positions) {
+        if (splitBatches.isEmpty()) {
+            return;
+        }
+
+        if (positions == null) {
+            splitBatches.values().forEach(splitBatch -> {
+                synchronized (splitBatch) {
+                    splitBatch.dispatched.remove(consumer);
+                }
+            });
+        } else {
+            positions.forEach(position -> {
+                SplitBatch splitBatch = splitBatches.get(position);
+                if (splitBatch != null) {
+                    synchronized (splitBatch) {
+                        splitBatch.dispatched.remove(consumer);
+                    }
+                }
+            });
+        }
     }
 
     @Override
     protected void sendMessagesToConsumers(ReadType readType, List<Entry> entries) {
+        if (splitBatchesEnabled) {
+            sendSplitMessagesToConsumers(readType, entries);
+            return;
+        }
+
         long totalMessagesSent = 0;
         long totalBytesSent = 0;
         if (entries.size() > 0) {
@@ -79,10 +271,7 @@ public class PersistentStickyKeyDispatcherMultipleConsumers extends PersistentDi
             while (iterator.hasNext() && totalAvailablePermits > 0 && isAtleastOneConsumerAvailable()) {
                 final Map.Entry<Integer, List<Entry>> entriesWithSameKey = iterator.next();
                 //TODO: None key policy
-                Consumer consumer = null;
-                if (selector instanceof HashRangeStickyKeyConsumerSelector) {
-                    consumer = ((HashRangeStickyKeyConsumerSelector)selector).select(entriesWithSameKey.getKey());
-                }
+                Consumer consumer = selector.select(entriesWithSameKey.getKey());
                 if (consumer == null) {
                     // Do nothing, cursor will be rewind at reconnection
                     log.info("[{}] rewind because no available consumer found for key {} from total {}", name,
@@ -154,6 +343,235 @@ public class PersistentStickyKeyDispatcherMultipleConsumers extends PersistentDi
         }
     }
 
+    /**
+     * Dispatch the entries like {@link #sendMessagesToConsumers(ReadType, List)}, but split the batches whose messages
+     * have different keys, so that each consumer receives the messages of its own keys.
+     *
+     * <p/>The clients acknowledge a batch as a whole once all its messages are acknowledged, so a consumer receives at
+     * most one part of a batch at a time, and the batch is only acknowledged on the cursor once all the consumers
+     * acknowledged their part. A consumer that did not acknowledge its part of a batch yet receives its next part later,
+     * along with the later messages with the same keys, so that the messages of a key are dispatched in order. The
+     * deferred entries are kept apart from the ones to replay, so that they do not stop the reads of the other keys.
+     */
+    private void sendSplitMessagesToConsumers(ReadType readType, List<Entry> entries) {
+        long totalMessagesSent = 0;
+        long totalBytesSent = 0;
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        if (!splitBatches.isEmpty() || !deferredPositions.isEmpty()) {
+            // Forget the batches acknowledged by other means, like a clear backlog
+            PositionImpl markDeletePosition = (PositionImpl) cursor.getMarkDeletedPosition();
+            splitBatches.keySet().removeIf(position -> position.compareTo(markDeletePosition) <= 0);
+            Map.Entry<PositionImpl, Set<Integer>> deferred;
+            while ((deferred = deferredPositions.firstEntry()) != null
+                    && deferred.getKey().compareTo(markDeletePosition) <= 0) {
+                removeDeferredPosition(deferred.getKey());
+            }
+        }
+
+        // Entries and parts of batches of each consumer, in the order they were read
+        final Map<Consumer, List<Entry>> groupedEntries = new LinkedHashMap<>();
+        // Messages of the batches in each part
+        final Map<Entry, BitSet> parts = new IdentityHashMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            StickyKeyBatch batch = StickyKeyBatch.parse(entry.getDataBuffer());
+            boolean grouped = batch == null ? groupEntry(readType, entry, groupedEntries)
+                    : groupBatch(readType, entry, batch, groupedEntries, parts);
+            if (!grouped) {
+                // Do nothing, cursor will be rewind at reconnection
+                log.info("[{}] rewind because no available consumer found from total {}", name, consumerList.size());
+                groupedEntries.values().forEach(entryList -> entryList.forEach(Entry::release));
+                entries.subList(i + 1, entries.size()).forEach(Entry::release);
+                clearDeferredPositions();
+                cursor.rewind();
+                return;
+            }
+        }
+
+        if (groupedEntries.isEmpty()) {
+            // All the entries are deferred or already dispatched, nothing sent triggers the next read
+            readMoreEntries();
+            return;
+        }
+
+        final Iterator<Map.Entry<Consumer, List<Entry>>> iterator = groupedEntries.entrySet().iterator();
+        AtomicInteger consumerNumbers = new AtomicInteger(groupedEntries.size());
+        while (iterator.hasNext() && totalAvailablePermits > 0 && isAtleastOneConsumerAvailable()) {
+            final Map.Entry<Consumer, List<Entry>> entriesForConsumer = iterator.next();
+            Consumer consumer = entriesForConsumer.getKey();
+            int messagesForC = Math.min(entriesForConsumer.getValue().size(), consumer.getAvailablePermits());
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] select consumer {} with messages num {}, read type is {}", name,
+                        consumer.consumerName(), messagesForC, readType);
+            }
+            if (messagesForC > 0) {
+                // remove positions first from replay list first : sendMessages recycles entries
+                List<Entry> subList = new ArrayList<>(entriesForConsumer.getValue().subList(0, messagesForC));
+                for (Entry entry : subList) {
+                    if (readType == ReadType.Replay) {
+                        messagesToRedeliver.remove(entry.getLedgerId(), entry.getEntryId());
+                    }
+                    BitSet messages = parts.get(entry);
+                    if (messages != null) {
+                        addDispatchedMessages(consumer, (PositionImpl) entry.getPosition(), messages);
+                    }
+                }
+
+                SendMessageInfo sendMessageInfo = SendMessageInfo.getThreadLocal();
+                EntryBatchSizes batchSizes = EntryBatchSizes.get(subList.size());
+                filterEntriesForConsumer(subList, batchSizes, sendMessageInfo);
+
+                consumer.sendMessages(subList, batchSizes, sendMessageInfo.getTotalMessages(),
+                        sendMessageInfo.getTotalBytes(), getRedeliveryTracker()).addListener(future -> {
+                            if (future.isSuccess() && consumerNumbers.decrementAndGet() == 0) {
+                                readMoreEntries();
+                            }
+                });
+                entriesForConsumer.getValue().subList(0, messagesForC).clear();
+
+                totalAvailablePermits -= sendMessageInfo.getTotalMessages();
+                totalMessagesSent += sendMessageInfo.getTotalMessages();
+                totalBytesSent += sendMessageInfo.getTotalBytes();
+
+                if (entriesForConsumer.getValue().size() == 0) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        // acquire message-dispatch permits for already delivered messages
+        if (serviceConfig.isDispatchThrottlingOnNonBacklogConsumerEnabled() || !cursor.isActive()) {
+            if (topic.getDispatchRateLimiter().isPresent()) {
+                topic.getDispatchRateLimiter().get().tryDispatchPermit(totalMessagesSent, totalBytesSent);
+            }
+
+            if (dispatchRateLimiter.isPresent()) {
+                dispatchRateLimiter.get().tryDispatchPermit(totalMessagesSent, totalBytesSent);
+            }
+        }
+
+        if (groupedEntries.size() > 0) {
+            int laterReplay = 0;
+            for (List<Entry> entryList : groupedEntries.values()) {
+                laterReplay += entryList.size();
+                entryList.forEach(entry -> {
+                    messagesToRedeliver.add(entry.getLedgerId(), entry.getEntryId());
+                    entry.release();
+                });
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] No consumers found with available permits, storing {} positions for later replay", name,
+                        laterReplay);
+            }
+        }
+    }
+
+    // Route an entry that is not split by its key, returns false if there is no consumer
+    private boolean groupEntry(ReadType readType, Entry entry, Map<Consumer, List<Entry>> groupedEntries) {
+        PositionImpl position = (PositionImpl) entry.getPosition();
+        int keyHash = Murmur3_32Hash.getInstance().makeHash(peekStickyKey(entry.getDataBuffer()));
+        Consumer consumer = selector.select(keyHash);
+        if (consumer == null) {
+            entry.release();
+            return false;
+        }
+        if (isKeyDeferred(keyHash, position)) {
+            deferPosition(readType, position, Collections.singleton(keyHash));
+            entry.release();
+            return true;
+        }
+        removeDeferredPosition(position);
+        groupedEntries.computeIfAbsent(consumer, c -> new ArrayList<>()).add(entry);
+        return true;
+    }
+
+    // Route the messages of a batch by their keys, returns false if there is no consumer
+    private boolean groupBatch(ReadType readType, Entry entry, StickyKeyBatch batch,
+            Map<Consumer, List<Entry>> groupedEntries, Map<Entry, BitSet> parts) {
+        try {
+            PositionImpl position = (PositionImpl) entry.getPosition();
+            SplitBatch splitBatch = splitBatches.get(position);
+
+            // Messages not acknowledged nor dispatched yet, and consumers with a part of the batch
+            BitSet messages = new BitSet(batch.getNumMessages());
+            Set<Consumer> consumersWithPart;
+            if (splitBatch == null) {
+                messages.set(0, batch.getNumMessages());
+                consumersWithPart = Collections.emptySet();
+            } else {
+                synchronized (splitBatch) {
+                    messages.or(splitBatch.pending);
+                    splitBatch.dispatched.values().forEach(messages::andNot);
+                    consumersWithPart = new HashSet<>(splitBatch.dispatched.keySet());
+                }
+            }
+
+            // Messages to dispatch now by consumer, and keys of the messages to dispatch later
+            Map<Consumer, BitSet> messagesByConsumer = new LinkedHashMap<>();
+            Set<Integer> deferredKeyHashes = new HashSet<>();
+            for (int i = messages.nextSetBit(0); i >= 0; i = messages.nextSetBit(i + 1)) {
+                int keyHash = batch.getKeyHash(i);
+                Consumer consumer = selector.select(keyHash);
+                if (consumer == null) {
+                    entry.release();
+                    return false;
+                }
+                if (consumersWithPart.contains(consumer) || isKeyDeferred(keyHash, position)) {
+                    deferredKeyHashes.add(keyHash);
+                } else {
+                    messagesByConsumer.computeIfAbsent(consumer, c -> new BitSet()).set(i);
+                }
+            }
+
+            if (deferredKeyHashes.isEmpty()) {
+                removeDeferredPosition(position);
+            } else {
+                deferPosition(readType, position, deferredKeyHashes);
+            }
+
+            if (messagesByConsumer.isEmpty()) {
+                // All the messages are already dispatched, or are deferred
+                if (readType == ReadType.Replay && deferredKeyHashes.isEmpty()) {
+                    messagesToRedeliver.remove(entry.getLedgerId(), entry.getEntryId());
+                }
+                entry.release();
+                return true;
+            }
+
+            if (splitBatch == null) {
+                if (messagesByConsumer.size() == 1 && deferredKeyHashes.isEmpty()) {
+                    // All the messages have the same consumer, no need to split the batch
+                    groupedEntries.computeIfAbsent(messagesByConsumer.keySet().iterator().next(),
+                            c -> new ArrayList<>()).add(entry);
+                    return true;
+                }
+                splitBatches.putIfAbsent(position, new SplitBatch(batch.getNumMessages()));
+            }
+
+            messagesByConsumer.forEach((consumer, consumerMessages) -> {
+                Entry part = batch.slice(entry, consumerMessages);
+                parts.put(part, consumerMessages);
+                groupedEntries.computeIfAbsent(consumer, c -> new ArrayList<>()).add(part);
+            });
+            entry.release();
+            return true;
+        } finally {
+            batch.recycle();
+        }
+    }
+
+    private void addDispatchedMessages(Consumer consumer, PositionImpl position, BitSet messages) {
+        SplitBatch splitBatch = splitBatches.get(position);
+        if (splitBatch != null) {
+            synchronized (splitBatch) {
+                splitBatch.dispatched.computeIfAbsent(consumer, c -> new BitSet()).or(messages);
+            }
+        }
+    }
+
     @Override
     public SubType getType() {
         return SubType.Key_Shared;
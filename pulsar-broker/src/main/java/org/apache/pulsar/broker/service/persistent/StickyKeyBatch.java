@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.service.persistent;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.impl.EntryImpl;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.pulsar.broker.service.AbstractDispatcherMultipleConsumers;
+import org.apache.pulsar.common.allocator.PulsarByteBufAllocator;
+import org.apache.pulsar.common.api.proto.PulsarApi.CompressionType;
+import org.apache.pulsar.common.api.proto.PulsarApi.MessageMetadata;
+import org.apache.pulsar.common.api.proto.PulsarApi.SingleMessageMetadata;
+import org.apache.pulsar.common.protocol.Commands;
+import org.apache.pulsar.common.util.Murmur3_32Hash;
+import org.apache.pulsar.common.util.protobuf.ByteBufCodedOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The messages of a batch entry, with the hash of their sticky keys, so that a Key_Shared dispatcher can send each
+ * message to the consumer of its own key.
+ *
+ * <p/>The entry is sliced in place: a subset of the messages is sent as a new batch made of a fresh batch metadata
+ * and of slices of the original payload, without copying the messages. Only the batches that are neither compressed
+ * nor encrypted can be sliced this way.
+ */
+class StickyKeyBatch {
+
+    private static final byte[] NONE_KEY = AbstractDispatcherMultipleConsumers.NONE_KEY.getBytes(UTF_8);
+
+    private final MessageMetadata metadata;
+    // Position of the messages (size, single message metadata and payload) in the data buffer of the entry
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[] keyHashes;
+
+    private StickyKeyBatch(MessageMetadata metadata, int numMessages) {
+        this.metadata = metadata;
+        this.offsets = new int[numMessages];
+        this.lengths = new int[numMessages];
+        this.keyHashes = new int[numMessages];
+    }
+
+    /**
+     * Parse the messages of a batch entry.
+     *
+     * @return the messages of the batch, or null if the entry is not a batch that can be split
+     */
+    static StickyKeyBatch parse(ByteBuf metadataAndPayload) {
+        ByteBuf buffer = metadataAndPayload.duplicate();
+        MessageMetadata metadata;
+        try {
+            metadata = Commands.parseMessageMetadata(buffer);
+        } catch (Throwable t) {
+            log.warn("Failed to parse message metadata: {}", t.getMessage());
+            return null;
+        }
+
+        int numMessages = metadata.getNumMessagesInBatch();
+        if (numMessages <= 1 || metadata.getCompression() != CompressionType.NONE
+                || metadata.getEncryptionKeysCount() > 0 || metadata.hasDeliverAtTime()) {
+            metadata.recycle();
+            return null;
+        }
+
+        StickyKeyBatch batch = new StickyKeyBatch(metadata, numMessages);
+        for (int i = 0; i < numMessages; i++) {
+            SingleMessageMetadata.Builder singleMessageMetadataBuilder = SingleMessageMetadata.newBuilder();
+            try {
+                batch.offsets[i] = buffer.readerIndex();
+                Commands.deSerializeSingleMessageInBatch(buffer, singleMessageMetadataBuilder, i, numMessages)
+                        .release();
+                batch.lengths[i] = buffer.readerIndex() - batch.offsets[i];
+                batch.keyHashes[i] = Murmur3_32Hash.getInstance().makeHash(stickyKey(singleMessageMetadataBuilder));
+            } catch (Throwable t) {
+                log.warn("Failed to parse message {} of batch: {}", i, t.getMessage());
+                metadata.recycle();
+                return null;
+            } finally {
+                singleMessageMetadataBuilder.recycle();
+            }
+        }
+        return batch;
+    }
+
+    // Same key as the dispatcher uses for the messages that are not batched
+    private static byte[] stickyKey(SingleMessageMetadata.Builder singleMessageMetadata) {
+        if (singleMessageMetadata.hasOrderingKey()) {
+            return singleMessageMetadata.getOrderingKey().toByteArray();
+        } else if (StringUtils.isNotBlank(singleMessageMetadata.getPartitionKey())) {
+            return singleMessageMetadata.getPartitionKey().getBytes(UTF_8);
+        } else {
+            return NONE_KEY;
+        }
+    }
+
+    int getNumMessages() {
+        return keyHashes.length;
+    }
+
+    int getKeyHash(int index) {
+        return keyHashes[index];
+    }
+
+    /**
+     * Create an entry with the same position, that only contains the given messages of the batch.
+     */
+    Entry slice(Entry entry, BitSet indexes) {
+        ByteBuf data = entry.getDataBuffer();
+        int numMessages = indexes.cardinality();
+        CompositeByteBuf payload = PulsarByteBufAllocator.DEFAULT.compositeBuffer(numMessages + 1);
+        int payloadSize = 0;
+        for (int start = indexes.nextSetBit(0); start >= 0; start = indexes.nextSetBit(start)) {
+            // Contiguous messages are added as a single slice
+            int end = indexes.nextClearBit(start);
+            int length = offsets[end - 1] + lengths[end - 1] - offsets[start];
+            payload.addComponent(true, data.retainedSlice(offsets[start], length));
+            payloadSize += length;
+            start = end;
+        }
+
+        MessageMetadata.Builder metadataBuilder = MessageMetadata.newBuilder().mergeFrom(metadata);
+        metadataBuilder.setNumMessagesInBatch(numMessages);
+        metadataBuilder.setUncompressedSize(payloadSize);
+        MessageMetadata sliceMetadata = metadataBuilder.build();
+        int metadataSize = sliceMetadata.getSerializedSize();
+        ByteBuf headers = PulsarByteBufAllocator.DEFAULT.buffer(4 + metadataSize);
+        headers.writeInt(metadataSize);
+        ByteBufCodedOutputStream outStream = ByteBufCodedOutputStream.get(headers);
+        try {
+            sliceMetadata.writeTo(outStream);
+        } catch (IOException e) {
+            // This is in-memory serialization, should not fail
+            throw new RuntimeException(e);
+        } finally {
+            outStream.recycle();
+            metadataBuilder.recycle();
+            sliceMetadata.recycle();
+        }
+        payload.addComponent(true, 0, headers);
+
+        Entry slice = EntryImpl.create(entry.getLedgerId(), entry.getEntryId(), payload);
+        payload.release();
+        return slice;
+    }
+
+    void recycle() {
+        metadata.recycle();
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(StickyKeyBatch.class);
+}
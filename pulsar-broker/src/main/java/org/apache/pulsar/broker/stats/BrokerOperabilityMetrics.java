@@ -33,6 +33,7 @@ public class BrokerOperabilityMetrics {
     private final List<Metrics> metricsList;
     private final String localCluster;
     private final DimensionStats topicLoadStats;
+    private final DimensionStats topicLoadWaitStats;
     private final DimensionStats zkWriteLatencyStats;
     private final DimensionStats zkReadLatencyStats;
     private final String brokerName;
@@ -41,6 +42,7 @@ public class BrokerOperabilityMetrics {
         this.metricsList = new ArrayList<>();
         this.localCluster = localCluster;
         this.topicLoadStats = new DimensionStats("topic_load_times", 60);
+        this.topicLoadWaitStats = new DimensionStats("topic_load_wait_times", 60);
         this.zkWriteLatencyStats = new DimensionStats("zk_write_latency", 60);
         this.zkReadLatencyStats = new DimensionStats("zk_read_latency", 60);
         this.brokerName = brokerName;
@@ -53,6 +55,7 @@ public class BrokerOperabilityMetrics {
 
     private void generate() {
         metricsList.add(getTopicLoadMetrics());
+        metricsList.add(getTopicLoadWaitMetrics());
         metricsList.add(getZkWriteLatencyMetrics());
         metricsList.add(getZkReadLatencyMetrics());
     }
@@ -61,6 +64,10 @@ public class BrokerOperabilityMetrics {
         return getDimensionMetrics("topic_load_times", "topic_load", topicLoadStats);
     }
 
+    Metrics getTopicLoadWaitMetrics() {
+        return getDimensionMetrics("topic_load_wait_times", "topic_load_wait", topicLoadWaitStats);
+    }
+
     Metrics getZkWriteLatencyMetrics() {
         return getDimensionMetrics("zk_write_latency", "zk_write", zkWriteLatencyStats);
     }
@@ -91,6 +98,7 @@ public class BrokerOperabilityMetrics {
     public void reset() {
         metricsList.clear();
         topicLoadStats.reset();
+        topicLoadWaitStats.reset();
         zkWriteLatencyStats.reset();
         zkReadLatencyStats.reset();
     }
@@ -99,6 +107,10 @@ public class BrokerOperabilityMetrics {
         topicLoadStats.recordDimensionTimeValue(topicLoadLatencyMs, TimeUnit.MILLISECONDS);
     }
 
+    public void recordTopicLoadWaitTimeValue(long topicLoadWaitMs) {
+        topicLoadWaitStats.recordDimensionTimeValue(topicLoadWaitMs, TimeUnit.MILLISECONDS);
+    }
+
     public void recordZkWriteLatencyTimeValue(long topicLoadLatencyMs) {
         zkWriteLatencyStats.recordDimensionTimeValue(topicLoadLatencyMs, TimeUnit.MILLISECONDS);
     }
@@ -56,6 +56,11 @@ public class ManagedLedgerCacheMetrics extends AbstractMetrics {
         m.put("brk_ml_cache_misses_rate", mlCacheStats.getCacheMissesRate());
         m.put("brk_ml_cache_hits_throughput", mlCacheStats.getCacheHitsThroughput());
         m.put("brk_ml_cache_misses_throughput", mlCacheStats.getCacheMissesThroughput());
+        m.put("brk_ml_cache_admission_rejections_rate", mlCacheStats.getCacheAdmissionRejectionsRate());
+        m.put("brk_ml_cache_slab_allocation_failures_rate", mlCacheStats.getCacheSlabAllocationFailuresRate());
+        m.put("brk_ml_metadata_batch_size_avg", mlCacheStats.getMetadataBatchSizeAverage());
+        m.put("brk_ml_metadata_batch_queue_latency_avg_usec", mlCacheStats.getMetadataBatchQueueLatencyAverageUsec());
+        m.put("brk_ml_pending_ledger_deletions", mlCacheStats.getPendingLedgerDeletions());
 
         PooledByteBufAllocator allocator = EntryCacheImpl.ALLOCATOR;
         long activeAllocations = 0;
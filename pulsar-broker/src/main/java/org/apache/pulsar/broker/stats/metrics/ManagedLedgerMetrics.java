@@ -103,9 +103,24 @@ public class ManagedLedgerMetrics extends AbstractMetrics {
                 populateBucketEntries(tempAggregatedMetricsMap, "brk_ml_LedgerSwitchLatencyBuckets",
                         ENTRY_LATENCY_BUCKETS_MS, lStats.getLedgerSwitchLatencyBuckets());
 
+                populateBucketEntries(tempAggregatedMetricsMap, "brk_ml_LedgerRolloverStallLatencyBuckets",
+                        ENTRY_LATENCY_BUCKETS_MS, lStats.getLedgerRolloverStallLatencyBuckets());
+
                 populateBucketEntries(tempAggregatedMetricsMap, "brk_ml_EntrySizeBuckets", ENTRY_SIZE_BUCKETS_BYTES,
                         lStats.getEntrySizeBuckets());
                 populateAggregationMapWithSum(tempAggregatedMetricsMap, "brk_ml_MarkDeleteRate", lStats.getMarkDeleteRate());
+                populateAggregationMapWithSum(tempAggregatedMetricsMap, "brk_ml_ReadAheadEntriesRate",
+                        lStats.getReadAheadEntriesRate());
+                populateAggregationMapWithSum(tempAggregatedMetricsMap, "brk_ml_ReadAheadHitsRate",
+                        lStats.getReadAheadHitsRate());
+                populateAggregationMapWithSum(tempAggregatedMetricsMap, "brk_ml_ReadAheadDiscardedRate",
+                        lStats.getReadAheadDiscardedRate());
+                populateAggregationMapWithSum(tempAggregatedMetricsMap, "brk_ml_CoalescedReadsRate",
+                        lStats.getCoalescedReadsRate());
+                populateAggregationMapWithSum(tempAggregatedMetricsMap, "brk_ml_CoalescedMarkDeleteRate",
+                        lStats.getCoalescedMarkDeleteRate());
+                populateAggregationMapWithSum(tempAggregatedMetricsMap, "brk_ml_TailReadFanOutRate",
+                        lStats.getTailReadFanOutRate());
             }
 
             // SUM up collections of each metrics
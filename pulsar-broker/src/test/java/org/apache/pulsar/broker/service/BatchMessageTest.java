@@ -644,5 +644,43 @@ public class BatchMessageTest extends BrokerTestBase {
         producer.close();
     }
 
+    @Test
+    public void testPublishAggregation() throws Exception {
+        int numMsgs = 100;
+        final String topicName = "persistent://prop/ns-abc/testPublishAggregation";
+        final String subscriptionName = "sub-1";
+
+        conf.setBrokerPublishAggregationEnabled(true);
+        try {
+            Consumer<byte[]> consumer = pulsarClient.newConsumer().topic(topicName)
+                    .subscriptionName(subscriptionName).subscribe();
+            Producer<byte[]> producer = pulsarClient.newProducer().topic(topicName).enableBatching(false).create();
+
+            List<CompletableFuture<MessageId>> sendFutureList = Lists.newArrayList();
+            for (int i = 0; i < numMsgs; i++) {
+                sendFutureList.add(producer.newMessage().value(("my-message-" + i).getBytes())
+                        .property("index", Integer.toString(i)).sendAsync());
+            }
+            FutureUtil.waitForAll(sendFutureList).get();
+
+            PersistentTopic topic = (PersistentTopic) pulsar.getBrokerService().getTopicReference(topicName).get();
+            assertTrue(topic.getSubscription(subscriptionName).getNumberOfEntriesInBacklog() <= numMsgs);
+
+            // The messages are received individually, in order, with the ids returned to the producer
+            for (int i = 0; i < numMsgs; i++) {
+                Message<byte[]> msg = consumer.receive(5, TimeUnit.SECONDS);
+                assertNotNull(msg);
+                assertEquals(new String(msg.getData()), "my-message-" + i);
+                assertEquals(msg.getProperty("index"), Integer.toString(i));
+                assertEquals(msg.getMessageId(), sendFutureList.get(i).get());
+                consumer.acknowledge(msg);
+            }
+            consumer.close();
+            producer.close();
+        } finally {
+            conf.setBrokerPublishAggregationEnabled(false);
+        }
+    }
+
     private static final Logger LOG = LoggerFactory.getLogger(BatchMessageTest.class);
 }
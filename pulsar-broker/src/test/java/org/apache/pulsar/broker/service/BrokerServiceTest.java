@@ -31,6 +31,7 @@ import static org.testng.Assert.fail;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.URI;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -43,6 +44,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -67,6 +69,7 @@ import org.apache.pulsar.common.policies.data.BundlesData;
 import org.apache.pulsar.common.policies.data.LocalPolicies;
 import org.apache.pulsar.common.policies.data.TopicStats;
 import org.apache.pulsar.common.policies.data.SubscriptionStats;
+import org.apache.pulsar.common.util.FutureUtil;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
@@ -732,6 +735,41 @@ public class BrokerServiceTest extends BrokerTestBase {
         }
     }
 
+    @Test
+    public void testTopicLoadingPriority() throws Exception {
+        final String topicPrefix = "persistent://prop/ns-abc/loadingPriorityTopic";
+
+        // own namespace bundle
+        Producer<byte[]> producer = pulsarClient.newProducer().topic(topicPrefix + "0").create();
+        producer.close();
+
+        BrokerService service = pulsar.getBrokerService();
+        Semaphore semaphore = new Semaphore(0);
+        Semaphore oldSemaphore = service.topicLoadRequestSemaphore.getAndSet(semaphore);
+        try {
+            // All the loads are queued since there is no permit available
+            List<String> loadedTopics = Collections.synchronizedList(Lists.newArrayList());
+            List<CompletableFuture<Topic>> futures = Lists.newArrayList();
+            futures.add(service.preloadTopic(topicPrefix + "1"));
+            futures.add(service.preloadTopic(topicPrefix + "2"));
+            futures.add(service.getOrCreateTopic(topicPrefix + "3"));
+            // A client is now waiting for a topic being preloaded
+            futures.add(service.getOrCreateTopic(topicPrefix + "2"));
+            List<CompletableFuture<Void>> loadedFutures = Lists.newArrayList();
+            futures.forEach(future -> loadedFutures.add(future.thenAccept(topic -> loadedTopics.add(topic.getName()))));
+
+            // The next topic takes the only permit, the queued topics are then loaded one at a time when it completes
+            semaphore.release();
+            service.getOrCreateTopic(topicPrefix + "4").get(10, TimeUnit.SECONDS);
+
+            FutureUtil.waitForAll(loadedFutures).get(10, TimeUnit.SECONDS);
+            assertEquals(loadedTopics, Lists.newArrayList(topicPrefix + "3", topicPrefix + "2",
+                    topicPrefix + "2", topicPrefix + "1"));
+        } finally {
+            service.topicLoadRequestSemaphore.set(oldSemaphore);
+        }
+    }
+
     @Test
     public void testTopicLoadingOnDisableNamespaceBundle() throws Exception {
         final String namespace = "prop/disableBundle";
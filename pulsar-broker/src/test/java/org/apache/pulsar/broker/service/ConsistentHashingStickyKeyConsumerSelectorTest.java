@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.service;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ConsistentHashingStickyKeyConsumerSelectorTest {
+
+    private static final int NUM_KEYS = 10000;
+
+    private static Consumer newConsumer(String name) {
+        Consumer consumer = mock(Consumer.class);
+        when(consumer.consumerName()).thenReturn(name);
+        return consumer;
+    }
+
+    private static List<byte[]> newKeys() {
+        List<byte[]> keys = new ArrayList<>(NUM_KEYS);
+        for (int i = 0; i < NUM_KEYS; i++) {
+            keys.add(UUID.randomUUID().toString().getBytes());
+        }
+        return keys;
+    }
+
+    private static Map<Consumer, Integer> countKeys(StickyKeyConsumerSelector selector, List<byte[]> keys) {
+        Map<Consumer, Integer> counts = new HashMap<>();
+        keys.forEach(key -> counts.merge(selector.select(key), 1, Integer::sum));
+        return counts;
+    }
+
+    @Test
+    public void testPointsOfConsumersWithPrefixNames() {
+        ConsistentHashingStickyKeyConsumerSelector selector = new ConsistentHashingStickyKeyConsumerSelector(20);
+        selector.addConsumer(newConsumer("a"));
+        selector.addConsumer(newConsumer("a1"));
+
+        // The consumers don't share any point, e.g. the 11th point of "a" and the 1st point of "a1"
+        Assert.assertEquals(selector.getHashRing().size(), 40);
+    }
+
+    @Test
+    public void testConsumerSelect() {
+        ConsistentHashingStickyKeyConsumerSelector selector = new ConsistentHashingStickyKeyConsumerSelector();
+        String key1 = "anyKey";
+        Assert.assertNull(selector.select(key1.getBytes()));
+
+        Consumer consumer1 = newConsumer("c1");
+        selector.addConsumer(consumer1);
+        Assert.assertEquals(selector.select(key1.getBytes()), consumer1);
+        Assert.assertEquals(selector.getHashRing().size(),
+                ConsistentHashingStickyKeyConsumerSelector.DEFAULT_NUMBER_OF_POINTS);
+
+        List<Consumer> consumers = new ArrayList<>();
+        consumers.add(consumer1);
+        for (int i = 2; i <= 4; i++) {
+            Consumer consumer = newConsumer("c" + i);
+            consumers.add(consumer);
+            selector.addConsumer(consumer);
+        }
+
+        // The keys are spread over all the consumers
+        Map<Consumer, Integer> counts = countKeys(selector, newKeys());
+        Assert.assertEquals(counts.keySet().size(), 4);
+        for (Consumer consumer : consumers) {
+            int count = counts.get(consumer);
+            Assert.assertTrue(count > NUM_KEYS / 8 && count < NUM_KEYS / 2, "Keys of consumer: " + count);
+        }
+
+        for (Consumer consumer : consumers) {
+            selector.removeConsumer(consumer);
+        }
+        Assert.assertTrue(selector.getHashRing().isEmpty());
+        Assert.assertNull(selector.select(key1.getBytes()));
+    }
+
+    @Test
+    public void testKeysMovedOnConsumerChange() {
+        ConsistentHashingStickyKeyConsumerSelector selector = new ConsistentHashingStickyKeyConsumerSelector();
+        for (int i = 0; i < 4; i++) {
+            selector.addConsumer(newConsumer("c" + i));
+        }
+
+        List<byte[]> keys = newKeys();
+        List<Consumer> before = new ArrayList<>();
+        keys.forEach(key -> before.add(selector.select(key)));
+
+        // Only keys moving to the new consumer change owner
+        Consumer consumer5 = newConsumer("c5");
+        selector.addConsumer(consumer5);
+        int moved = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            Consumer consumer = selector.select(keys.get(i));
+            if (consumer != before.get(i)) {
+                Assert.assertEquals(consumer, consumer5);
+                moved++;
+            }
+        }
+        Assert.assertTrue(moved > 0 && moved < NUM_KEYS / 3, "Moved keys: " + moved);
+
+        // Removing it gives the keys back to their previous owner
+        selector.removeConsumer(consumer5);
+        for (int i = 0; i < keys.size(); i++) {
+            Assert.assertEquals(selector.select(keys.get(i)), before.get(i));
+        }
+    }
+
+    @Test
+    public void testConsumersWithSameName() {
+        ConsistentHashingStickyKeyConsumerSelector selector = new ConsistentHashingStickyKeyConsumerSelector(10);
+        Consumer consumer1 = newConsumer("c");
+        Consumer consumer2 = newConsumer("c");
+        selector.addConsumer(consumer1);
+        selector.addConsumer(consumer2);
+        Assert.assertEquals(selector.getHashRing().size(), 10);
+
+        Map<Consumer, Integer> counts = countKeys(selector, newKeys());
+        Assert.assertEquals(counts.keySet().size(), 2);
+
+        selector.removeConsumer(consumer1);
+        Assert.assertEquals(selector.getHashRing().size(), 10);
+        counts = countKeys(selector, newKeys());
+        Assert.assertEquals(counts.get(consumer2).intValue(), NUM_KEYS);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidNumberOfPoints() {
+        new ConsistentHashingStickyKeyConsumerSelector(0);
+    }
+}
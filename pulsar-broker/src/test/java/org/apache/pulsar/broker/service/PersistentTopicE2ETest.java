@@ -25,12 +25,14 @@ import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import java.lang.reflect.Field;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
@@ -1435,6 +1437,69 @@ public class PersistentTopicE2ETest extends BrokerTestBase {
         producer.close();
     }
 
+    @Test
+    public void testSharedSubscriptionWithDispatcherEventQueue() throws Exception {
+        final String topicName = "persistent://prop/ns-abc/testSharedSubscriptionWithDispatcherEventQueue";
+        final String subName = "sub";
+        final int numConsumers = 4;
+        final int numMessages = 200;
+
+        conf.setDispatcherEventQueueEnabled(true);
+        try {
+            // Small receiver queues, so that the consumers send many flow commands
+            List<Consumer<byte[]>> consumers = Lists.newArrayList();
+            for (int i = 0; i < numConsumers; i++) {
+                consumers.add(pulsarClient.newConsumer().topic(topicName).subscriptionName(subName)
+                        .subscriptionType(SubscriptionType.Shared).receiverQueueSize(10).subscribe());
+            }
+
+            Producer<byte[]> producer = pulsarClient.newProducer().topic(topicName).enableBatching(false).create();
+            for (int i = 0; i < numMessages; i++) {
+                producer.send(("my-message-" + i).getBytes());
+            }
+
+            Set<String> received = Sets.newHashSet();
+            long timeout = System.currentTimeMillis() + 10000;
+            while (received.size() < numMessages && System.currentTimeMillis() < timeout) {
+                for (Consumer<byte[]> consumer : consumers) {
+                    Message<byte[]> msg = consumer.receive(10, TimeUnit.MILLISECONDS);
+                    if (msg != null) {
+                        received.add(new String(msg.getData()));
+                        consumer.acknowledge(msg);
+                    }
+                }
+            }
+            assertEquals(received.size(), numMessages);
+
+            // Redelivery requests are processed through the event queue too
+            consumers.subList(1, numConsumers).forEach(Consumer::closeAsync);
+            Consumer<byte[]> consumer = consumers.get(0);
+            for (int i = 0; i < 5; i++) {
+                producer.send(("other-message-" + i).getBytes());
+            }
+            Set<MessageId> unacked = Sets.newHashSet();
+            for (int i = 0; i < 5; i++) {
+                Message<byte[]> msg = consumer.receive(5, TimeUnit.SECONDS);
+                assertNotNull(msg);
+                unacked.add(msg.getMessageId());
+            }
+            consumer.redeliverUnacknowledgedMessages();
+            Set<MessageId> redelivered = Sets.newHashSet();
+            for (int i = 0; i < 5; i++) {
+                Message<byte[]> msg = consumer.receive(5, TimeUnit.SECONDS);
+                assertNotNull(msg);
+                redelivered.add(msg.getMessageId());
+                consumer.acknowledge(msg);
+            }
+            assertEquals(redelivered, unacked);
+
+            consumer.close();
+            producer.close();
+        } finally {
+            conf.setDispatcherEventQueueEnabled(false);
+        }
+    }
+
     @Test
     public void testCreateProducerWithSameName() throws Exception {
         String topic = "persistent://prop/ns-abc/testCreateProducerWithSameName";
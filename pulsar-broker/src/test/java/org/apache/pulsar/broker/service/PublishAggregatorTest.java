@@ -0,0 +1,195 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import com.google.common.collect.Lists;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.apache.pulsar.broker.service.Topic.PublishContext;
+import org.apache.pulsar.broker.service.persistent.PersistentTopic;
+import org.apache.pulsar.common.api.proto.PulsarApi.CompressionType;
+import org.apache.pulsar.common.api.proto.PulsarApi.KeyValue;
+import org.apache.pulsar.common.api.proto.PulsarApi.MessageMetadata;
+import org.apache.pulsar.common.api.proto.PulsarApi.SingleMessageMetadata;
+import org.apache.pulsar.common.protocol.Commands;
+import org.apache.pulsar.common.protocol.Commands.ChecksumType;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PublishAggregatorTest {
+
+    private PersistentTopic topic;
+    private ScheduledExecutorService executor;
+    private List<ByteBuf> entries;
+    private List<PublishContext> entryContexts;
+
+    private static class TestPublishContext implements PublishContext {
+        long ledgerId = -1;
+        long entryId = -1;
+        int batchIndex = -1;
+        boolean completed = false;
+
+        @Override
+        public void completed(Exception e, long ledgerId, long entryId) {
+            this.ledgerId = ledgerId;
+            this.entryId = entryId;
+            this.completed = true;
+        }
+
+        @Override
+        public void completed(Exception e, long ledgerId, long entryId, int batchIndex) {
+            this.batchIndex = batchIndex;
+            completed(e, ledgerId, entryId);
+        }
+    }
+
+    @BeforeMethod
+    public void setup() {
+        topic = mock(PersistentTopic.class);
+        executor = Executors.newSingleThreadScheduledExecutor();
+        entries = Lists.newArrayList();
+        entryContexts = Lists.newArrayList();
+        doReturn(false).when(topic).isDeduplicationEnabled();
+        doAnswer(invocation -> {
+            ByteBuf entry = (ByteBuf) invocation.getArguments()[0];
+            entries.add(Unpooled.copiedBuffer(entry));
+            entryContexts.add((PublishContext) invocation.getArguments()[1]);
+            return null;
+        }).when(topic).publishMessage(any(ByteBuf.class), any(PublishContext.class));
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    private static ByteBuf newMessage(long sequenceId, String payload, CompressionType compression) {
+        MessageMetadata.Builder builder = MessageMetadata.newBuilder().setProducerName("producer")
+                .setSequenceId(sequenceId).setPublishTime(1000 + sequenceId).setCompression(compression)
+                .addProperties(KeyValue.newBuilder().setKey("index").setValue(Long.toString(sequenceId)).build());
+        MessageMetadata metadata = builder.build();
+        ByteBuf message = Commands.serializeMetadataAndPayload(ChecksumType.Crc32c, metadata,
+                Unpooled.wrappedBuffer(payload.getBytes(UTF_8)));
+        builder.recycle();
+        metadata.recycle();
+        return message;
+    }
+
+    @Test
+    public void testAggregateConcurrentMessages() throws Exception {
+        PublishAggregator aggregator = new PublishAggregator(topic, executor, 100, 1024 * 1024, 0);
+        List<TestPublishContext> contexts = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            contexts.add(new TestPublishContext());
+        }
+
+        // Nothing is outstanding, the first message is written right away
+        aggregator.publishMessage(newMessage(0, "msg-0", CompressionType.NONE), contexts.get(0));
+        assertEquals(entries.size(), 1);
+
+        // The next messages wait for the first write
+        for (int i = 1; i < 4; i++) {
+            aggregator.publishMessage(newMessage(i, "msg-" + i, CompressionType.NONE), contexts.get(i));
+        }
+        assertEquals(entries.size(), 1);
+
+        entryContexts.get(0).completed(null, 1, 0);
+        assertTrue(contexts.get(0).completed);
+        assertEquals(contexts.get(0).batchIndex, -1);
+        assertFalse(contexts.get(1).completed);
+        assertEquals(entries.size(), 2);
+
+        // The pending messages are written as a batch
+        ByteBuf entry = entries.get(1);
+        MessageMetadata metadata = Commands.parseMessageMetadata(entry);
+        assertEquals(metadata.getNumMessagesInBatch(), 3);
+        assertEquals(metadata.getSequenceId(), 1);
+        assertEquals(metadata.getProducerName(), "producer");
+        for (int i = 0; i < 3; i++) {
+            SingleMessageMetadata.Builder singleMessageMetadataBuilder = SingleMessageMetadata.newBuilder();
+            ByteBuf payload = Commands.deSerializeSingleMessageInBatch(entry, singleMessageMetadataBuilder, i, 3);
+            assertEquals(payload.toString(UTF_8), "msg-" + (i + 1));
+            assertEquals(singleMessageMetadataBuilder.getProperties(0).getValue(), Integer.toString(i + 1));
+            assertEquals(singleMessageMetadataBuilder.getPublishTime(), 1000 + i + 1);
+            payload.release();
+            singleMessageMetadataBuilder.recycle();
+        }
+
+        // Each message is acknowledged with its index in the batch
+        entryContexts.get(1).completed(null, 1, 1);
+        for (int i = 1; i < 4; i++) {
+            assertTrue(contexts.get(i).completed);
+            assertEquals(contexts.get(i).ledgerId, 1);
+            assertEquals(contexts.get(i).entryId, 1);
+            assertEquals(contexts.get(i).batchIndex, i - 1);
+        }
+    }
+
+    @Test
+    public void testMessagesNotAggregated() throws Exception {
+        PublishAggregator aggregator = new PublishAggregator(topic, executor, 100, 1024 * 1024, 0);
+
+        aggregator.publishMessage(newMessage(0, "msg-0", CompressionType.NONE), new TestPublishContext());
+        aggregator.publishMessage(newMessage(1, "msg-1", CompressionType.NONE), new TestPublishContext());
+        assertEquals(entries.size(), 1);
+
+        // A compressed message is written individually, after the pending messages
+        TestPublishContext compressedContext = new TestPublishContext();
+        aggregator.publishMessage(newMessage(2, "msg-2", CompressionType.LZ4), compressedContext);
+        assertEquals(entries.size(), 3);
+        assertEquals(Commands.parseMessageMetadata(entries.get(1)).getSequenceId(), 1);
+        assertEquals(Commands.parseMessageMetadata(entries.get(2)).getSequenceId(), 2);
+        assertEquals(entryContexts.get(2), compressedContext);
+
+        // Messages are written individually when deduplication is enabled
+        doReturn(true).when(topic).isDeduplicationEnabled();
+        TestPublishContext context = new TestPublishContext();
+        aggregator.publishMessage(newMessage(3, "msg-3", CompressionType.NONE), context);
+        assertEquals(entries.size(), 4);
+        assertEquals(entryContexts.get(3), context);
+    }
+
+    @Test
+    public void testFlushAfterMaxMessages() throws Exception {
+        PublishAggregator aggregator = new PublishAggregator(topic, executor, 3, 1024 * 1024, 0);
+
+        for (int i = 0; i < 7; i++) {
+            aggregator.publishMessage(newMessage(i, "msg-" + i, CompressionType.NONE), new TestPublishContext());
+        }
+
+        // 1 message written right away, then 2 batches of 3 messages
+        assertEquals(entries.size(), 3);
+        assertFalse(Commands.parseMessageMetadata(entries.get(0)).hasNumMessagesInBatch());
+        assertEquals(Commands.parseMessageMetadata(entries.get(1)).getNumMessagesInBatch(), 3);
+        assertEquals(Commands.parseMessageMetadata(entries.get(2)).getNumMessagesInBatch(), 3);
+    }
+}
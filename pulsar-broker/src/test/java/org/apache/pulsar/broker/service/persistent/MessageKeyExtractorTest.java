@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.service.persistent;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import com.google.common.collect.Lists;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.Collections;
+import org.apache.pulsar.common.api.proto.PulsarApi.CompressionType;
+import org.apache.pulsar.common.api.proto.PulsarApi.MessageMetadata;
+import org.apache.pulsar.common.api.proto.PulsarApi.SingleMessageMetadata;
+import org.apache.pulsar.common.protocol.Commands;
+import org.apache.pulsar.common.protocol.Commands.ChecksumType;
+import org.testng.annotations.Test;
+
+public class MessageKeyExtractorTest {
+
+    private static ByteBuf newEntry(MessageMetadata.Builder builder, ByteBuf payload) {
+        MessageMetadata metadata = builder.setProducerName("producer").setSequenceId(0).setPublishTime(1000)
+                .build();
+        ByteBuf entry = Commands.serializeMetadataAndPayload(ChecksumType.Crc32c, metadata, payload);
+        builder.recycle();
+        metadata.recycle();
+        return entry;
+    }
+
+    private static ByteBuf newBatch(String... keys) {
+        ByteBuf batch = Unpooled.buffer();
+        for (String key : keys) {
+            SingleMessageMetadata.Builder builder = SingleMessageMetadata.newBuilder();
+            if (key != null) {
+                builder.setPartitionKey(key);
+            }
+            Commands.serializeSingleMessageInBatchWithPayload(builder,
+                    Unpooled.wrappedBuffer(("msg-" + key).getBytes(UTF_8)), batch);
+            builder.recycle();
+        }
+        return batch;
+    }
+
+    @Test
+    public void testMessageKeys() {
+        ByteBuf entry = newEntry(MessageMetadata.newBuilder().setPartitionKey("key-0"),
+                Unpooled.wrappedBuffer("msg".getBytes(UTF_8)));
+        int readerIndex = entry.readerIndex();
+        assertEquals(MessageKeyExtractor.INSTANCE.getKeys(entry), Collections.singletonList("key-0"));
+        assertEquals(entry.readerIndex(), readerIndex);
+        entry.release();
+
+        entry = newEntry(MessageMetadata.newBuilder(), Unpooled.wrappedBuffer("msg".getBytes(UTF_8)));
+        assertEquals(MessageKeyExtractor.INSTANCE.getKeys(entry), Collections.emptyList());
+        entry.release();
+    }
+
+    @Test
+    public void testBatchKeys() {
+        ByteBuf entry = newEntry(MessageMetadata.newBuilder().setNumMessagesInBatch(3),
+                newBatch("key-0", null, "key-2"));
+        int readerIndex = entry.readerIndex();
+        assertEquals(MessageKeyExtractor.INSTANCE.getKeys(entry), Lists.newArrayList("key-0", "key-2"));
+        assertEquals(entry.readerIndex(), readerIndex);
+        entry.release();
+
+        // The messages of a compressed batch cannot be read, so its keys are unknown
+        entry = newEntry(MessageMetadata.newBuilder().setNumMessagesInBatch(3).setCompression(CompressionType.LZ4),
+                newBatch("key-0", null, "key-2"));
+        assertNull(MessageKeyExtractor.INSTANCE.getKeys(entry));
+        entry.release();
+    }
+}
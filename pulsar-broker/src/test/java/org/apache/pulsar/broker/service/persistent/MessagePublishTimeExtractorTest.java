@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.service.persistent;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.pulsar.common.api.proto.PulsarApi.MessageMetadata;
+import org.apache.pulsar.common.protocol.Commands;
+import org.apache.pulsar.common.protocol.Commands.ChecksumType;
+import org.testng.annotations.Test;
+
+public class MessagePublishTimeExtractorTest {
+
+    @Test
+    public void testPublishTime() {
+        MessageMetadata.Builder builder = MessageMetadata.newBuilder();
+        MessageMetadata metadata = builder.setProducerName("producer").setSequenceId(0).setPublishTime(1000)
+                .build();
+        ByteBuf entry = Commands.serializeMetadataAndPayload(ChecksumType.Crc32c, metadata,
+                Unpooled.wrappedBuffer("msg".getBytes(UTF_8)));
+        builder.recycle();
+        metadata.recycle();
+
+        int readerIndex = entry.readerIndex();
+        assertEquals(MessagePublishTimeExtractor.INSTANCE.getTimestamp(entry), 1000);
+        assertEquals(entry.readerIndex(), readerIndex);
+        entry.release();
+
+        // The publish time of an entry that is not a message is unknown
+        entry = Unpooled.wrappedBuffer("msg".getBytes(UTF_8));
+        assertEquals(MessagePublishTimeExtractor.INSTANCE.getTimestamp(entry), -1);
+        entry.release();
+    }
+}
@@ -20,6 +20,7 @@ package org.apache.pulsar.client.api;
 
 import com.google.common.collect.Sets;
 import lombok.Cleanup;
+import org.apache.pulsar.broker.service.ConsistentHashingStickyKeyConsumerSelector;
 import org.apache.pulsar.broker.service.HashRangeStickyKeyConsumerSelector;
 import org.apache.pulsar.broker.service.persistent.PersistentStickyKeyDispatcherMultipleConsumers;
 import org.apache.pulsar.common.schema.KeyValue;
@@ -39,6 +40,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertTrue;
 
 public class KeySharedSubscriptionTest extends ProducerConsumerBase {
@@ -129,6 +132,61 @@ public class KeySharedSubscriptionTest extends ProducerConsumerBase {
         receiveAndCheck(checkList);
     }
 
+    @Test
+    public void testSendAndReceiveWithConsistentHashingStickyKeyConsumerSelector() throws PulsarClientException {
+        this.conf.setSubscriptionKeySharedEnable(true);
+        this.conf.setSubscriptionKeySharedUseConsistentHashing(true);
+        try {
+            String topic = "persistent://public/default/key_shared_consistent_hashing";
+
+            // Expected owner of each key, from a selector with consumers of the same names
+            ConsistentHashingStickyKeyConsumerSelector selector = new ConsistentHashingStickyKeyConsumerSelector(
+                    conf.getSubscriptionKeySharedConsistentHashingReplicaPoints());
+            Map<org.apache.pulsar.broker.service.Consumer, Consumer<Integer>> consumers = new HashMap<>();
+            for (int i = 1; i <= 3; i++) {
+                org.apache.pulsar.broker.service.Consumer brokerConsumer =
+                        mock(org.apache.pulsar.broker.service.Consumer.class);
+                when(brokerConsumer.consumerName()).thenReturn("consumer-" + i);
+                selector.addConsumer(brokerConsumer);
+                consumers.put(brokerConsumer, pulsarClient.newConsumer(Schema.INT32)
+                        .topic(topic)
+                        .consumerName("consumer-" + i)
+                        .subscriptionName("key_shared")
+                        .subscriptionType(SubscriptionType.Key_Shared)
+                        .ackTimeout(3, TimeUnit.SECONDS)
+                        .subscribe());
+            }
+
+            @Cleanup
+            Producer<Integer> producer = pulsarClient.newProducer(Schema.INT32)
+                    .topic(topic)
+                    .enableBatching(false)
+                    .create();
+
+            Map<Consumer<Integer>, Integer> expectedMessages = new HashMap<>();
+            consumers.values().forEach(consumer -> expectedMessages.put(consumer, 0));
+            for (int i = 0; i < 10; i++) {
+                for (String key : keys) {
+                    expectedMessages.merge(consumers.get(selector.select(key.getBytes())), 1, Integer::sum);
+                    producer.newMessage()
+                        .key(key)
+                        .value(i)
+                        .send();
+                }
+            }
+
+            List<KeyValue<Consumer<Integer>, Integer>> checkList = new ArrayList<>();
+            expectedMessages.forEach((consumer, count) -> checkList.add(new KeyValue<>(consumer, count)));
+            receiveAndCheck(checkList);
+
+            for (Consumer<Integer> consumer : consumers.values()) {
+                consumer.close();
+            }
+        } finally {
+            this.conf.setSubscriptionKeySharedUseConsistentHashing(false);
+        }
+    }
+
     @Test
     public void testConsumerCrashSendAndReceiveWithHashRangeStickyKeyConsumerSelector() throws PulsarClientException, InterruptedException {
 
@@ -346,6 +404,169 @@ public class KeySharedSubscriptionTest extends ProducerConsumerBase {
         receiveAndCheck(checkList);
     }
 
+    @Test
+    public void testSendAndReceiveWithSplitBatches() throws Exception {
+        this.conf.setSubscriptionKeySharedEnable(true);
+        this.conf.setSubscriptionKeySharedSplitBatchesEnabled(true);
+        try {
+            String topic = "persistent://public/default/key_shared_split_batches";
+
+            List<Consumer<Integer>> consumers = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                consumers.add(pulsarClient.newConsumer(Schema.INT32)
+                        .topic(topic)
+                        .subscriptionName("key_shared")
+                        .subscriptionType(SubscriptionType.Key_Shared)
+                        .subscribe());
+            }
+
+            @Cleanup
+            Producer<Integer> producer = pulsarClient.newProducer(Schema.INT32)
+                    .topic(topic)
+                    .enableBatching(true)
+                    .batchingMaxMessages(keys.size() * 5)
+                    .batchingMaxPublishDelay(1, TimeUnit.SECONDS)
+                    .create();
+
+            // Each batch has messages of all the keys
+            int numMessages = 0;
+            for (int i = 0; i < 10; i++) {
+                for (String key : keys) {
+                    producer.newMessage()
+                        .key(key)
+                        .value(i)
+                        .sendAsync();
+                    numMessages++;
+                }
+            }
+            producer.flush();
+
+            Map<String, Consumer<Integer>> keyConsumers = new HashMap<>();
+            int received = 0;
+            for (Consumer<Integer> consumer : consumers) {
+                Map<String, Integer> lastValueForKey = new HashMap<>();
+                Message<Integer> message;
+                while ((message = consumer.receive(1, TimeUnit.SECONDS)) != null) {
+                    String key = message.getKey();
+                    // Each key is received by a single consumer, in order
+                    Assert.assertEquals(keyConsumers.computeIfAbsent(key, k -> consumer), consumer);
+                    if (lastValueForKey.containsKey(key)) {
+                        Assert.assertTrue(message.getValue() > lastValueForKey.get(key));
+                    }
+                    lastValueForKey.put(key, message.getValue());
+                    consumer.acknowledge(message);
+                    received++;
+                }
+            }
+            Assert.assertEquals(received, numMessages);
+            Assert.assertTrue(Sets.newHashSet(keyConsumers.values()).size() > 1);
+
+            // The batches are acknowledged once all the consumers acknowledged their messages
+            for (int i = 0; i < 50; i++) {
+                if (admin.topics().getStats(topic).subscriptions.get("key_shared").msgBacklog == 0) {
+                    break;
+                }
+                Thread.sleep(100);
+            }
+            Assert.assertEquals(admin.topics().getStats(topic).subscriptions.get("key_shared").msgBacklog, 0);
+
+            for (Consumer<Integer> consumer : consumers) {
+                consumer.close();
+            }
+        } finally {
+            this.conf.setSubscriptionKeySharedSplitBatchesEnabled(false);
+        }
+    }
+
+    @Test
+    public void testSplitBatchesOrderAfterConsumerRemoved() throws Exception {
+        this.conf.setSubscriptionKeySharedEnable(true);
+        this.conf.setSubscriptionKeySharedSplitBatchesEnabled(true);
+        try {
+            String topic = "persistent://public/default/key_shared_split_batches_consumer_removed";
+
+            Consumer<Integer> consumer1 = pulsarClient.newConsumer(Schema.INT32)
+                    .topic(topic)
+                    .subscriptionName("key_shared")
+                    .subscriptionType(SubscriptionType.Key_Shared)
+                    .subscribe();
+            Consumer<Integer> consumer2 = pulsarClient.newConsumer(Schema.INT32)
+                    .topic(topic)
+                    .subscriptionName("key_shared")
+                    .subscriptionType(SubscriptionType.Key_Shared)
+                    .subscribe();
+
+            @Cleanup
+            Producer<Integer> batchingProducer = pulsarClient.newProducer(Schema.INT32)
+                    .topic(topic)
+                    .enableBatching(true)
+                    .batchingMaxMessages(keys.size())
+                    .batchingMaxPublishDelay(1, TimeUnit.SECONDS)
+                    .create();
+            @Cleanup
+            Producer<Integer> producer = pulsarClient.newProducer(Schema.INT32)
+                    .topic(topic)
+                    .enableBatching(false)
+                    .create();
+
+            // A single batch with the messages of all the keys, split between the consumers
+            for (String key : keys) {
+                batchingProducer.newMessage().key(key).value(0).sendAsync();
+            }
+            batchingProducer.flush();
+
+            List<Message<Integer>> consumer1Messages = new ArrayList<>();
+            Set<String> consumer1Keys = Sets.newHashSet();
+            Message<Integer> message;
+            while ((message = consumer1.receive(1, TimeUnit.SECONDS)) != null) {
+                consumer1Messages.add(message);
+                consumer1Keys.add(message.getKey());
+            }
+            Set<String> consumer2Keys = Sets.newHashSet();
+            while ((message = consumer2.receive(1, TimeUnit.SECONDS)) != null) {
+                consumer2Keys.add(message.getKey());
+            }
+            Assert.assertFalse(consumer1Keys.isEmpty());
+            Assert.assertFalse(consumer2Keys.isEmpty());
+
+            // The keys of consumer2 move to consumer1, which still holds its part of the batch
+            consumer2.close();
+            for (String key : keys) {
+                producer.newMessage().key(key).value(1).send();
+            }
+
+            // The messages of the keys of consumer1 are still dispatched, the ones of the moved keys wait for their
+            // part of the batch
+            while ((message = consumer1.receive(1, TimeUnit.SECONDS)) != null) {
+                Assert.assertTrue(consumer1Keys.contains(message.getKey()));
+                Assert.assertEquals(message.getValue().intValue(), 1);
+                consumer1Messages.add(message);
+            }
+            Assert.assertEquals(consumer1Messages.size(), consumer1Keys.size() * 2);
+
+            for (Message<Integer> consumer1Message : consumer1Messages) {
+                consumer1.acknowledge(consumer1Message);
+            }
+
+            // The moved keys are received in order once consumer1 acknowledged its part of the batch
+            Map<String, Integer> lastValueForKey = new HashMap<>();
+            int received = 0;
+            while ((message = consumer1.receive(5, TimeUnit.SECONDS)) != null) {
+                String key = message.getKey();
+                Assert.assertTrue(consumer2Keys.contains(key));
+                Assert.assertEquals(message.getValue().intValue(), lastValueForKey.containsKey(key) ? 1 : 0);
+                lastValueForKey.put(key, message.getValue());
+                consumer1.acknowledge(message);
+                received++;
+            }
+            Assert.assertEquals(received, consumer2Keys.size() * 2);
+
+            consumer1.close();
+        } finally {
+            this.conf.setSubscriptionKeySharedSplitBatchesEnabled(false);
+        }
+    }
+
     @Test(expectedExceptions = PulsarClientException.class)
     public void testDisableKeySharedSubscription() throws PulsarClientException {
         this.conf.setSubscriptionKeySharedEnable(false);
@@ -344,9 +344,11 @@ public class ClientCnx extends PulsarHandler {
         long sequenceId = sendReceipt.getSequenceId();
         long ledgerId = -1;
         long entryId = -1;
+        int batchIndex = -1;
         if (sendReceipt.hasMessageId()) {
             ledgerId = sendReceipt.getMessageId().getLedgerId();
             entryId = sendReceipt.getMessageId().getEntryId();
+            batchIndex = sendReceipt.getMessageId().getBatchIndex();
         }
 
         if (ledgerId == -1 && entryId == -1) {
@@ -359,7 +361,7 @@ public class ClientCnx extends PulsarHandler {
                     ledgerId, entryId);
         }
 
-        producers.get(producerId).ackReceived(this, sequenceId, ledgerId, entryId);
+        producers.get(producerId).ackReceived(this, sequenceId, ledgerId, entryId, batchIndex);
     }
 
     @Override
@@ -665,7 +665,7 @@ public class ProducerImpl<T> extends ProducerBase<T> implements TimerTask, Conne
         }
     }
 
-    void ackReceived(ClientCnx cnx, long sequenceId, long ledgerId, long entryId) {
+    void ackReceived(ClientCnx cnx, long sequenceId, long ledgerId, long entryId, int batchIndex) {
         OpSendMsg op = null;
         boolean callback = false;
         synchronized (this) {
@@ -704,7 +704,7 @@ public class ProducerImpl<T> extends ProducerBase<T> implements TimerTask, Conne
             op = pendingCallbacks.poll();
             if (op != null) {
                 lastSequenceIdPublished = op.sequenceId + op.numMessagesInBatch - 1;
-                op.setMessageId(ledgerId, entryId, partitionIndex);
+                op.setMessageId(ledgerId, entryId, partitionIndex, batchIndex);
                 try {
                     // Need to protect ourselves from any exception being thrown in the future handler from the
                     // application
@@ -861,9 +861,14 @@ public class ProducerImpl<T> extends ProducerBase<T> implements TimerTask, Conne
             this.batchSizeByte = batchSizeByte;
         }
 
-        void setMessageId(long ledgerId, long entryId, int partitionIndex) {
+        void setMessageId(long ledgerId, long entryId, int partitionIndex, int receiptBatchIndex) {
             if (msg != null) {
-                msg.setMessageId(new MessageIdImpl(ledgerId, entryId, partitionIndex));
+                if (receiptBatchIndex >= 0) {
+                    // The broker wrote the message in a batch entry together with other messages of the producer
+                    msg.setMessageId(new BatchMessageIdImpl(ledgerId, entryId, partitionIndex, receiptBatchIndex));
+                } else {
+                    msg.setMessageId(new MessageIdImpl(ledgerId, entryId, partitionIndex));
+                }
             } else {
                 for (int batchIndex = 0; batchIndex < msgs.size(); batchIndex++) {
                     msgs.get(batchIndex)
@@ -4844,6 +4844,10 @@ public final class PulsarApi {
     // optional bytes ordering_key = 7;
     boolean hasOrderingKey();
     org.apache.pulsar.shaded.com.google.protobuf.v241.ByteString getOrderingKey();
+    
+    // optional uint64 publish_time = 8;
+    boolean hasPublishTime();
+    long getPublishTime();
   }
   public static final class SingleMessageMetadata extends
       org.apache.pulsar.shaded.com.google.protobuf.v241.GeneratedMessageLite
@@ -4983,6 +4987,16 @@ public final class PulsarApi {
       return orderingKey_;
     }
     
+    // optional uint64 publish_time = 8;
+    public static final int PUBLISH_TIME_FIELD_NUMBER = 8;
+    private long publishTime_;
+    public boolean hasPublishTime() {
+      return ((bitField0_ & 0x00000040) == 0x00000040);
+    }
+    public long getPublishTime() {
+      return publishTime_;
+    }
+    
     private void initFields() {
       properties_ = java.util.Collections.emptyList();
       partitionKey_ = "";
@@ -4991,6 +5005,7 @@ public final class PulsarApi {
       eventTime_ = 0L;
       partitionKeyB64Encoded_ = false;
       orderingKey_ = org.apache.pulsar.shaded.com.google.protobuf.v241.ByteString.EMPTY;
+      publishTime_ = 0L;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -5040,6 +5055,9 @@ public final class PulsarApi {
       if (((bitField0_ & 0x00000020) == 0x00000020)) {
         output.writeBytes(7, orderingKey_);
       }
+      if (((bitField0_ & 0x00000040) == 0x00000040)) {
+        output.writeUInt64(8, publishTime_);
+      }
     }
     
     private int memoizedSerializedSize = -1;
@@ -5076,6 +5094,10 @@ public final class PulsarApi {
         size += org.apache.pulsar.shaded.com.google.protobuf.v241.CodedOutputStream
           .computeBytesSize(7, orderingKey_);
       }
+      if (((bitField0_ & 0x00000040) == 0x00000040)) {
+        size += org.apache.pulsar.shaded.com.google.protobuf.v241.CodedOutputStream
+          .computeUInt64Size(8, publishTime_);
+      }
       memoizedSerializedSize = size;
       return size;
     }
@@ -5203,6 +5225,8 @@ public final class PulsarApi {
         bitField0_ = (bitField0_ & ~0x00000020);
         orderingKey_ = org.apache.pulsar.shaded.com.google.protobuf.v241.ByteString.EMPTY;
         bitField0_ = (bitField0_ & ~0x00000040);
+        publishTime_ = 0L;
+        bitField0_ = (bitField0_ & ~0x00000080);
         return this;
       }
       
@@ -5265,6 +5289,10 @@ public final class PulsarApi {
           to_bitField0_ |= 0x00000020;
         }
         result.orderingKey_ = orderingKey_;
+        if (((from_bitField0_ & 0x00000080) == 0x00000080)) {
+          to_bitField0_ |= 0x00000040;
+        }
+        result.publishTime_ = publishTime_;
         result.bitField0_ = to_bitField0_;
         return result;
       }
@@ -5299,6 +5327,9 @@ public final class PulsarApi {
         if (other.hasOrderingKey()) {
           setOrderingKey(other.getOrderingKey());
         }
+        if (other.hasPublishTime()) {
+          setPublishTime(other.getPublishTime());
+        }
         return this;
       }
       
@@ -5374,6 +5405,11 @@ public final class PulsarApi {
               orderingKey_ = input.readBytes();
               break;
             }
+            case 64: {
+              bitField0_ |= 0x00000080;
+              publishTime_ = input.readUInt64();
+              break;
+            }
           }
         }
       }
@@ -5613,6 +5649,27 @@ public final class PulsarApi {
         return this;
       }
       
+      // optional uint64 publish_time = 8;
+      private long publishTime_ ;
+      public boolean hasPublishTime() {
+        return ((bitField0_ & 0x00000080) == 0x00000080);
+      }
+      public long getPublishTime() {
+        return publishTime_;
+      }
+      public Builder setPublishTime(long value) {
+        bitField0_ |= 0x00000080;
+        publishTime_ = value;
+        
+        return this;
+      }
+      public Builder clearPublishTime() {
+        bitField0_ = (bitField0_ & ~0x00000080);
+        publishTime_ = 0L;
+        
+        return this;
+      }
+      
       // @@protoc_insertion_point(builder_scope:pulsar.proto.SingleMessageMetadata)
     }
     
@@ -312,12 +312,20 @@ public class Commands {
     }
 
     public static ByteBuf newSendReceipt(long producerId, long sequenceId, long ledgerId, long entryId) {
+        return newSendReceipt(producerId, sequenceId, ledgerId, entryId, -1);
+    }
+
+    public static ByteBuf newSendReceipt(long producerId, long sequenceId, long ledgerId, long entryId,
+            int batchIndex) {
         CommandSendReceipt.Builder sendReceiptBuilder = CommandSendReceipt.newBuilder();
         sendReceiptBuilder.setProducerId(producerId);
         sendReceiptBuilder.setSequenceId(sequenceId);
         MessageIdData.Builder messageIdBuilder = MessageIdData.newBuilder();
         messageIdBuilder.setLedgerId(ledgerId);
         messageIdBuilder.setEntryId(entryId);
+        if (batchIndex >= 0) {
+            messageIdBuilder.setBatchIndex(batchIndex);
+        }
         MessageIdData messageId = messageIdBuilder.build();
         sendReceiptBuilder.setMessageId(messageId);
         CommandSendReceipt sendReceipt = sendReceiptBuilder.build();
@@ -412,6 +420,85 @@ public class Commands {
         return res;
     }
 
+    /**
+     * Write the frame headers of a message command at the end of <code>headers</code>. The metadata and payload of
+     * the message, of <code>metadataAndPayloadSize</code> bytes, have to be written on the wire right after them.
+     *
+     * <p/>This lets the headers of several messages share a single buffer, instead of allocating one per message as
+     * {@link #newMessage(long, MessageIdData, int, ByteBuf)} does. The command is encoded directly, without building
+     * the protobuf objects, since only the consumer id, the message id and the redelivery count change between
+     * messages. A negative partition is not written, as -1 is the default value of the field.
+     */
+    public static void writeMessageHeaders(ByteBuf headers, long consumerId, long ledgerId, long entryId,
+            int partition, int redeliveryCount, int metadataAndPayloadSize) {
+        int messageIdSize = 1 + computeVarintSize(ledgerId) + 1 + computeVarintSize(entryId);
+        if (partition >= 0) {
+            messageIdSize += 1 + computeVarintSize(partition);
+        }
+
+        int messageSize = 1 + computeVarintSize(consumerId) + 1 + computeVarintSize(messageIdSize) + messageIdSize;
+        if (redeliveryCount > 0) {
+            messageSize += 1 + computeVarintSize(redeliveryCount);
+        }
+
+        int cmdSize = 1 + computeVarintSize(Type.MESSAGE_VALUE) + 1 + computeVarintSize(messageSize) + messageSize;
+
+        headers.ensureWritable(4 + 4 + cmdSize);
+        headers.writeInt(4 + cmdSize + metadataAndPayloadSize); // External frame
+        headers.writeInt(cmdSize);
+
+        // BaseCommand
+        headers.writeByte(makeProtobufKey(BaseCommand.TYPE_FIELD_NUMBER, WIRETYPE_VARINT));
+        writeVarint(headers, Type.MESSAGE_VALUE);
+        headers.writeByte(makeProtobufKey(BaseCommand.MESSAGE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED));
+        writeVarint(headers, messageSize);
+
+        // CommandMessage
+        headers.writeByte(makeProtobufKey(CommandMessage.CONSUMER_ID_FIELD_NUMBER, WIRETYPE_VARINT));
+        writeVarint(headers, consumerId);
+        headers.writeByte(makeProtobufKey(CommandMessage.MESSAGE_ID_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED));
+        writeVarint(headers, messageIdSize);
+
+        // MessageIdData
+        headers.writeByte(makeProtobufKey(MessageIdData.LEDGERID_FIELD_NUMBER, WIRETYPE_VARINT));
+        writeVarint(headers, ledgerId);
+        headers.writeByte(makeProtobufKey(MessageIdData.ENTRYID_FIELD_NUMBER, WIRETYPE_VARINT));
+        writeVarint(headers, entryId);
+        if (partition >= 0) {
+            headers.writeByte(makeProtobufKey(MessageIdData.PARTITION_FIELD_NUMBER, WIRETYPE_VARINT));
+            writeVarint(headers, partition);
+        }
+
+        if (redeliveryCount > 0) {
+            headers.writeByte(makeProtobufKey(CommandMessage.REDELIVERY_COUNT_FIELD_NUMBER, WIRETYPE_VARINT));
+            writeVarint(headers, redeliveryCount);
+        }
+    }
+
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+    private static int makeProtobufKey(int fieldNumber, int wireType) {
+        return (fieldNumber << 3) | wireType;
+    }
+
+    private static int computeVarintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            ++size;
+        }
+        return size;
+    }
+
+    private static void writeVarint(ByteBuf buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.writeByte(((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte((int) value);
+    }
+
     public static ByteBufPair newSend(long producerId, long sequenceId, int numMessages, ChecksumType checksumType,
             MessageMetadata messageData, ByteBuf payload) {
         CommandSend.Builder sendBuilder = CommandSend.newBuilder();
@@ -1207,10 +1294,18 @@ public class Commands {
 
 
         int cmdSize = cmd.getSerializedSize();
-        int totalSize = 4 + cmdSize + metadataAndPayload.readableBytes();
         int headersSize = 4 + 4 + cmdSize;
 
         ByteBuf headers = PulsarByteBufAllocator.DEFAULT.buffer(headersSize);
+        writeCommandMessageHeaders(cmd, metadataAndPayload.readableBytes(), headers);
+
+        return (ByteBufPair) ByteBufPair.get(headers, metadataAndPayload);
+    }
+
+    private static void writeCommandMessageHeaders(BaseCommand cmd, int metadataAndPayloadSize, ByteBuf headers) {
+        int cmdSize = cmd.getSerializedSize();
+        int totalSize = 4 + cmdSize + metadataAndPayloadSize;
+
         headers.writeInt(totalSize); // External frame
 
         try {
@@ -1224,8 +1319,6 @@ public class Commands {
             // This is in-memory serialization, should not fail
             throw new RuntimeException(e);
         }
-
-        return (ByteBufPair) ByteBufPair.get(headers, metadataAndPayload);
     }
 
     public static int getNumberOfMessagesInBatch(ByteBuf metadataAndPayload, String subscription,
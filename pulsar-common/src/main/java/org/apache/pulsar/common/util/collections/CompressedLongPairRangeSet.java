@@ -0,0 +1,696 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.common.util.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import com.google.common.collect.Range;
+
+/**
+ * A set comprising zero or more ranges of type {@link LongPair}, stored as compressed bitmaps. It can be used in place
+ * of {@link ConcurrentOpenLongPairRangeSet} when the set holds a large number of sparse values.
+ *
+ * <pre>
+ *
+ * Layout:
+ * a. Values of each key are stored in a bitmap split in chunks of 65536 values, and only the chunks holding at least
+ *    one value are allocated.
+ * b. A chunk is stored as a sorted array of runs while it has few of them, and converted into a plain 8Kb bitmap once
+ *    the runs would take more space than that. A bitmap chunk is converted back into a single run when it's full.
+ * c. No object is allocated per value or per range.
+ * </pre>
+ *
+ * <p/>All the operations are synchronized on the set.
+ */
+public class CompressedLongPairRangeSet<T extends Comparable<T>> implements LongPairRangeSet<T> {
+
+    private final NavigableMap<Long, KeyBitmap> bitmaps = new TreeMap<>();
+    private final LongPairConsumer<T> consumer;
+
+    // caching place-holder for cpu-optimization to avoid calculating ranges again
+    private int cachedSize = 0;
+    private String cachedToString = "[]";
+    private boolean updatedAfterCachedSize = true;
+    private boolean updatedAfterCachedToString = true;
+
+    public CompressedLongPairRangeSet(LongPairConsumer<T> consumer) {
+        this.consumer = consumer;
+    }
+
+    @Override
+    public synchronized void addOpenClosed(long lowerKey, long lowerValueOpen, long upperKey, long upperValue) {
+        long lowerValue = lowerValueOpen + 1;
+        if (lowerKey != upperKey) {
+            // Same semantic as ConcurrentOpenLongPairRangeSet: only extend the lower key if it already has values
+            // after the lower bound, and set everything up to the upper bound in the upper key
+            if (isValid(lowerKey, lowerValue)) {
+                KeyBitmap bitmap = bitmaps.get(lowerKey);
+                if (bitmap != null && bitmap.last() > lowerValueOpen) {
+                    bitmap.add(lowerValue, Math.max(bitmap.last(), lowerValue));
+                }
+            }
+            if (isValid(upperKey, upperValue) && upperValue >= 0) {
+                bitmaps.computeIfAbsent(upperKey, k -> new KeyBitmap()).add(0, upperValue);
+            }
+        } else if (upperValue >= 0 && lowerValue <= upperValue) {
+            bitmaps.computeIfAbsent(lowerKey, k -> new KeyBitmap()).add(Math.max(lowerValue, 0), upperValue);
+        }
+        updated();
+    }
+
+    private static boolean isValid(long key, long value) {
+        return key != LongPair.earliest.getKey() && value != LongPair.earliest.getValue()
+                && key != LongPair.latest.getKey() && value != LongPair.latest.getValue();
+    }
+
+    @Override
+    public synchronized boolean contains(long key, long value) {
+        KeyBitmap bitmap = bitmaps.get(key);
+        return bitmap != null && value >= 0 && bitmap.contains(value);
+    }
+
+    @Override
+    public synchronized Range<T> rangeContaining(long key, long value) {
+        KeyBitmap bitmap = bitmaps.get(key);
+        if (bitmap == null || value < 0 || !bitmap.contains(value)) {
+            return null;
+        }
+        return Range.closed(consumer.apply(key, bitmap.runStart(value)), consumer.apply(key, bitmap.runEnd(value)));
+    }
+
+    @Override
+    public synchronized void removeAtMost(long key, long value) {
+        bitmaps.headMap(key, false).clear();
+        KeyBitmap bitmap = bitmaps.get(key);
+        if (bitmap != null && value >= 0) {
+            bitmap.remove(0, value);
+            if (bitmap.isEmpty()) {
+                bitmaps.remove(key);
+            }
+        }
+        updated();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        // Empty bitmaps are always removed
+        return bitmaps.isEmpty();
+    }
+
+    @Override
+    public synchronized void clear() {
+        bitmaps.clear();
+        updated();
+    }
+
+    @Override
+    public synchronized Range<T> span() {
+        Map.Entry<Long, KeyBitmap> first = bitmaps.firstEntry();
+        Map.Entry<Long, KeyBitmap> last = bitmaps.lastEntry();
+        return Range.openClosed(consumer.apply(first.getKey(), first.getValue().first() - 1),
+                consumer.apply(last.getKey(), last.getValue().last()));
+    }
+
+    @Override
+    public List<Range<T>> asRanges() {
+        List<Range<T>> ranges = new ArrayList<>();
+        forEach((range) -> {
+            ranges.add(range);
+            return true;
+        });
+        return ranges;
+    }
+
+    @Override
+    public void forEach(RangeProcessor<T> action) {
+        forEach(action, consumer);
+    }
+
+    @Override
+    public synchronized void forEach(RangeProcessor<T> action, LongPairConsumer<? extends T> consumer) {
+        for (Map.Entry<Long, KeyBitmap> entry : bitmaps.entrySet()) {
+            long key = entry.getKey();
+            boolean completed = !entry.getValue().forEachRun((start, end) -> {
+                return action.process(Range.openClosed(consumer.apply(key, start - 1), consumer.apply(key, end)));
+            });
+            if (completed) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized Range<T> firstRange() {
+        Map.Entry<Long, KeyBitmap> first = bitmaps.firstEntry();
+        long lower = first.getValue().first();
+        long upper = first.getValue().runEnd(lower);
+        return Range.openClosed(consumer.apply(first.getKey(), lower - 1), consumer.apply(first.getKey(), upper));
+    }
+
+    @Override
+    public synchronized int size() {
+        if (updatedAfterCachedSize) {
+            int size = 0;
+            for (KeyBitmap bitmap : bitmaps.values()) {
+                size += bitmap.runCount();
+            }
+            cachedSize = size;
+            updatedAfterCachedSize = false;
+        }
+        return cachedSize;
+    }
+
+    /**
+     * @return an estimate of the memory used by the bitmaps, in bytes
+     */
+    public synchronized long getMemoryUsage() {
+        long size = 0;
+        for (KeyBitmap bitmap : bitmaps.values()) {
+            size += bitmap.getMemoryUsage();
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (updatedAfterCachedToString) {
+            StringBuilder toString = new StringBuilder();
+            toString.append("[");
+            forEach((range) -> {
+                if (toString.length() > 1) {
+                    toString.append(",");
+                }
+                toString.append(range);
+                return true;
+            });
+            toString.append("]");
+            cachedToString = toString.toString();
+            updatedAfterCachedToString = false;
+        }
+        return cachedToString;
+    }
+
+    private void updated() {
+        updatedAfterCachedSize = true;
+        updatedAfterCachedToString = true;
+    }
+
+    interface RunProcessor {
+        /**
+         * @return false if there is no further processing required
+         */
+        boolean process(long start, long end);
+    }
+
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Values of a single key, split into chunks sorted by their index.
+     */
+    static class KeyBitmap {
+        private long[] indexes = new long[1];
+        private Chunk[] chunks = new Chunk[1];
+        private int count = 0;
+
+        void add(long start, long end) {
+            for (long index = start >>> CHUNK_BITS; index <= end >>> CHUNK_BITS; index++) {
+                int low = index == start >>> CHUNK_BITS ? (int) (start & CHUNK_MASK) : 0;
+                int high = index == end >>> CHUNK_BITS ? (int) (end & CHUNK_MASK) : CHUNK_MASK;
+
+                int pos = Arrays.binarySearch(indexes, 0, count, index);
+                if (pos < 0) {
+                    pos = -pos - 1;
+                    insertChunk(pos, index, new RunChunk());
+                }
+                chunks[pos] = chunks[pos].add(low, high);
+            }
+        }
+
+        void remove(long start, long end) {
+            int pos = Arrays.binarySearch(indexes, 0, count, start >>> CHUNK_BITS);
+            if (pos < 0) {
+                pos = -pos - 1;
+            }
+
+            int removeFrom = -1;
+            int removeTo = -1;
+            while (pos < count && indexes[pos] <= end >>> CHUNK_BITS) {
+                long index = indexes[pos];
+                int low = index == start >>> CHUNK_BITS ? (int) (start & CHUNK_MASK) : 0;
+                int high = index == end >>> CHUNK_BITS ? (int) (end & CHUNK_MASK) : CHUNK_MASK;
+                chunks[pos] = chunks[pos].remove(low, high);
+                if (chunks[pos].isEmpty()) {
+                    if (removeFrom < 0) {
+                        removeFrom = pos;
+                    }
+                    removeTo = pos + 1;
+                }
+                pos++;
+            }
+
+            if (removeFrom >= 0) {
+                // Only the first and last chunks of the range can be left non-empty
+                int keep = 0;
+                for (int i = removeFrom; i < removeTo; i++) {
+                    if (!chunks[i].isEmpty()) {
+                        indexes[removeFrom + keep] = indexes[i];
+                        chunks[removeFrom + keep] = chunks[i];
+                        keep++;
+                    }
+                }
+                int removed = removeTo - removeFrom - keep;
+                System.arraycopy(indexes, removeTo, indexes, removeTo - removed, count - removeTo);
+                System.arraycopy(chunks, removeTo, chunks, removeTo - removed, count - removeTo);
+                Arrays.fill(chunks, count - removed, count, null);
+                count -= removed;
+            }
+        }
+
+        boolean contains(long value) {
+            int pos = Arrays.binarySearch(indexes, 0, count, value >>> CHUNK_BITS);
+            return pos >= 0 && chunks[pos].contains((int) (value & CHUNK_MASK));
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        long first() {
+            return (indexes[0] << CHUNK_BITS) | chunks[0].first();
+        }
+
+        long last() {
+            return (indexes[count - 1] << CHUNK_BITS) | chunks[count - 1].last();
+        }
+
+        /**
+         * @return the first value of the run containing the given value, which must be in the set
+         */
+        long runStart(long value) {
+            int pos = Arrays.binarySearch(indexes, 0, count, value >>> CHUNK_BITS);
+            int start = chunks[pos].runStart((int) (value & CHUNK_MASK));
+            while (start == 0 && pos > 0 && indexes[pos - 1] == indexes[pos] - 1
+                    && chunks[pos - 1].contains(CHUNK_MASK)) {
+                pos--;
+                start = chunks[pos].runStart(CHUNK_MASK);
+            }
+            return (indexes[pos] << CHUNK_BITS) | start;
+        }
+
+        /**
+         * @return the last value of the run containing the given value, which must be in the set
+         */
+        long runEnd(long value) {
+            int pos = Arrays.binarySearch(indexes, 0, count, value >>> CHUNK_BITS);
+            int end = chunks[pos].runEnd((int) (value & CHUNK_MASK));
+            while (end == CHUNK_MASK && pos < count - 1 && indexes[pos + 1] == indexes[pos] + 1
+                    && chunks[pos + 1].contains(0)) {
+                pos++;
+                end = chunks[pos].runEnd(0);
+            }
+            return (indexes[pos] << CHUNK_BITS) | end;
+        }
+
+        /**
+         * Process the runs of values in ascending order, merging the runs that span across chunks.
+         *
+         * @return false if the processing was interrupted
+         */
+        boolean forEachRun(RunProcessor processor) {
+            long[] pending = new long[] { -1, -1 };
+            for (int i = 0; i < count; i++) {
+                final long base = indexes[i] << CHUNK_BITS;
+                boolean completed = chunks[i].forEachRun((start, end) -> {
+                    if (pending[0] >= 0 && pending[1] + 1 == base + start) {
+                        pending[1] = base + end;
+                        return true;
+                    }
+                    if (pending[0] >= 0 && !processor.process(pending[0], pending[1])) {
+                        pending[0] = -1;
+                        return false;
+                    }
+                    pending[0] = base + start;
+                    pending[1] = base + end;
+                    return true;
+                });
+                if (!completed) {
+                    return false;
+                }
+            }
+            return pending[0] < 0 || processor.process(pending[0], pending[1]);
+        }
+
+        int runCount() {
+            int[] runs = new int[] { 0 };
+            forEachRun((start, end) -> {
+                runs[0]++;
+                return true;
+            });
+            return runs[0];
+        }
+
+        long getMemoryUsage() {
+            long size = 16 + indexes.length * 12L;
+            for (int i = 0; i < count; i++) {
+                size += chunks[i].getMemoryUsage();
+            }
+            return size;
+        }
+
+        private void insertChunk(int pos, long index, Chunk chunk) {
+            if (count == indexes.length) {
+                indexes = Arrays.copyOf(indexes, count * 2);
+                chunks = Arrays.copyOf(chunks, count * 2);
+            }
+            System.arraycopy(indexes, pos, indexes, pos + 1, count - pos);
+            System.arraycopy(chunks, pos, chunks, pos + 1, count - pos);
+            indexes[pos] = index;
+            chunks[pos] = chunk;
+            count++;
+        }
+    }
+
+    /**
+     * Set of values in [0, 65535]. The operations return the chunk to be used from then on, which might have been
+     * converted to a different representation.
+     */
+    abstract static class Chunk {
+        abstract Chunk add(int start, int end);
+
+        abstract Chunk remove(int start, int end);
+
+        abstract boolean contains(int value);
+
+        abstract boolean isEmpty();
+
+        abstract int first();
+
+        abstract int last();
+
+        abstract int runStart(int value);
+
+        abstract int runEnd(int value);
+
+        abstract boolean forEachRun(RunProcessor processor);
+
+        abstract long getMemoryUsage();
+    }
+
+    /**
+     * Chunk stored as a sorted array of disjoint and non-adjacent runs.
+     */
+    static class RunChunk extends Chunk {
+        // Above this number of runs, a bitmap takes less space
+        static final int MAX_RUNS = BitmapChunk.WORDS * Long.BYTES / (2 * Character.BYTES);
+
+        // Start and end of each run, inclusive
+        private char[] runs = new char[2];
+        private int count = 0;
+
+        @Override
+        Chunk add(int start, int end) {
+            // First run that can be merged with the new one, and first run after it that can't
+            int from = firstRunEndingAtOrAfter(start - 1);
+            int to = from;
+            while (to < count && runs[2 * to] <= end + 1) {
+                to++;
+            }
+
+            if (from == to) {
+                if (count == MAX_RUNS) {
+                    return toBitmap().add(start, end);
+                }
+                replaceRuns(from, to, 1);
+                runs[2 * from] = (char) start;
+                runs[2 * from + 1] = (char) end;
+            } else {
+                int newStart = Math.min(start, runs[2 * from]);
+                int newEnd = Math.max(end, runs[2 * (to - 1) + 1]);
+                replaceRuns(from, to, 1);
+                runs[2 * from] = (char) newStart;
+                runs[2 * from + 1] = (char) newEnd;
+            }
+            return this;
+        }
+
+        @Override
+        Chunk remove(int start, int end) {
+            int from = firstRunEndingAtOrAfter(start);
+            int to = from;
+            while (to < count && runs[2 * to] <= end) {
+                to++;
+            }
+            if (from == to) {
+                return this;
+            }
+
+            int firstStart = runs[2 * from];
+            int lastEnd = runs[2 * (to - 1) + 1];
+            boolean keepLeft = firstStart < start;
+            boolean keepRight = lastEnd > end;
+            int remaining = (keepLeft ? 1 : 0) + (keepRight ? 1 : 0);
+            if (count - (to - from) + remaining > MAX_RUNS) {
+                // Splitting a run when already at the max number of runs
+                return toBitmap().remove(start, end);
+            }
+
+            replaceRuns(from, to, remaining);
+            int pos = from;
+            if (keepLeft) {
+                runs[2 * pos] = (char) firstStart;
+                runs[2 * pos + 1] = (char) (start - 1);
+                pos++;
+            }
+            if (keepRight) {
+                runs[2 * pos] = (char) (end + 1);
+                runs[2 * pos + 1] = (char) lastEnd;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(int value) {
+            int pos = firstRunEndingAtOrAfter(value);
+            return pos < count && runs[2 * pos] <= value;
+        }
+
+        @Override
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        @Override
+        int first() {
+            return runs[0];
+        }
+
+        @Override
+        int last() {
+            return runs[2 * count - 1];
+        }
+
+        @Override
+        int runStart(int value) {
+            return runs[2 * firstRunEndingAtOrAfter(value)];
+        }
+
+        @Override
+        int runEnd(int value) {
+            return runs[2 * firstRunEndingAtOrAfter(value) + 1];
+        }
+
+        @Override
+        boolean forEachRun(RunProcessor processor) {
+            for (int i = 0; i < count; i++) {
+                if (!processor.process(runs[2 * i], runs[2 * i + 1])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        long getMemoryUsage() {
+            return 32 + runs.length * Character.BYTES;
+        }
+
+        private int firstRunEndingAtOrAfter(int value) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (runs[2 * mid + 1] < value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private void replaceRuns(int from, int to, int newRuns) {
+            int newCount = count - (to - from) + newRuns;
+            if (2 * newCount > runs.length) {
+                runs = Arrays.copyOf(runs, Math.min(2 * MAX_RUNS, Math.max(2 * newCount, runs.length * 2)));
+            }
+            System.arraycopy(runs, 2 * to, runs, 2 * (from + newRuns), 2 * (count - to));
+            count = newCount;
+        }
+
+        private BitmapChunk toBitmap() {
+            BitmapChunk bitmap = new BitmapChunk();
+            for (int i = 0; i < count; i++) {
+                bitmap.add(runs[2 * i], runs[2 * i + 1]);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Chunk stored as a plain bitmap.
+     */
+    static class BitmapChunk extends Chunk {
+        static final int WORDS = CHUNK_SIZE / Long.SIZE;
+
+        private final long[] words = new long[WORDS];
+        private int cardinality = 0;
+
+        @Override
+        Chunk add(int start, int end) {
+            updateRange(start, end, true);
+            if (cardinality == CHUNK_SIZE) {
+                return new RunChunk().add(0, CHUNK_MASK);
+            }
+            return this;
+        }
+
+        @Override
+        Chunk remove(int start, int end) {
+            updateRange(start, end, false);
+            return this;
+        }
+
+        @Override
+        boolean contains(int value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        boolean isEmpty() {
+            return cardinality == 0;
+        }
+
+        @Override
+        int first() {
+            return nextSetBit(0);
+        }
+
+        @Override
+        int last() {
+            for (int i = WORDS - 1; i >= 0; i--) {
+                if (words[i] != 0) {
+                    return i * Long.SIZE + Long.SIZE - 1 - Long.numberOfLeadingZeros(words[i]);
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        int runStart(int value) {
+            int i = value >>> 6;
+            // Clear bits at or below value in the current word
+            long word = ~words[i] & (-1L >>> (Long.SIZE - 1 - (value & 63)));
+            while (word == 0 && i > 0) {
+                word = ~words[--i];
+            }
+            return word == 0 ? 0 : i * Long.SIZE + Long.SIZE - Long.numberOfLeadingZeros(word);
+        }
+
+        @Override
+        int runEnd(int value) {
+            return nextClearBit(value) - 1;
+        }
+
+        @Override
+        boolean forEachRun(RunProcessor processor) {
+            int start = nextSetBit(0);
+            while (start >= 0) {
+                int end = nextClearBit(start);
+                if (!processor.process(start, end - 1)) {
+                    return false;
+                }
+                start = end < CHUNK_SIZE ? nextSetBit(end) : -1;
+            }
+            return true;
+        }
+
+        @Override
+        long getMemoryUsage() {
+            return 32 + WORDS * Long.BYTES;
+        }
+
+        private int nextSetBit(int from) {
+            int i = from >>> 6;
+            long word = words[i] & (-1L << from);
+            while (word == 0) {
+                if (++i == WORDS) {
+                    return -1;
+                }
+                word = words[i];
+            }
+            return i * Long.SIZE + Long.numberOfTrailingZeros(word);
+        }
+
+        private int nextClearBit(int from) {
+            int i = from >>> 6;
+            long word = ~words[i] & (-1L << from);
+            while (word == 0) {
+                if (++i == WORDS) {
+                    return CHUNK_SIZE;
+                }
+                word = ~words[i];
+            }
+            return i * Long.SIZE + Long.numberOfTrailingZeros(word);
+        }
+
+        private void updateRange(int start, int end, boolean set) {
+            int firstWord = start >>> 6;
+            int lastWord = end >>> 6;
+            for (int i = firstWord; i <= lastWord; i++) {
+                long mask = -1L;
+                if (i == firstWord) {
+                    mask &= -1L << start;
+                }
+                if (i == lastWord) {
+                    mask &= -1L >>> (Long.SIZE - 1 - (end & 63));
+                }
+                long word = set ? words[i] | mask : words[i] & ~mask;
+                cardinality += Long.bitCount(word) - Long.bitCount(words[i]);
+                words[i] = word;
+            }
+        }
+    }
+}
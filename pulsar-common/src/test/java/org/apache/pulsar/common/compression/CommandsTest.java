@@ -32,6 +32,7 @@ import org.apache.pulsar.common.allocator.PulsarByteBufAllocator;
 import org.apache.pulsar.common.protocol.ByteBufPair;
 import org.apache.pulsar.common.protocol.Commands;
 import org.apache.pulsar.common.protocol.Commands.ChecksumType;
+import org.apache.pulsar.common.api.proto.PulsarApi.MessageIdData;
 import org.apache.pulsar.common.api.proto.PulsarApi.MessageMetadata;
 import org.apache.pulsar.common.util.protobuf.ByteBufCodedOutputStream;
 import org.testng.annotations.Test;
@@ -77,6 +78,47 @@ public class CommandsTest {
 
     }
 
+    @Test
+    public void testMessageHeadersInSharedBuffer() throws Exception {
+        ByteBuf payload1 = Unpooled.wrappedBuffer("payload-1".getBytes());
+        ByteBuf payload2 = Unpooled.wrappedBuffer("message-payload-2".getBytes());
+        MessageIdData messageId1 = MessageIdData.newBuilder().setLedgerId(10).setEntryId(1).build();
+        MessageIdData messageId2 = MessageIdData.newBuilder().setLedgerId(10).setEntryId(2).setPartition(3).build();
+
+        // Headers of both messages in the same buffer, which has to be expanded
+        ByteBuf headers = Unpooled.buffer(8);
+        Commands.writeMessageHeaders(headers, 5, 10, 1, -1, 0, payload1.readableBytes());
+        int firstHeadersSize = headers.readableBytes();
+        Commands.writeMessageHeaders(headers, 5, 10, 2, 3, 2, payload2.readableBytes());
+
+        ByteBuf expected = Unpooled.buffer();
+        expected.writeBytes(ByteBufPair.coalesce(Commands.newMessage(5, messageId1, 0, payload1.retainedSlice())));
+        expected.writeBytes(ByteBufPair.coalesce(Commands.newMessage(5, messageId2, 2, payload2.retainedSlice())));
+
+        ByteBuf received = Unpooled.wrappedBuffer(headers.slice(0, firstHeadersSize), payload1,
+                headers.slice(firstHeadersSize, headers.readableBytes() - firstHeadersSize), payload2);
+        assertEquals(received, expected);
+    }
+
+    @Test
+    public void testMessageHeadersWithLargeValues() throws Exception {
+        long[] ids = { 0, 127, 128, 16384, Integer.MAX_VALUE + 1L, Long.MAX_VALUE };
+        for (long id : ids) {
+            ByteBuf payload = Unpooled.wrappedBuffer(new byte[300]);
+            MessageIdData messageId = MessageIdData.newBuilder().setLedgerId(id).setEntryId(id)
+                    .setPartition((int) Math.min(id, Integer.MAX_VALUE)).build();
+            int redeliveryCount = (int) Math.min(id, Integer.MAX_VALUE);
+
+            ByteBuf headers = Unpooled.buffer();
+            Commands.writeMessageHeaders(headers, id, id, id, messageId.getPartition(), redeliveryCount,
+                    payload.readableBytes());
+
+            ByteBuf expected = ByteBufPair.coalesce(Commands.newMessage(id, messageId, redeliveryCount,
+                    payload.retainedSlice()));
+            assertEquals(Unpooled.wrappedBuffer(headers, payload), expected);
+        }
+    }
+
     private int computeChecksum(MessageMetadata msgMetadata, ByteBuf compressedPayload) throws IOException {
         int metadataSize = msgMetadata.getSerializedSize();
         int metadataFrameSize = 4 + metadataSize;
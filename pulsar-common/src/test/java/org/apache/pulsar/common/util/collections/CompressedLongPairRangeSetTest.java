@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.common.util.collections;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.apache.pulsar.common.util.collections.LongPairRangeSet.LongPair;
+import org.apache.pulsar.common.util.collections.LongPairRangeSet.LongPairConsumer;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Range;
+
+public class CompressedLongPairRangeSetTest {
+
+    static final LongPairConsumer<LongPair> consumer = (key, value) -> new LongPair(key, value);
+
+    @Test
+    public void testAddForSameKey() {
+        CompressedLongPairRangeSet<LongPair> set = new CompressedLongPairRangeSet<>(consumer);
+        set.addOpenClosed(0, -1, 0, 5);
+        set.addOpenClosed(0, 7, 0, 8);
+        set.addOpenClosed(0, 8, 0, 9);
+        set.addOpenClosed(0, 9, 0, 10);
+        set.addOpenClosed(0, 97, 0, 99);
+        set.addOpenClosed(0, 101, 0, 106);
+
+        List<Range<LongPair>> ranges = set.asRanges();
+        int count = 0;
+        assertEquals(ranges.get(count++), (Range.openClosed(new LongPair(0, -1), new LongPair(0, 5))));
+        assertEquals(ranges.get(count++), (Range.openClosed(new LongPair(0, 7), new LongPair(0, 10))));
+        assertEquals(ranges.get(count++), (Range.openClosed(new LongPair(0, 97), new LongPair(0, 99))));
+        assertEquals(ranges.get(count++), (Range.openClosed(new LongPair(0, 101), new LongPair(0, 106))));
+        assertEquals(set.size(), 4);
+        assertEquals(set.toString(), "[(0:-1..0:5],(0:7..0:10],(0:97..0:99],(0:101..0:106]]");
+    }
+
+    @Test
+    public void testAddForDifferentKey() {
+        CompressedLongPairRangeSet<LongPair> set = new CompressedLongPairRangeSet<>(consumer);
+        set.addOpenClosed(0, 98, 0, 99);
+        set.addOpenClosed(0, 100, 1, 5);
+        set.addOpenClosed(1, 10, 1, 15);
+        set.addOpenClosed(1, 20, 2, 10);
+
+        List<Range<LongPair>> ranges = set.asRanges();
+        int count = 0;
+        assertEquals(ranges.get(count++), (Range.openClosed(new LongPair(0, 98), new LongPair(0, 99))));
+        assertEquals(ranges.get(count++), (Range.openClosed(new LongPair(1, -1), new LongPair(1, 5))));
+        assertEquals(ranges.get(count++), (Range.openClosed(new LongPair(1, 10), new LongPair(1, 15))));
+        assertEquals(ranges.get(count++), (Range.openClosed(new LongPair(2, -1), new LongPair(2, 10))));
+    }
+
+    @Test
+    public void testRangesAcrossChunks() {
+        CompressedLongPairRangeSet<LongPair> set = new CompressedLongPairRangeSet<>(consumer);
+        set.addOpenClosed(1, 65530, 1, 65540);
+        set.addOpenClosed(1, 131000, 1, 300000);
+
+        assertEquals(set.size(), 2);
+        assertEquals(set.firstRange(), Range.openClosed(new LongPair(1, 65530), new LongPair(1, 65540)));
+        assertEquals(set.span(), Range.openClosed(new LongPair(1, 65530), new LongPair(1, 300000)));
+        assertEquals(set.rangeContaining(1, 200000), Range.closed(new LongPair(1, 131001), new LongPair(1, 300000)));
+        assertNull(set.rangeContaining(1, 100000));
+
+        set.removeAtMost(1, 65535);
+        assertEquals(set.firstRange(), Range.openClosed(new LongPair(1, 65535), new LongPair(1, 65540)));
+
+        set.removeAtMost(1, 200000);
+        assertEquals(set.asRanges().size(), 1);
+        assertEquals(set.firstRange(), Range.openClosed(new LongPair(1, 200000), new LongPair(1, 300000)));
+
+        set.removeAtMost(2, 0);
+        assertTrue(set.isEmpty());
+        assertEquals(set.size(), 0);
+    }
+
+    @Test
+    public void testCompareWithOpenRangeSet() {
+        CompressedLongPairRangeSet<LongPair> set = new CompressedLongPairRangeSet<>(consumer);
+        ConcurrentOpenLongPairRangeSet<LongPair> openSet = new ConcurrentOpenLongPairRangeSet<>(consumer);
+        Random random = new Random(1);
+
+        // Random acks and mark-deletes over a few ledgers, so that chunks are converted to bitmaps and back
+        long markDeleteKey = 0;
+        long markDeleteValue = -1;
+        for (int i = 0; i < 100_000; i++) {
+            long key = markDeleteKey + random.nextInt(3);
+            long value = random.nextInt(200_000);
+            if (i % 10_000 == 9_999) {
+                markDeleteKey = key;
+                markDeleteValue = value;
+                set.removeAtMost(key, value);
+                openSet.removeAtMost(key, value);
+            } else if (key > markDeleteKey || value > markDeleteValue) {
+                int length = random.nextInt(10) == 0 ? random.nextInt(100_000) : 1;
+                set.addOpenClosed(key, value - 1, key, value + length - 1);
+                openSet.addOpenClosed(key, value - 1, key, value + length - 1);
+            }
+
+            if (i % 1000 == 0) {
+                assertEquals(set.asRanges(), openSet.asRanges());
+                assertEquals(set.size(), openSet.size());
+                assertEquals(set.span(), openSet.span());
+                assertEquals(set.firstRange(), openSet.firstRange());
+                for (int j = 0; j < 100; j++) {
+                    long k = markDeleteKey + random.nextInt(3);
+                    long v = random.nextInt(200_000);
+                    assertEquals(set.contains(k, v), openSet.contains(k, v));
+                    assertEquals(set.rangeContaining(k, v), openSet.rangeContaining(k, v));
+                }
+            }
+        }
+        assertEquals(set.asRanges(), openSet.asRanges());
+    }
+
+    @Test
+    public void testMemoryUsageWithSparseValues() {
+        CompressedLongPairRangeSet<LongPair> set = new CompressedLongPairRangeSet<>(consumer);
+
+        // Every other entry of 1M entries is acked
+        for (int i = 0; i < 1_000_000; i += 2) {
+            set.addOpenClosed(0, i - 1, 0, i);
+        }
+        assertEquals(set.size(), 500_000);
+        assertTrue(set.contains(0, 999_998));
+        assertFalse(set.contains(0, 999_999));
+
+        // 16 bitmap chunks of 8Kb
+        assertTrue(set.getMemoryUsage() < 16 * 9 * 1024, "Memory usage: " + set.getMemoryUsage());
+
+        // Filling the gaps brings the chunks back to single runs
+        for (int i = 1; i < 1_000_000; i += 2) {
+            set.addOpenClosed(0, i - 1, 0, i);
+        }
+        assertEquals(set.size(), 1);
+        assertTrue(set.getMemoryUsage() < 16 * 1024, "Memory usage: " + set.getMemoryUsage());
+    }
+}
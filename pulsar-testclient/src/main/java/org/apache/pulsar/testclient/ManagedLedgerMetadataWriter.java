@@ -0,0 +1,289 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.testclient;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.bookkeeper.common.util.OrderedExecutor;
+import org.apache.bookkeeper.mledger.ManagedLedgerException.MetaStoreException;
+import org.apache.bookkeeper.mledger.impl.MetaStore;
+import org.apache.bookkeeper.mledger.impl.MetaStore.MetaStoreCallback;
+import org.apache.bookkeeper.mledger.impl.MetaStore.Stat;
+import org.apache.bookkeeper.mledger.impl.MetaStoreImplRocksDb;
+import org.apache.bookkeeper.mledger.impl.MetaStoreImplZookeeper;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedCursorInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo;
+import org.apache.bookkeeper.zookeeper.ZooKeeperClient;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.pulsar.testclient.utils.PaddingDecimalFormat;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Update the cursors metadata of managed ledgers directly on a metadata store, to compare the number of metadata
+ * operations per second the stores sustain.
+ *
+ * <p/>Each managed ledger has a single cursor, whose info is updated again as soon as the previous update completes.
+ */
+public class ManagedLedgerMetadataWriter {
+
+    private static final LongAdder operations = new LongAdder();
+
+    private static Recorder recorder = new Recorder(TimeUnit.SECONDS.toMicros(120), 5);
+    private static Recorder cumulativeRecorder = new Recorder(TimeUnit.SECONDS.toMicros(120), 5);
+
+    static class Arguments {
+
+        @Parameter(names = { "-h", "--help" }, description = "Help message", help = true)
+        boolean help;
+
+        @Parameter(names = { "--store" }, description = "Metadata store: zookeeper or rocksdb")
+        public String store = "zookeeper";
+
+        @Parameter(names = { "-zk", "--zookeeperServers" }, description = "ZooKeeper connection string")
+        public String zookeeperServers;
+
+        @Parameter(names = { "--rocksdb-dir" }, description = "Directory of the RocksDB database")
+        public String rocksDbDirectory = "data/managed-ledger-metadata";
+
+        @Parameter(names = { "--rocksdb-sync" }, description = "Sync each RocksDB update to disk")
+        public boolean rocksDbSyncWrites = false;
+
+        @Parameter(names = { "-t", "--num-topic" }, description = "Number of managed ledgers")
+        public int numManagedLedgers = 100;
+
+        @Parameter(names = { "--threads" }, description = "Number of metadata store threads")
+        public int numThreads = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(names = { "-time",
+                "--test-duration" }, description = "Test duration in secs")
+        public long testTime = 60;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        final Arguments arguments = new Arguments();
+        JCommander jc = new JCommander(arguments);
+        jc.setProgramName("pulsar-perf managed-ledger-metadata");
+
+        try {
+            jc.parse(args);
+        } catch (ParameterException e) {
+            System.out.println(e.getMessage());
+            jc.usage();
+            System.exit(-1);
+        }
+
+        if (arguments.help) {
+            jc.usage();
+            System.exit(-1);
+        }
+
+        if (!"zookeeper".equals(arguments.store) && !"rocksdb".equals(arguments.store)) {
+            System.out.println("Unknown metadata store: " + arguments.store);
+            jc.usage();
+            System.exit(-1);
+        }
+
+        if ("zookeeper".equals(arguments.store) && arguments.zookeeperServers == null) {
+            System.out.println("The ZooKeeper connection string is required with the zookeeper store");
+            jc.usage();
+            System.exit(-1);
+        }
+
+        // Dump config variables
+        ObjectMapper m = new ObjectMapper();
+        ObjectWriter w = m.writerWithDefaultPrettyPrinter();
+        log.info("Starting Pulsar managed-ledger metadata perf writer with config: {}",
+                w.writeValueAsString(arguments));
+
+        OrderedExecutor executor = OrderedExecutor.newBuilder()
+                .numThreads(arguments.numThreads)
+                .name("pulsar-perf-managed-ledger-metadata")
+                .build();
+
+        ZooKeeper zk = null;
+        MetaStore store;
+        if ("zookeeper".equals(arguments.store)) {
+            zk = ZooKeeperClient.newBuilder()
+                    .connectString(arguments.zookeeperServers)
+                    .sessionTimeoutMs(30000)
+                    .build();
+            if (zk.exists("/managed-ledgers", false) == null) {
+                zk.create("/managed-ledgers", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
+            store = new MetaStoreImplZookeeper(zk, executor);
+        } else {
+            store = new MetaStoreImplRocksDb(arguments.rocksDbDirectory, arguments.rocksDbSyncWrites, executor);
+        }
+
+        String managedLedgerPrefix = "test-" + DigestUtils.sha1Hex(UUID.randomUUID().toString()).substring(0, 5);
+
+        // Create the managed ledgers and their cursor
+        List<CompletableFuture<Stat>> futures = new ArrayList<>();
+        for (int i = 0; i < arguments.numManagedLedgers; i++) {
+            String name = String.format("%s-%03d", managedLedgerPrefix, i);
+            CompletableFuture<Stat> future = new CompletableFuture<>();
+            futures.add(future);
+            store.getManagedLedgerInfo(name, true, new MetaStoreCallback<ManagedLedgerInfo>() {
+                @Override
+                public void operationComplete(ManagedLedgerInfo result, Stat stat) {
+                    store.asyncUpdateCursorInfo(name, "cursor", cursorInfo(0), null, callback(future));
+                }
+
+                @Override
+                public void operationFailed(MetaStoreException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        }
+        futures.forEach(CompletableFuture::join);
+
+        log.info("Created {} managed ledgers", arguments.numManagedLedgers);
+
+        AtomicBoolean isDone = new AtomicBoolean();
+        for (int i = 0; i < arguments.numManagedLedgers; i++) {
+            updateCursor(store, String.format("%s-%03d", managedLedgerPrefix, i), futures.get(i).join(), 1, isDone);
+        }
+
+        // Print report stats
+        long startTime = System.nanoTime();
+        long oldTime = startTime;
+
+        Histogram reportHistogram = null;
+
+        while (System.nanoTime() - startTime < TimeUnit.SECONDS.toNanos(arguments.testTime)) {
+            Thread.sleep(10000);
+
+            long now = System.nanoTime();
+            double elapsed = (now - oldTime) / 1e9;
+
+            double rate = operations.sumThenReset() / elapsed;
+
+            reportHistogram = recorder.getIntervalHistogram(reportHistogram);
+
+            log.info(
+                    "Metadata updates: {} ops/s --- {} ops/s per topic --- Latency: mean: {} ms - med: {} - 95pct: {} - 99pct: {} - 99.9pct: {} - Max: {}",
+                    throughputFormat.format(rate), throughputFormat.format(rate / arguments.numManagedLedgers),
+                    dec.format(reportHistogram.getMean() / 1000.0),
+                    dec.format(reportHistogram.getValueAtPercentile(50) / 1000.0),
+                    dec.format(reportHistogram.getValueAtPercentile(95) / 1000.0),
+                    dec.format(reportHistogram.getValueAtPercentile(99) / 1000.0),
+                    dec.format(reportHistogram.getValueAtPercentile(99.9) / 1000.0),
+                    dec.format(reportHistogram.getMaxValue() / 1000.0));
+
+            reportHistogram.reset();
+
+            oldTime = now;
+        }
+
+        isDone.set(true);
+        log.info("------------------- DONE -----------------------");
+        printAggregatedStats();
+
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        store.close();
+        if (zk != null) {
+            zk.close();
+        }
+    }
+
+    private static void updateCursor(MetaStore store, String name, Stat stat, long entryId, AtomicBoolean isDone) {
+        if (isDone.get()) {
+            return;
+        }
+
+        final long sendTime = System.nanoTime();
+        store.asyncUpdateCursorInfo(name, "cursor", cursorInfo(entryId), stat, new MetaStoreCallback<Void>() {
+            @Override
+            public void operationComplete(Void result, Stat newStat) {
+                long latencyMicros = NANOSECONDS.toMicros(System.nanoTime() - sendTime);
+                recorder.recordValue(latencyMicros);
+                cumulativeRecorder.recordValue(latencyMicros);
+                operations.increment();
+
+                updateCursor(store, name, newStat, entryId + 1, isDone);
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                log.warn("[{}] Failed to update cursor info", name, e);
+                System.exit(-1);
+            }
+        });
+    }
+
+    private static ManagedCursorInfo cursorInfo(long entryId) {
+        return ManagedCursorInfo.newBuilder().setCursorsLedgerId(-1).setMarkDeleteLedgerId(0)
+                .setMarkDeleteEntryId(entryId).build();
+    }
+
+    private static MetaStoreCallback<Void> callback(CompletableFuture<Stat> future) {
+        return new MetaStoreCallback<Void>() {
+            @Override
+            public void operationComplete(Void result, Stat stat) {
+                future.complete(stat);
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                future.completeExceptionally(e);
+            }
+        };
+    }
+
+    private static void printAggregatedStats() {
+        Histogram reportHistogram = cumulativeRecorder.getIntervalHistogram();
+
+        log.info(
+                "Aggregated latency stats --- Latency: mean: {} ms - med: {} - 95pct: {} - 99pct: {} - 99.9pct: {} - 99.99pct: {} - Max: {}",
+                dec.format(reportHistogram.getMean() / 1000.0),
+                dec.format(reportHistogram.getValueAtPercentile(50) / 1000.0),
+                dec.format(reportHistogram.getValueAtPercentile(95) / 1000.0),
+                dec.format(reportHistogram.getValueAtPercentile(99) / 1000.0),
+                dec.format(reportHistogram.getValueAtPercentile(99.9) / 1000.0),
+                dec.format(reportHistogram.getValueAtPercentile(99.99) / 1000.0),
+                dec.format(reportHistogram.getMaxValue() / 1000.0));
+    }
+
+    static final DecimalFormat throughputFormat = new PaddingDecimalFormat("0.0", 8);
+    static final DecimalFormat dec = new PaddingDecimalFormat("0.000", 7);
+    private static final Logger log = LoggerFactory.getLogger(ManagedLedgerMetadataWriter.class);
+}